@@ -0,0 +1,53 @@
+package com.zilch.cache;
+
+import com.zilch.entities.Card;
+
+import java.util.List;
+
+/**
+ * Bounded read-through cache of cards by id and by user id.
+ * <p>Cached cards are detached copies without transactions and purchases,
+ * every call returns a new copy, so callers are free to change it.</p>
+ * @author Elena Medvedeva
+ */
+public interface CardCache {
+    /**
+     * @param id card id
+     * @return copy of cached card or null if card is not cached
+     */
+    public Card getById(Integer id);
+
+    /**
+     * Stamp of a read: taken before the card is read from the database and passed to put,
+     * so the read result isn't cached if the card was invalidated in between.
+     * @return read stamp
+     */
+    public long readStamp();
+
+    /**
+     * @param card card to cache, copy of the card is stored
+     * @param stamp read stamp taken before the card was read
+     * @return true if the card is cached, false if it was invalidated after the stamp was taken
+     */
+    public boolean put(Card card, long stamp);
+
+    /**
+     * @param userId user id
+     * @return copies of cached cards of the user or null if they are not cached
+     */
+    public List<Card> getByUserId(String userId);
+
+    /**
+     * @param userId user id
+     * @param cards cards of the user to cache, copies of the cards are stored
+     * @param stamp read stamp taken before the cards were read
+     * @return true if the cards are cached, false if cards of the user were invalidated after the stamp was taken
+     */
+    public boolean putByUserId(String userId, List<Card> cards, long stamp);
+
+    /**
+     * Removes card from the cache by id and cards of its user
+     * @param card changed card
+     */
+    public void invalidate(Card card);
+}
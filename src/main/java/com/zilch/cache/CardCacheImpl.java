@@ -0,0 +1,224 @@
+package com.zilch.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zilch.entities.Card;
+import com.zilch.datasource.RoutingContext;
+import com.zilch.entities.Currency;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * Card cache based on Guava caches with size based eviction and expiration after write.
+ * <p>Expiration bounds how long a card changed by another application instance can be stale.
+ * Changes made by this instance invalidate the entries immediately and once more after commit,
+ * so a card read by a concurrent request before commit is not kept in the cache.
+ * Puts are conditional: every invalidation is recorded in a striped table of invalidation times,
+ * and a card read before the last invalidation of its stripe is not cached (see readStamp).
+ * A card read from the replica isn't cached either if it was invalidated within replica-lag-ms before the read,
+ * the replica may not have replayed the change yet.
+ * Hit and miss statistics are exposed as cache.* metrics with cache=card.by-id and cache=card.by-user-id tags.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class CardCacheImpl implements CardCache {
+    public static final String CACHE_BY_ID = "card.by-id";
+    public static final String CACHE_BY_USER_ID = "card.by-user-id";
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${application.card.cache.maximum-size:10000}")
+    private long maximumSize;
+
+    @Value("${application.card.cache.expire-after-write-ms:10000}")
+    private long expireAfterWriteMs;
+
+    @Value("${application.card.cache.replica-lag-ms:1000}")
+    private long replicaLagMs;
+
+    @Value("${application.datasource.replica.enabled:false}")
+    private boolean replicaEnabled;
+
+    private static final int STRIPES = 1024;
+
+    //System.nanoTime() of the last invalidation of cards by id and by user id, by stripe
+    private final AtomicLongArray invalidatedById = stripes();
+
+    private final AtomicLongArray invalidatedByUserId = stripes();
+
+    private Cache<Integer, Card> cardsById;
+
+    private Cache<String, List<Card>> cardsByUserId;
+
+    @PostConstruct
+    public void init() {
+        cardsById = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        cardsByUserId = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(meterRegistry, cardsById, CACHE_BY_ID);
+        GuavaCacheMetrics.monitor(meterRegistry, cardsByUserId, CACHE_BY_USER_ID);
+    }
+
+    @Override
+    public Card getById(Integer id) {
+        Card card = cardsById.getIfPresent(id);
+        return card == null ? null : copy(card);
+    }
+
+    public long getReplicaLagMs() {
+        return replicaLagMs;
+    }
+
+    public void setReplicaLagMs(long replicaLagMs) {
+        this.replicaLagMs = replicaLagMs;
+    }
+
+    public boolean isReplicaEnabled() {
+        return replicaEnabled;
+    }
+
+    public void setReplicaEnabled(boolean replicaEnabled) {
+        this.replicaEnabled = replicaEnabled;
+    }
+
+    @Override
+    public long readStamp() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Card is stored and then the stripe is checked once more: if the card was invalidated concurrently,
+     * either the stored copy is removed here or the invalidation evicts it.
+     */
+    @Override
+    public boolean put(Card card, long stamp) {
+        if (invalidatedSince(invalidatedById, card.getId(), stamp)) {
+            return false;
+        }
+        Card copy = copy(card);
+        cardsById.put(card.getId(), copy);
+        if (invalidatedSince(invalidatedById, card.getId(), stamp)) {
+            cardsById.asMap().remove(card.getId(), copy);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<Card> getByUserId(String userId) {
+        List<Card> cards = cardsByUserId.getIfPresent(userId);
+        return cards == null ? null : copy(cards);
+    }
+
+    @Override
+    public boolean putByUserId(String userId, List<Card> cards, long stamp) {
+        if (invalidatedSince(invalidatedByUserId, userId, stamp)) {
+            return false;
+        }
+        List<Card> copy = copy(cards);
+        cardsByUserId.put(userId, copy);
+        if (invalidatedSince(invalidatedByUserId, userId, stamp)) {
+            cardsByUserId.asMap().remove(userId, copy);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void invalidate(Card card) {
+        if (card == null) {
+            return;
+        }
+        evict(card.getId(), card.getUserId());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            final Integer id = card.getId();
+            final String userId = card.getUserId();
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(id, userId);
+                }
+            });
+        }
+    }
+
+    //invalidation time is recorded before the entry is evicted, see put
+    private void evict(Integer id, String userId) {
+        if (id != null) {
+            invalidated(invalidatedById, id);
+            cardsById.invalidate(id);
+        }
+        if (userId != null) {
+            invalidated(invalidatedByUserId, userId);
+            cardsByUserId.invalidate(userId);
+        }
+    }
+
+    private static AtomicLongArray stripes() {
+        AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.set(i, Long.MIN_VALUE);
+        }
+        return stripes;
+    }
+
+    private static int stripe(Object key) {
+        return Math.floorMod(key.hashCode(), STRIPES);
+    }
+
+    private static void invalidated(AtomicLongArray stripes, Object key) {
+        long now = System.nanoTime();
+        stripes.accumulateAndGet(stripe(key), now, Math::max);
+    }
+
+    /**
+     * @return true if the stripe of the key was invalidated after the stamp was taken,
+     * or within replica-lag-ms before it if the card was read from the replica
+     */
+    private boolean invalidatedSince(AtomicLongArray stripes, Object key, long stamp) {
+        long since = stamp;
+        if (replicaEnabled && RoutingContext.currentRole() == RoutingContext.Role.REPLICA) {
+            since -= TimeUnit.MILLISECONDS.toNanos(replicaLagMs);
+        }
+        return stripes.get(stripe(key)) >= since;
+    }
+
+    private List<Card> copy(List<Card> cards) {
+        return cards.stream().map(this::copy).collect(Collectors.toList());
+    }
+
+    /**
+     * Copies card state without transactions and purchases.
+     * Currency is taken from ReferenceDataCache, so no Hibernate proxy is kept in the cache.
+     */
+    private Card copy(Card card) {
+        Currency currency = card.getCurrency() == null ? null : referenceDataCache.findCurrencyById(card.getCurrency().getId());
+        Card copy = new Card(card.getUserId(), currency != null ? currency : card.getCurrency(), card.getBalance(), card.getLastUpdatedBy());
+        copy.setId(card.getId());
+        copy.setLastUpdated(card.getLastUpdated());
+        copy.setVersion(card.getVersion());
+        return copy;
+    }
+}
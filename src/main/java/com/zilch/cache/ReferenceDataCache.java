@@ -0,0 +1,35 @@
+package com.zilch.cache;
+
+import com.zilch.entities.Currency;
+import com.zilch.entities.TransactionType;
+
+/**
+ * In-memory cache of reference data (currencies and transaction types).
+ * <p>Reference tables contain a few rows which are almost never changed,
+ * so they are read from the database only on refresh and not on every request.</p>
+ * @author Elena Medvedeva
+ */
+public interface ReferenceDataCache {
+    /**
+     * @param name currency name, e.g. GBP
+     * @return currency or null if there is no such currency
+     */
+    public Currency findCurrencyByName(String name);
+
+    /**
+     * @param id currency id
+     * @return currency or null if there is no such currency
+     */
+    public Currency findCurrencyById(Integer id);
+
+    /**
+     * @param id transaction type id, e.g. C or D
+     * @return transaction type or null if there is no such type
+     */
+    public TransactionType findTransactionTypeById(String id);
+
+    /**
+     * Reloads all currencies and transaction types from the database
+     */
+    public void refresh();
+}
@@ -0,0 +1,87 @@
+package com.zilch.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.zilch.entities.Currency;
+import com.zilch.entities.TransactionType;
+import com.zilch.repository.CurrencyRepository;
+import com.zilch.repository.TransactionTypeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * Reference data cache backed by immutable maps.
+ * <p>Maps are loaded at startup and replaced as a whole on refresh, so readers never see partially loaded data.
+ * Refresh happens every application.reference-data.refresh-ms milliseconds or on demand (POST /admin/reference-data/refresh).
+ * Cached entities are detached, they are only used as references for new cards and transactions.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class ReferenceDataCacheImpl implements ReferenceDataCache {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    private volatile Snapshot snapshot = new Snapshot(ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of());
+
+    @Override
+    public Currency findCurrencyByName(String name) {
+        return name == null ? null : snapshot.currenciesByName.get(name);
+    }
+
+    @Override
+    public Currency findCurrencyById(Integer id) {
+        return id == null ? null : snapshot.currenciesById.get(id);
+    }
+
+    @Override
+    public TransactionType findTransactionTypeById(String id) {
+        return id == null ? null : snapshot.transactionTypesById.get(id);
+    }
+
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${application.reference-data.refresh-ms:300000}",
+            initialDelayString = "${application.reference-data.refresh-ms:300000}")
+    @Transactional(readOnly = true)
+    @Override
+    public void refresh() {
+        List<Currency> currencies = currencyRepository.findAll();
+        List<TransactionType> transactionTypes = transactionTypeRepository.findAll();
+
+        ImmutableMap.Builder<String, Currency> currenciesByName = ImmutableMap.builder();
+        ImmutableMap.Builder<Integer, Currency> currenciesById = ImmutableMap.builder();
+        for (Currency currency : currencies) {
+            currenciesByName.put(currency.getName(), currency);
+            currenciesById.put(currency.getId(), currency);
+        }
+        ImmutableMap.Builder<String, TransactionType> transactionTypesById = ImmutableMap.builder();
+        for (TransactionType transactionType : transactionTypes) {
+            transactionTypesById.put(transactionType.getId(), transactionType);
+        }
+        snapshot = new Snapshot(currenciesByName.build(), currenciesById.build(), transactionTypesById.build());
+        logger.debug("Reference data loaded: {} currencies, {} transaction types", currencies.size(), transactionTypes.size());
+    }
+
+    private static final class Snapshot {
+        private final ImmutableMap<String, Currency> currenciesByName;
+        private final ImmutableMap<Integer, Currency> currenciesById;
+        private final ImmutableMap<String, TransactionType> transactionTypesById;
+
+        private Snapshot(ImmutableMap<String, Currency> currenciesByName, ImmutableMap<Integer, Currency> currenciesById,
+                         ImmutableMap<String, TransactionType> transactionTypesById) {
+            this.currenciesByName = currenciesByName;
+            this.currenciesById = currenciesById;
+            this.transactionTypesById = transactionTypesById;
+        }
+    }
+}
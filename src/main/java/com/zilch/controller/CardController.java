@@ -1,13 +1,11 @@
 package com.zilch.controller;
 
 import com.zilch.exceptions.CardException;
-import com.zilch.gson.adapter.HibernateProxyTypeAdapter;
-import com.zilch.gson.exclusion.ExcludeField;
-import com.zilch.gson.exclusion.GsonExclusionStrategy;
+import com.zilch.gson.GsonView;
+import com.zilch.gson.writer.CursorPageWriter;
 import com.zilch.helper.Helper;
 import com.zilch.service.CardService;
 import com.zilch.view.model.CardModel;
-import com.google.gson.GsonBuilder;
 import com.zilch.entities.Card;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,7 +13,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.http.MediaType;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -42,29 +42,22 @@ class CardController {
         return "Hello from Zilch microservice!";
     }
 
-    private  GsonExclusionStrategy[] getExclusionStrategiesForCard() throws ClassNotFoundException  {
-        return new GsonExclusionStrategy[]{new GsonExclusionStrategy(ExcludeField.EXCLUDE_TRANSACTION_PURCHASE),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_TRANSACTION_CARD),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_CARD_TRANSACTIONS),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_PURCHASE_CARD)};
-
-    }
-
-    private  GsonExclusionStrategy[] getExclusionStrategiesForListOfCards() throws ClassNotFoundException  {
-        return new GsonExclusionStrategy[]{new GsonExclusionStrategy(ExcludeField.EXCLUDE_CARD_PURCHASES),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_CARD_TRANSACTIONS)};
-
-    }
-
+    /**
+     * Returns one page of cards ordered by id: {"items":[...],"nextCursor":id}.
+     * nextCursor is not present on the last page.
+     * @param after id of the last card on the previous page (nextCursor), first page if not provided
+     * @param limit page size, application.pagination.default-limit if not provided
+     * @param response page of cards in JSON format is written to the response
+     */
     @GetMapping(
     value = "/cards",
     produces = MediaType.APPLICATION_JSON_VALUE
     )
-    @ResponseBody
-    public String getAll() throws CardException, ClassNotFoundException {
-        logger.debug("Called cardController.getAll");
-        return new GsonBuilder().setExclusionStrategies(getExclusionStrategiesForListOfCards())
-                .create().toJson(cardService.findAll());
+    public void getAll(@RequestParam(value = "after", required = false) Integer after,
+                       @RequestParam(value = "limit", required = false) Integer limit,
+                       HttpServletResponse response) throws CardException, IOException {
+        logger.debug("Called cardController.getAll with after={}, limit={}",after,limit);
+        cardService.findAll(after, limit, new CursorPageWriter<>(GsonView.PROJECTION.gson(), ResponseWriters.json(response)));
     }
 
     @GetMapping(
@@ -72,11 +65,10 @@ class CardController {
             produces = MediaType.APPLICATION_JSON_VALUE
     )
     @ResponseBody
-    public String getCardById( @PathVariable("id") int id) throws CardException, ClassNotFoundException {
+    public String getCardById( @PathVariable("id") int id) throws CardException {
         logger.debug("Called cardController.getCardById with id={}",id);
-        Card card = cardService.findById(id);
-        return new GsonBuilder().setExclusionStrategies(getExclusionStrategiesForCard())
-                .create().toJson(card);
+        Card card = cardService.findByIdWithPurchases(id);
+        return GsonView.CARD_DETAIL.gson().toJson(card);
     }
 
     @GetMapping(
@@ -84,11 +76,10 @@ class CardController {
             produces = MediaType.APPLICATION_JSON_VALUE
     )
     @ResponseBody
-    public String getCardsByUserId( @RequestParam("userId") String userId) throws CardException, ClassNotFoundException {
+    public String getCardsByUserId( @RequestParam("userId") String userId) throws CardException {
         logger.debug("Called cardController.getCardsByUserId with userId={}",userId);
         List<Card> cards = cardService.findByUserId(userId);
-        return new GsonBuilder().setExclusionStrategies(getExclusionStrategiesForListOfCards())
-                .create().toJson(cards);
+        return GsonView.CARD_LIST.gson().toJson(cards);
     }
 
     /**
@@ -102,7 +93,7 @@ class CardController {
     public String createCard(@Valid @RequestBody CardModel cardModel) throws CardException {
         logger.debug("Called cardController.createCard");
         Card card = cardService.createCard(cardModel.getUserId(),cardModel.getCurrency());
-        return new GsonBuilder().registerTypeAdapterFactory(HibernateProxyTypeAdapter.FACTORY).create().toJson(card);
+        return GsonView.CARD.gson().toJson(card);
     }
 
 }
@@ -1,23 +1,28 @@
 package com.zilch.controller;
 
-import com.google.gson.GsonBuilder;
+import com.zilch.datasource.CommitTokenService;
 import com.zilch.entities.Purchase;
 import com.zilch.exceptions.CardException;
-import com.zilch.gson.adapter.HibernateProxyTypeAdapter;
-import com.zilch.gson.exclusion.ExcludeField;
-import com.zilch.gson.exclusion.GsonExclusionStrategy;
+import com.zilch.executor.CardShardExecutor;
+import com.zilch.gson.GsonView;
+import com.zilch.gson.writer.CursorPageWriter;
 import com.zilch.helper.Helper;
+import com.zilch.journal.TransactionJournal;
 import com.zilch.service.PurchaseService;
+import com.zilch.view.dto.JournalReceipt;
 import com.zilch.view.model.PurchaseModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
 import javax.validation.constraints.NotBlank;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Restful controller for managing card transactions
@@ -34,39 +39,52 @@ public class PurchaseController {
     @Autowired
     private Helper inputParametersValidator;
 
+    @Autowired
+    private CardShardExecutor cardShardExecutor;
 
+    @Autowired
+    private TransactionJournal transactionJournal;
 
-    private  GsonExclusionStrategy[] getExclusionStrategies() throws ClassNotFoundException  {
-        return new GsonExclusionStrategy[]{new GsonExclusionStrategy(ExcludeField.EXCLUDE_TRANSACTION_PURCHASE),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_TRANSACTION_CARD),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_CARD_TRANSACTIONS),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_CARD_PURCHASES)};
+    @Autowired
+    private CommitTokenService commitTokenService;
 
-    }
 
+    /**
+     * Returns one page of purchases ordered by id: {"items":[...],"nextCursor":id}.
+     * nextCursor is not present on the last page.
+     * @param after id of the last purchase on the previous page (nextCursor), first page if not provided
+     * @param limit page size, application.pagination.default-limit if not provided
+     * @param response page of purchases in JSON format is written to the response
+     */
     @GetMapping(
             value = "/purchases",
             produces = MediaType.APPLICATION_JSON_VALUE
     )
-    @ResponseBody
-    public String getAll() throws CardException, ClassNotFoundException {
-        logger.debug("Called purchaseController.getAll");
-        List<Purchase> purchasesList = purchaseService.findAll();
-        return new GsonBuilder().registerTypeAdapterFactory(HibernateProxyTypeAdapter.FACTORY).setExclusionStrategies(getExclusionStrategies())
-                .create().toJson(purchasesList);
+    public void getAll(@RequestParam(value = "after", required = false) Integer after,
+                       @RequestParam(value = "limit", required = false) Integer limit,
+                       HttpServletResponse response) throws CardException, IOException {
+        logger.debug("Called purchaseController.getAll with after={}, limit={}",after,limit);
+        purchaseService.findAll(after, limit, new CursorPageWriter<>(GsonView.PROJECTION.gson(), ResponseWriters.json(response)));
     }
 
+    /**
+     * Returns one page of card purchases ordered by id: {"items":[...],"nextCursor":id}.
+     * nextCursor is not present on the last page.
+     * @param id card id
+     * @param after id of the last purchase on the previous page (nextCursor), first page if not provided
+     * @param limit page size, application.pagination.default-limit if not provided
+     * @param response page of purchases in JSON format is written to the response
+     */
     @GetMapping(
             value = "/cards/{id}/purchases",
             produces = MediaType.APPLICATION_JSON_VALUE
     )
-    @ResponseBody
-    public String getCardPurchasesById( @PathVariable("id") int id) throws CardException, ClassNotFoundException {
-        logger.debug("Called PurchasesController.getCardPurchasesById with parameter cardId={}",id);
-        List<Purchase> purchasesList = purchaseService.getPurchasesByCardId(id);
-        return new GsonBuilder().
-                setExclusionStrategies(getExclusionStrategies()).
-                create().toJson(purchasesList);
+    public void getCardPurchasesById( @PathVariable("id") int id,
+                                      @RequestParam(value = "after", required = false) Integer after,
+                                      @RequestParam(value = "limit", required = false) Integer limit,
+                                      HttpServletResponse response) throws CardException, IOException {
+        logger.debug("Called PurchasesController.getCardPurchasesById with parameter cardId={}, after={}, limit={}",id,after,limit);
+        purchaseService.getPurchasesByCardId(id, after, limit, new CursorPageWriter<>(GsonView.PROJECTION.gson(), ResponseWriters.json(response)));
     }
 
     /**
@@ -75,11 +93,13 @@ public class PurchaseController {
      * Example of purchase JSON body
      * {"globalId":"123","currency":"GBP","cardId": "1","transactionTypeId":"C","amount":"100","description":"add money"}
      * </p>
+     * Purchase is executed on the shard of the card (see CardShardExecutor).
+     * When the journal is enabled, purchase is checked, appended to the journal and created later (see TransactionJournal),
+     * response is 202 Accepted: {"globalId":"123","sequence":1,"status":"ACCEPTED"}. Outcome is returned by GET /journal/{globalId}.
      * @param purchaseModel contains input parameters in the following format:
      *                {"globalId":"123","shopId": "ZARA","currency":"GBP","cardId": "1","amount":"100","description":"bought trousers and skirt"}
-     * @return created purchase in JSON format
-     * @throws CardException when couldn't create transaction (e.g. globalId not unique, not enough funds on card balance, etc.)
-     * @throws ClassNotFoundException
+     * @return future of created purchase in JSON format with commit token in X-Commit-LSN header
+     * (when read-your-writes is enabled, see CommitTokenService), completed with CardException when couldn't create purchase (e.g. globalId not unique, not enough funds on card balance, etc.)
      */
 
     @PostMapping(
@@ -87,16 +107,20 @@ public class PurchaseController {
             produces = MediaType.APPLICATION_JSON_VALUE
     )
     @ResponseBody
-    public String createPurchase(@Valid @RequestBody PurchaseModel purchaseModel) throws CardException, ClassNotFoundException {
+    public CompletableFuture<ResponseEntity<String>> createPurchase(@Valid @RequestBody PurchaseModel purchaseModel) throws CardException {
         logger.debug("Called PurchasesController.createPurchase" );
 
-
-        Purchase purchase = purchaseService.createPurchase(purchaseModel.getGlobalId(),purchaseModel.getShopId(),purchaseModel.getCurrency(),
-               purchaseModel.getCardId(),purchaseModel.getAmount(),purchaseModel.getDescription());
-        logger.info("Purchase created with id=" + purchase.getId() );
-
-        return new GsonBuilder().registerTypeAdapterFactory(HibernateProxyTypeAdapter.FACTORY).
-                setExclusionStrategies(getExclusionStrategies()).
-                create().toJson(purchase);
+        if (transactionJournal.isEnabled()) {
+            long sequence = transactionJournal.acceptPurchase(purchaseModel);
+            return CompletableFuture.completedFuture(ResponseWriters.accepted(
+                    GsonView.PROJECTION.gson().toJson(new JournalReceipt(purchaseModel.getGlobalId(), sequence))));
+        }
+        return cardShardExecutor.submit(purchaseModel.getCardId(), () -> {
+            Purchase purchase = purchaseService.createPurchase(purchaseModel.getGlobalId(),purchaseModel.getShopId(),purchaseModel.getCurrency(),
+                    purchaseModel.getCardId(),purchaseModel.getAmount(),purchaseModel.getDescription());
+            logger.info("Purchase created with id=" + purchase.getId() );
+
+            return ResponseWriters.withCommitToken(commitTokenService.currentToken(), GsonView.PURCHASE_LIST.gson().toJson(purchase));
+        });
     }
 }
@@ -0,0 +1,39 @@
+package com.zilch.controller;
+
+import com.zilch.cache.ReferenceDataCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Restful controller for administration of reference data (currencies and transaction types)
+ *  @author Elena Medvedeva
+ */
+@RestController
+class ReferenceDataController {
+
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    /**
+     * Reloads currencies and transaction types from the database,
+     * e.g. after a new currency was added, without waiting for the scheduled refresh.
+     * @return confirmation message
+     */
+    @PostMapping(
+            value = "/admin/reference-data/refresh",
+            produces = MediaType.TEXT_PLAIN_VALUE
+    )
+    @ResponseBody
+    public String refresh() {
+        logger.info("Called referenceDataController.refresh");
+        referenceDataCache.refresh();
+        return "Reference data refreshed";
+    }
+}
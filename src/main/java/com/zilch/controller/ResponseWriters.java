@@ -0,0 +1,57 @@
+package com.zilch.controller;
+
+import com.zilch.datasource.CommitTokenService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writers for responses which are streamed by controllers instead of being returned as a String,
+ * and helpers for responses which are returned
+ * @author Elena Medvedeva
+ */
+final class ResponseWriters {
+
+    private ResponseWriters() {
+    }
+
+    /**
+     * Sets JSON content type and returns writer to the response output stream.
+     * Nothing is sent to the client until something is written, so errors which happen
+     * before the first write are still handled by RestResponseEntityExceptionHandler.
+     * @param response http response
+     * @return UTF-8 writer to the response
+     * @throws IOException if couldn't get response output stream
+     */
+    static Writer json(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        return new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param token commit token of the write, see CommitTokenService. Header is not set if it's null
+     * @param json response body
+     * @return OK response with the body and X-Commit-LSN header
+     */
+    static ResponseEntity<String> withCommitToken(String token, String json) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+        if (token != null) {
+            builder.header(CommitTokenService.COMMIT_TOKEN_HEADER, token);
+        }
+        return builder.body(json);
+    }
+
+    /**
+     * @param json response body
+     * @return ACCEPTED response with the body, used when the operation is journaled and applied later
+     */
+    static ResponseEntity<String> accepted(String json) {
+        return ResponseEntity.accepted().body(json);
+    }
+}
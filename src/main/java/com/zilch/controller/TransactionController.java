@@ -1,22 +1,39 @@
 package com.zilch.controller;
 
+import com.zilch.datasource.CommitTokenService;
 import com.zilch.entities.Transaction;
 import com.zilch.exceptions.CardException;
-import com.zilch.gson.adapter.HibernateProxyTypeAdapter;
-import com.zilch.gson.exclusion.ExcludeField;
-import com.zilch.gson.exclusion.GsonExclusionStrategy;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.executor.CardGroupCommitExecutor;
+import com.zilch.executor.CardShardExecutor;
+import com.zilch.gson.GsonView;
+import com.zilch.gson.writer.CursorPageWriter;
 import com.zilch.helper.Helper;
+import com.zilch.journal.TransactionJournal;
+import com.zilch.service.TransactionBatchService;
 import com.zilch.service.TransactionService;
+import com.zilch.view.dto.JournalReceipt;
+import com.zilch.view.dto.TransactionBatchResult;
 import com.zilch.view.model.TransactionModel;
-import com.google.gson.GsonBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 /**
  * Restful controller for managing card transactions
@@ -31,28 +48,45 @@ public class TransactionController {
     @Autowired
     private TransactionService transactionService;
 
+    @Autowired
+    private TransactionBatchService transactionBatchService;
+
     @Autowired
     private Helper inputParametersValidator;
 
-    private  GsonExclusionStrategy[] getExclusionStrategies() throws ClassNotFoundException  {
-        return new GsonExclusionStrategy[]{
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_TRANSACTION_CARD),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_PURCHASE_TRANSACTIONS),
-                new GsonExclusionStrategy(ExcludeField.EXCLUDE_PURCHASE_CARD)};
+    @Autowired
+    private CardShardExecutor cardShardExecutor;
 
-    }
+    @Autowired
+    private CardGroupCommitExecutor cardGroupCommitExecutor;
+
+    @Autowired
+    private TransactionJournal transactionJournal;
+
+    @Autowired
+    private CommitTokenService commitTokenService;
 
+    @Value("${application.transaction.batch.max-size:5000}")
+    private int maxBatchSize;
+
+    /**
+     * Returns one page of card transactions ordered by id: {"items":[...],"nextCursor":id}.
+     * nextCursor is not present on the last page.
+     * @param id card id
+     * @param after id of the last transaction on the previous page (nextCursor), first page if not provided
+     * @param limit page size, application.pagination.default-limit if not provided
+     * @param response page of transactions in JSON format is written to the response
+     */
     @GetMapping(
             value = "/cards/{id}/transactions",
             produces = MediaType.APPLICATION_JSON_VALUE
     )
-    @ResponseBody
-    public String getCardTransactionsById( @PathVariable("id") int id) throws CardException, ClassNotFoundException {
-        logger.debug("Called TransactionController.getCardTransactionsById with parameter cardId={}",id);
-        List<Transaction> transactionList = transactionService.getTransactionsByCardId(id);
-        return new GsonBuilder().registerTypeAdapterFactory(HibernateProxyTypeAdapter.FACTORY).
-                setExclusionStrategies(getExclusionStrategies()).
-                create().toJson(transactionList);
+    public void getCardTransactionsById( @PathVariable("id") int id,
+                                         @RequestParam(value = "after", required = false) Integer after,
+                                         @RequestParam(value = "limit", required = false) Integer limit,
+                                         HttpServletResponse response) throws CardException, IOException {
+        logger.debug("Called TransactionController.getCardTransactionsById with parameter cardId={}, after={}, limit={}",id,after,limit);
+        transactionService.getTransactionsByCardId(id, after, limit, new CursorPageWriter<>(GsonView.PROJECTION.gson(), ResponseWriters.json(response)));
 
     }
 
@@ -65,11 +99,14 @@ public class TransactionController {
      * Example of debit transaction JSON body
      * {"globalId":"123","currency":"GBP","cardId": "1","transactionTypeId":"D","amount":"100","description":"withdraw money"}
      * </p>
+     * Transaction is executed on the shard of the card (see CardShardExecutor),
+     * or together with concurrent transactions of the card when group commit is enabled (see CardGroupCommitExecutor).
+     * When the journal is enabled, transaction is checked, appended to the journal and created later (see TransactionJournal),
+     * response is 202 Accepted: {"globalId":"123","sequence":1,"status":"ACCEPTED"}. Outcome is returned by GET /journal/{globalId}.
      * @param transactionModel contains input parameters in the following format:
      *                {"globalId":"123","currency":"GBP","cardId": "1","transactionTypeId":"C","amount":"100","description":"add money"}
-     * @return created transaction in JSON format
-     * @throws CardException when couldn't create transaction (e.g. globalId not unique, not enough funds on card balance, etc.)
-     * @throws ClassNotFoundException
+     * @return future of created transaction in JSON format with commit token in X-Commit-LSN header
+     * (when read-your-writes is enabled, see CommitTokenService), completed with CardException when couldn't create transaction (e.g. globalId not unique, not enough funds on card balance, etc.)
      */
 
     @PostMapping(
@@ -77,16 +114,104 @@ public class TransactionController {
             produces = MediaType.APPLICATION_JSON_VALUE
     )
     @ResponseBody
-    public String createCardTransaction(@Valid @RequestBody TransactionModel transactionModel) throws CardException, ClassNotFoundException {
+    public CompletableFuture<ResponseEntity<String>> createCardTransaction(@Valid @RequestBody TransactionModel transactionModel) throws CardException {
         logger.debug("Called TransactionController.createCardTransaction" );
 
+        if (transactionJournal.isEnabled()) {
+            long sequence = transactionJournal.acceptTransaction(transactionModel);
+            return CompletableFuture.completedFuture(ResponseWriters.accepted(
+                    GsonView.PROJECTION.gson().toJson(new JournalReceipt(transactionModel.getGlobalId(), sequence))));
+        }
+        if (cardGroupCommitExecutor.isEnabled()) {
+            return cardGroupCommitExecutor.submit(transactionModel).thenApply(transaction ->
+                    ResponseWriters.withCommitToken(commitTokenService.currentToken(), GsonView.TRANSACTION_CREATED.gson().toJson(transaction)));
+        }
+        return cardShardExecutor.submit(transactionModel.getcardId(), () -> {
+            Transaction transaction = transactionService.createTransaction(transactionModel.getGlobalId(),transactionModel.getCurrency(),transactionModel.getcardId(),
+                    transactionModel.getTransactionTypeId(),transactionModel.getAmount(),transactionModel.getDescription());
+            logger.info("Transaction created with id=" + transaction.getId() );
+
+            return ResponseWriters.withCommitToken(commitTokenService.currentToken(), GsonView.TRANSACTION_CREATED.gson().toJson(transaction));
+        });
+    }
+
+    /**
+     * Returns outcome of a transaction or purchase accepted by the journal, see TransactionJournal.status.
+     * <p>Example of response: {"globalId":"123","sequence":1,"status":"REJECTED","error":"Not enough funds ..."}</p>
+     * @param globalId globalId of the transaction or purchase
+     * @param sequence sequence of the journal receipt, optional
+     * @return status ACCEPTED, APPLIED or REJECTED in JSON format
+     * @throws CardException 404 if the entry is not known
+     */
+    @GetMapping(
+            value = "/journal/{globalId}",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @ResponseBody
+    public String getJournalStatus(@PathVariable("globalId") String globalId,
+                                   @RequestParam(value = "sequence", required = false) Long sequence) throws CardException {
+        logger.debug("Called TransactionController.getJournalStatus with parameter globalId={}, sequence={}", globalId, sequence);
+        return GsonView.PROJECTION.gson().toJson(transactionJournal.status(globalId, sequence));
+    }
+
+    /**
+     * Creates a batch of card transactions (bulk feeds), see TransactionBatchService.
+     * <p>
+     * Example of JSON body
+     * [{"globalId":"123","currency":"GBP","cardId": "1","transactionTypeId":"C","amount":"100","description":"add money"},
+     *  {"globalId":"124","currency":"GBP","cardId": "2","transactionTypeId":"D","amount":"10","description":"withdraw money"}]
+     * </p>
+     * Batch is executed in the request thread and locks all its cards in order of id. With card shards enabled
+     * it is split by the shard of the card and every part is executed on its shard by its own database transaction.
+     * @param transactions items of the batch, at most application.transaction.batch.max-size
+     * @return results of the items in the same order in JSON format:
+     * [{"index":0,"globalId":"123","status":"CREATED","transactionId":5},
+     *  {"index":1,"globalId":"124","status":"INSUFFICIENT_FUNDS","error":"..."}]
+     * Status is one of CREATED, DUPLICATE, INSUFFICIENT_FUNDS, INVALID. Commit token is in X-Commit-LSN header.
+     * @throws CardException if the batch is empty or too large
+     */
+    @PostMapping(
+            value = "/transactions/batch",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @ResponseBody
+    public ResponseEntity<String> createCardTransactions(@RequestBody List<TransactionModel> transactions) throws CardException {
+        logger.debug("Called TransactionController.createCardTransactions with {} transactions", transactions.size());
+
+        List<TransactionBatchResult> results = cardShardExecutor.isEnabled()
+                ? createOnShards(transactions) : transactionBatchService.createTransactions(transactions);
+        logger.info("Transaction batch of {} items processed", results.size());
 
-        Transaction transaction = transactionService.createTransaction(transactionModel.getGlobalId(),transactionModel.getCurrency(),transactionModel.getcardId(),
-                transactionModel.getTransactionTypeId(),transactionModel.getAmount(),transactionModel.getDescription());
-        logger.info("Transaction created with id=" + transaction.getId() );
+        return ResponseWriters.withCommitToken(commitTokenService.currentToken(), GsonView.PROJECTION.gson().toJson(results));
+    }
 
-        return new GsonBuilder().registerTypeAdapterFactory(HibernateProxyTypeAdapter.FACTORY).
-                setExclusionStrategies(new GsonExclusionStrategy(ExcludeField.EXCLUDE_CARD_TRANSACTIONS),new GsonExclusionStrategy(ExcludeField.EXCLUDE_TRANSACTION_PURCHASE)).
-                create().toJson(transaction);
+    /**
+     * Splits the batch by the shard of the card and creates the items of every shard on that shard,
+     * so the batch doesn't compete with the other writers of its cards.
+     * If a part fails, parts of the other shards can be committed: resent batch gets DUPLICATE for their items.
+     */
+    private List<TransactionBatchResult> createOnShards(List<TransactionModel> transactions) throws CardException {
+        inputParametersValidator.conditionIsTrue(!transactions.isEmpty() && transactions.size() <= maxBatchSize,
+                String.format(ErrorMessage.INVALID_BATCH_SIZE, transactions.size(), maxBatchSize), HttpStatus.BAD_REQUEST.value());
+        Map<Integer, List<Integer>> indexesByShard = new TreeMap<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            indexesByShard.computeIfAbsent(cardShardExecutor.shardOf(transactions.get(i).getcardId()), shard -> new ArrayList<>()).add(i);
+        }
+        List<List<Integer>> indexes = new ArrayList<>(indexesByShard.size());
+        List<CompletableFuture<List<TransactionBatchResult>>> parts = new ArrayList<>(indexesByShard.size());
+        for (Map.Entry<Integer, List<Integer>> shard : indexesByShard.entrySet()) {
+            List<TransactionModel> part = shard.getValue().stream().map(transactions::get).collect(Collectors.toList());
+            indexes.add(shard.getValue());
+            parts.add(cardShardExecutor.submitToShard(shard.getKey(), () -> transactionBatchService.createTransactions(part)));
+        }
+        TransactionBatchResult[] results = new TransactionBatchResult[transactions.size()];
+        for (int i = 0; i < parts.size(); i++) {
+            for (TransactionBatchResult result : CardShardExecutor.join(parts.get(i))) {
+                int index = indexes.get(i).get(result.getIndex());
+                result.setIndex(index);
+                results[index] = result;
+            }
+        }
+        return Arrays.asList(results);
     }
 }
@@ -0,0 +1,25 @@
+package com.zilch.datasource;
+
+/**
+ * Read-your-writes tokens.
+ * <p>Token is the WAL position (LSN) of the primary after a write was committed.
+ * Reads which present the token are served by the primary until the replica has replayed it.</p>
+ * @author Elena Medvedeva
+ */
+public interface CommitTokenService {
+    /**
+     * Http header carrying the token: set on write responses and sent back by clients on reads
+     */
+    String COMMIT_TOKEN_HEADER = "X-Commit-LSN";
+
+    /**
+     * @return token of everything committed on the primary so far, null if read-your-writes is not enabled
+     */
+    public String currentToken();
+
+    /**
+     * @param token token returned by a write
+     * @return true if the replica has replayed the token or read-your-writes is not enabled
+     */
+    public boolean isVisibleOnReplica(String token);
+}
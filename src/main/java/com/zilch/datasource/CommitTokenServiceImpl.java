@@ -0,0 +1,115 @@
+package com.zilch.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+/**
+ * PostgreSQL LSN based read-your-writes tokens.
+ * <p>Replayed LSN of the replica is checked at most once per application.datasource.replica.lag-check-ms
+ * milliseconds and shared by all requests. If the replica can't be checked, reads with a token go to the primary.</p>
+ * @author Elena Medvedeva
+ */
+@Service
+class CommitTokenServiceImpl implements CommitTokenService {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${application.datasource.replica.enabled:false}")
+    private boolean replicaEnabled;
+
+    @Value("${application.datasource.replica.read-your-writes:true}")
+    private boolean readYourWrites;
+
+    @Value("${application.datasource.replica.lag-check-ms:100}")
+    private long lagCheckMs;
+
+    @Value("${application.datasource.replica.primary-lsn-query:select pg_current_wal_lsn()::text}")
+    private String primaryLsnQuery;
+
+    @Value("${application.datasource.replica.replica-lsn-query:select pg_last_wal_replay_lsn()::text}")
+    private String replicaLsnQuery;
+
+    private JdbcTemplate primary;
+    private JdbcTemplate replica;
+
+    private volatile long replayedLsn = -1;
+    private volatile long checkedAt;
+
+    @PostConstruct
+    public void init() throws SQLException {
+        if (replicaEnabled && readYourWrites && dataSource.isWrapperFor(ReadWriteRoutingDataSource.class)) {
+            ReadWriteRoutingDataSource routingDataSource = dataSource.unwrap(ReadWriteRoutingDataSource.class);
+            primary = new JdbcTemplate(routingDataSource.getPrimary());
+            replica = new JdbcTemplate(routingDataSource.getReplica());
+        }
+    }
+
+    public boolean isEnabled() {
+        return primary != null;
+    }
+
+    @Override
+    public String currentToken() {
+        if (!isEnabled()) {
+            return null;
+        }
+        try {
+            return primary.queryForObject(primaryLsnQuery, String.class);
+        } catch (DataAccessException e) {
+            logger.warn("Couldn't read LSN of the primary", e);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isVisibleOnReplica(String token) {
+        if (!isEnabled() || token == null) {
+            return true;
+        }
+        try {
+            return replayedLsn() >= parseLsn(token);
+        } catch (IllegalArgumentException e) {
+            //unknown token, read from the primary
+            return false;
+        }
+    }
+
+    private long replayedLsn() {
+        long now = System.currentTimeMillis();
+        if (now - checkedAt >= lagCheckMs) {
+            try {
+                String lsn = replica.queryForObject(replicaLsnQuery, String.class);
+                replayedLsn = (lsn == null) ? -1 : parseLsn(lsn);
+            } catch (DataAccessException e) {
+                logger.warn("Couldn't read replayed LSN of the replica", e);
+                replayedLsn = -1;
+            }
+            checkedAt = now;
+        }
+        return replayedLsn;
+    }
+
+    /**
+     * @param lsn PostgreSQL LSN in text form, e.g. 16/B374D848
+     * @return LSN as a number, LSNs are compared as numbers
+     * @throws IllegalArgumentException if lsn is not a valid LSN
+     */
+    static long parseLsn(String lsn) {
+        int slash = lsn.indexOf('/');
+        if (slash <= 0 || slash == lsn.length() - 1) {
+            throw new IllegalArgumentException("Invalid LSN " + lsn);
+        }
+        return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+    }
+}
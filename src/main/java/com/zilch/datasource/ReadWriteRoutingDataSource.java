@@ -0,0 +1,44 @@
+package com.zilch.datasource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DataSource which takes connections from the primary or from the replica according to RoutingContext.
+ * <p>Transaction managers obtain the connection before the transaction is marked read-only,
+ * so this DataSource must be wrapped into LazyConnectionDataSourceProxy: then the target connection
+ * is taken on the first statement, when read-only flag of the transaction is already set.</p>
+ * @author Elena Medvedeva
+ */
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+
+    private final DataSource primary;
+    private final DataSource replica;
+
+    public ReadWriteRoutingDataSource(DataSource primary, DataSource replica) {
+        this.primary = primary;
+        this.replica = replica;
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(RoutingContext.Role.PRIMARY, primary);
+        targets.put(RoutingContext.Role.REPLICA, replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return RoutingContext.currentRole();
+    }
+}
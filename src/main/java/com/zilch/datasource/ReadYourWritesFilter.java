@@ -0,0 +1,39 @@
+package com.zilch.datasource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Pins a request to the primary if it presents a commit token (X-Commit-LSN header)
+ * which the replica hasn't replayed yet, so the client reads its own writes.
+ * @author Elena Medvedeva
+ */
+@Component
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    @Autowired
+    private CommitTokenService commitTokenService;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String token = request.getHeader(CommitTokenService.COMMIT_TOKEN_HEADER);
+        if (token == null || commitTokenService.isVisibleOnReplica(token)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        RoutingContext.pinToPrimary();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RoutingContext.clear();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.zilch.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * Read/write splitting, enabled by application.datasource.replica.enabled.
+ * <p>Primary pool is configured by spring.datasource.*, replica pool by application.datasource.replica.*.
+ * DataSource used by JPA and Flyway routes read-only transactions to the replica and everything else to the primary.</p>
+ * <p>Pools are not beans on their own: Spring Boot expects exactly one DataSource bean for initialization,
+ * they are available through ReadWriteRoutingDataSource (DataSource.unwrap).</p>
+ * @author Elena Medvedeva
+ */
+@Configuration
+@ConditionalOnProperty(name = "application.datasource.replica.enabled", havingValue = "true")
+public class ReplicaDataSourceConfiguration {
+
+    @Bean
+    public DataSource dataSource(DataSourceProperties properties, Environment environment,
+                                 ObjectProvider<MeterRegistry> meterRegistry,
+                                 @Value("${application.datasource.replica.url}") String replicaUrl,
+                                 @Value("${application.datasource.replica.username}") String replicaUsername,
+                                 @Value("${application.datasource.replica.password}") String replicaPassword) {
+        HikariDataSource primary = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        HikariDataSource replica = DataSourceBuilder.create().type(HikariDataSource.class)
+                .driverClassName(properties.determineDriverClassName())
+                .url(replicaUrl).username(replicaUsername).password(replicaPassword)
+                .build();
+        configurePool(primary, "primary", "spring.datasource.hikari", environment, meterRegistry.getIfAvailable());
+        configurePool(replica, "replica", "application.datasource.replica.hikari", environment, meterRegistry.getIfAvailable());
+        return new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, replica));
+    }
+
+    private static void configurePool(HikariDataSource dataSource, String poolName, String prefix, Environment environment, MeterRegistry meterRegistry) {
+        dataSource.setPoolName(poolName);
+        Binder.get(environment).bind(prefix, Bindable.ofInstance(dataSource));
+        if (meterRegistry != null) {
+            //hikaricp.connections.* metrics with pool=primary|replica
+            dataSource.setMetricRegistry(meterRegistry);
+        }
+    }
+}
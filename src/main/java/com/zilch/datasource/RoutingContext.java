@@ -0,0 +1,47 @@
+package com.zilch.datasource;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Decides which database serves the current connection request.
+ * <p>Read-only transactions are served by the replica, everything else by the primary.
+ * Current thread can be pinned to the primary, e.g. while a request which has to see its own writes is processed.</p>
+ * @author Elena Medvedeva
+ */
+public final class RoutingContext {
+
+    public enum Role {
+        PRIMARY,
+        REPLICA
+    }
+
+    private static final ThreadLocal<Boolean> PINNED_TO_PRIMARY = new ThreadLocal<>();
+
+    private RoutingContext() {
+    }
+
+    /**
+     * Sends all reads of the current thread to the primary until clear() is called
+     */
+    public static void pinToPrimary() {
+        PINNED_TO_PRIMARY.set(Boolean.TRUE);
+    }
+
+    public static void clear() {
+        PINNED_TO_PRIMARY.remove();
+    }
+
+    public static boolean isPinnedToPrimary() {
+        return PINNED_TO_PRIMARY.get() != null;
+    }
+
+    /**
+     * @return REPLICA for read-only transaction unless current thread is pinned to the primary, PRIMARY otherwise
+     */
+    public static Role currentRole() {
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly() && !isPinnedToPrimary()) {
+            return Role.REPLICA;
+        }
+        return Role.PRIMARY;
+    }
+}
@@ -1,5 +1,6 @@
 package com.zilch.entities;
 
+import org.hibernate.annotations.BatchSize;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 
 import javax.persistence.*;
@@ -11,17 +12,23 @@ import java.util.List;
 
 /**
  *  Card entity.
+ *  Balance and version are read from card_balance (see CardBalance) by an inner join on the card id.
+ *  They are written when the card is created and changed only through CardBalance,
+ *  so balance changes don't rewrite the card row.
  *
  *  @author Elena Medvedeva
  */
 @Entity
 @Table(name = "card")
+@SecondaryTable(name = "card_balance", pkJoinColumns = @PrimaryKeyJoinColumn(name = "card_id"))
+@org.hibernate.annotations.Table(appliesTo = "card_balance", optional = false)
 @EntityListeners(AuditingEntityListener.class)
 public class Card {
 
     @Id
     @Column(name = "id",nullable = false)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "cardIdGenerator")
+    @SequenceGenerator(name = "cardIdGenerator", sequenceName = "card_id_seq", allocationSize = 50)
     private Integer id;
 
     @NotNull(message = "User Id must be provided")
@@ -29,7 +36,7 @@ public class Card {
     private String userId;
 
     @Min(0)
-    @Column(name = "balance",nullable = false)
+    @Column(name = "balance", table = "card_balance", nullable = false, updatable = false)
     @NotNull(message = "Card balance must be provided")
     private BigDecimal balance;
 
@@ -46,10 +53,17 @@ public class Card {
     @Column(name = "last_updated_by")
     private String lastUpdatedBy;
 
+    //incremented on every balance change, see CardBalance
+    @Column(name = "version", table = "card_balance", nullable = false, updatable = false)
+    private Integer version = 0;
+
+    //lazy collections of up to 50 cards are initialized by one select
     @OneToMany(mappedBy = "card", fetch = FetchType.LAZY)
+    @BatchSize(size = 50)
     private List<Transaction> transactions;
 
     @OneToMany(mappedBy = "card", fetch = FetchType.LAZY)
+    @BatchSize(size = 50)
     private List<Purchase> purchases;
 
     public Card(){
@@ -108,6 +122,14 @@ public class Card {
         this.lastUpdatedBy = lastUpdatedBy;
     }
 
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
     public List<Transaction> getTransactions() {
         return transactions;
     }
@@ -0,0 +1,62 @@
+package com.zilch.entities;
+
+import javax.persistence.*;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+
+/**
+ *  Card balance entity, the mutable part of the card kept in the narrow card_balance table.
+ *  All balance changes are written through it, Card maps the same columns read-only.
+ *
+ *  @author Elena Medvedeva
+ */
+@Entity
+@Table(name = "card_balance")
+public class CardBalance {
+
+    @Id
+    @Column(name = "card_id", nullable = false)
+    private Integer cardId;
+
+    @Min(0)
+    @Column(name = "balance", nullable = false)
+    @NotNull(message = "Card balance must be provided")
+    private BigDecimal balance;
+
+    @Version
+    @Column(name = "version", nullable = false)
+    private Integer version;
+
+    public CardBalance(){
+    }
+
+    public CardBalance(Integer cardId, BigDecimal balance) {
+        this.cardId = cardId;
+        this.balance = balance;
+    }
+
+    public Integer getCardId() {
+        return cardId;
+    }
+
+    public void setCardId(Integer cardId) {
+        this.cardId = cardId;
+    }
+
+    public BigDecimal getBalance() {
+        return balance;
+    }
+
+    public void setBalance(BigDecimal balance) {
+        this.balance = balance;
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,78 @@
+package com.zilch.entities;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ *  Card ledger entry: change of the card balance which is not folded into card balance snapshot yet.
+ *  Entries are only inserted and deleted, never updated.
+ *
+ *  @author Elena Medvedeva
+ */
+@Entity
+@Table(name = "card_ledger_entry")
+public class CardLedgerEntry {
+
+    @Id
+    @Column(name = "id", nullable = false)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "cardLedgerEntryIdGenerator")
+    @SequenceGenerator(name = "cardLedgerEntryIdGenerator", sequenceName = "card_ledger_entry_id_seq", allocationSize = 50)
+    private Long id;
+
+    @NotNull(message = "Card ledger entry card must be provided")
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "card_id")
+    private Card card;
+
+    //signed, negative for debit
+    @NotNull(message = "Card ledger entry amount must be provided")
+    @Column(name = "amount", nullable = false)
+    private BigDecimal amount;
+
+    @Column(name = "created", nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date created;
+
+    public CardLedgerEntry() {
+    }
+
+    public CardLedgerEntry(Card card, BigDecimal amount) {
+        this.card = card;
+        this.amount = amount;
+        this.created = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Card getCard() {
+        return card;
+    }
+
+    public void setCard(Card card) {
+        this.card = card;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public void setAmount(BigDecimal amount) {
+        this.amount = amount;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+}
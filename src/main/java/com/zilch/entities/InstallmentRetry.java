@@ -0,0 +1,109 @@
+package com.zilch.entities;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ *  Installment retry entity: installment which couldn't be debited on due date, waiting for the next attempt.
+ *
+ *  @author Elena Medvedeva
+ */
+@Entity
+@Table(name = "installment_retry")
+public class InstallmentRetry {
+
+    @Id
+    @Column(name = "transaction_id", nullable = false)
+    private Integer transactionId;
+
+    @MapsId
+    @OneToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "transaction_id")
+    private Transaction transaction;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "card_id", nullable = false)
+    private Card card;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "next_attempt", nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date nextAttempt;
+
+    @Column(name = "last_updated")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date lastUpdated;
+
+    @Column(name = "last_updated_by")
+    private String lastUpdatedBy;
+
+    public InstallmentRetry() {
+    }
+
+    public InstallmentRetry(Transaction transaction, int attempts, Date nextAttempt, String lastUpdatedBy) {
+        this.transaction = transaction;
+        this.card = transaction.getCard();
+        this.attempts = attempts;
+        this.nextAttempt = nextAttempt;
+        this.lastUpdated = new Date();
+        this.lastUpdatedBy = lastUpdatedBy;
+    }
+
+    public Integer getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(Integer transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public void setTransaction(Transaction transaction) {
+        this.transaction = transaction;
+    }
+
+    public Card getCard() {
+        return card;
+    }
+
+    public void setCard(Card card) {
+        this.card = card;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(Date nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public void setLastUpdated(Date lastUpdated) {
+        this.lastUpdated = lastUpdated;
+    }
+
+    public String getLastUpdatedBy() {
+        return lastUpdatedBy;
+    }
+
+    public void setLastUpdatedBy(String lastUpdatedBy) {
+        this.lastUpdatedBy = lastUpdatedBy;
+    }
+}
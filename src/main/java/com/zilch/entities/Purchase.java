@@ -1,5 +1,6 @@
 package com.zilch.entities;
 
+import org.hibernate.annotations.BatchSize;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 
 import javax.persistence.*;
@@ -23,7 +24,8 @@ public class Purchase {
 
     @Id
     @Column(name = "id",nullable = false)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "purchaseIdGenerator")
+    @SequenceGenerator(name = "purchaseIdGenerator", sequenceName = "purchase_id_seq", allocationSize = 50)
     private Integer id;
 
     @NotBlank(message = "Purchase globalId must not be empty")
@@ -60,7 +62,9 @@ public class Purchase {
     @Column(name = "last_updated_by")
     private String lastUpdatedBy;
 
+    //lazy collections of up to 50 purchases are initialized by one select
     @OneToMany(mappedBy = "purchase", fetch = FetchType.LAZY)
+    @BatchSize(size = 50)
     private List<Transaction> transactions;
 
     public Purchase(){
@@ -19,7 +19,8 @@ import java.util.Date;
 public class Transaction {
     @Id
     @Column(name = "id",nullable = false)
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transactionIdGenerator")
+    @SequenceGenerator(name = "transactionIdGenerator", sequenceName = "transaction_id_seq", allocationSize = 50)
     private Integer id;
 
     @NotBlank(message = "Transaction globalId must not be empty")
@@ -52,6 +53,10 @@ public class Transaction {
     @Temporal(TemporalType.TIMESTAMP)
     private Date dueDate;
 
+    //installment couldn't be settled on due date and is retried from installment_retry
+    @Column(name = "in_retry", nullable = false)
+    private boolean inRetry;
+
     @NotNull(message = "Transaction currency must be provided")
     @ManyToOne
     @JoinColumn(name = "currency_id")
@@ -167,12 +172,20 @@ public class Transaction {
         this.submitted = submitted;
     }
 
+    public boolean isInRetry() {
+        return inRetry;
+    }
+
+    public void setInRetry(boolean inRetry) {
+        this.inRetry = inRetry;
+    }
+
     public Date getDueDate() {
         return dueDate;
     }
 
     public void setDueDate(Date dueDate) {
-        dueDate = dueDate;
+        this.dueDate = dueDate;
     }
 
     public Date getLastUpdated() {
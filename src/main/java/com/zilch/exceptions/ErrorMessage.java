@@ -27,6 +27,12 @@ public class ErrorMessage {
     public static final String NO_MANDATORY_FIELD = "Field %s" + PART_NO_MANDATORY_FIELD;
     public static final String TRANSACTION_CURRENCY_NOT_EQ_CARD_CURRENCY = "Transaction can't be saved. Transaction currency %s differs from card currency %s.";
     public static final String PURCHASE_CURRENCY_NOT_EQ_CARD_CURRENCY = "Purchase can't be saved. Purchase currency %s differs from card currency %s.";
+    public static final String INVALID_PAGE_LIMIT = "limit=%d is invalid. It should be between 1 and %d.";
+    public static final String INVALID_BATCH_SIZE = "Batch of %d transactions is invalid. It should have between 1 and %d transactions.";
+    public static final String DUPLICATE_GLOBAL_ID_IN_BATCH = "Transaction with globalId=%s is repeated in the batch.";
+    public static final String CARD_SHARD_QUEUE_FULL = "Too many operations are waiting for card %s. Try again later.";
+    public static final String JOURNAL_UNAVAILABLE = "Operation couldn't be written to the journal. Try again later.";
+    public static final String JOURNAL_ENTRY_NOT_FOUND = "No journal entry with globalId %s is known. Provide the sequence of the journal receipt.";
 
     //Template messages to compare
     public static final String DUPLICATE_KEY_TRANSACTION = "duplicate key value violates unique constraint \"transaction_global_id_key\"";
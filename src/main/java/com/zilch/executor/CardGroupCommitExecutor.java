@@ -0,0 +1,242 @@
+package com.zilch.executor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zilch.entities.Transaction;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.service.TransactionBatchService;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.model.TransactionModel;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Group commit of card transactions: concurrent transactions of the same card are coalesced
+ * into one database transaction.
+ * <p>The first transaction of a card starts a window of application.transaction.group-commit.window-us microseconds,
+ * transactions of the card arriving within the window (at most max-items) are committed together
+ * by TransactionBatchService.createTransactions: they are evaluated in arrival order against the card balance,
+ * inserted by JDBC batches and the card is updated once. While a group of a card is being committed,
+ * new transactions of the card wait for the next group, so groups of one card never compete for the card balance row.
+ * A group is committed on the shard of its card (see CardShardExecutor), so with card shards enabled
+ * it doesn't compete with the other writers of the card either.
+ * Every caller gets its own outcome: created transaction or CardException with the status of the single transaction
+ * (409 for a duplicate globalId, 400 for the other rejected items). If the group fails as a whole,
+ * its transactions are committed one by one, so only the caller whose transaction fails gets the error.</p>
+ * <p>Metric: card.group.commit.size - transactions per group.</p>
+ * <p>Enabled by application.transaction.group-commit.enabled.</p>
+ *
+ * @author Elena Medvedeva
+ */
+@Component
+public class CardGroupCommitExecutor {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_GROUP_SIZE = "card.group.commit.size";
+
+    @Autowired
+    private TransactionBatchService transactionBatchService;
+
+    @Autowired
+    private CardShardExecutor cardShardExecutor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${application.transaction.group-commit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${application.transaction.group-commit.window-us:1000}")
+    private long windowUs;
+
+    @Value("${application.transaction.group-commit.max-items:100}")
+    private int maxItems;
+
+    @Value("${application.transaction.group-commit.threads:0}")
+    private int threads;
+
+    private final Map<Integer, CardGroup> groups = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+    private DistributionSummary groupSize;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        int count = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        executor = Executors.newScheduledThreadPool(count, new ThreadFactoryBuilder().setNameFormat("card-group-commit-%d").build());
+        groupSize = DistributionSummary.builder(METRIC_GROUP_SIZE)
+                .description("Transactions committed together")
+                .register(meterRegistry);
+        logger.info("Card group commit started with {} threads, window {} us", count, windowUs);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds transaction to the current group of its card
+     * @param transaction transaction to create
+     * @return future completed with created transaction or with CardException if it couldn't be created
+     */
+    public CompletableFuture<Transaction> submit(TransactionModel transaction) {
+        Integer cardId;
+        try {
+            cardId = Integer.valueOf(transaction.getcardId());
+        } catch (NumberFormatException e) {
+            CompletableFuture<Transaction> future = new CompletableFuture<>();
+            future.completeExceptionally(new CardException(String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, transaction.getcardId()),
+                    HttpStatus.BAD_REQUEST.value()));
+            return future;
+        }
+        while (true) {
+            CompletableFuture<Transaction> future = groups.computeIfAbsent(cardId, CardGroup::new).add(transaction);
+            if (future != null) {
+                return future;
+            }
+            //the group was closed after it was looked up, the next lookup finds or creates its successor
+        }
+    }
+
+    private static class Pending {
+        final TransactionModel transaction;
+        final CompletableFuture<Transaction> future = new CompletableFuture<>();
+
+        Pending(TransactionModel transaction) {
+            this.transaction = transaction;
+        }
+    }
+
+    /**
+     * Transactions of one card waiting for commit. At most one group of the card is committed at a time.
+     * Idle group is closed and removed from groups under its monitor, so a transaction can't be added to a group
+     * which is not in groups anymore and two groups of the same card never exist at the same time.
+     */
+    private class CardGroup {
+        private final Integer cardId;
+        private final List<Pending> pending = new ArrayList<>();
+        private boolean scheduled;
+        private boolean running;
+        private boolean closed;
+
+        CardGroup(Integer cardId) {
+            this.cardId = cardId;
+        }
+
+        /**
+         * @return future of the transaction or null if the group is closed and the transaction is not added
+         */
+        synchronized CompletableFuture<Transaction> add(TransactionModel transaction) {
+            if (closed) {
+                return null;
+            }
+            Pending item = new Pending(transaction);
+            pending.add(item);
+            if (running) {
+                //committed by the next group, when the running one is finished
+                return item.future;
+            }
+            if (pending.size() >= maxItems) {
+                executor.execute(this::commitNext);
+            } else if (!scheduled) {
+                scheduled = true;
+                executor.schedule(this::commitNext, windowUs, TimeUnit.MICROSECONDS);
+            }
+            return item.future;
+        }
+
+        private void commitNext() {
+            List<Pending> group;
+            synchronized (this) {
+                if (running || pending.isEmpty()) {
+                    return;
+                }
+                running = true;
+                scheduled = false;
+                List<Pending> head = pending.subList(0, Math.min(maxItems, pending.size()));
+                group = new ArrayList<>(head);
+                head.clear();
+            }
+            try {
+                cardShardExecutor.submit(cardId, () -> {
+                    commit(group);
+                    return null;
+                }).join();
+            } catch (CompletionException e) {
+                //the shard queue is full, the group is not committed
+                group.forEach(item -> item.future.completeExceptionally(e.getCause()));
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (!pending.isEmpty()) {
+                        //transactions which arrived during the commit have waited long enough
+                        executor.execute(this::commitNext);
+                    } else if (!scheduled) {
+                        closed = true;
+                        groups.remove(cardId, this);
+                    }
+                }
+            }
+        }
+
+        private void commit(List<Pending> group) {
+            groupSize.record(group.size());
+            List<TransactionModel> transactions = new ArrayList<>(group.size());
+            group.forEach(item -> transactions.add(item.transaction));
+            List<TransactionBatchResult> results;
+            try {
+                results = transactionBatchService.createTransactions(transactions);
+            } catch (Throwable e) {
+                if (group.size() == 1) {
+                    logger.error("Commit of transaction {} of card {} failed", transactions.get(0).getGlobalId(), cardId, e);
+                    group.get(0).future.completeExceptionally(e);
+                    return;
+                }
+                //the failure can be caused by one of the transactions, the others shouldn't fail with it
+                logger.warn("Group commit of {} transactions of card {} failed, committing them one by one: {}", group.size(), cardId, e.toString());
+                group.forEach(item -> commit(Collections.singletonList(item)));
+                return;
+            }
+            for (int i = 0; i < group.size(); i++) {
+                complete(group.get(i).future, results.get(i));
+            }
+        }
+
+        private void complete(CompletableFuture<Transaction> future, TransactionBatchResult result) {
+            switch (result.getStatus()) {
+                case CREATED:
+                    future.complete(result.getTransaction());
+                    break;
+                case DUPLICATE:
+                    //same status as the unique constraint violation of a single transaction
+                    future.completeExceptionally(new CardException(result.getError(), HttpStatus.CONFLICT.value()));
+                    break;
+                default:
+                    future.completeExceptionally(new CardException(result.getError(), HttpStatus.BAD_REQUEST.value()));
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.zilch.executor;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.retry.UnitOfWork;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.*;
+
+/**
+ * Executes card balance mutations on single threaded shard executors.
+ * <p>Shard is chosen by cardId % shards count, so all mutations of the same card are executed
+ * one by one in memory, while different cards are processed in parallel.
+ * Database locks on the card balance row are then taken without waiting and transactions are not aborted
+ * because of concurrent access on the same node.</p>
+ * <p>Enabled by application.card.shards.enabled. If disabled, work is executed in the caller thread.</p>
+ * <p>Every balance change of a card is executed on its shard: single POST /transactions and POST /purchases,
+ * group commits (CardGroupCommitExecutor), the journal applier (TransactionJournal), batches split by shard
+ * (TransactionController) and installment settlement (InstallmentSettlementEngine, InstallmentDueTimer),
+ * which settles installments of the cards of a shard on that shard (card id % shards count).
+ * The ledger compaction doesn't change balances, it only moves ledger entries into the snapshot.</p>
+ *
+ * @author Elena Medvedeva
+ */
+@Component
+public class CardShardExecutor {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_QUEUE_DEPTH = "card.shard.queue.depth";
+    public static final String METRIC_WAIT = "card.shard.wait";
+    public static final String TAG_SHARD = "shard";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private EntityManagerFactory entityManagerFactory;
+
+    @Value("${spring.jpa.open-in-view:true}")
+    private boolean openInView;
+
+    @Value("${application.card.shards.enabled:false}")
+    private boolean enabled;
+
+    @Value("${application.card.shards.count:0}")
+    private int shardsCount;
+
+    @Value("${application.card.shards.queue-capacity:10000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor[] shards;
+    private Timer[] waitTimers;
+    //shard of the current shard thread, work submitted to the same shard from it is executed in place
+    private final ThreadLocal<Integer> currentShard = new ThreadLocal<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        int count = (shardsCount > 0) ? shardsCount : Runtime.getRuntime().availableProcessors();
+        shards = new ThreadPoolExecutor[count];
+        waitTimers = new Timer[count];
+        for (int i = 0; i < count; i++) {
+            ThreadPoolExecutor shard = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity),
+                    new ThreadFactoryBuilder().setNameFormat("card-shard-" + i).build());
+            shards[i] = shard;
+            Gauge.builder(METRIC_QUEUE_DEPTH, shard, s -> s.getQueue().size())
+                    .description("Card mutations waiting in the shard queue")
+                    .tag(TAG_SHARD, String.valueOf(i))
+                    .register(meterRegistry);
+            waitTimers[i] = Timer.builder(METRIC_WAIT)
+                    .description("Time card mutation waits in the shard queue")
+                    .tag(TAG_SHARD, String.valueOf(i))
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+        logger.info("Card shard executor started with {} shards", count);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (shards != null) {
+            for (ThreadPoolExecutor shard : shards) {
+                shard.shutdown();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return number of shards, 1 if disabled
+     */
+    public int getShardsCount() {
+        return (shards != null) ? shards.length : 1;
+    }
+
+    /**
+     * Executes work on the shard of the card.
+     * @param cardId card id, numeric string or Integer. Other keys are distributed by hash code.
+     * @param work unit of work mutating card with cardId
+     * @return future completed with the result of work or with its exception
+     */
+    public <T> CompletableFuture<T> submit(Object cardId, UnitOfWork<T> work) {
+        return submitToShard(enabled ? shardOf(cardId) : 0, cardId, work);
+    }
+
+    /**
+     * Executes work on the shard, e.g. work mutating several cards of the same shard
+     * @param shard shard index from 0 to getShardsCount() - 1
+     * @param work unit of work mutating cards of the shard only
+     * @return future completed with the result of work or with its exception
+     */
+    public <T> CompletableFuture<T> submitToShard(int shard, UnitOfWork<T> work) {
+        return submitToShard(shard, "shard " + shard, work);
+    }
+
+    /**
+     * Executes work on the shard of the card and waits for its result
+     * @param cardId card id, see submit
+     * @param work unit of work mutating card with cardId
+     * @return result of work
+     * @throws CardException thrown by work or 503 if the shard queue is full
+     */
+    public <T> T execute(Object cardId, UnitOfWork<T> work) throws CardException {
+        return join(submit(cardId, work));
+    }
+
+    /**
+     * Waits for work submitted to a shard
+     * @param future future returned by submit
+     * @return result of work
+     * @throws CardException thrown by work or 503 if the shard queue is full, other exceptions are rethrown unchecked
+     */
+    public static <T> T join(CompletableFuture<T> future) throws CardException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CardException) {
+                throw (CardException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private <T> CompletableFuture<T> submitToShard(int shard, Object key, UnitOfWork<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!enabled || Integer.valueOf(shard).equals(currentShard.get())) {
+            run(work, future);
+            return future;
+        }
+        long submitted = System.nanoTime();
+        try {
+            shards[shard].execute(() -> {
+                waitTimers[shard].record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                currentShard.set(shard);
+                try {
+                    runWithEntityManager(work, future);
+                } finally {
+                    currentShard.remove();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new CardException(String.format(ErrorMessage.CARD_SHARD_QUEUE_FULL, key),
+                    HttpStatus.SERVICE_UNAVAILABLE.value()));
+        }
+        return future;
+    }
+
+    /**
+     * @param cardId card id
+     * @return index of the shard executing mutations of the card
+     */
+    public int shardOf(Object cardId) {
+        int key;
+        if (cardId instanceof Integer) {
+            key = (Integer) cardId;
+        } else {
+            try {
+                key = Integer.parseInt(String.valueOf(cardId).trim());
+            } catch (NumberFormatException e) {
+                key = String.valueOf(cardId).hashCode();
+            }
+        }
+        return Math.floorMod(key, shards.length);
+    }
+
+    private <T> void run(UnitOfWork<T> work, CompletableFuture<T> future) {
+        try {
+            future.complete(work.execute());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Shard threads are not request threads. If spring.jpa.open-in-view is on, the entity manager is kept open
+     * for the whole task the same way as it is done for requests, lazy associations can be serialized.
+     * Otherwise services return fully loaded results and nothing is bound.
+     */
+    private <T> void runWithEntityManager(UnitOfWork<T> work, CompletableFuture<T> future) {
+        if (!openInView || entityManagerFactory == null || TransactionSynchronizationManager.hasResource(entityManagerFactory)) {
+            run(work, future);
+            return;
+        }
+        EntityManagerHolder holder = new EntityManagerHolder(entityManagerFactory.createEntityManager());
+        TransactionSynchronizationManager.bindResource(entityManagerFactory, holder);
+        try {
+            run(work, future);
+        } finally {
+            TransactionSynchronizationManager.unbindResource(entityManagerFactory);
+            EntityManagerFactoryUtils.closeEntityManager(holder.getEntityManager());
+        }
+    }
+}
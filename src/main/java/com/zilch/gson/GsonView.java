@@ -0,0 +1,64 @@
+package com.zilch.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.zilch.entities.Card;
+import com.zilch.entities.Purchase;
+import com.zilch.entities.Transaction;
+import com.zilch.gson.adapter.HibernateProxyTypeAdapter;
+import com.zilch.gson.exclusion.GsonExclusionStrategy;
+import com.zilch.view.dto.CardDto;
+import com.zilch.view.dto.PurchaseDto;
+import com.zilch.view.dto.TransactionDto;
+
+import java.lang.reflect.Field;
+
+import static com.zilch.gson.exclusion.ExcludeField.*;
+
+/**
+ * Named serialization views of the entities returned by controllers.
+ * Gson of every view is built once, when the class is loaded, and is shared by all requests.
+ * Gson is immutable and thread-safe, reflective type adapters are created once and cached by it.
+ *
+ * @author Elena Medvedeva
+ */
+public enum GsonView {
+
+    /** Card with its purchases, purchases are without card and transactions. */
+    CARD_DETAIL(EXCLUDE_TRANSACTION_PURCHASE, EXCLUDE_TRANSACTION_CARD, EXCLUDE_CARD_TRANSACTIONS, EXCLUDE_PURCHASE_CARD),
+
+    /** Card without purchases and transactions. */
+    CARD_LIST(EXCLUDE_CARD_PURCHASES, EXCLUDE_CARD_TRANSACTIONS),
+
+    /** Card as it is. Used for a created card, which has neither purchases nor transactions. */
+    CARD(),
+
+    /** Purchase with its transactions, card is without purchases and transactions. */
+    PURCHASE_LIST(EXCLUDE_TRANSACTION_PURCHASE, EXCLUDE_TRANSACTION_CARD, EXCLUDE_CARD_TRANSACTIONS, EXCLUDE_CARD_PURCHASES),
+
+    /** Created transaction with its card, card is without purchases and transactions. */
+    TRANSACTION_CREATED(EXCLUDE_CARD_TRANSACTIONS, EXCLUDE_CARD_PURCHASES, EXCLUDE_TRANSACTION_PURCHASE),
+
+    /** Projections of the read endpoints (CardDto, PurchaseDto, TransactionDto), they have no back references to exclude. */
+    PROJECTION();
+
+    private final Gson gson;
+
+    GsonView(Field... excludedFields) {
+        this.gson = new GsonBuilder()
+                .registerTypeAdapterFactory(HibernateProxyTypeAdapter.FACTORY)
+                .setExclusionStrategies(new GsonExclusionStrategy(excludedFields))
+                .create();
+        //build and cache type adapters of the entities now, not on the first request
+        gson.getAdapter(Card.class);
+        gson.getAdapter(Purchase.class);
+        gson.getAdapter(Transaction.class);
+        gson.getAdapter(CardDto.class);
+        gson.getAdapter(PurchaseDto.class);
+        gson.getAdapter(TransactionDto.class);
+    }
+
+    public Gson gson() {
+        return gson;
+    }
+}
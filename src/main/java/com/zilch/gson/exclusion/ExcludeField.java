@@ -4,18 +4,28 @@ import com.zilch.entities.Card;
 import com.zilch.entities.Purchase;
 import com.zilch.entities.Transaction;
 
+import java.lang.reflect.Field;
+
 /**
- * Fields to be excluded from serialization when using gson serialization
+ * Fields to be excluded from serialization when using gson serialization.
+ * Fields are resolved once, when the class is loaded, so a renamed entity field fails on startup.
  *
  * @author Elena Medvedeva
  */
 public class ExcludeField {
 
-    public static final String EXCLUDE_TRANSACTION_CARD = Transaction.class.getCanonicalName()+ ".card";
-    public static final String EXCLUDE_CARD_TRANSACTIONS = Card.class.getCanonicalName() + ".transactions";
-    public static final String EXCLUDE_CARD_PURCHASES = Card.class.getCanonicalName() + ".purchases";
-    public static final String EXCLUDE_TRANSACTION_PURCHASE = Transaction.class.getCanonicalName()+ ".purchase";
-    public static final String EXCLUDE_PURCHASE_TRANSACTIONS = Purchase.class.getCanonicalName() + ".transactions";
-    public static final String EXCLUDE_PURCHASE_CARD = Purchase.class.getCanonicalName() + ".card";
+    public static final Field EXCLUDE_TRANSACTION_CARD = field(Transaction.class, "card");
+    public static final Field EXCLUDE_CARD_TRANSACTIONS = field(Card.class, "transactions");
+    public static final Field EXCLUDE_CARD_PURCHASES = field(Card.class, "purchases");
+    public static final Field EXCLUDE_TRANSACTION_PURCHASE = field(Transaction.class, "purchase");
+    public static final Field EXCLUDE_PURCHASE_TRANSACTIONS = field(Purchase.class, "transactions");
+    public static final Field EXCLUDE_PURCHASE_CARD = field(Purchase.class, "card");
 
+    private static Field field(Class<?> declaringClass, String fieldName) {
+        try {
+            return declaringClass.getDeclaredField(fieldName);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("No field " + fieldName + " in " + declaringClass.getCanonicalName(), e);
+        }
+    }
 }
@@ -3,30 +3,32 @@ package com.zilch.gson.exclusion;
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
 
+import java.lang.reflect.Field;
+
 /**
- * Exclusion strategy for com.google.gson.GsonBuilder not to serialize
- * particular fields with fieldName and Class taken from fullyQualifierdName
+ * Exclusion strategy for com.google.gson.GsonBuilder not to serialize particular fields.
+ * Field is skipped when it is declared by the same class and has the same name as one of the excluded fields.
  * @author Elena Medvedeva
  */
 public class GsonExclusionStrategy implements ExclusionStrategy {
 
-    private Class<?> c;
-    private String fieldName;
+    private final Field[] fields;
 
-    public GsonExclusionStrategy(String fullyQualifierdName) throws ClassNotFoundException {
-        if(fullyQualifierdName != null) {
-            this.c = Class.forName(fullyQualifierdName.substring(0, fullyQualifierdName.lastIndexOf(".")));
-            this.fieldName = fullyQualifierdName.substring(fullyQualifierdName.lastIndexOf(".") + 1);
-        }
+    public GsonExclusionStrategy(Field... fields) {
+        this.fields = fields.clone();
     }
 
     @Override
     public boolean shouldSkipField(FieldAttributes fieldAttributes) {
-        if( fieldAttributes != null) {
-            return (fieldAttributes.getDeclaringClass() == c && fieldAttributes.getName().equals(fieldName));
-        } else {
+        if (fieldAttributes == null) {
             return false;
         }
+        for (Field field : fields) {
+            if (field.getDeclaringClass() == fieldAttributes.getDeclaringClass() && field.getName().equals(fieldAttributes.getName())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
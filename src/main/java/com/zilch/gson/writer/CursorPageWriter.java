@@ -0,0 +1,75 @@
+package com.zilch.gson.writer;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Writes one page of a list ordered by id as JSON: {"items":[...],"nextCursor":id}.
+ * <p>Items are serialized one by one straight to the output, so the whole list is never kept in memory.
+ * Rows are expected to be selected with limit + 1, the extra row is not written and only shows that there is a next page,
+ * nextCursor (id of the last written item) is written only in this case.</p>
+ * @author Elena Medvedeva
+ */
+public class CursorPageWriter<T> {
+    public static final String ITEMS = "items";
+    public static final String NEXT_CURSOR = "nextCursor";
+
+    private final Gson gson;
+
+    private final Writer out;
+
+    public CursorPageWriter(Gson gson, Writer out) {
+        this.gson = gson;
+        this.out = out;
+    }
+
+    /**
+     * @param rows rows ordered by id, at most limit + 1
+     * @param limit page size
+     * @param idOf id of a row
+     * @throws IOException if couldn't write to the output
+     */
+    public void write(Iterator<T> rows, int limit, Function<T, Integer> idOf) throws IOException {
+        write(rows, limit, idOf, row -> { });
+    }
+
+    /**
+     * @param rows rows ordered by id, at most limit + 1
+     * @param limit page size
+     * @param idOf id of a row
+     * @param afterWrite called for every written row, e.g. to detach it from persistence context
+     * @throws IOException if couldn't write to the output
+     */
+    public void write(Iterator<T> rows, int limit, Function<T, Integer> idOf, Consumer<T> afterWrite) throws IOException {
+        JsonWriter json = gson.newJsonWriter(out);
+        json.beginObject();
+        json.name(ITEMS);
+        json.beginArray();
+        int count = 0;
+        Integer lastId = null;
+        boolean hasNext = false;
+        while (rows.hasNext()) {
+            T row = rows.next();
+            if (count == limit) {
+                hasNext = true;
+                break;
+            }
+            gson.toJson(row, row.getClass(), json);
+            lastId = idOf.apply(row);
+            afterWrite.accept(row);
+            count++;
+        }
+        json.endArray();
+        if (hasNext) {
+            json.name(NEXT_CURSOR).value(lastId);
+        }
+        json.endObject();
+        json.flush();
+    }
+}
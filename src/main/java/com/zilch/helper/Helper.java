@@ -6,11 +6,12 @@ import javax.validation.constraints.NotNull;
 import java.util.Date;
 
 /**
- * Helper to check that condition is TRUE and generate new date in a week
+ * Helper to check that condition is TRUE, generate new date in a week and validate page size
  *
  * @author Elena Medvedeva
  */
 public interface Helper {
     public void conditionIsTrue(@NotNull Boolean condition, @NotNull String errorMessage, int errorCode) throws CardException;
     public Date dateInAWeek(Date date);
+    public int pageLimit(Integer limit) throws CardException;
 }
@@ -1,6 +1,9 @@
 package com.zilch.helper;
 
 import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
@@ -16,6 +19,12 @@ import java.util.Date;
 @Component
 public class HelperImpl implements Helper {
 
+    @Value("${application.pagination.default-limit:100}")
+    private int defaultPageLimit;
+
+    @Value("${application.pagination.max-limit:1000}")
+    private int maxPageLimit;
+
     /**
      * Throws CardException with errorMessage and errorCode if condition is not true
      * @param condition
@@ -37,4 +46,19 @@ public class HelperImpl implements Helper {
         c.add(Calendar.WEEK_OF_MONTH, 1);
         return c.getTime();
     }
+
+    /**
+     * Returns page size for list endpoints.
+     * @param limit requested page size or null
+     * @return limit, or application.pagination.default-limit if limit is not provided
+     * @throws CardException if limit is not between 1 and application.pagination.max-limit
+     */
+    @Override
+    public int pageLimit(Integer limit) throws CardException {
+        if (limit == null) {
+            return defaultPageLimit;
+        }
+        conditionIsTrue(limit > 0 && limit <= maxPageLimit, String.format(ErrorMessage.INVALID_PAGE_LIMIT, limit, maxPageLimit), HttpStatus.BAD_REQUEST.value());
+        return limit;
+    }
 }
@@ -0,0 +1,395 @@
+package com.zilch.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only journal of records kept in memory-mapped segment files journal-&lt;first sequence&gt;.log.
+ * <p>Record format: int payload length | int CRC32 of sequence and payload | long sequence | payload.
+ * Records get consecutive sequences starting from 1. Length is written last and segment files are zero filled,
+ * so a record torn by a crash is not valid and is cut off when the journal is opened.</p>
+ * <p>append only copies the record into the mapped segment. sync forces the segment to disk; appends of other threads
+ * which arrive while one sync is forcing are made durable by the next single force (group fsync).
+ * Only durable records are read by cursors.</p>
+ * <p>Sequence of the last applied record is kept in the checkpoint file, segments with applied records only are deleted.</p>
+ * @author Elena Medvedeva
+ */
+public class MappedJournal implements Closeable {
+
+    static final int HEADER_BYTES = 16;
+    static final String SEGMENT_PREFIX = "journal-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String CHECKPOINT_FILE = "applied.checkpoint";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FileChannel checkpoint;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+
+    //guarded by appendLock
+    private Segment current;
+    private long nextSequence;
+
+    private volatile long durableSequence;
+    private volatile long appliedSequence;
+
+    /**
+     * Opens the journal in the directory, creates it if it doesn't exist.
+     * The tail of the last segment after the last valid record is cut off.
+     * @param directory journal directory
+     * @param segmentBytes size of a segment file
+     * @throws IOException if couldn't open the journal or a segment other than the last one is corrupted
+     */
+    public MappedJournal(Path directory, int segmentBytes) throws IOException {
+        if (segmentBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("Journal segment should be larger than " + HEADER_BYTES + " bytes");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        checkpoint = FileChannel.open(directory.resolve(CHECKPOINT_FILE), CREATE, READ, WRITE);
+        appliedSequence = readCheckpoint();
+
+        List<Path> files = segmentFiles();
+        long expected = -1;
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            long firstSequence = firstSequenceOf(file);
+            if (expected >= 0 && firstSequence != expected) {
+                throw new IOException("Journal segment " + file + " doesn't continue the previous segment");
+            }
+            Segment segment = new Segment(file, firstSequence, (int) Math.max(segmentBytes, Files.size(file)));
+            segments.put(firstSequence, segment);
+            expected = recover(segment, i == files.size() - 1);
+        }
+        if (segments.isEmpty()) {
+            nextSequence = appliedSequence + 1;
+            current = createSegment(nextSequence);
+        } else {
+            current = segments.lastEntry().getValue();
+            nextSequence = expected;
+            current.buffer.force();
+            //segments could be deleted after a checkpoint which didn't reach the disk
+            appliedSequence = Math.max(appliedSequence, segments.firstKey() - 1);
+        }
+        current.syncedPosition = current.position;
+        durableSequence = nextSequence - 1;
+    }
+
+    /**
+     * Appends the record. Record is not durable until sync(sequence) returns.
+     * @param payload record payload, not empty
+     * @return sequence of the record
+     */
+    public long append(byte[] payload) throws IOException {
+        int size = HEADER_BYTES + payload.length;
+        if (payload.length == 0 || size > segmentBytes) {
+            throw new IllegalArgumentException("Journal record of " + payload.length + " bytes doesn't fit into a segment of " + segmentBytes + " bytes");
+        }
+        synchronized (appendLock) {
+            if (current.position + size > current.buffer.capacity()) {
+                roll();
+            }
+            long sequence = nextSequence++;
+            int position = current.position;
+            ByteBuffer record = current.buffer.duplicate();
+            record.position(position + 8);
+            record.putLong(sequence).put(payload);
+            record.putInt(position + 4, checksum(current.buffer, position + 8, 8 + payload.length));
+            //length goes last, it makes the record valid
+            record.putInt(position, payload.length);
+            current.position = position + size;
+            return sequence;
+        }
+    }
+
+    /**
+     * Makes the record with the sequence and all records before it durable.
+     * One force covers all records appended by the time it starts.
+     * @param sequence sequence returned by append
+     */
+    public void sync(long sequence) throws IOException {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durableSequence >= sequence) {
+                return;
+            }
+            Segment segment;
+            int from;
+            int to;
+            long target;
+            synchronized (appendLock) {
+                segment = current;
+                from = segment.syncedPosition;
+                to = segment.position;
+                target = nextSequence - 1;
+            }
+            //appends go on while the segment is forced, they are made durable by the next sync.
+            //Only dirty pages of the mapping are written, so forcing the whole segment costs the same as its tail
+            if (to > from) {
+                segment.buffer.force();
+            }
+            synchronized (appendLock) {
+                segment.syncedPosition = Math.max(segment.syncedPosition, to);
+            }
+            durableSequence = target;
+        }
+    }
+
+    /**
+     * @param afterSequence sequence of the last record which should be skipped
+     * @return cursor reading durable records following afterSequence
+     */
+    public Cursor cursor(long afterSequence) {
+        return new Cursor(afterSequence + 1);
+    }
+
+    /**
+     * Records sequence of the last applied record and deletes segments whose records are all applied.
+     * Checkpoint is forced to disk only before segments are deleted: records applied after the last forced checkpoint
+     * are applied again after a crash.
+     * @param sequence sequence of the last applied record
+     */
+    public void checkpoint(long sequence) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(8).putLong(0, sequence);
+        checkpoint.write(value, 0);
+        appliedSequence = sequence;
+
+        List<Segment> applied = new ArrayList<>();
+        synchronized (appendLock) {
+            for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+                Long next = segments.higherKey(entry.getKey());
+                if (next == null || next - 1 > sequence || entry.getValue() == current) {
+                    break;
+                }
+                applied.add(entry.getValue());
+            }
+        }
+        if (applied.isEmpty()) {
+            return;
+        }
+        checkpoint.force(false);
+        for (Segment segment : applied) {
+            segments.remove(segment.firstSequence);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    /**
+     * @return sequence of the last applied record, see checkpoint
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return sequence of the last durable record, 0 if nothing was appended
+     */
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            current.buffer.force();
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+            checkpoint.close();
+        }
+    }
+
+    /**
+     * Reads durable records one by one in order of sequence. Cursor is not thread safe.
+     */
+    public class Cursor {
+        private Segment segment;
+        private int position;
+        private long nextSequence;
+
+        private Cursor(long nextSequence) {
+            this.nextSequence = nextSequence;
+        }
+
+        /**
+         * @return the next durable record or null if there is none yet
+         */
+        public Record next() {
+            if (nextSequence > durableSequence) {
+                return null;
+            }
+            Map.Entry<Long, Segment> entry = segments.floorEntry(nextSequence);
+            if (entry == null) {
+                throw new IllegalStateException("Journal record " + nextSequence + " was deleted");
+            }
+            if (entry.getValue() != segment) {
+                segment = entry.getValue();
+                position = 0;
+                //skip records before nextSequence
+                while (segment.buffer.getLong(position + 8) < nextSequence) {
+                    position += HEADER_BYTES + segment.buffer.getInt(position);
+                }
+            }
+            int length = segment.buffer.getInt(position);
+            byte[] payload = new byte[length];
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(position + HEADER_BYTES);
+            record.get(payload);
+            position += HEADER_BYTES + length;
+            return new Record(nextSequence++, payload);
+        }
+    }
+
+    /**
+     * Journal record
+     */
+    public static class Record {
+        private final long sequence;
+        private final byte[] payload;
+
+        Record(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final long firstSequence;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        //end of the written records
+        int position;
+        //end of the records forced to disk
+        int syncedPosition;
+
+        Segment(Path path, long firstSequence, int size) throws IOException {
+            this.path = path;
+            this.firstSequence = firstSequence;
+            this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Finishes the current segment: it is forced to disk, so sync has to force only the current segment.
+     */
+    private void roll() throws IOException {
+        current.buffer.force();
+        current.syncedPosition = current.position;
+        current = createSegment(nextSequence);
+    }
+
+    private Segment createSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        Segment segment = new Segment(path, firstSequence, segmentBytes);
+        segments.put(firstSequence, segment);
+        return segment;
+    }
+
+    /**
+     * Finds the end of valid records of the segment.
+     * @param segment segment
+     * @param last true if this is the last segment, its torn tail is zeroed
+     * @return sequence of the record following the segment
+     * @throws IOException if the segment is not the last one and it has an invalid record
+     */
+    private long recover(Segment segment, boolean last) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long sequence = segment.firstSequence;
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - HEADER_BYTES
+                    || buffer.getLong(position + 8) != sequence
+                    || buffer.getInt(position + 4) != checksum(buffer, position + 8, 8 + length)) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+            sequence++;
+        }
+        segment.position = position;
+        if (!last) {
+            for (int i = position; i < Math.min(position + HEADER_BYTES, buffer.capacity()); i++) {
+                if (buffer.get(i) != 0) {
+                    throw new IOException("Journal segment " + segment.path + " is corrupted at record " + sequence);
+                }
+            }
+            return sequence;
+        }
+        //remains of a torn record shouldn't be taken for records appended after it
+        for (int i = position; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        return sequence;
+    }
+
+    private long readCheckpoint() throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        if (checkpoint.read(value, 0) < 8) {
+            return 0;
+        }
+        return value.getLong(0);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort((a, b) -> Long.compare(firstSequenceOf(a), firstSequenceOf(b)));
+        return files;
+    }
+
+    private static long firstSequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(offset + length).position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,412 @@
+package com.zilch.journal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.Currency;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.executor.CardShardExecutor;
+import com.zilch.helper.Helper;
+import com.zilch.repository.PurchaseRepository;
+import com.zilch.repository.TransactionRepository;
+import com.zilch.service.PurchaseService;
+import com.zilch.service.TransactionService;
+import com.zilch.view.dto.JournalReceipt;
+import com.zilch.view.model.PurchaseModel;
+import com.zilch.view.model.TransactionModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journal acceptance of POST /transactions and POST /purchases.
+ * <p>Request is checked first as far as it doesn't need the database: numeric card id and amount,
+ * known currency and transaction type (from ReferenceDataCache). Invalid request is rejected with 400
+ * and is not journaled. Accepting doesn't read the database, so requests are still journaled during a database outage;
+ * the card and its currency are checked by the services when the entry is applied.</p>
+ * <p>Request is appended to the local MappedJournal and acknowledged as soon as it is durable on disk,
+ * appends of concurrent requests share one fsync. The applier thread applies journal entries in order
+ * through TransactionService and PurchaseService every application.journal.apply.poll-ms.
+ * Every entry is applied on the shard of its card (see CardShardExecutor) and the applier waits for it,
+ * so entries stay in journal order.
+ * Entries are applied at least once: entry whose globalId is already in the database is skipped,
+ * so entries applied before a crash but after the last checkpoint are skipped on restart.
+ * Entry rejected by the service (CardException below 500 e.g. not enough funds, validation error, constraint violation)
+ * is logged, counted and skipped, so one bad entry never blocks the entries after it.
+ * If the database is unavailable (CardException 5xx, DataAccessException, TransactionException),
+ * the entry is retried on the next poll and the entries after it wait.</p>
+ * <p>Outcome of an entry is returned by status(globalId, sequence): ACCEPTED, APPLIED or REJECTED.
+ * Outcomes of the last application.journal.outcomes.max-size entries processed since the start are kept in memory
+ * by sequence, errors of the last application.journal.rejected.max-size rejected entries are kept by globalId.
+ * Entry appended since the start whose globalId is already in the database is rejected as a duplicate.</p>
+ * <p>Metrics: journal.append - time to append and sync an entry, journal.lag - durable entries which are not applied yet,
+ * journal.apply.rejected - entries rejected by the services.</p>
+ * <p>Enabled by application.journal.enabled.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class TransactionJournal {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_APPEND = "journal.append";
+    public static final String METRIC_LAG = "journal.lag";
+    public static final String METRIC_REJECTED = "journal.apply.rejected";
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private PurchaseService purchaseService;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private PurchaseRepository purchaseRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private CardShardExecutor cardShardExecutor;
+
+    @Autowired
+    private Helper inputParametersValidator;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+
+    @Value("${application.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${application.journal.directory:journal}")
+    private String directory;
+
+    @Value("${application.journal.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    @Value("${application.journal.apply.poll-ms:50}")
+    private long pollMs;
+
+    @Value("${application.journal.apply.checkpoint-every:1000}")
+    private int checkpointEvery;
+
+    @Value("${application.journal.rejected.max-size:10000}")
+    private int rejectedMaxSize;
+
+    @Value("${application.journal.outcomes.max-size:100000}")
+    private int outcomesMaxSize;
+
+    private final Gson gson = new Gson();
+    private MappedJournal journal;
+    private MappedJournal.Cursor cursor;
+    //entry which couldn't be applied, it is retried before the entries after it
+    private MappedJournal.Record failed;
+    private ScheduledExecutorService applier;
+    private Timer append;
+    private Counter rejected;
+    //globalId -> sequence of entries accepted by this instance and not applied yet
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    //globalId -> error of rejected entries
+    private Cache<String, String> rejections;
+    //sequence -> outcome of entries processed since the start
+    private Cache<Long, JournalReceipt> outcomes;
+    //entries up to this sequence were appended before the start, they may have been applied before a crash
+    private long replayedUpTo;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        journal = new MappedJournal(Paths.get(directory), segmentBytes);
+        rejections = CacheBuilder.newBuilder().maximumSize(rejectedMaxSize).build();
+        outcomes = CacheBuilder.newBuilder().maximumSize(outcomesMaxSize).build();
+        replayedUpTo = journal.getDurableSequence();
+        cursor = journal.cursor(journal.getAppliedSequence());
+        append = Timer.builder(METRIC_APPEND)
+                .description("Time to append a journal entry and sync it to disk")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        rejected = Counter.builder(METRIC_REJECTED)
+                .description("Journal entries rejected by the services")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_LAG, journal, j -> j.getDurableSequence() - j.getAppliedSequence())
+                .description("Journal entries which are not applied yet")
+                .register(meterRegistry);
+        applier = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("journal-applier").build());
+        applier.scheduleWithFixedDelay(this::poll, 0, pollMs, TimeUnit.MILLISECONDS);
+        logger.info("Transaction journal opened in {}, {} entries to apply", directory,
+                journal.getDurableSequence() - journal.getAppliedSequence());
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException, InterruptedException {
+        if (applier == null) {
+            return;
+        }
+        applier.shutdown();
+        applier.awaitTermination(10, TimeUnit.SECONDS);
+        journal.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Checks the transaction and appends it to the journal
+     * @param transaction transaction to create
+     * @return sequence of the journal entry, the entry is durable
+     * @throws CardException 400 if the transaction is invalid, 503 if the journal couldn't be written
+     */
+    public long acceptTransaction(TransactionModel transaction) throws CardException {
+        String type = transaction.getTransactionTypeId();
+        inputParametersValidator.conditionIsTrue(referenceDataCache.findTransactionTypeById(type) != null,
+                String.format(ErrorMessage.NO_TRANSACTION_TYPE_PRESENT, type), HttpStatus.BAD_REQUEST.value());
+        check(transaction.getCurrency(), transaction.getcardId(), transaction.getAmount());
+        return accept(new Entry(transaction, null));
+    }
+
+    /**
+     * Checks the purchase and appends it to the journal
+     * @param purchase purchase to create
+     * @return sequence of the journal entry, the entry is durable
+     * @throws CardException 400 if the purchase is invalid, 503 if the journal couldn't be written
+     */
+    public long acceptPurchase(PurchaseModel purchase) throws CardException {
+        check(purchase.getCurrency(), purchase.getCardId(), purchase.getAmount());
+        return accept(new Entry(null, purchase));
+    }
+
+    /**
+     * Checks what can be checked without the database: the entry can still be rejected later
+     * for unknown card, currency of the card, lack of funds or duplicate globalId.
+     */
+    private void check(String currencyName, String cardId, String amount) throws CardException {
+        Currency currency = referenceDataCache.findCurrencyByName(currencyName);
+        inputParametersValidator.conditionIsTrue(currency != null,
+                String.format(ErrorMessage.NO_CURRENCY_PRESENT, currencyName), HttpStatus.BAD_REQUEST.value());
+        try {
+            new BigDecimal(amount);
+        } catch (NumberFormatException e) {
+            throw new CardException(String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, amount), HttpStatus.BAD_REQUEST.value());
+        }
+        try {
+            Integer.valueOf(cardId);
+        } catch (NumberFormatException e) {
+            throw new CardException(String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, cardId), HttpStatus.BAD_REQUEST.value());
+        }
+    }
+
+    /**
+     * Outcome of a journaled transaction or purchase.
+     * Without the sequence only entries accepted by this instance since its start are known as ACCEPTED.
+     * With the sequence the recorded outcome of this entry is returned, so an entry rejected as a duplicate
+     * is not reported as APPLIED because another entry created the globalId.
+     * @param globalId globalId of the transaction or purchase
+     * @param sequence sequence from the JournalReceipt, can be null
+     * @return outcome recorded for the sequence if it's still known, otherwise APPLIED if the globalId is in the database,
+     * REJECTED (with the error if it's still known) if the entry is processed but the globalId is not in the database,
+     * ACCEPTED if the entry is not applied yet
+     * @throws CardException 404 if nothing is known about the entry
+     */
+    public JournalReceipt status(String globalId, Long sequence) throws CardException {
+        inputParametersValidator.conditionIsTrue(enabled, String.format(ErrorMessage.JOURNAL_ENTRY_NOT_FOUND, globalId), HttpStatus.NOT_FOUND.value());
+        //read before the database: entries up to applied are processed, so they are either in the database or rejected
+        long applied = journal.getAppliedSequence();
+        Long accepted = pending.get(globalId);
+        if (sequence != null) {
+            JournalReceipt outcome = outcomes.getIfPresent(sequence);
+            if (outcome != null && outcome.getGlobalId().equals(globalId)) {
+                return outcome;
+            }
+            if (sequence > applied && sequence <= journal.getDurableSequence()) {
+                return new JournalReceipt(globalId, sequence, JournalReceipt.STATUS_ACCEPTED, null);
+            }
+        }
+        if (transactionRepository.findByGlobalId(globalId) != null || purchaseRepository.existsByGlobalId(globalId)) {
+            return new JournalReceipt(globalId, sequence, JournalReceipt.STATUS_APPLIED, null);
+        }
+        String error = rejections.getIfPresent(globalId);
+        if (error != null) {
+            return new JournalReceipt(globalId, sequence, JournalReceipt.STATUS_REJECTED, error);
+        }
+        if (accepted != null) {
+            return new JournalReceipt(globalId, accepted, JournalReceipt.STATUS_ACCEPTED, null);
+        }
+        inputParametersValidator.conditionIsTrue(sequence != null && sequence > 0 && sequence <= journal.getDurableSequence(),
+                String.format(ErrorMessage.JOURNAL_ENTRY_NOT_FOUND, globalId), HttpStatus.NOT_FOUND.value());
+        return (sequence > applied)
+                ? new JournalReceipt(globalId, sequence, JournalReceipt.STATUS_ACCEPTED, null)
+                : new JournalReceipt(globalId, sequence, JournalReceipt.STATUS_REJECTED, null);
+    }
+
+    /**
+     * Appends the entry to the journal without checks
+     */
+    long accept(Entry entry) throws CardException {
+        byte[] payload = gson.toJson(entry).getBytes(StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        try {
+            long sequence = journal.append(payload);
+            journal.sync(sequence);
+            append.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            pending.put(entry.globalId(), sequence);
+            return sequence;
+        } catch (IOException e) {
+            logger.error("Couldn't write journal entry", e);
+            throw new CardException(ErrorMessage.JOURNAL_UNAVAILABLE, HttpStatus.SERVICE_UNAVAILABLE.value());
+        }
+    }
+
+    private void poll() {
+        try {
+            apply();
+        } catch (RuntimeException | IOException e) {
+            logger.error("Couldn't apply journal entries, will retry on the next poll", e);
+        }
+    }
+
+    /**
+     * Applies all durable journal entries in order and checkpoints the last applied one.
+     * Stops at the entry which couldn't be applied because of an infrastructure failure.
+     * @return number of processed entries, including skipped and rejected ones
+     */
+    public synchronized int apply() throws IOException {
+        int count = 0;
+        long applied = 0;
+        try {
+            MappedJournal.Record record = (failed != null) ? failed : cursor.next();
+            while (record != null) {
+                failed = record;
+                apply(record);
+                failed = null;
+                applied = record.getSequence();
+                if (++count % checkpointEvery == 0) {
+                    journal.checkpoint(applied);
+                }
+                record = cursor.next();
+            }
+        } finally {
+            if (applied > journal.getAppliedSequence()) {
+                journal.checkpoint(applied);
+            }
+        }
+        return count;
+    }
+
+    private void apply(MappedJournal.Record record) {
+        Entry entry = gson.fromJson(new String(record.getPayload(), StandardCharsets.UTF_8), Entry.class);
+        //if the entry is to be retried, the exception is thrown and the entry stays pending
+        applyEntry(record, entry);
+        pending.remove(entry.globalId(), record.getSequence());
+    }
+
+    private void applyEntry(MappedJournal.Record record, Entry entry) {
+        try {
+            boolean created = cardShardExecutor.execute(entry.cardId(),
+                    () -> (entry.transaction != null) ? applyTransaction(entry.transaction) : applyPurchase(entry.purchase));
+            if (created) {
+                outcomes.put(record.getSequence(), new JournalReceipt(entry.globalId(), record.getSequence(), JournalReceipt.STATUS_APPLIED, null));
+            } else if (record.getSequence() > replayedUpTo) {
+                //not applied before a crash, so another request has created the globalId
+                reject(record, entry, new CardException(String.format((entry.transaction != null)
+                        ? ErrorMessage.TRANSACTION_WITH_GLOBAL_ID_PRESENT : ErrorMessage.PURCHASE_WITH_GLOBAL_ID_PRESENT,
+                        entry.globalId()), HttpStatus.CONFLICT.value()));
+            }
+        } catch (CardException e) {
+            if (e.getErrorCode() >= HttpStatus.INTERNAL_SERVER_ERROR.value()) {
+                throw new IllegalStateException(e);
+            }
+            reject(record, entry, e);
+        } catch (DataIntegrityViolationException e) {
+            //e.g. the same globalId was created concurrently without the journal
+            reject(record, entry, e);
+        } catch (DataAccessException | TransactionException e) {
+            //infrastructure failure, the entry is retried
+            throw e;
+        } catch (RuntimeException e) {
+            //e.g. malformed entry, retrying it would block the journal forever
+            reject(record, entry, e);
+        }
+    }
+
+    private void reject(MappedJournal.Record record, Entry entry, Exception e) {
+        rejections.put(entry.globalId(), String.valueOf(e.getMessage()));
+        outcomes.put(record.getSequence(), new JournalReceipt(entry.globalId(), record.getSequence(), JournalReceipt.STATUS_REJECTED, String.valueOf(e.getMessage())));
+        rejected.increment();
+        logger.warn("Journal entry {} is rejected: {}", record.getSequence(), e.getMessage());
+    }
+
+    /**
+     * @return false if the transaction is skipped because its globalId is already in the database
+     */
+    private boolean applyTransaction(TransactionModel transaction) throws CardException {
+        if (transactionRepository.findByGlobalId(transaction.getGlobalId()) != null) {
+            return false;
+        }
+        transactionService.createTransaction(transaction.getGlobalId(), transaction.getCurrency(), transaction.getcardId(),
+                transaction.getTransactionTypeId(), transaction.getAmount(), transaction.getDescription());
+        return true;
+    }
+
+    /**
+     * @return false if the purchase is skipped because its globalId is already in the database
+     */
+    private boolean applyPurchase(PurchaseModel purchase) throws CardException {
+        if (purchaseRepository.existsByGlobalId(purchase.getGlobalId())) {
+            return false;
+        }
+        purchaseService.createPurchase(purchase.getGlobalId(), purchase.getShopId(), purchase.getCurrency(),
+                purchase.getCardId(), purchase.getAmount(), purchase.getDescription());
+        return true;
+    }
+
+    /**
+     * Journal entry, either transaction or purchase
+     */
+    static class Entry {
+        private TransactionModel transaction;
+        private PurchaseModel purchase;
+
+        Entry(TransactionModel transaction, PurchaseModel purchase) {
+            this.transaction = transaction;
+            this.purchase = purchase;
+        }
+
+        String globalId() {
+            return (transaction != null) ? transaction.getGlobalId() : purchase.getGlobalId();
+        }
+
+        String cardId() {
+            return (transaction != null) ? transaction.getcardId() : purchase.getCardId();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.zilch.ledger;
+
+import com.zilch.repository.CardLedgerEntryRepository;
+import com.zilch.service.CardConcurrencyStrategy;
+import com.zilch.service.CardLedgerService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts the card ledger in background.
+ * <p>Every application.card.ledger.compaction-ms ledger entries of application.card.ledger.batch-size cards per transaction
+ * are folded into the card balance snapshots (see CardLedgerService.compact), until there are no entries left.
+ * Running totals of cards not changed for application.card.ledger.idle-ms are forgotten.</p>
+ * <p>Metrics: card.ledger.entries - entries left after the last pass, card.ledger.compacted - compacted cards.</p>
+ * <p>Enabled by application.card.concurrency.strategy=LEDGER.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class CardLedgerCompactor {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_ENTRIES = "card.ledger.entries";
+    public static final String METRIC_COMPACTED = "card.ledger.compacted";
+
+    @Autowired
+    private CardLedgerService cardLedgerService;
+
+    @Autowired
+    private CardLedgerEntryRepository cardLedgerEntryRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${application.card.concurrency.strategy:CONDITIONAL_UPDATE}")
+    private CardConcurrencyStrategy concurrencyStrategy;
+
+    @Value("${application.card.ledger.batch-size:100}")
+    private int batchSize;
+
+    @Value("${application.card.ledger.idle-ms:600000}")
+    private long idleMs;
+
+    private final AtomicLong entries = new AtomicLong();
+    private Counter compacted;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder(METRIC_ENTRIES, entries, AtomicLong::get)
+                .description("Card ledger entries which are not folded into card balance")
+                .register(meterRegistry);
+        compacted = Counter.builder(METRIC_COMPACTED)
+                .description("Cards whose ledger entries were folded into card balance")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${application.card.ledger.compaction-ms:1000}")
+    public void poll() {
+        if (concurrencyStrategy != CardConcurrencyStrategy.LEDGER) {
+            return;
+        }
+        try {
+            compact();
+            cardLedgerService.evictIdle(idleMs);
+        } catch (RuntimeException e) {
+            logger.error("Card ledger compaction failed, will retry on the next poll", e);
+        }
+    }
+
+    /**
+     * Compacts ledger entries of all cards, batch by batch
+     * @return number of compacted cards
+     */
+    public int compact() {
+        int total = 0;
+        int count;
+        do {
+            count = cardLedgerService.compact(batchSize);
+            total += count;
+        } while (count == batchSize);
+        compacted.increment(total);
+        entries.set(cardLedgerEntryRepository.count());
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package com.zilch.outbox;
+
+import com.google.gson.stream.JsonWriter;
+import com.zilch.entities.OutboxEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Appends outbox events to a file, one JSON object per line:
+ * {"id":1,"aggregateType":"transaction","aggregateId":5,"eventType":"TransactionCreated","created":1571234567890,"payload":{...}}
+ * <p>The file is synced to disk before publish returns. Enabled by application.outbox.sink=file (default).</p>
+ * <p>When the file reaches application.outbox.file.max-size bytes it is rotated like a log file:
+ * events.jsonl is renamed to events.jsonl.1, events.jsonl.1 to events.jsonl.2 and so on,
+ * at most application.outbox.file.max-files rotated files are kept, the oldest one is deleted.
+ * A batch is never split between files, so a file may exceed max-size by one batch.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+@ConditionalOnProperty(name = "application.outbox.sink", havingValue = "file", matchIfMissing = true)
+public class FileOutboxSink implements OutboxSink {
+
+    private final Path path;
+    private final long maxSize;
+    private final int maxFiles;
+
+    public FileOutboxSink(@Value("${application.outbox.file.path:outbox/events.jsonl}") String path,
+                          @Value("${application.outbox.file.max-size:104857600}") long maxSize,
+                          @Value("${application.outbox.file.max-files:10}") int maxFiles) {
+        this.path = Paths.get(path);
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public synchronized void publish(List<OutboxEvent> events) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        if (Files.exists(path) && Files.size(path) >= maxSize) {
+            rotate();
+        }
+        try (FileOutputStream out = new FileOutputStream(path.toFile(), true)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (OutboxEvent event : events) {
+                write(event, writer);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getChannel().force(false);
+        }
+    }
+
+    private void rotate() throws IOException {
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    static void write(OutboxEvent event, Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject()
+                .name("id").value(event.getId())
+                .name("aggregateType").value(event.getAggregateType())
+                .name("aggregateId").value(event.getAggregateId())
+                .name("eventType").value(event.getEventType())
+                .name("created").value(event.getCreated().getTime())
+                .name("payload").jsonValue(event.getPayload())
+                .endObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,35 @@
+package com.zilch.outbox;
+
+import com.zilch.entities.OutboxEvent;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps published outbox events in memory. Enabled by application.outbox.sink=memory, used by tests.
+ * @author Elena Medvedeva
+ */
+@Component
+@ConditionalOnProperty(name = "application.outbox.sink", havingValue = "memory")
+public class InMemoryOutboxSink implements OutboxSink {
+
+    private final List<OutboxEvent> events = new ArrayList<>();
+
+    @Override
+    public synchronized void publish(List<OutboxEvent> events) {
+        this.events.addAll(events);
+    }
+
+    /**
+     * @return copy of published events in order of publishing
+     */
+    public synchronized List<OutboxEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    public synchronized void clear() {
+        events.clear();
+    }
+}
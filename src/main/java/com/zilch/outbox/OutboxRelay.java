@@ -0,0 +1,142 @@
+package com.zilch.outbox;
+
+import com.zilch.entities.OutboxEvent;
+import com.zilch.repository.OutboxEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes outbox events to OutboxSink in background.
+ * <p>Every application.outbox.relay.poll-ms the relay locks a batch of the oldest events (for update skip locked),
+ * publishes it and deletes it in the same transaction, until the outbox is drained.
+ * Several instances can relay in parallel, each of them takes different events;
+ * events of one card are then published in order by each instance, but not across instances.</p>
+ * <p>Metrics: outbox.relay.published - number of published events,
+ * outbox.relay.lag - time from event creation to its publishing,
+ * outbox.relay.batch - time to publish a batch, outbox.relay.failures - failed batches.</p>
+ * <p>Enabled by application.outbox.relay.enabled, disabled by default.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class OutboxRelay {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_PUBLISHED = "outbox.relay.published";
+    public static final String METRIC_LAG = "outbox.relay.lag";
+    public static final String METRIC_BATCH = "outbox.relay.batch";
+    public static final String METRIC_FAILURES = "outbox.relay.failures";
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxSink outboxSink;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${application.outbox.relay.enabled:false}")
+    private boolean enabled;
+
+    @Value("${application.outbox.relay.batch-size:100}")
+    private int batchSize;
+
+    private TransactionTemplate transactionTemplate;
+    private Counter published;
+    private Counter failures;
+    private Timer lag;
+    private Timer batch;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        published = Counter.builder(METRIC_PUBLISHED)
+                .description("Outbox events published to the sink")
+                .register(meterRegistry);
+        failures = Counter.builder(METRIC_FAILURES)
+                .description("Outbox batches which couldn't be published")
+                .register(meterRegistry);
+        lag = Timer.builder(METRIC_LAG)
+                .description("Time from outbox event creation to its publishing")
+                .register(meterRegistry);
+        batch = Timer.builder(METRIC_BATCH)
+                .description("Time to lock, publish and delete a batch of outbox events")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${application.outbox.relay.poll-ms:200}")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            relay();
+        } catch (RuntimeException e) {
+            failures.increment();
+            logger.error("Couldn't publish outbox events, will retry on the next poll", e);
+        }
+    }
+
+    /**
+     * Publishes all events which are in the outbox, batch by batch
+     * @return number of published events
+     */
+    public int relay() {
+        int total = 0;
+        int count;
+        do {
+            count = relayBatch();
+            total += count;
+        } while (count == batchSize);
+        return total;
+    }
+
+    private int relayBatch() {
+        long start = System.nanoTime();
+        List<OutboxEvent> events = transactionTemplate.execute(status -> {
+            List<OutboxEvent> locked = outboxEventRepository.findBatchForRelay(PageRequest.of(0, batchSize));
+            if (locked.isEmpty()) {
+                return Collections.<OutboxEvent>emptyList();
+            }
+            try {
+                outboxSink.publish(locked);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            outboxEventRepository.deleteInBatch(locked);
+            return locked;
+        });
+        if (events.isEmpty()) {
+            return 0;
+        }
+        batch.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        published.increment(events.size());
+        long now = System.currentTimeMillis();
+        for (OutboxEvent event : events) {
+            lag.record(now - event.getCreated().getTime(), TimeUnit.MILLISECONDS);
+        }
+        return events.size();
+    }
+}
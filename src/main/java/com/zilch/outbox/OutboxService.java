@@ -0,0 +1,33 @@
+package com.zilch.outbox;
+
+import com.zilch.entities.Card;
+import com.zilch.entities.Purchase;
+import com.zilch.entities.Transaction;
+
+/**
+ * Records events for downstream systems (ledger, notifications, analytics) in the outbox table.
+ * <p>Events are inserted in the transaction of the change, so they are committed or rolled back together with it,
+ * and are published later by OutboxRelay. Methods must be called inside a transaction.</p>
+ * @author Elena Medvedeva
+ */
+public interface OutboxService {
+    String AGGREGATE_CARD = "card";
+    String AGGREGATE_PURCHASE = "purchase";
+    String AGGREGATE_TRANSACTION = "transaction";
+
+    String EVENT_CARD_CREATED = "CardCreated";
+    String EVENT_CARD_BALANCE_CHANGED = "CardBalanceChanged";
+    String EVENT_PURCHASE_CREATED = "PurchaseCreated";
+    String EVENT_TRANSACTION_CREATED = "TransactionCreated";
+
+    public void cardCreated(Card card);
+
+    public void cardBalanceChanged(Card card);
+
+    /**
+     * @param purchase saved purchase with its installments
+     */
+    public void purchaseCreated(Purchase purchase);
+
+    public void transactionCreated(Transaction transaction);
+}
@@ -0,0 +1,53 @@
+package com.zilch.outbox;
+
+import com.google.gson.Gson;
+import com.zilch.entities.Card;
+import com.zilch.entities.OutboxEvent;
+import com.zilch.entities.Purchase;
+import com.zilch.entities.Transaction;
+import com.zilch.gson.GsonView;
+import com.zilch.repository.OutboxEventRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Outbox events with JSON payload. Payload is the same JSON which is returned by the API for the entity.
+ * Events are inserted on flush together with the change, in the same JDBC batch as other inserts of the transaction.
+ * @author Elena Medvedeva
+ */
+@Service
+class OutboxServiceImpl implements OutboxService {
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    @Override
+    public void cardCreated(Card card) {
+        record(AGGREGATE_CARD, card.getId(), EVENT_CARD_CREATED, GsonView.CARD_LIST.gson(), card);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    @Override
+    public void cardBalanceChanged(Card card) {
+        record(AGGREGATE_CARD, card.getId(), EVENT_CARD_BALANCE_CHANGED, GsonView.CARD_LIST.gson(), card);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    @Override
+    public void purchaseCreated(Purchase purchase) {
+        record(AGGREGATE_PURCHASE, purchase.getId(), EVENT_PURCHASE_CREATED, GsonView.PURCHASE_LIST.gson(), purchase);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    @Override
+    public void transactionCreated(Transaction transaction) {
+        record(AGGREGATE_TRANSACTION, transaction.getId(), EVENT_TRANSACTION_CREATED, GsonView.TRANSACTION_CREATED.gson(), transaction);
+    }
+
+    private void record(String aggregateType, Integer aggregateId, String eventType, Gson gson, Object entity) {
+        outboxEventRepository.save(new OutboxEvent(aggregateType, aggregateId, eventType, gson.toJson(entity)));
+    }
+}
@@ -0,0 +1,22 @@
+package com.zilch.outbox;
+
+import com.zilch.entities.OutboxEvent;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of outbox events, e.g. message broker.
+ * <p>Events are delivered at least once: a batch is deleted from the outbox only after publish returns,
+ * and it is published again if the relay fails before the deletion is committed.
+ * Consumers should deduplicate events by id.</p>
+ * @author Elena Medvedeva
+ */
+public interface OutboxSink {
+    /**
+     * Publishes events. When the method returns, events must be durably accepted by the destination.
+     * @param events events ordered by id
+     * @throws IOException if events couldn't be published, the batch is retried on the next poll
+     */
+    public void publish(List<OutboxEvent> events) throws IOException;
+}
@@ -0,0 +1,59 @@
+package com.zilch.repository;
+
+import com.zilch.entities.CardBalance;
+import com.zilch.exceptions.CardException;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import javax.transaction.Transactional;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Card balance JPA repository
+ * <p>Balance changes only update the narrow card_balance row, the card row is not touched.</p>
+ * @author Elena Medvedeva
+ */
+@Transactional(rollbackOn = CardException.class)
+public interface CardBalanceRepository extends JpaRepository<CardBalance, Integer> {
+
+    /**
+     * Locks card balances by one statement: select ... where card_id in (...) order by card_id for update.
+     * Rows are locked in order of card id, so writers locking several cards don't deadlock.
+     * @param cardIds card ids
+     * @return locked card balances ordered by card id
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from CardBalance b where b.cardId in :cardIds order by b.cardId")
+    List<CardBalance> findByCardIdInForUpdate(@Param("cardIds") Collection<Integer> cardIds);
+
+    /**
+     * Adds delta to card balance in one guarded statement.
+     * The row is only updated if the balance stays non negative, so the funds check
+     * and the balance change can't be interleaved with another writer.
+     * Version is incremented as well, so optimistic writers notice the change.
+     * @param cardId card id
+     * @param delta amount to add (negative for debit)
+     * @return number of updated rows: 1 if balance was changed, 0 if there is not enough funds
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update CardBalance b set b.balance = b.balance + :delta, b.version = b.version + 1 " +
+            "where b.cardId = :cardId and b.balance + :delta >= 0")
+    int addToBalance(@Param("cardId") Integer cardId, @Param("delta") BigDecimal delta);
+
+    /**
+     * Adds delta to card balance without funds check.
+     * Used by the card ledger compaction: delta is the sum of ledger entries which were checked when they were appended.
+     * @param cardId card id
+     * @param delta amount to add
+     * @return number of updated rows
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update CardBalance b set b.balance = b.balance + :delta, b.version = b.version + 1 where b.cardId = :cardId")
+    int addToSnapshot(@Param("cardId") Integer cardId, @Param("delta") BigDecimal delta);
+}
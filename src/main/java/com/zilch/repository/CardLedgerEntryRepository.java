@@ -0,0 +1,43 @@
+package com.zilch.repository;
+
+import com.zilch.entities.CardLedgerEntry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Card ledger entry JPA repository
+ * @author Elena Medvedeva
+ */
+public interface CardLedgerEntryRepository extends JpaRepository<CardLedgerEntry, Long> {
+
+    /**
+     * Balance of the card: snapshot in card_balance.balance plus the sum of the card's ledger entries.
+     * Both are read by one statement, so the result is consistent while the compaction moves entries into the snapshot.
+     * @param cardId card id
+     * @return balance or null if there is no such card
+     */
+    @Query(value = "select b.balance + coalesce((select sum(e.amount) from card_ledger_entry e where e.card_id = b.card_id), 0) " +
+            "from card_balance b where b.card_id = :cardId", nativeQuery = true)
+    BigDecimal findBalanceByCardId(@Param("cardId") Integer cardId);
+
+    /**
+     * @param pageable number of cards, page number is always 0
+     * @return ids of cards which have ledger entries
+     */
+    @Query("select distinct e.card.id from CardLedgerEntry e")
+    List<Integer> findCardIds(Pageable pageable);
+
+    @Query("select e from CardLedgerEntry e where e.card.id in :cardIds")
+    List<CardLedgerEntry> findByCardIdIn(@Param("cardIds") Collection<Integer> cardIds);
+
+    @Modifying
+    @Query("delete from CardLedgerEntry e where e.id in :ids")
+    int deleteByIdIn(@Param("ids") Collection<Long> ids);
+}
@@ -2,10 +2,21 @@ package com.zilch.repository;
 
 import com.zilch.exceptions.CardException;
 import com.zilch.entities.Card;
+import com.zilch.view.dto.CardDto;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
+import javax.persistence.QueryHint;
 import javax.transaction.Transactional;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static com.zilch.repository.QueryHintValues.STREAM_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 /**
  * Card JPA repository
@@ -13,8 +24,24 @@ import java.util.List;
  * @author Elena Medvedeva
  */
 @Transactional(rollbackOn = CardException.class)
-public interface CardRepository extends JpaRepository<Card, Integer> {
-    List<Card> findAllByOrderByIdAsc();
+public interface CardRepository extends JpaRepository<Card, Integer>, CardRepositoryCustom {
+    @EntityGraph(attributePaths = "currency")
     List<Card> findByUserId(String userId);
 
-}
\ No newline at end of file
+    /**
+     * Seek query for keyset pagination: cards with id greater than cursor ordered by id.
+     * Only the columns of the card list are selected,
+     * rows are fetched from the database in chunks of STREAM_FETCH_SIZE. Should be consumed and closed inside a transaction.
+     * Balance includes the card's ledger entries not compacted yet (LEDGER strategy).
+     * @param after cursor, id of the last card on the previous page
+     * @param pageable page size, page number is always 0
+     * @return cards after the cursor, currency is not set
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    @Query("select new com.zilch.view.dto.CardDto(c.id, c.userId, " +
+            "c.balance + coalesce((select sum(e.amount) from CardLedgerEntry e where e.card = c), 0), " +
+            "c.currency.id, c.lastUpdated, c.lastUpdatedBy, c.version) " +
+            "from Card c where c.id > :after order by c.id")
+    Stream<CardDto> streamDtoByIdGreaterThan(@Param("after") Integer after, Pageable pageable);
+
+}
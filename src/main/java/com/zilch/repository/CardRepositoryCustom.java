@@ -0,0 +1,11 @@
+package com.zilch.repository;
+
+import com.zilch.entities.Card;
+
+/**
+ * Card repository methods which are not generated by Spring Data
+ * @author Elena Medvedeva
+ */
+public interface CardRepositoryCustom {
+    Card refresh(Card card);
+}
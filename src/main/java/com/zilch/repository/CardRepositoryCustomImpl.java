@@ -0,0 +1,31 @@
+package com.zilch.repository;
+
+import com.zilch.entities.Card;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Implementation of custom Card repository methods
+ * @author Elena Medvedeva
+ */
+public class CardRepositoryCustomImpl implements CardRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Re-reads card state from the database, e.g. after a bulk update of the balance.
+     * If card is not managed by current persistence context, managed instance is loaded instead.
+     * @param card card to refresh
+     * @return managed card with actual state
+     */
+    @Override
+    public Card refresh(Card card) {
+        if (entityManager.contains(card)) {
+            entityManager.refresh(card);
+            return card;
+        }
+        return entityManager.find(Card.class, card.getId());
+    }
+}
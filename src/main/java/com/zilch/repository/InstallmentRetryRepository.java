@@ -0,0 +1,77 @@
+package com.zilch.repository;
+
+import com.zilch.entities.InstallmentRetry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static com.zilch.repository.QueryHintValues.LOCK_TIMEOUT_SKIP_LOCKED;
+
+/**
+ * Installment retry JPA repository
+ * @author Elena Medvedeva
+ */
+public interface InstallmentRetryRepository extends JpaRepository<InstallmentRetry, Integer> {
+
+    /**
+     * Locks a batch of retries due at or before now:
+     * select ... where next_attempt <= ? order by next_attempt limit ? for update skip locked.
+     * Uses index on installment_retry(next_attempt).
+     * Installments are not fetched: they are processed only by the one who locked the retry.
+     * Only retries of the cards of the shard are selected: card id % shards = shard (see CardShardExecutor).
+     * @param now next attempt bound
+     * @param shard shard of the cards, 0 if shards is 1
+     * @param shards number of card shards, 1 for all cards
+     * @param pageable batch size, page number is always 0
+     * @return locked retries ordered by next attempt
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = LOCK_TIMEOUT_SKIP_LOCKED))
+    @Query("select r from InstallmentRetry r where r.nextAttempt <= :now and mod(r.card.id, :shards) = :shard " +
+            "order by r.nextAttempt, r.transactionId")
+    List<InstallmentRetry> findDueForRetry(@Param("now") Date now, @Param("shard") int shard, @Param("shards") int shards, Pageable pageable);
+
+    /**
+     * Locks retries of the card due at or before now, for update skip locked
+     * @param cardId card id
+     * @param now next attempt bound
+     * @return locked retries ordered by next attempt
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = LOCK_TIMEOUT_SKIP_LOCKED))
+    @Query("select r from InstallmentRetry r where r.card.id = :cardId and r.nextAttempt <= :now " +
+            "order by r.nextAttempt, r.transactionId")
+    List<InstallmentRetry> findDueForRetryByCardId(@Param("cardId") Integer cardId, @Param("now") Date now);
+
+    long countByNextAttemptLessThanEqual(Date now);
+
+    /**
+     * Moves the next attempt of all retries of the card to now, e.g. when the card is credited.
+     * Uses index on installment_retry(card_id).
+     * @param cardId card id
+     * @param now new next attempt
+     * @return number of woken retries
+     */
+    @Modifying
+    @Query("update InstallmentRetry r set r.nextAttempt = :now where r.card.id = :cardId")
+    int wakeByCardId(@Param("cardId") Integer cardId, @Param("now") Date now);
+
+    /**
+     * Removes retries of settled installments by one delete statement
+     * @param transactionIds ids of the installments
+     * @return number of deleted rows
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("delete from InstallmentRetry r where r.transactionId in :transactionIds")
+    int deleteByTransactionIdIn(@Param("transactionIds") Collection<Integer> transactionIds);
+}
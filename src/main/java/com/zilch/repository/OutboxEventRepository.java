@@ -0,0 +1,33 @@
+package com.zilch.repository;
+
+import com.zilch.entities.OutboxEvent;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import java.util.List;
+
+import static com.zilch.repository.QueryHintValues.LOCK_TIMEOUT_SKIP_LOCKED;
+
+/**
+ * Outbox event JPA repository
+ * @author Elena Medvedeva
+ */
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+
+    /**
+     * Locks the oldest unpublished events: select ... order by id limit ? for update skip locked.
+     * Events locked by another relay are skipped, so several application instances publish different batches.
+     * Page number of pageable is always 0, only page size is used.
+     * @param pageable batch size
+     * @return locked events ordered by id
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = LOCK_TIMEOUT_SKIP_LOCKED))
+    @Query("select e from OutboxEvent e order by e.id")
+    List<OutboxEvent> findBatchForRelay(Pageable pageable);
+}
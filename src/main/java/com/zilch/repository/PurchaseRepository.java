@@ -2,13 +2,21 @@ package com.zilch.repository;
 
 import com.zilch.entities.Card;
 import com.zilch.entities.Purchase;
-import com.zilch.entities.Transaction;
+import com.zilch.view.dto.PurchaseDto;
 import com.zilch.exceptions.CardException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
+import javax.persistence.QueryHint;
 import javax.transaction.Transactional;
 import java.util.List;
 
+import static org.hibernate.jpa.QueryHints.HINT_PASS_DISTINCT_THROUGH;
+
 /**
  * Purchase JPA repository
  *  <p> Generates SQL queries to access the database to manage Purchase entities</p>
@@ -17,6 +25,33 @@ import java.util.List;
 @Transactional(rollbackOn = CardException.class)
 public interface PurchaseRepository extends JpaRepository<Purchase, Integer> {
     List<Purchase> findByCard(Card card);
-    List<Purchase> findAllByOrderByIdAsc();
-    //Purchase findByGlobalId(String globalId);
+
+    /**
+     * Purchases of the card for card details: currency, installments, installment types and currencies
+     * are fetched by the same select. Distinct only removes duplicates of joined installments in memory, it isn't passed to SQL.
+     * @param card card
+     * @return purchases of the card ordered by id
+     */
+    @EntityGraph(attributePaths = {"currency", "transactions", "transactions.type", "transactions.currency"})
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    List<Purchase> findDistinctByCardOrderByIdAsc(Card card);
+
+    /**
+     * Seek queries for keyset pagination: purchases with id greater than cursor ordered by id.
+     * Page number of pageable is always 0, only page size is used.
+     * Only the columns of the purchase list are selected, card columns are selected in the same row.
+     * Currencies and transactions are not set. Card balance includes the card's ledger entries not compacted yet
+     * (LEDGER strategy), the sum is empty for the other strategies.
+     */
+    @Query("select new com.zilch.view.dto.PurchaseDto(p.id, p.globalId, p.shopId, p.amount, " +
+            "c.id, c.userId, c.balance + coalesce((select sum(e.amount) from CardLedgerEntry e where e.card = c), 0), c.currency.id, c.lastUpdated, c.lastUpdatedBy, c.version, " +
+            "p.currency.id, p.description, p.lastUpdated, p.lastUpdatedBy) " +
+            "from Purchase p join p.card c where p.id > :after order by p.id")
+    List<PurchaseDto> findDtoByIdGreaterThan(@Param("after") Integer after, Pageable pageable);
+    @Query("select new com.zilch.view.dto.PurchaseDto(p.id, p.globalId, p.shopId, p.amount, " +
+            "c.id, c.userId, c.balance + coalesce((select sum(e.amount) from CardLedgerEntry e where e.card = c), 0), c.currency.id, c.lastUpdated, c.lastUpdatedBy, c.version, " +
+            "p.currency.id, p.description, p.lastUpdated, p.lastUpdatedBy) " +
+            "from Purchase p join p.card c where c = :card and p.id > :after order by p.id")
+    List<PurchaseDto> findDtoByCardAndIdGreaterThan(@Param("card") Card card, @Param("after") Integer after, Pageable pageable);
+    boolean existsByGlobalId(String globalId);
 }
@@ -0,0 +1,21 @@
+package com.zilch.repository;
+
+/**
+ * Values of query hints used by repositories
+ * @author Elena Medvedeva
+ */
+public final class QueryHintValues {
+    /**
+     * JDBC fetch size of streaming queries
+     */
+    public static final String STREAM_FETCH_SIZE = "100";
+
+    /**
+     * Lock timeout which makes pessimistic lock skip rows locked by other transactions
+     * (for update skip locked on PostgreSQL, plain for update on databases without it), see LockOptions.SKIP_LOCKED
+     */
+    public static final String LOCK_TIMEOUT_SKIP_LOCKED = "-2";
+
+    private QueryHintValues() {
+    }
+}
@@ -3,10 +3,27 @@ package com.zilch.repository;
 import com.zilch.entities.Transaction;
 import com.zilch.exceptions.CardException;
 import com.zilch.entities.Card;
+import com.zilch.view.dto.TransactionDto;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
 import javax.transaction.Transactional;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static com.zilch.repository.QueryHintValues.LOCK_TIMEOUT_SKIP_LOCKED;
+import static com.zilch.repository.QueryHintValues.STREAM_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 /**
  * Transaction JPA repository
@@ -15,6 +32,118 @@ import java.util.List;
  */
 @Transactional(rollbackOn = CardException.class)
 public interface TransactionRepository extends JpaRepository<Transaction, Integer> {
-    List<Transaction> findByCard(Card card);
+    /**
+     * Id and due date of an installment
+     */
+    interface DueInstallment {
+        Integer getId();
+        Date getDueDate();
+    }
+
     Transaction findByGlobalId(String globalId);
+
+    /**
+     * Checks many globalIds for uniqueness by one select
+     * @param globalIds global ids
+     * @return those of globalIds which are already used by transactions
+     */
+    @Query("select t.globalId from Transaction t where t.globalId in :globalIds")
+    List<String> findGlobalIdsByGlobalIdIn(@Param("globalIds") Collection<String> globalIds);
+
+    /**
+     * Seek query for keyset pagination: transactions of the card with id greater than cursor ordered by id.
+     * Only the columns of the transaction list are selected,
+     * purchase columns are selected in the same row. Rows are fetched from the database in chunks of STREAM_FETCH_SIZE.
+     * Should be consumed and closed inside a transaction.
+     * @param card card of the transactions
+     * @param after cursor, id of the last transaction on the previous page
+     * @param pageable page size, page number is always 0
+     * @return transactions after the cursor, types and currencies are not set
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE))
+    @Query("select new com.zilch.view.dto.TransactionDto(t.id, t.globalId, t.type.id, t.amount, " +
+            "p.id, p.globalId, p.shopId, p.amount, p.currency.id, p.description, p.lastUpdated, p.lastUpdatedBy, " +
+            "t.submitted, t.dueDate, t.currency.id, t.description, t.lastUpdated, t.lastUpdatedBy) " +
+            "from Transaction t left join t.purchase p where t.card = :card and t.id > :after order by t.id")
+    Stream<TransactionDto> streamDtoByCardAndIdGreaterThan(@Param("card") Card card, @Param("after") Integer after, Pageable pageable);
+
+    /**
+     * Installments of the purchases for the purchase list, without purchase, ordered by id.
+     * Types and currencies are not set.
+     * @param purchaseIds ids of the purchases
+     * @return transactions of the purchases
+     */
+    @Query("select new com.zilch.view.dto.TransactionDto(t.id, t.globalId, t.type.id, t.amount, t.purchase.id, " +
+            "t.submitted, t.dueDate, t.currency.id, t.description, t.lastUpdated, t.lastUpdatedBy) " +
+            "from Transaction t where t.purchase.id in :purchaseIds order by t.id")
+    List<TransactionDto> findDtoByPurchaseIdIn(@Param("purchaseIds") Collection<Integer> purchaseIds);
+
+    /**
+     * Locks a batch of due installments for settlement:
+     * select ... where submitted = false and in_retry = false and due_date <= ? order by due_date limit ? for update skip locked.
+     * Uses partial index on transaction(due_date) where submitted = false and in_retry = false,
+     * installments waiting in installment_retry are not scanned.
+     * Installments locked by another settlement worker are skipped, so workers and nodes settle different batches.
+     * Cards are not fetched, they are lazy proxies.
+     * Only installments of the cards of the shard are selected: card id % shards = shard (see CardShardExecutor).
+     * @param now due date bound
+     * @param shard shard of the cards, 0 if shards is 1
+     * @param shards number of card shards, 1 for all cards
+     * @param pageable batch size, page number is always 0
+     * @return locked installments ordered by due date
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = LOCK_TIMEOUT_SKIP_LOCKED))
+    @Query("select t from Transaction t where t.submitted = false and t.inRetry = false and t.dueDate <= :now " +
+            "and mod(t.card.id, :shards) = :shard order by t.dueDate, t.id")
+    List<Transaction> findDueForSettlement(@Param("now") Date now, @Param("shard") int shard, @Param("shards") int shards, Pageable pageable);
+
+    /**
+     * Locks installments which are not settled yet among the given ones, for update skip locked.
+     * Used to settle installments fired by the timing wheel.
+     * Only installments of the cards of the shard are selected, see findDueForSettlement.
+     * @param ids ids of the installments
+     * @param shard shard of the cards, 0 if shards is 1
+     * @param shards number of card shards, 1 for all cards
+     * @return locked not submitted installments which are not in retry, ordered by due date
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = LOCK_TIMEOUT_SKIP_LOCKED))
+    @Query("select t from Transaction t where t.id in :ids and t.submitted = false and t.inRetry = false " +
+            "and mod(t.card.id, :shards) = :shard order by t.dueDate, t.id")
+    List<Transaction> findForSettlementByIdIn(@Param("ids") Collection<Integer> ids, @Param("shard") int shard, @Param("shards") int shards);
+
+    long countBySubmittedFalseAndInRetryFalseAndDueDateLessThanEqual(Date now);
+
+    /**
+     * Ids and due dates of installments which fall due in (from, to], for the timing wheel
+     * @param from exclusive lower bound of due date
+     * @param to inclusive upper bound of due date
+     * @return not submitted installments
+     */
+    @Query("select t.id as id, t.dueDate as dueDate from Transaction t " +
+            "where t.submitted = false and t.inRetry = false and t.dueDate > :from and t.dueDate <= :to")
+    List<DueInstallment> findDueBetween(@Param("from") Date from, @Param("to") Date to);
+
+    /**
+     * Marks installments which couldn't be settled on due date as retried from installment_retry
+     * @param ids ids of the installments
+     * @return number of updated rows
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update Transaction t set t.inRetry = true where t.id in :ids")
+    int markInRetry(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * Marks settled installments as submitted by one update statement
+     * @param ids ids of the installments
+     * @param lastUpdated update timestamp
+     * @param lastUpdatedBy who updated the installments
+     * @return number of updated rows
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update Transaction t set t.submitted = true, t.lastUpdated = :lastUpdated, t.lastUpdatedBy = :lastUpdatedBy " +
+            "where t.id in :ids")
+    int markSubmitted(@Param("ids") Collection<Integer> ids, @Param("lastUpdated") Date lastUpdated,
+                      @Param("lastUpdatedBy") String lastUpdatedBy);
 }
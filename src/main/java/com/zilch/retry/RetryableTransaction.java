@@ -0,0 +1,25 @@
+package com.zilch.retry;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks transactional service method which should be re-executed by {@link RetryingTransactionTemplate}
+ * when database reports serialization failure or deadlock.
+ * <p>Retry happens only around the outermost transaction,
+ * nested calls join the running transaction and are retried together with it.</p>
+ *
+ * @author Elena Medvedeva
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RetryableTransaction {
+    /**
+     * Re-execute also when a unique constraint is violated (SQLState 23505).
+     * Only for methods which check uniqueness themselves and report duplicates as results,
+     * so the next attempt sees the row committed by the concurrent transaction and doesn't insert it.
+     */
+    boolean retryOnDuplicateKey() default false;
+}
@@ -0,0 +1,35 @@
+package com.zilch.retry;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Applies {@link RetryingTransactionTemplate} to methods annotated with {@link RetryableTransaction}.
+ * <p>Ordered before transaction interceptor, so every attempt runs in a new transaction.</p>
+ *
+ * @author Elena Medvedeva
+ */
+@Aspect
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 1)
+public class RetryingTransactionAspect {
+
+    @Autowired
+    private RetryingTransactionTemplate retryingTransactionTemplate;
+
+    @Around("@annotation(retryable)")
+    public Object retry(ProceedingJoinPoint joinPoint, RetryableTransaction retryable) throws Throwable {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            //transaction is already started by the caller, only the caller can re-run it
+            return joinPoint.proceed();
+        }
+        String operation = joinPoint.getSignature().getDeclaringType().getSimpleName() + "." + joinPoint.getSignature().getName();
+        return retryingTransactionTemplate.execute(operation, retryable.retryOnDuplicateKey(), joinPoint::proceed);
+    }
+}
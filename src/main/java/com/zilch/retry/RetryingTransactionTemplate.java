@@ -0,0 +1,178 @@
+package com.zilch.retry;
+
+import com.google.common.collect.ImmutableSet;
+import com.zilch.exceptions.CardException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hibernate.StaleStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.OptimisticLockException;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-executes unit of work when database aborts it because of concurrent access
+ * (SQLState 40001 serialization failure, 40P01 deadlock or Spring ConcurrencyFailureException)
+ * or when optimistic lock on versioned entity fails.
+ * Unique constraint violation (SQLState 23505) is retried only if the caller asks for it.
+ * <p>Business errors (CardException, e.g. not enough funds) and any other exceptions are never retried.
+ * Attempts are limited by application.transaction.retry.max-attempts, between attempts thread sleeps
+ * for exponentially growing jittered backoff.</p>
+ *
+ * @author Elena Medvedeva
+ */
+@Component
+public class RetryingTransactionTemplate {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final Set<String> RETRYABLE_SQL_STATES = ImmutableSet.of("40001", "40P01");
+    public static final String UNIQUE_VIOLATION_SQL_STATE = "23505";
+
+    public static final String METRIC_ATTEMPTS = "card.transaction.attempts";
+    public static final String METRIC_RETRIES = "card.transaction.retries";
+    public static final String METRIC_EXHAUSTED = "card.transaction.retries.exhausted";
+    public static final String METRIC_RETRY_TIME = "card.transaction.retry.time";
+    public static final String TAG_OPERATION = "operation";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${application.transaction.retry.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${application.transaction.retry.initial-backoff-ms:10}")
+    private long initialBackoffMs;
+
+    @Value("${application.transaction.retry.max-backoff-ms:200}")
+    private long maxBackoffMs;
+
+    /**
+     * Executes unit of work, retrying it on concurrency failures.
+     * @param operation name of operation for logs and metrics
+     * @param work unit of work, should start its own transaction
+     * @return result of the successful attempt
+     * @throws Throwable exception of the last attempt, or non retryable exception
+     */
+    public <T> T execute(String operation, UnitOfWork<T> work) throws Throwable {
+        return execute(operation, false, work);
+    }
+
+    /**
+     * Executes unit of work, retrying it on concurrency failures.
+     * @param operation name of operation for logs and metrics
+     * @param retryOnDuplicateKey retry also when a unique constraint is violated
+     * @param work unit of work, should start its own transaction
+     * @return result of the successful attempt
+     * @throws Throwable exception of the last attempt, or non retryable exception
+     */
+    public <T> T execute(String operation, boolean retryOnDuplicateKey, UnitOfWork<T> work) throws Throwable {
+        int attempt = 1;
+        long retryStart = 0;
+        while (true) {
+            try {
+                T result = work.execute();
+                record(operation, attempt, retryStart);
+                return result;
+            } catch (Throwable e) {
+                boolean retryable = isRetryable(e) || (retryOnDuplicateKey && isDuplicateKey(e));
+                if (!retryable || attempt >= maxAttempts) {
+                    if (attempt > 1 && retryable) {
+                        meterRegistry.counter(METRIC_EXHAUSTED, TAG_OPERATION, operation).increment();
+                        logger.error("{} failed after {} attempts", operation, attempt);
+                    }
+                    record(operation, attempt, retryStart);
+                    throw e;
+                }
+                if (retryStart == 0) {
+                    retryStart = System.nanoTime();
+                }
+                logger.debug("{} attempt {} failed with concurrency failure, retrying: {}", operation, attempt, e.toString());
+                meterRegistry.counter(METRIC_RETRIES, TAG_OPERATION, operation).increment();
+                backoff(attempt, e);
+                attempt++;
+            }
+        }
+    }
+
+    /**
+     * Checks cause chain of exception for concurrency failure.
+     * @param e exception
+     * @return true if unit of work can be safely re-executed
+     */
+    public static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CardException) {
+                return false;
+            }
+            if (cause instanceof ConcurrencyFailureException || cause instanceof OptimisticLockException
+                    || cause instanceof StaleStateException) {
+                return true;
+            }
+            if (cause instanceof SQLException && RETRYABLE_SQL_STATES.contains(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks cause chain of exception for unique constraint violation.
+     * @param e exception
+     * @return true if a unique constraint is violated
+     */
+    public static boolean isDuplicateKey(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CardException) {
+                return false;
+            }
+            if (cause instanceof SQLException && UNIQUE_VIOLATION_SQL_STATE.equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void backoff(int attempt, Throwable lastError) throws Throwable {
+        long ceiling = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 20));
+        //equal jitter: half of the backoff is fixed, the other half is random
+        long sleepMs = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        try {
+            Thread.sleep(sleepMs);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw lastError;
+        }
+    }
+
+    private void record(String operation, int attempts, long retryStart) {
+        DistributionSummary.builder(METRIC_ATTEMPTS)
+                .description("Attempts needed to complete card transaction")
+                .tag(TAG_OPERATION, operation)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(attempts);
+        if (retryStart != 0) {
+            Timer.builder(METRIC_RETRY_TIME)
+                    .description("Time spent retrying card transaction after the first failure")
+                    .tag(TAG_OPERATION, operation)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - retryStart, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.zilch.retry;
+
+/**
+ * Unit of work which can be re-executed by {@link RetryingTransactionTemplate}
+ *
+ * @author Elena Medvedeva
+ */
+@FunctionalInterface
+public interface UnitOfWork<T> {
+    T execute() throws Throwable;
+}
@@ -0,0 +1,24 @@
+package com.zilch.service;
+
+/**
+ * Strategy used to protect card balance from concurrent updates.
+ * Configured by property application.card.concurrency.strategy
+ *
+ * @author Elena Medvedeva
+ */
+public enum CardConcurrencyStrategy {
+    /**
+     * Funds check and balance change are done by the database in one guarded UPDATE statement.
+     */
+    CONDITIONAL_UPDATE,
+    /**
+     * Funds are checked in memory and card is saved with version check.
+     * Concurrent update of the same card fails the version check and the whole transaction is retried.
+     */
+    OPTIMISTIC,
+    /**
+     * Card balance row is not updated: balance changes are appended to the card ledger and folded into the card balance
+     * by the background compaction. Funds are checked against the in-memory running total of the card, see CardLedgerService.
+     */
+    LEDGER
+}
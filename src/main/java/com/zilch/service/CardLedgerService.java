@@ -0,0 +1,19 @@
+package com.zilch.service;
+
+import com.zilch.entities.Card;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+
+/**
+ * Card ledger: balance changes are appended as ledger entries instead of updating the card balance row,
+ * and are folded into the card balance snapshot by the compaction.
+ * Used when application.card.concurrency.strategy=LEDGER
+ * @author Elena Medvedeva
+ */
+public interface CardLedgerService {
+    public boolean append(@NotNull Card card, @NotNull BigDecimal delta);
+    public BigDecimal getBalance(@NotNull Integer cardId);
+    public int compact(int batchSize);
+    public int evictIdle(long idleMs);
+}
@@ -0,0 +1,255 @@
+package com.zilch.service;
+
+import com.google.common.collect.Lists;
+import com.zilch.cache.CardCache;
+import com.zilch.entities.Card;
+import com.zilch.entities.CardBalance;
+import com.zilch.entities.CardLedgerEntry;
+import com.zilch.outbox.OutboxService;
+import com.zilch.repository.CardBalanceRepository;
+import com.zilch.repository.CardLedgerEntryRepository;
+import com.zilch.repository.CardRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.validation.annotation.Validated;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Card ledger. Balance of a card is the snapshot in card_balance plus the sum of the card's ledger entries.
+ * <p>Funds are checked against the in-memory running total of the card instead of the card balance row.
+ * Debits are taken from the running total when they are appended and given back if their transaction rolls back,
+ * credits are added after commit; a transaction can spend its own uncommitted credits.
+ * The running total is reloaded from the database when it is older than application.card.ledger.max-staleness-ms
+ * and no transaction of this instance is changing the card, so changes made by other instances are seen
+ * with bounded staleness. With one writer per card (card shards or group commit) the check is exact.</p>
+ * <p>The compaction folds entries into card_balance and deletes them: the balance snapshot moves,
+ * the card is evicted from the card cache and CardBalanceChanged is recorded in the outbox.</p>
+ * @author Elena Medvedeva
+ */
+@Validated
+@PropertySource("classpath:application.properties")
+@Service
+class CardLedgerServiceImpl implements CardLedgerService {
+
+    @Autowired
+    private CardLedgerEntryRepository cardLedgerEntryRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private CardBalanceRepository cardBalanceRepository;
+
+    @Autowired
+    private CardCache cardCache;
+
+    @Autowired
+    private OutboxService outboxService;
+
+    @Value("${application.card.ledger.max-staleness-ms:1000}")
+    private long maxStalenessMs;
+
+    private final Map<Integer, RunningTotal> totals = new ConcurrentHashMap<>();
+
+    /**
+     * Running total of a card on this instance
+     */
+    private static class RunningTotal {
+        //committed balance minus debits which are not completed yet
+        BigDecimal balance;
+        long loadedAt;
+        long lastUsed;
+        //transactions of this instance which appended entries of the card and are not completed yet
+        int inFlight;
+        boolean evicted;
+    }
+
+    /**
+     * Entries appended by the current transaction, running totals are adjusted when it is completed
+     */
+    private class LedgerTransaction extends TransactionSynchronizationAdapter {
+        final List<RunningTotal> totals = new ArrayList<>();
+        final List<BigDecimal> deltas = new ArrayList<>();
+        final Map<Integer, BigDecimal> credits = new HashMap<>();
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(CardLedgerServiceImpl.this);
+            for (int i = 0; i < totals.size(); i++) {
+                RunningTotal total = totals.get(i);
+                BigDecimal delta = deltas.get(i);
+                synchronized (total) {
+                    total.inFlight--;
+                    if (status == STATUS_UNKNOWN) {
+                        //reload when the card is not changed by anyone on this instance
+                        total.loadedAt = 0;
+                    } else if (status == STATUS_COMMITTED && delta.signum() > 0) {
+                        total.balance = total.balance.add(delta);
+                    } else if (status == STATUS_ROLLED_BACK && delta.signum() < 0) {
+                        total.balance = total.balance.subtract(delta);
+                    }
+                }
+            }
+        }
+    }
+
+    public long getMaxStalenessMs() {
+        return maxStalenessMs;
+    }
+
+    public void setMaxStalenessMs(long maxStalenessMs) {
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    /**
+     * Appends balance change of the card. Debit is appended only if the running total of the card
+     * together with uncommitted credits of the current transaction covers it.
+     * Entry is inserted on flush, with JDBC batching.
+     * @param card card, can be an uninitialized proxy
+     * @param delta signed amount, negative for debit
+     * @return true if the change is appended, false if there is not enough funds
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    @Override
+    public boolean append(@NotNull Card card, @NotNull BigDecimal delta) {
+        LedgerTransaction transaction = currentTransaction();
+        BigDecimal ownCredits = transaction.credits.getOrDefault(card.getId(), BigDecimal.ZERO);
+        RunningTotal total;
+        while (true) {
+            total = totals.computeIfAbsent(card.getId(), id -> new RunningTotal());
+            synchronized (total) {
+                if (total.evicted) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                if (total.balance == null || (total.inFlight == 0 && now - total.loadedAt > maxStalenessMs)) {
+                    BigDecimal persisted = cardLedgerEntryRepository.findBalanceByCardId(card.getId());
+                    total.balance = (persisted != null) ? persisted : BigDecimal.ZERO;
+                    total.loadedAt = now;
+                }
+                if (delta.signum() < 0) {
+                    if (total.balance.add(ownCredits).add(delta).signum() < 0) {
+                        return false;
+                    }
+                    total.balance = total.balance.add(delta);
+                }
+                total.inFlight++;
+                total.lastUsed = now;
+                break;
+            }
+        }
+        transaction.totals.add(total);
+        transaction.deltas.add(delta);
+        if (delta.signum() > 0) {
+            transaction.credits.put(card.getId(), ownCredits.add(delta));
+        }
+        cardLedgerEntryRepository.save(new CardLedgerEntry(card, delta));
+        return true;
+    }
+
+    /**
+     * Balance of the card as seen by the current transaction: credits appended by the current transaction
+     * are added to the running total, the database balance already includes its flushed entries.
+     * @param cardId card id
+     * @return running total of the card if it is fresh, otherwise balance read from the database
+     */
+    @Transactional(readOnly = true)
+    @Override
+    public BigDecimal getBalance(@NotNull Integer cardId) {
+        LedgerTransaction transaction = (LedgerTransaction) TransactionSynchronizationManager.getResource(this);
+        BigDecimal ownCredits = (transaction == null) ? BigDecimal.ZERO : transaction.credits.getOrDefault(cardId, BigDecimal.ZERO);
+        RunningTotal total = totals.get(cardId);
+        if (total != null) {
+            synchronized (total) {
+                if (total.balance != null && System.currentTimeMillis() - total.loadedAt <= maxStalenessMs) {
+                    return total.balance.add(ownCredits);
+                }
+            }
+        }
+        return cardLedgerEntryRepository.findBalanceByCardId(cardId);
+    }
+
+    /**
+     * Folds ledger entries of at most batchSize cards into card_balance and deletes them.
+     * Card balances are locked first (in order of card id), so two compactions never fold the same entry.
+     * Entries which are not committed yet are not seen and are folded by a later compaction.
+     * @param batchSize number of cards
+     * @return number of compacted cards
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public int compact(int batchSize) {
+        List<Integer> cardIds = cardLedgerEntryRepository.findCardIds(PageRequest.of(0, batchSize));
+        if (cardIds.isEmpty()) {
+            return 0;
+        }
+        List<Integer> locked = cardBalanceRepository.findByCardIdInForUpdate(cardIds).stream()
+                .map(CardBalance::getCardId).collect(Collectors.toList());
+        Map<Integer, List<CardLedgerEntry>> entries = cardLedgerEntryRepository.findByCardIdIn(locked).stream()
+                .collect(Collectors.groupingBy(entry -> entry.getCard().getId()));
+        List<Integer> compacted = new ArrayList<>(locked.size());
+        for (Integer cardId : locked) {
+            List<CardLedgerEntry> cardEntries = entries.get(cardId);
+            if (cardEntries == null) {
+                continue;
+            }
+            BigDecimal sum = cardEntries.stream().map(CardLedgerEntry::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add);
+            cardBalanceRepository.addToSnapshot(cardId, sum);
+            for (List<Long> ids : Lists.partition(cardEntries.stream().map(CardLedgerEntry::getId).collect(Collectors.toList()), 1000)) {
+                cardLedgerEntryRepository.deleteByIdIn(ids);
+            }
+            compacted.add(cardId);
+        }
+        //cards are read after the bulk updates, with the new snapshot
+        for (Card card : cardRepository.findAllById(compacted)) {
+            cardCache.invalidate(card);
+            outboxService.cardBalanceChanged(card);
+        }
+        return locked.size();
+    }
+
+    /**
+     * Forgets running totals of cards which were not changed for idleMs
+     * @param idleMs idle time
+     * @return number of forgotten running totals
+     */
+    @Override
+    public int evictIdle(long idleMs) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<Integer, RunningTotal> entry : totals.entrySet()) {
+            RunningTotal total = entry.getValue();
+            synchronized (total) {
+                if (total.inFlight == 0 && now - total.lastUsed > idleMs) {
+                    total.evicted = true;
+                    totals.remove(entry.getKey(), total);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private LedgerTransaction currentTransaction() {
+        LedgerTransaction transaction = (LedgerTransaction) TransactionSynchronizationManager.getResource(this);
+        if (transaction == null) {
+            transaction = new LedgerTransaction();
+            TransactionSynchronizationManager.bindResource(this, transaction);
+            TransactionSynchronizationManager.registerSynchronization(transaction);
+        }
+        return transaction;
+    }
+}
@@ -2,9 +2,13 @@ package com.zilch.service;
 
 import com.zilch.entities.Card;
 import com.zilch.exceptions.CardException;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.CardDto;
 
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.List;
 
 /**
@@ -12,10 +16,12 @@ import java.util.List;
  * @author Elena Medvedeva
  */
 public interface CardService {
-    public List<Card> findAll() throws CardException;
+    public void findAll(Integer after, Integer limit, CursorPageWriter<CardDto> writer) throws CardException, IOException;
     public Card findById(@NotNull Integer id) throws CardException;
+    public Card findByIdWithPurchases(@NotNull Integer id) throws CardException;
     public List<Card> findByUserId(@NotBlank String userId) throws CardException;
     public Card createCard(@NotBlank String userId, @NotBlank String currencyName) throws CardException;
     public Card updateCardAmount(@NotNull Card card, @NotBlank String amount, @NotNull Boolean isCredit) throws CardException;
+    public boolean debitIfEnoughFunds(@NotNull Card card, @NotNull BigDecimal amount);
 
 }
\ No newline at end of file
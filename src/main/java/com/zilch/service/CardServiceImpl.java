@@ -1,17 +1,27 @@
 package com.zilch.service;
 
+import com.zilch.cache.CardCache;
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.datasource.RoutingContext;
 import com.zilch.entities.Currency;
 import com.zilch.entities.Card;
+import com.zilch.entities.CardBalance;
 import com.zilch.exceptions.ErrorMessage;
 import com.zilch.exceptions.CardException;
-import com.zilch.repository.CurrencyRepository;
 import com.zilch.repository.TransactionRepository;
 import com.zilch.repository.CardRepository;
+import com.zilch.repository.CardBalanceRepository;
+import com.zilch.repository.PurchaseRepository;
 import com.zilch.helper.Helper;
+import com.zilch.outbox.OutboxService;
+import com.zilch.retry.RetryableTransaction;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.CardDto;
 import org.hibernate.ObjectNotFoundException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
@@ -21,10 +31,12 @@ import org.springframework.validation.annotation.Validated;
 import org.springframework.transaction.annotation.Transactional;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 /**
  * Service for managing cards
  * @author Elena Medvedeva
@@ -37,18 +49,36 @@ class CardServiceImpl implements CardService{
     @Autowired
     private CardRepository cardRepository;
 
+    @Autowired
+    private CardBalanceRepository cardBalanceRepository;
+
     @Autowired
     private TransactionRepository transactionRepository;
 
     @Autowired
-    private CurrencyRepository currencyRepository;
+    private PurchaseRepository purchaseRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private CardCache cardCache;
 
     @Autowired
     private Helper inputParametersValidator;
 
+    @Autowired
+    private OutboxService outboxService;
+
+    @Autowired
+    private CardLedgerService cardLedgerService;
+
     @Value("${db.updated_by}")
     private String updatedBy;
 
+    @Value("${application.card.concurrency.strategy:CONDITIONAL_UPDATE}")
+    private CardConcurrencyStrategy concurrencyStrategy;
+
     public String getUpdatedBy() {
         return updatedBy;
     }
@@ -57,25 +87,124 @@ class CardServiceImpl implements CardService{
         this.updatedBy = updatedBy;
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    public CardConcurrencyStrategy getConcurrencyStrategy() {
+        return concurrencyStrategy;
+    }
+
+    public void setConcurrencyStrategy(CardConcurrencyStrategy concurrencyStrategy) {
+        this.concurrencyStrategy = concurrencyStrategy;
+    }
+
+    /**
+     * Writes one page of cards ordered by id (keyset pagination).
+     * Cards are streamed from the database as CardDto projections, so they are never managed by persistence context.
+     * Currency of a card is taken from ReferenceDataCache.
+     * @param after id of the last card on the previous page, null for the first page
+     * @param limit page size, null for default page size
+     * @param writer writer of the page
+     * @throws CardException if limit is invalid
+     * @throws IOException if couldn't write the page
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
-    public List<Card> findAll() throws CardException {
-        return cardRepository.findAllByOrderByIdAsc();
+    public void findAll(Integer after, Integer limit, CursorPageWriter<CardDto> writer) throws CardException, IOException {
+        int pageLimit = inputParametersValidator.pageLimit(limit);
+        try (Stream<CardDto> cards = cardRepository.streamDtoByIdGreaterThan(after == null ? 0 : after, PageRequest.of(0, pageLimit + 1))) {
+            writer.write(cards.map(this::withCurrency).iterator(), pageLimit, CardDto::getId);
+        }
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    private CardDto withCurrency(CardDto card) {
+        card.setCurrency(referenceDataCache.findCurrencyById(card.getCurrencyId()));
+        return card;
+    }
+
+    /**
+     * Finds card by id. Card is read through CardCache,
+     * cached card is a detached copy without transactions and purchases.
+     * Requests pinned to the primary database by read-your-writes token skip the cache lookup:
+     * cache could be filled from the replica before it replayed the write.
+     * If application.card.concurrency.strategy is LEDGER, balance of the card is taken from the card ledger,
+     * the cache only keeps the balance snapshot.
+     * @param id card id
+     * @return card
+     * @throws CardException if there is no such card
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
     public Card findById(@NotNull Integer id) throws CardException {
+       Card cached = RoutingContext.isPinnedToPrimary() ? null : cardCache.getById(id);
+       if (cached != null) {
+           return withLedgerBalance(cached);
+       }
+       //stamp is taken before the read, so the card isn't cached if it is changed meanwhile
+       long stamp = cardCache.readStamp();
        Optional<Card> optionalCard =  cardRepository.findById(id);
        //validate
        inputParametersValidator.conditionIsTrue(optionalCard.isPresent(),String.format(ErrorMessage.NO_CARD_FOUND,id.toString()),HttpStatus.BAD_REQUEST.value());
-       return optionalCard.get();
+       cardCache.put(optionalCard.get(), stamp);
+       return withLedgerBalance(optionalCard.get());
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    /**
+     * Finds card with its purchases for card details.
+     * Purchases are fetched with their installments, so the card can be serialized after the transaction is finished
+     * and the connection is returned to the pool. Card transactions are not loaded.
+     * @param id card id
+     * @return card with purchases
+     * @throws CardException if there is no such card
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
+    @Override
+    public Card findByIdWithPurchases(@NotNull Integer id) throws CardException {
+        //card can come from the card cache, which doesn't keep purchases
+        Card card = findById(id);
+        card.setPurchases(purchaseRepository.findDistinctByCardOrderByIdAsc(card));
+        return card;
+    }
+
+    /**
+     * Finds cards of the user. Cards are read through CardCache and have the ledger balance, see findById.
+     * @param userId user id
+     * @return cards of the user
+     * @throws CardException
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
     public List<Card> findByUserId(@NotBlank String userId) throws CardException {
-        return cardRepository.findByUserId(userId);
+        List<Card> cached = RoutingContext.isPinnedToPrimary() ? null : cardCache.getByUserId(userId);
+        if (cached != null) {
+            return withLedgerBalance(cached);
+        }
+        long stamp = cardCache.readStamp();
+        List<Card> cards = cardRepository.findByUserId(userId);
+        cardCache.putByUserId(userId, cards, stamp);
+        return withLedgerBalance(cards);
+    }
+
+    private List<Card> withLedgerBalance(List<Card> cards) {
+        if (concurrencyStrategy != CardConcurrencyStrategy.LEDGER) {
+            return cards;
+        }
+        return cards.stream().map(this::withLedgerBalance).collect(Collectors.toList());
+    }
+
+    /**
+     * Card snapshot balance doesn't include ledger entries which are not compacted yet.
+     * @param card card
+     * @return the card itself, or if application.card.concurrency.strategy is LEDGER,
+     * a detached copy of the card with balance taken from CardLedgerService
+     */
+    private Card withLedgerBalance(Card card) {
+        if (concurrencyStrategy != CardConcurrencyStrategy.LEDGER) {
+            return card;
+        }
+        BigDecimal balance = cardLedgerService.getBalance(card.getId());
+        Card copy = new Card(card.getUserId(), card.getCurrency(), balance != null ? balance : card.getBalance(), card.getLastUpdatedBy());
+        copy.setId(card.getId());
+        copy.setLastUpdated(card.getLastUpdated());
+        copy.setVersion(card.getVersion());
+        return copy;
     }
 
     /**
@@ -89,10 +218,13 @@ class CardServiceImpl implements CardService{
     @Override
     public Card createCard(@NotBlank String userId, @NotBlank String currencyName) throws CardException{
         try {
-            Currency currency = currencyRepository.findByName(currencyName);
+            Currency currency = referenceDataCache.findCurrencyByName(currencyName);
             String error = String.format(ErrorMessage.NO_CURRENCY_PRESENT,currencyName);
             inputParametersValidator.conditionIsTrue(currency != null,error,HttpStatus.BAD_REQUEST.value());
-            return cardRepository.save(new Card(userId, currency, new BigDecimal(0), updatedBy));
+            Card card = cardRepository.save(new Card(userId, currency, new BigDecimal(0), updatedBy));
+            cardCache.invalidate(card);
+            outboxService.cardCreated(card);
+            return card;
         } catch (ObjectNotFoundException e){
             throw new CardException(String.format(ErrorMessage.NO_CURRENCY_PRESENT,currencyName),HttpStatus.BAD_REQUEST.value());
         }
@@ -104,34 +236,96 @@ class CardServiceImpl implements CardService{
      * If isCredit is set to true, takes absolute amount from  @param amount  and adds it to card balance.
      * If isCredit is set to false, takes absolute amount from  @param amount  and subtracts it from card balance.
      *
-     * Set isolation = Isolation.SERIALIZABLE in order to avoid concurrency issues (in case of deploying application to multiple hosts)
-     * This will slow down performance.
+     * Concurrent updates are handled according to application.card.concurrency.strategy:
+     * Balance is changed in card_balance, the card row itself is not updated.
+     * CONDITIONAL_UPDATE - funds check and balance change happen in one guarded SQL statement.
+     * UPDATE locks the card balance row and re-checks balance condition against the latest committed value,
+     * so concurrent debits are serialized by the database without aborts.
+     * OPTIMISTIC - funds are checked in memory and card balance is flushed with version check.
+     * If card was changed concurrently, ObjectOptimisticLockingFailureException is thrown
+     * and the whole transaction is re-executed by RetryingTransactionTemplate.
+     * LEDGER - card balance row is not updated, the change is appended to the card ledger (see CardLedgerService),
+     * card balance snapshot and CardBalanceChanged event are updated by the ledger compaction.
+     * Returned card is a copy with the ledger balance, which includes the change.
+     *
+     * Isolation.READ_COMMITTED is enough for all strategies.
+     * CardBalanceChanged event is recorded in the outbox in the same transaction.
      * @param card
      * @param amount
      * @param isCredit
      * @return updated card
      * @throws CardException if couldn't update card balance, e.g. not enough funds.
      */
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE, rollbackFor = CardException.class)
+    @RetryableTransaction
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED, rollbackFor = CardException.class)
     @Override
     public Card updateCardAmount(@NotNull Card card, @NotBlank String amount, @NotNull  Boolean isCredit) throws CardException{
         try {
             BigDecimal transactionAmount = (isCredit) ? new BigDecimal(amount).abs() : new BigDecimal(amount).abs().negate();
+            String error = String.format(ErrorMessage.NOT_ENOUGH_FUNDS,card.getId(),amount);
 
-            //check that there is enough funds on card balance for debit transaction
-            Boolean condition = (isCredit || (card.getBalance().compareTo(transactionAmount.abs()) >= 0) );
-            inputParametersValidator.conditionIsTrue(condition, String.format(ErrorMessage.NOT_ENOUGH_FUNDS,card.getId(),amount),HttpStatus.BAD_REQUEST.value());
-
-            //update card
-            card.setBalance(card.getBalance().add(transactionAmount));
-            card.setLastUpdatedBy(updatedBy);
-            card.setLastUpdated(new Date());
+            if (concurrencyStrategy == CardConcurrencyStrategy.LEDGER) {
+                inputParametersValidator.conditionIsTrue(cardLedgerService.append(card, transactionAmount), error, HttpStatus.BAD_REQUEST.value());
+                return withLedgerBalance(card);
+            }
 
-            return cardRepository.save(card);
+            Card updated;
+            if (concurrencyStrategy == CardConcurrencyStrategy.OPTIMISTIC) {
+                updated = updateCardAmountOptimistic(card, transactionAmount, error);
+            } else {
+                //update card only if there is enough funds on card balance for debit transaction
+                int count = cardBalanceRepository.addToBalance(card.getId(), transactionAmount);
+                inputParametersValidator.conditionIsTrue(count > 0, error,HttpStatus.BAD_REQUEST.value());
+                updated = cardRepository.refresh(card);
+            }
+            //cached card is stale now
+            cardCache.invalidate(updated);
+            outboxService.cardBalanceChanged(updated);
+            return updated;
 
         }catch (NumberFormatException e){
             String error = String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH,amount);
             throw new CardException(error, HttpStatus.BAD_REQUEST.value());
         }
     }
+
+    /**
+     * Debits card if there is enough funds, used by installment settlement.
+     * Unlike updateCardAmount, lack of funds is not an error: nothing is changed and false is returned,
+     * so the caller's transaction is not marked rollback-only and other cards of the batch are still debited.
+     * Balance is changed by the guarded update, or appended to the card ledger if application.card.concurrency.strategy is LEDGER.
+     * @param card card, can be an uninitialized proxy
+     * @param amount amount to debit, sign is ignored
+     * @return true if card was debited, false if there is not enough funds
+     */
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED)
+    @Override
+    public boolean debitIfEnoughFunds(@NotNull Card card, @NotNull BigDecimal amount) {
+        if (concurrencyStrategy == CardConcurrencyStrategy.LEDGER) {
+            return cardLedgerService.append(card, amount.abs().negate());
+        }
+        int count = cardBalanceRepository.addToBalance(card.getId(), amount.abs().negate());
+        if (count == 0) {
+            return false;
+        }
+        Card updated = cardRepository.refresh(card);
+        cardCache.invalidate(updated);
+        outboxService.cardBalanceChanged(updated);
+        return true;
+    }
+
+    private Card updateCardAmountOptimistic(Card card, BigDecimal transactionAmount, String error) throws CardException {
+        //card balance read in the current transaction, its version is checked when it is flushed
+        CardBalance current = cardBalanceRepository.findById(card.getId()).orElseThrow(() ->
+                new CardException(String.format(ErrorMessage.NO_CARD_FOUND, card.getId()), HttpStatus.BAD_REQUEST.value()));
+
+        //check that there is enough funds on card balance for debit transaction
+        BigDecimal balance = current.getBalance().add(transactionAmount);
+        inputParametersValidator.conditionIsTrue(balance.signum() >= 0, error, HttpStatus.BAD_REQUEST.value());
+
+        //update card balance, flush now, so version conflict is detected here and not on commit
+        current.setBalance(balance);
+        cardBalanceRepository.saveAndFlush(current);
+        return cardRepository.refresh(card);
+    }
 }
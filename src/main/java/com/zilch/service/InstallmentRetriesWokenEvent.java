@@ -0,0 +1,18 @@
+package com.zilch.service;
+
+/**
+ * Published when retries of the card's installments are moved to now, e.g. because the card was credited.
+ * Listeners should handle it after commit, when the woken retries are visible.
+ * @author Elena Medvedeva
+ */
+public class InstallmentRetriesWokenEvent {
+    private final Integer cardId;
+
+    public InstallmentRetriesWokenEvent(Integer cardId) {
+        this.cardId = cardId;
+    }
+
+    public Integer getCardId() {
+        return cardId;
+    }
+}
@@ -0,0 +1,25 @@
+package com.zilch.service;
+
+import com.zilch.entities.Card;
+import com.zilch.repository.TransactionRepository;
+
+import javax.validation.constraints.NotNull;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Settlement of scheduled purchase installments (transactions with submitted=false)
+ * and retries of installments which couldn't be settled on due date (dunning)
+ * @author Elena Medvedeva
+ */
+public interface InstallmentSettlementService {
+    public SettlementResult settleDueInstallments(@NotNull Date now, int batchSize, int shard, int shards);
+    public SettlementResult settleInstallments(@NotNull Collection<Integer> ids, int shard, int shards);
+    public long countDueInstallments(@NotNull Date now);
+    public List<TransactionRepository.DueInstallment> findDueBetween(@NotNull Date from, @NotNull Date to);
+    public SettlementResult retryDueInstallments(@NotNull Date now, int batchSize, int shard, int shards);
+    public SettlementResult retryCardInstallments(@NotNull Integer cardId, @NotNull Date now);
+    public long countDueRetries(@NotNull Date now);
+    public int wakeRetries(@NotNull Card card);
+}
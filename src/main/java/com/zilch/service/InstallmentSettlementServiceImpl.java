@@ -0,0 +1,241 @@
+package com.zilch.service;
+
+import com.zilch.entities.Card;
+import com.zilch.entities.InstallmentRetry;
+import com.zilch.entities.Transaction;
+import com.zilch.repository.InstallmentRetryRepository;
+import com.zilch.repository.TransactionRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.validation.annotation.Validated;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Service for settlement of scheduled purchase installments
+ * @author Elena Medvedeva
+ */
+@Validated
+@PropertySource("classpath:application.properties")
+@Service
+class InstallmentSettlementServiceImpl implements InstallmentSettlementService {
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private InstallmentRetryRepository installmentRetryRepository;
+
+    @Autowired
+    private CardService cardService;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${db.updated_by}")
+    private String updatedBy;
+
+    @Value("${application.settlement.retry.initial-delay-ms:3600000}")
+    private long retryInitialDelayMs;
+
+    @Value("${application.settlement.retry.multiplier:2}")
+    private double retryMultiplier;
+
+    @Value("${application.settlement.retry.max-delay-ms:86400000}")
+    private long retryMaxDelayMs;
+
+    /**
+     * Settles one batch of due installments in one transaction.
+     * Installments are locked with for update skip locked, so concurrent batches never take the same installment.
+     * Installments of the batch are grouped by card and every card is debited once for all its installments
+     * through CardService.debitIfEnoughFunds. If there is not enough funds for all of them,
+     * installments of the card are debited one by one in order of due date while funds last.
+     * Settled installments are marked as submitted by one update statement.
+     * Unsettled installments are moved to installment_retry, so they are not taken by later batches,
+     * see retryDueInstallments.
+     *
+     * Cards are debited in order of card id, so concurrent batches lock card balance rows in the same order and don't deadlock.
+     * Only installments of the cards of the shard are settled, so the batch can be executed on the shard (see CardShardExecutor).
+     * @param now installments due at or before now are settled
+     * @param batchSize maximum number of installments in the batch
+     * @param shard shard of the cards, 0 if shards is 1
+     * @param shards number of card shards, 1 for all cards
+     * @return number of locked and settled installments
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public SettlementResult settleDueInstallments(@NotNull Date now, int batchSize, int shard, int shards) {
+        return settle(transactionRepository.findDueForSettlement(now, shard, shards, PageRequest.of(0, batchSize)), now);
+    }
+
+    /**
+     * Settles the given installments in one transaction, same way as settleDueInstallments.
+     * Installments which are already settled, in retry or locked by another settlement are skipped.
+     * @param ids ids of the installments, e.g. fired by the timing wheel
+     * @param shard shard of the cards, 0 if shards is 1
+     * @param shards number of card shards, 1 for all cards
+     * @return number of locked and settled installments
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public SettlementResult settleInstallments(@NotNull Collection<Integer> ids, int shard, int shards) {
+        if (ids.isEmpty()) {
+            return new SettlementResult(0, 0);
+        }
+        return settle(transactionRepository.findForSettlementByIdIn(ids, shard, shards), new Date());
+    }
+
+    private SettlementResult settle(List<Transaction> due, Date now) {
+        if (due.isEmpty()) {
+            return new SettlementResult(0, 0);
+        }
+        Set<Integer> settled = debit(due);
+        List<Transaction> unsettled = due.stream().filter(t -> !settled.contains(t.getId())).collect(Collectors.toList());
+        if (!unsettled.isEmpty()) {
+            Date nextAttempt = nextAttempt(now, 1);
+            installmentRetryRepository.saveAll(unsettled.stream()
+                    .map(t -> new InstallmentRetry(t, 1, nextAttempt, updatedBy)).collect(Collectors.toList()));
+            transactionRepository.markInRetry(unsettled.stream().map(Transaction::getId).collect(Collectors.toList()));
+        }
+        if (!settled.isEmpty()) {
+            transactionRepository.markSubmitted(settled, new Date(), updatedBy);
+        }
+        return new SettlementResult(due.size(), settled.size());
+    }
+
+    /**
+     * Retries one batch of installments whose next attempt is due, in one transaction.
+     * Retries are locked with for update skip locked and debited the same way as due installments.
+     * Settled installments are marked as submitted and removed from installment_retry,
+     * for the others attempts counter is incremented and the next attempt is scheduled
+     * after application.settlement.retry.initial-delay-ms * multiplier^(attempts - 1), at most max-delay-ms.
+     * @param now retries with next attempt at or before now are retried
+     * @param batchSize maximum number of retries in the batch
+     * @param shard shard of the cards, 0 if shards is 1
+     * @param shards number of card shards, 1 for all cards
+     * @return number of locked and settled installments
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public SettlementResult retryDueInstallments(@NotNull Date now, int batchSize, int shard, int shards) {
+        return retry(installmentRetryRepository.findDueForRetry(now, shard, shards, PageRequest.of(0, batchSize)), now);
+    }
+
+    /**
+     * Retries installments of the card whose next attempt is due, same way as retryDueInstallments
+     * @param cardId card id
+     * @param now retries with next attempt at or before now are retried
+     * @return number of locked and settled installments
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public SettlementResult retryCardInstallments(@NotNull Integer cardId, @NotNull Date now) {
+        return retry(installmentRetryRepository.findDueForRetryByCardId(cardId, now), now);
+    }
+
+    private SettlementResult retry(List<InstallmentRetry> retries, Date now) {
+        if (retries.isEmpty()) {
+            return new SettlementResult(0, 0);
+        }
+        //installments of the batch are selected by one query, in order of the retries
+        Map<Integer, Transaction> installments = transactionRepository.findAllById(retries.stream()
+                .map(InstallmentRetry::getTransactionId).collect(Collectors.toList()))
+                .stream().collect(Collectors.toMap(Transaction::getId, t -> t));
+        Set<Integer> settled = debit(retries.stream().map(r -> installments.get(r.getTransactionId())).collect(Collectors.toList()));
+        for (InstallmentRetry retry : retries) {
+            if (!settled.contains(retry.getTransactionId())) {
+                retry.setAttempts(retry.getAttempts() + 1);
+                retry.setNextAttempt(nextAttempt(now, retry.getAttempts()));
+                retry.setLastUpdated(now);
+                retry.setLastUpdatedBy(updatedBy);
+            }
+        }
+        if (!settled.isEmpty()) {
+            installmentRetryRepository.deleteByTransactionIdIn(settled);
+            transactionRepository.markSubmitted(settled, new Date(), updatedBy);
+        } else {
+            installmentRetryRepository.flush();
+        }
+        return new SettlementResult(retries.size(), settled.size());
+    }
+
+    /**
+     * Debits cards for the installments, grouped by card in order of card id.
+     * Every card is debited once for all its installments, if there is not enough funds
+     * installments are debited one by one in the given order while funds last.
+     * @param installments locked installments
+     * @return ids of debited installments
+     */
+    private Set<Integer> debit(List<Transaction> installments) {
+        Map<Integer, List<Transaction>> installmentsByCard = new TreeMap<>();
+        for (Transaction installment : installments) {
+            installmentsByCard.computeIfAbsent(installment.getCard().getId(), id -> new ArrayList<>()).add(installment);
+        }
+
+        Set<Integer> settled = new LinkedHashSet<>(installments.size());
+        for (List<Transaction> cardInstallments : installmentsByCard.values()) {
+            Card card = cardInstallments.get(0).getCard();
+            BigDecimal total = cardInstallments.stream().map(t -> t.getAmount().abs()).reduce(BigDecimal.ZERO, BigDecimal::add);
+            if (cardService.debitIfEnoughFunds(card, total)) {
+                cardInstallments.forEach(t -> settled.add(t.getId()));
+                continue;
+            }
+            for (Transaction installment : cardInstallments) {
+                if (cardInstallments.size() == 1 || !cardService.debitIfEnoughFunds(card, installment.getAmount())) {
+                    break;
+                }
+                settled.add(installment.getId());
+            }
+        }
+        return settled;
+    }
+
+    private Date nextAttempt(Date now, int attempts) {
+        double delay = retryInitialDelayMs * Math.pow(retryMultiplier, attempts - 1);
+        return new Date(now.getTime() + (long) Math.min(delay, retryMaxDelayMs));
+    }
+
+    /**
+     * Moves the next attempt of the card's retries to now. If there are such retries,
+     * InstallmentRetriesWokenEvent is published, so they can be retried right after commit.
+     * @param card credited card
+     * @return number of woken retries
+     */
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED)
+    @Override
+    public int wakeRetries(@NotNull Card card) {
+        int count = installmentRetryRepository.wakeByCardId(card.getId(), new Date());
+        if (count > 0) {
+            eventPublisher.publishEvent(new InstallmentRetriesWokenEvent(card.getId()));
+        }
+        return count;
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public long countDueInstallments(@NotNull Date now) {
+        return transactionRepository.countBySubmittedFalseAndInRetryFalseAndDueDateLessThanEqual(now);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public long countDueRetries(@NotNull Date now) {
+        return installmentRetryRepository.countByNextAttemptLessThanEqual(now);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public List<TransactionRepository.DueInstallment> findDueBetween(@NotNull Date from, @NotNull Date to) {
+        return transactionRepository.findDueBetween(from, to);
+    }
+}
@@ -5,18 +5,20 @@ import com.zilch.entities.Currency;
 import com.zilch.entities.Purchase;
 import com.zilch.entities.Transaction;
 import com.zilch.exceptions.CardException;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.PurchaseDto;
 
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * Service for managing purchases
  * @author Elena Medvedeva
  */
 public interface PurchaseService {
-    public List<Purchase> findAll() throws CardException;
-    public List<Purchase> getPurchasesByCardId(@NotNull Integer cardId) throws CardException;
+    public void findAll(Integer after, Integer limit, CursorPageWriter<PurchaseDto> writer) throws CardException, IOException;
+    public void getPurchasesByCardId(@NotNull Integer cardId, Integer after, Integer limit, CursorPageWriter<PurchaseDto> writer) throws CardException, IOException;
     public Purchase findById(@NotNull Integer id) throws CardException;
     public Purchase createPurchase(@NotBlank String globalId,@NotBlank String shopId, @NotBlank  String currencyName, @NotBlank String cardId, @NotBlank String amount, String description) throws CardException;
 }
@@ -1,17 +1,24 @@
 package com.zilch.service;
 
+import com.zilch.cache.ReferenceDataCache;
 import com.zilch.entities.*;
 import com.zilch.entities.Currency;
 import com.zilch.exceptions.CardException;
 import com.zilch.exceptions.ErrorMessage;
 import com.zilch.helper.Helper;
+import com.zilch.outbox.OutboxService;
 import com.zilch.repository.*;
+import com.zilch.retry.RetryableTransaction;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.PurchaseDto;
+import com.zilch.view.dto.TransactionDto;
 import org.hibernate.ObjectNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
@@ -21,8 +28,10 @@ import org.springframework.validation.annotation.Validated;
 
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.stream.Collectors;
 
 import static com.zilch.exceptions.ErrorMessage.NUMBER_FORMAT_MISMATCH;
 
@@ -39,12 +48,6 @@ public class PurchaseServiceImpl implements PurchaseService {
     @Autowired
     private CardService cardService;
 
-    @Autowired
-    private TransactionService transactionService;
-
-    @Autowired
-    private CardRepository cardRepository;
-
     @Autowired
     private PurchaseRepository purchaseRepository;
 
@@ -52,13 +55,13 @@ public class PurchaseServiceImpl implements PurchaseService {
     private TransactionRepository transactionRepository;
 
     @Autowired
-    private CurrencyRepository currencyRepository;
+    private ReferenceDataCache referenceDataCache;
 
     @Autowired
     private Helper helper;
 
     @Autowired
-    private TransactionTypeRepository transactionTypeRepository;
+    private OutboxService outboxService;
 
     public static int TRANSACTIONS_IN_PURCHASE_COUNT = 4;
 
@@ -76,13 +79,23 @@ public class PurchaseServiceImpl implements PurchaseService {
         this.updatedBy = updatedBy;
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    /**
+     * Writes one page of purchases ordered by id (keyset pagination).
+     * Purchases are read as PurchaseDto projections, see writePurchases.
+     * @param after id of the last purchase on the previous page, null for the first page
+     * @param limit page size, null for default page size
+     * @param writer writer of the page
+     * @throws CardException if limit is invalid
+     * @throws IOException if couldn't write the page
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
-    public List<Purchase> findAll() throws CardException {
-        return purchaseRepository.findAllByOrderByIdAsc();
+    public void findAll(Integer after, Integer limit, CursorPageWriter<PurchaseDto> writer) throws CardException, IOException {
+        int pageLimit = helper.pageLimit(limit);
+        writePurchases(purchaseRepository.findDtoByIdGreaterThan(after == null ? 0 : after, PageRequest.of(0, pageLimit + 1)), pageLimit, writer);
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
     public Purchase findById(@NotNull Integer id) throws CardException {
         Optional<Purchase> optionalPurchase =  purchaseRepository.findById(id);
@@ -91,42 +104,79 @@ public class PurchaseServiceImpl implements PurchaseService {
         return optionalPurchase.get();
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    /**
+     * Writes one page of card purchases ordered by id (keyset pagination).
+     * Purchases are read as PurchaseDto projections, see writePurchases.
+     * @param cardId card id
+     * @param after id of the last purchase on the previous page, null for the first page
+     * @param limit page size, null for default page size
+     * @param writer writer of the page
+     * @throws CardException if there is no such card or limit is invalid
+     * @throws IOException if couldn't write the page
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
-    public List<Purchase> getPurchasesByCardId(@NotNull Integer cardId) throws CardException {
+    public void getPurchasesByCardId(@NotNull Integer cardId, Integer after, Integer limit, CursorPageWriter<PurchaseDto> writer) throws CardException, IOException {
+        int pageLimit = helper.pageLimit(limit);
         Card card = cardService.findById(cardId);
-        if(card != null) {
-            return purchaseRepository.findByCard(card);
-        } else {
-            throw new CardException(String.format(ErrorMessage.NO_CARD_FOUND,cardId.toString()), HttpStatus.BAD_REQUEST.value());
+        writePurchases(purchaseRepository.findDtoByCardAndIdGreaterThan(card, after == null ? 0 : after, PageRequest.of(0, pageLimit + 1)), pageLimit, writer);
+    }
+
+    /**
+     * Adds installments and reference data to the purchases and writes them.
+     * Installments of all purchases of the page are selected by one query, that's why the page is read as a list and not streamed.
+     * @param purchases purchases ordered by id, at most pageLimit + 1
+     * @param pageLimit page size
+     * @param writer writer of the page
+     * @throws IOException if couldn't write the page
+     */
+    private void writePurchases(List<PurchaseDto> purchases, int pageLimit, CursorPageWriter<PurchaseDto> writer) throws IOException {
+        Map<Integer, List<TransactionDto>> installments = purchases.isEmpty() ? Collections.emptyMap() :
+                transactionRepository.findDtoByPurchaseIdIn(purchases.stream().map(PurchaseDto::getId).collect(Collectors.toList()))
+                        .stream().collect(Collectors.groupingBy(TransactionDto::getPurchaseId));
+        for (PurchaseDto purchase : purchases) {
+            purchase.setCurrency(referenceDataCache.findCurrencyById(purchase.getCurrencyId()));
+            purchase.getCard().setCurrency(referenceDataCache.findCurrencyById(purchase.getCard().getCurrencyId()));
+            List<TransactionDto> transactions = installments.getOrDefault(purchase.getId(), new ArrayList<>());
+            for (TransactionDto transaction : transactions) {
+                transaction.setType(referenceDataCache.findTransactionTypeById(transaction.getTypeId()));
+                transaction.setCurrency(referenceDataCache.findCurrencyById(transaction.getCurrencyId()));
+            }
+            purchase.setTransactions(transactions);
         }
+        writer.write(purchases.iterator(), pageLimit, PurchaseDto::getId);
     }
 
-    private List<Transaction>  createFourTransactions(Currency currency, Card card, String globalId, String amount, String description,Purchase purchase, int transactionsInPurchase ) throws CardException {
-        try{
-            List<Transaction> transactions = new ArrayList<>();
-            Date date = new Date();
-            BigDecimal transactionAmount = new BigDecimal(amount).divide(new BigDecimal(transactionsInPurchase),BigDecimal.ROUND_HALF_UP);
-            TransactionType debitTransactionType = transactionTypeRepository.getOne(transactionTypeDebit);
-
-            //create first transaction which is currently withdrawing the money
-            Transaction transaction  = transactionService.createTransaction(globalId + "_0", currency, card, debitTransactionType,transactionAmount.toString(),purchase.getId().toString(), true,date,description );
-            transactions.add(transaction);
-            for(int i = 1; i < transactionsInPurchase ; i++){
+    /**
+     * Builds installment transactions of the purchase in memory, nothing is written to the database.
+     * The first installment is due now and is submitted, the others are due every week after it.
+     * @param purchase purchase the installments belong to
+     * @param debitTransactionType debit transaction type
+     * @param transactionsInPurchase number of installments
+     * @return installment transactions, not saved
+     */
+    private List<Transaction> installmentSchedule(Purchase purchase, TransactionType debitTransactionType, int transactionsInPurchase) {
+        List<Transaction> transactions = new ArrayList<>(transactionsInPurchase);
+        BigDecimal transactionAmount = installmentAmount(purchase.getAmount(), transactionsInPurchase);
+        Date date = new Date();
+        for(int i = 0; i < transactionsInPurchase ; i++){
+            if(i > 0) {
                 date = helper.dateInAWeek(date);
-                transaction  = transactionService.createTransaction(globalId + "_" + i, currency, card, debitTransactionType,transactionAmount.toString(),purchase.getId().toString(), false,date,description );
-                transactions.add(transaction);
             }
-            return  transactions;
-
-        } catch(NumberFormatException e){
-            String error = String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH,amount);
-            throw new CardException(error, HttpStatus.BAD_REQUEST.value());
+            transactions.add(new Transaction(purchase.getGlobalId() + "_" + i, debitTransactionType, transactionAmount,
+                    purchase.getCard(), purchase, purchase.getCurrency(), purchase.getDescription(), i == 0, date, updatedBy));
         }
+        return transactions;
+    }
+
+    private BigDecimal installmentAmount(BigDecimal amount, int transactionsInPurchase) {
+        return amount.divide(new BigDecimal(transactionsInPurchase),BigDecimal.ROUND_HALF_UP);
     }
 
     /**
      * Creates purchase for Zilch Card.
+     * Isolation.READ_COMMITTED is used, card balance is protected by the guarded update in CardService.updateCardAmount
+     * PurchaseCreated and TransactionCreated events of the installments are recorded in the outbox in the same transaction.
      * @param globalId unique global id
      * @param shopId identifier of a shop
      * @param currencyName valid currency name
@@ -136,7 +186,8 @@ public class PurchaseServiceImpl implements PurchaseService {
      * @return created purchase
      * @throws CardException
      */
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE, rollbackFor = CardException.class)
+    @RetryableTransaction
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED, rollbackFor = CardException.class)
     @Override
     public Purchase createPurchase(@NotBlank String globalId, @NotBlank String shopId, @NotBlank String currencyName, @NotBlank String cardId, @NotBlank String amount, String description) throws CardException {
         try {
@@ -144,7 +195,7 @@ public class PurchaseServiceImpl implements PurchaseService {
             //Check for unique purchase globalId happens due to entity constrains on Purchase.globalId (unique=true)
 
             //Get currency reference
-            Currency currency = currencyRepository.findByName(currencyName);
+            Currency currency = referenceDataCache.findCurrencyByName(currencyName);
             String error = String.format(ErrorMessage.NO_CURRENCY_PRESENT, currencyName);
             helper.conditionIsTrue(currency != null,error,HttpStatus.BAD_REQUEST.value());
 
@@ -157,12 +208,19 @@ public class PurchaseServiceImpl implements PurchaseService {
             error = String.format(ErrorMessage.PURCHASE_CURRENCY_NOT_EQ_CARD_CURRENCY,currency.getName(), card.getCurrency().getName());
             helper.conditionIsTrue(card.getCurrency().getId().equals(currency.getId()),error,HttpStatus.BAD_REQUEST.value());
 
-            Purchase purchase =  purchaseRepository.save(new Purchase(globalId,shopId,currency, new BigDecimal(amount),card, description, updatedBy));
+            BigDecimal purchaseAmount = new BigDecimal(amount);
+            TransactionType debitTransactionType = referenceDataCache.findTransactionTypeById(transactionTypeDebit);
+
+            //debit the first installment, checks if there is enough funds. If not, throws CardException
+            card = cardService.updateCardAmount(card, installmentAmount(purchaseAmount, TRANSACTIONS_IN_PURCHASE_COUNT).toString(), false);
 
-            //created four debit transactions and save them
-            List<Transaction> transactions = createFourTransactions(currency, card, globalId, amount, description, purchase, TRANSACTIONS_IN_PURCHASE_COUNT );
+            //purchase and all installments are inserted on flush, installments go in one JDBC batch
+            Purchase purchase = purchaseRepository.save(new Purchase(globalId,shopId,currency, purchaseAmount,card, description, updatedBy));
+            List<Transaction> transactions = transactionRepository.saveAll(installmentSchedule(purchase, debitTransactionType, TRANSACTIONS_IN_PURCHASE_COUNT));
             purchase.setTransactions(transactions);
 
+            outboxService.purchaseCreated(purchase);
+            transactions.forEach(outboxService::transactionCreated);
             return purchase;
         } catch(NumberFormatException e){
             throw new CardException(String.format(NUMBER_FORMAT_MISMATCH,amount),HttpStatus.BAD_REQUEST.value());
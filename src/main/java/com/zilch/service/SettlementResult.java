@@ -0,0 +1,36 @@
+package com.zilch.service;
+
+/**
+ * Result of settlement of one batch of installments
+ * @author Elena Medvedeva
+ */
+public final class SettlementResult {
+    private final int locked;
+    private final int settled;
+
+    public SettlementResult(int locked, int settled) {
+        this.locked = locked;
+        this.settled = settled;
+    }
+
+    /**
+     * @return number of due installments taken by the batch
+     */
+    public int getLocked() {
+        return locked;
+    }
+
+    /**
+     * @return number of installments debited from the cards and marked as submitted
+     */
+    public int getSettled() {
+        return settled;
+    }
+
+    /**
+     * @return number of installments left unsettled because there was not enough funds
+     */
+    public int getUnsettled() {
+        return locked - settled;
+    }
+}
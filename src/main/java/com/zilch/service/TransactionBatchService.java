@@ -0,0 +1,16 @@
+package com.zilch.service;
+
+import com.zilch.exceptions.CardException;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.model.TransactionModel;
+
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+/**
+ * Creation of card transactions in batches (bulk feeds)
+ * @author Elena Medvedeva
+ */
+public interface TransactionBatchService {
+    public List<TransactionBatchResult> createTransactions(@NotNull List<TransactionModel> transactions) throws CardException;
+}
@@ -0,0 +1,295 @@
+package com.zilch.service;
+
+import com.zilch.cache.CardCache;
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.Card;
+import com.zilch.entities.CardBalance;
+import com.zilch.entities.Currency;
+import com.zilch.entities.Transaction;
+import com.zilch.entities.TransactionType;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.helper.Helper;
+import com.zilch.outbox.OutboxService;
+import com.zilch.repository.CardBalanceRepository;
+import com.zilch.repository.CardRepository;
+import com.zilch.repository.TransactionRepository;
+import com.zilch.retry.RetryableTransaction;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.dto.TransactionBatchResult.Status;
+import com.zilch.view.model.TransactionModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.validation.annotation.Validated;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Service for creating card transactions in batches
+ * @author Elena Medvedeva
+ */
+@Validated
+@PropertySource("classpath:application.properties")
+@Service
+class TransactionBatchServiceImpl implements TransactionBatchService {
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private CardBalanceRepository cardBalanceRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private CardCache cardCache;
+
+    @Autowired
+    private OutboxService outboxService;
+
+    @Autowired
+    private InstallmentSettlementService installmentSettlementService;
+
+    @Autowired
+    private CardLedgerService cardLedgerService;
+
+    @Autowired
+    private Helper inputParametersValidator;
+
+    @Autowired
+    private Validator validator;
+
+    @Value("${db.updated_by}")
+    private String updatedBy;
+
+    @Value("${application.transaction.type.credit}")
+    private String transactionTypeCredit;
+
+    @Value("${application.transaction.batch.max-size:5000}")
+    private int maxBatchSize;
+
+    @Value("${application.card.concurrency.strategy:CONDITIONAL_UPDATE}")
+    private CardConcurrencyStrategy concurrencyStrategy;
+
+    public CardConcurrencyStrategy getConcurrencyStrategy() {
+        return concurrencyStrategy;
+    }
+
+    public void setConcurrencyStrategy(CardConcurrencyStrategy concurrencyStrategy) {
+        this.concurrencyStrategy = concurrencyStrategy;
+    }
+
+    /**
+     * Valid item of the batch with resolved reference data
+     */
+    private static class Item {
+        final int index;
+        final TransactionModel model;
+        final Currency currency;
+        final TransactionType type;
+        final BigDecimal delta;
+
+        Item(int index, TransactionModel model, Currency currency, TransactionType type, BigDecimal delta) {
+            this.index = index;
+            this.model = model;
+            this.currency = currency;
+            this.type = type;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Creates card transactions of the batch in one database transaction.
+     * Every item gets its own result (CREATED, DUPLICATE, INSUFFICIENT_FUNDS, INVALID), so a bad item doesn't fail the batch.
+     * <p>The number of statements doesn't depend on the number of items:
+     * globalIds are checked by one select, card balances of the batch are locked by one select ... for update in order of card id
+     * and the cards are read by one more select, items of every card are applied in the batch order to its balance in memory
+     * (a debit which would make the balance negative is rejected), and each card balance is updated once with the net effect.
+     * Card balance updates, transactions and outbox events are written with JDBC batching.</p>
+     * <p>With application.card.concurrency.strategy=LEDGER cards are not locked and not updated:
+     * every item is appended to the card ledger, which checks funds of debits (see CardLedgerService).</p>
+     * Credits wake retries of the card's installments, like single credit transactions do.
+     * Isolation.READ_COMMITTED is used, the card balance rows are locked until commit.
+     * <p>A transaction with the same globalId committed concurrently, after the globalIds were checked,
+     * violates the unique constraint on flush. The batch is then re-executed in a new transaction,
+     * where the check finds that globalId and only its item becomes DUPLICATE.</p>
+     * @param transactions items of the batch
+     * @return results in the order of the items
+     * @throws CardException if the batch is empty or larger than application.transaction.batch.max-size
+     */
+    @RetryableTransaction(retryOnDuplicateKey = true)
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED, rollbackFor = CardException.class)
+    @Override
+    public List<TransactionBatchResult> createTransactions(@NotNull List<TransactionModel> transactions) throws CardException {
+        inputParametersValidator.conditionIsTrue(!transactions.isEmpty() && transactions.size() <= maxBatchSize,
+                String.format(ErrorMessage.INVALID_BATCH_SIZE, transactions.size(), maxBatchSize), HttpStatus.BAD_REQUEST.value());
+        TransactionBatchResult[] results = new TransactionBatchResult[transactions.size()];
+
+        List<Item> items = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            Item item = resolve(i, transactions.get(i), results);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        items = withoutDuplicates(items, results);
+
+        boolean ledger = concurrencyStrategy == CardConcurrencyStrategy.LEDGER;
+        Set<Integer> cardIds = items.stream().map(item -> Integer.valueOf(item.model.getcardId())).collect(Collectors.toSet());
+        Map<Integer, CardBalance> balances = (ledger || items.isEmpty()) ? Collections.emptyMap() :
+                cardBalanceRepository.findByCardIdInForUpdate(cardIds).stream().collect(Collectors.toMap(CardBalance::getCardId, balance -> balance));
+        Map<Integer, Card> cards = items.isEmpty() ? Collections.emptyMap() :
+                cardRepository.findAllById(cardIds).stream().collect(Collectors.toMap(Card::getId, card -> card));
+        Map<Card, List<Item>> itemsByCard = new LinkedHashMap<>();
+        for (Item item : items) {
+            Card card = cards.get(Integer.valueOf(item.model.getcardId()));
+            if (card == null) {
+                results[item.index] = invalid(item.index, item.model, String.format(ErrorMessage.NO_CARD_FOUND, item.model.getcardId()));
+            } else if (!card.getCurrency().getId().equals(item.currency.getId())) {
+                results[item.index] = invalid(item.index, item.model,
+                        String.format(ErrorMessage.TRANSACTION_CURRENCY_NOT_EQ_CARD_CURRENCY, item.currency.getName(), card.getCurrency().getName()));
+            } else {
+                itemsByCard.computeIfAbsent(card, c -> new ArrayList<>()).add(item);
+            }
+        }
+
+        Date now = new Date();
+        List<Item> created = new ArrayList<>(items.size());
+        List<Transaction> rows = new ArrayList<>(items.size());
+        Set<Card> changed = new LinkedHashSet<>();
+        Set<Card> credited = new LinkedHashSet<>();
+        for (Map.Entry<Card, List<Item>> entry : itemsByCard.entrySet()) {
+            Card card = entry.getKey();
+            //the locked card balance is the actual one, the card could be read earlier in the same persistence context
+            BigDecimal initial = ledger ? card.getBalance() : balances.get(card.getId()).getBalance();
+            BigDecimal balance = initial;
+            for (Item item : entry.getValue()) {
+                BigDecimal next = balance.add(item.delta);
+                if (ledger ? !cardLedgerService.append(card, item.delta) : next.signum() < 0) {
+                    results[item.index] = new TransactionBatchResult(item.index, item.model.getGlobalId(), Status.INSUFFICIENT_FUNDS, null,
+                            String.format(ErrorMessage.NOT_ENOUGH_FUNDS, card.getId(), item.model.getAmount()));
+                    continue;
+                }
+                balance = next;
+                if (item.delta.signum() > 0) {
+                    credited.add(card);
+                }
+                created.add(item);
+                rows.add(new Transaction(item.model.getGlobalId(), item.type, new BigDecimal(item.model.getAmount()), card, null,
+                        item.currency, item.model.getDescription(), true, now, updatedBy));
+            }
+            if (!ledger && balance.compareTo(initial) != 0) {
+                //card balance row is locked, one update with the net effect of all its items
+                balances.get(card.getId()).setBalance(balance);
+                changed.add(card);
+            }
+        }
+
+        rows = transactionRepository.saveAll(rows);
+        //card balance updates and inserts go to the database in JDBC batches
+        transactionRepository.flush();
+        for (int i = 0; i < rows.size(); i++) {
+            Item item = created.get(i);
+            results[item.index] = new TransactionBatchResult(item.index, item.model.getGlobalId(), Status.CREATED, rows.get(i).getId(), null);
+            results[item.index].setTransaction(rows.get(i));
+            outboxService.transactionCreated(rows.get(i));
+        }
+        for (Card card : changed) {
+            //card maps card_balance read-only, take the flushed balance and version
+            CardBalance balance = balances.get(card.getId());
+            card.setBalance(balance.getBalance());
+            card.setVersion(balance.getVersion());
+            cardCache.invalidate(card);
+            outboxService.cardBalanceChanged(card);
+        }
+        for (Card card : credited) {
+            installmentSettlementService.wakeRetries(card);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Validates the item and resolves its currency and transaction type from ReferenceDataCache
+     * @return item or null if it's invalid, then the result is set
+     */
+    private Item resolve(int index, TransactionModel model, TransactionBatchResult[] results) {
+        if (model == null) {
+            results[index] = invalid(index, new TransactionModel(), String.format(ErrorMessage.NO_MANDATORY_FIELD, "globalId"));
+            return null;
+        }
+        Set<ConstraintViolation<TransactionModel>> violations = validator.validate(model);
+        if (!violations.isEmpty()) {
+            results[index] = invalid(index, model, violations.iterator().next().getMessage());
+            return null;
+        }
+        Currency currency = referenceDataCache.findCurrencyByName(model.getCurrency());
+        if (currency == null) {
+            results[index] = invalid(index, model, String.format(ErrorMessage.NO_CURRENCY_PRESENT, model.getCurrency()));
+            return null;
+        }
+        TransactionType type = referenceDataCache.findTransactionTypeById(model.getTransactionTypeId());
+        if (type == null) {
+            results[index] = invalid(index, model, String.format(ErrorMessage.NO_TRANSACTION_TYPE_PRESENT, model.getTransactionTypeId()));
+            return null;
+        }
+        try {
+            Integer.valueOf(model.getcardId());
+        } catch (NumberFormatException e) {
+            results[index] = invalid(index, model, String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, model.getcardId()));
+            return null;
+        }
+        try {
+            BigDecimal amount = new BigDecimal(model.getAmount()).abs();
+            return new Item(index, model, currency, type, type.getId().equalsIgnoreCase(transactionTypeCredit) ? amount : amount.negate());
+        } catch (NumberFormatException e) {
+            results[index] = invalid(index, model, String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, model.getAmount()));
+            return null;
+        }
+    }
+
+    /**
+     * Removes items whose globalId is already used by a transaction (one select for all items)
+     * or by a previous item of the batch, sets DUPLICATE result for them
+     */
+    private List<Item> withoutDuplicates(List<Item> items, TransactionBatchResult[] results) {
+        if (items.isEmpty()) {
+            return items;
+        }
+        Set<String> used = new HashSet<>(transactionRepository.findGlobalIdsByGlobalIdIn(
+                items.stream().map(item -> item.model.getGlobalId()).collect(Collectors.toSet())));
+        Set<String> seen = new HashSet<>();
+        List<Item> unique = new ArrayList<>(items.size());
+        for (Item item : items) {
+            String globalId = item.model.getGlobalId();
+            if (used.contains(globalId)) {
+                results[item.index] = new TransactionBatchResult(item.index, globalId, Status.DUPLICATE, null,
+                        String.format(ErrorMessage.TRANSACTION_WITH_GLOBAL_ID_PRESENT, globalId));
+            } else if (!seen.add(globalId)) {
+                results[item.index] = new TransactionBatchResult(item.index, globalId, Status.DUPLICATE, null,
+                        String.format(ErrorMessage.DUPLICATE_GLOBAL_ID_IN_BATCH, globalId));
+            } else {
+                unique.add(item);
+            }
+        }
+        return unique;
+    }
+
+    private TransactionBatchResult invalid(int index, TransactionModel model, String error) {
+        return new TransactionBatchResult(index, model.getGlobalId(), Status.INVALID, null, error);
+    }
+}
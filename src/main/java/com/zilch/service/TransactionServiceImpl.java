@@ -1,18 +1,22 @@
 package com.zilch.service;
 
+import com.zilch.cache.ReferenceDataCache;
 import com.zilch.entities.*;
 import com.zilch.exceptions.ErrorMessage;
 import com.zilch.exceptions.CardException;
-import com.zilch.repository.CurrencyRepository;
 import com.zilch.repository.PurchaseRepository;
 import com.zilch.repository.TransactionRepository;
-import com.zilch.repository.TransactionTypeRepository;
 import com.zilch.helper.Helper;
+import com.zilch.outbox.OutboxService;
+import com.zilch.retry.RetryableTransaction;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.TransactionDto;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
@@ -23,10 +27,11 @@ import org.springframework.validation.annotation.Validated;
 import org.springframework.transaction.annotation.Transactional;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.Date;
-import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static com.zilch.exceptions.ErrorMessage.NUMBER_FORMAT_MISMATCH;
 
@@ -43,16 +48,19 @@ public class TransactionServiceImpl implements TransactionService {
     private CardService cardService;
 
     @Autowired
-    private CurrencyRepository currencyRepository;
+    private ReferenceDataCache referenceDataCache;
 
     @Autowired
     private PurchaseRepository purchaseRepository;
 
     @Autowired
-    private TransactionTypeRepository transactionTypeRepository;
+    private Helper inputParametersValidator;
 
     @Autowired
-    private Helper inputParametersValidator;
+    private OutboxService outboxService;
+
+    @Autowired
+    private InstallmentSettlementService installmentSettlementService;
 
 
     @Value("${db.updated_by}")
@@ -77,16 +85,35 @@ public class TransactionServiceImpl implements TransactionService {
         this.transactionTypeCredit = transactionTypeCredit;
     }
 
-    @Transactional(rollbackFor = CardException.class)
+    /**
+     * Writes one page of card transactions ordered by id (keyset pagination).
+     * Transactions are streamed from the database as TransactionDto projections with their purchases,
+     * so they are never managed by persistence context. Types and currencies are taken from ReferenceDataCache.
+     * @param cardId card id
+     * @param after id of the last transaction on the previous page, null for the first page
+     * @param limit page size, null for default page size
+     * @param writer writer of the page
+     * @throws CardException if there is no such card or limit is invalid
+     * @throws IOException if couldn't write the page
+     */
+    @Transactional(readOnly = true, rollbackFor = CardException.class)
     @Override
-    public List<Transaction> getTransactionsByCardId(@NotNull Integer cardId) throws CardException {
+    public void getTransactionsByCardId(@NotNull Integer cardId, Integer after, Integer limit, CursorPageWriter<TransactionDto> writer) throws CardException, IOException {
+        int pageLimit = inputParametersValidator.pageLimit(limit);
         Card card = cardService.findById(cardId);
-        if(card != null) {
-            return transactionRepository.findByCard(card);
-        } else {
-            throw new CardException(String.format(ErrorMessage.NO_CARD_FOUND,cardId.toString()), HttpStatus.BAD_REQUEST.value());
+        try (Stream<TransactionDto> transactions = transactionRepository.streamDtoByCardAndIdGreaterThan(card, after == null ? 0 : after, PageRequest.of(0, pageLimit + 1))) {
+            writer.write(transactions.map(this::withReferenceData).iterator(), pageLimit, TransactionDto::getId);
         }
     }
+
+    private TransactionDto withReferenceData(TransactionDto transaction) {
+        transaction.setType(referenceDataCache.findTransactionTypeById(transaction.getTypeId()));
+        transaction.setCurrency(referenceDataCache.findCurrencyById(transaction.getCurrencyId()));
+        if (transaction.getPurchase() != null) {
+            transaction.getPurchase().setCurrency(referenceDataCache.findCurrencyById(transaction.getPurchase().getCurrencyId()));
+        }
+        return transaction;
+    }
     /**
      * Creates transaction for Purchase and/or Card.
      * If there is not enough funds on card balance, throws CardException
@@ -95,10 +122,9 @@ public class TransactionServiceImpl implements TransactionService {
      * Valid reference to transaction type, currency, card should be provided.
      * Global id should be unique.
      * Transaction should have the same currency as card.
-     * No additional SQL query is used to select currency by Id and transaction type by Id
-     * because JPARepository.getOne is used, which returns only reference for transaction object.
+     * Currency and transaction type are taken from ReferenceDataCache, no SQL query is used to select them.
      *
-     * Set isolation = Isolation.SERIALIZABLE in order to avoid concurrency issues (in case of deploying application to multiple hosts)
+     * Isolation.READ_COMMITTED is used, card balance is protected by the guarded update in CardService.updateCardAmount
      *
      * @param globalId unique global id
      * @param currencyName valid currency name
@@ -109,22 +135,30 @@ public class TransactionServiceImpl implements TransactionService {
      * @return created transaction
      * @throws CardException if couldn't create transaction
      */
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE, rollbackFor = CardException.class)
+    @RetryableTransaction
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED, rollbackFor = CardException.class)
     @Override
     public Transaction createTransaction(@NotBlank String globalId, @NotBlank  String currencyName, @NotBlank String cardId, @NotBlank String transactionTypeId, @NotBlank String amount, String description) throws CardException {
 
         //Check for unique transaction globalId happens due to entity constrains on Transaction.globalId (unique=true)
 
         //Get currency reference
-        Currency currency = currencyRepository.findByName(currencyName);
+        Currency currency = referenceDataCache.findCurrencyByName(currencyName);
         String error = String.format(ErrorMessage.NO_CURRENCY_PRESENT, currencyName);
         inputParametersValidator.conditionIsTrue(currency != null,error,HttpStatus.BAD_REQUEST.value());
 
         //Get transactionType reference
-        TransactionType transactionType = transactionTypeRepository.getOne(transactionTypeId);
+        TransactionType transactionType = referenceDataCache.findTransactionTypeById(transactionTypeId);
+        error = String.format(ErrorMessage.NO_TRANSACTION_TYPE_PRESENT, transactionTypeId);
+        inputParametersValidator.conditionIsTrue(transactionType != null,error,HttpStatus.BAD_REQUEST.value());
 
         //Check card is present
-        Card card = cardService.findById(Integer.valueOf(cardId));
+        Card card;
+        try {
+            card = cardService.findById(Integer.valueOf(cardId));
+        } catch (NumberFormatException e) {
+            throw new CardException(String.format(NUMBER_FORMAT_MISMATCH, cardId), HttpStatus.BAD_REQUEST.value());
+        }
         error = String.format(ErrorMessage.NO_CARD_FOUND, cardId);
         inputParametersValidator.conditionIsTrue(card != null,error,HttpStatus.BAD_REQUEST.value());
 
@@ -140,10 +174,12 @@ public class TransactionServiceImpl implements TransactionService {
          * Valid reference to transaction type, currency, card should be provided.
          * Global id should be unique.
          * Transaction should have the same currency as card.
-         * No additional SQL query is used to select currency by Id and transaction type by Id
-         * because JPARepository.getOne is used, which returns only reference for transaction object.
+         * Currency and transaction type are taken from ReferenceDataCache, no SQL query is used to select them.
          *
-         * Set isolation = Isolation.SERIALIZABLE in order to avoid concurrency issues (in case of deploying application to multiple hosts)
+         * Isolation.READ_COMMITTED is used, card balance is protected by the guarded update in CardService.updateCardAmount
+         * TransactionCreated event is recorded in the outbox in the same transaction.
+         * Credit transaction wakes retries of the card's installments which couldn't be settled because of lack of funds,
+         * they are retried right after commit.
          *
          * @param globalId unique global id
          * @param currency currency
@@ -157,7 +193,8 @@ public class TransactionServiceImpl implements TransactionService {
          * @return created transaction
          * @throws CardException if couldn't create transaction
          */
-    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.SERIALIZABLE, rollbackFor = CardException.class)
+    @RetryableTransaction
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED, rollbackFor = CardException.class)
     @Override
     public Transaction createTransaction(@NotBlank String globalId, @NotNull  Currency currency, @NotNull Card card, @NotNull TransactionType transactionType, @NotBlank String amount,@NotBlank String purchaseId, Boolean submitted, Date dueDate, String description) throws CardException{
         try {
@@ -167,7 +204,11 @@ public class TransactionServiceImpl implements TransactionService {
 
             if(submitted) {
                 //Update card, checks if there is enough funds for debit transaction. If not, throws CardException
-                card = cardService.updateCardAmount(card, amount, transactionType.getId().equalsIgnoreCase(transactionTypeCredit));
+                boolean isCredit = transactionType.getId().equalsIgnoreCase(transactionTypeCredit);
+                card = cardService.updateCardAmount(card, amount, isCredit);
+                if (isCredit) {
+                    installmentSettlementService.wakeRetries(card);
+                }
             }
             Optional<Purchase> purchaseOptional = null;
             Purchase purchase = null;
@@ -179,7 +220,9 @@ public class TransactionServiceImpl implements TransactionService {
             //Create transaction
             Transaction transaction = new Transaction(globalId,transactionType,new BigDecimal(amount),card,purchase, currency,description,submitted,dueDate,updatedBy);
 
-            return transactionRepository.save(transaction);
+            transaction = transactionRepository.save(transaction);
+            outboxService.transactionCreated(transaction);
+            return transaction;
 
         } catch(NumberFormatException e){
             throw new CardException(String.format(NUMBER_FORMAT_MISMATCH,amount),HttpStatus.BAD_REQUEST.value());
@@ -0,0 +1,159 @@
+package com.zilch.settlement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: timers are kept in buckets of ticks instead of a priority queue,
+ * so adding a timer and advancing the clock cost O(1) per timer whatever the number of timers is.
+ * <p>The lowest wheel has wheelSize buckets of tickMs each and covers wheelSize * tickMs milliseconds.
+ * Timers further in the future go to an overflow wheel with tick equal to the whole interval of the lower wheel,
+ * and so on. When the clock reaches a bucket of an overflow wheel, its timers are moved to the lower wheels.</p>
+ * <p>A timer never fires before its expiration time: it fires on the first tick boundary at or after it,
+ * so it is at most tickMs late if advanceClock is called on every tick.</p>
+ * <p>Not thread safe.</p>
+ * @param <T> type of timer items
+ * @author Elena Medvedeva
+ */
+public class HierarchicalTimingWheel<T> {
+
+    private final long tickMs;
+    private final int wheelSize;
+    private final long interval;
+    private final boolean lowest;
+    private final List<Entry<T>>[] buckets;
+    private long currentTime;
+    private HierarchicalTimingWheel<T> overflowWheel;
+    private int size;
+
+    /**
+     * @param tickMs duration of a bucket of the lowest wheel
+     * @param wheelSize number of buckets of each wheel
+     * @param startMs current time
+     */
+    public HierarchicalTimingWheel(long tickMs, int wheelSize, long startMs) {
+        this(tickMs, wheelSize, startMs, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private HierarchicalTimingWheel(long tickMs, int wheelSize, long startMs, boolean lowest) {
+        if (tickMs <= 0 || wheelSize < 2) {
+            throw new IllegalArgumentException("tickMs must be positive and wheelSize must be at least 2");
+        }
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.interval = tickMs * wheelSize;
+        this.lowest = lowest;
+        this.buckets = new List[wheelSize];
+        this.currentTime = startMs - (startMs % tickMs);
+    }
+
+    /**
+     * Adds a timer
+     * @param item timer item
+     * @param expirationMs time when the timer fires
+     * @return false if the timer is already expired and wasn't added
+     */
+    public boolean add(T item, long expirationMs) {
+        if (!addEntry(new Entry<>(item, expirationMs))) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves the clock to timeMs
+     * @param timeMs current time
+     * @return items of expired timers, in order of buckets
+     */
+    public List<T> advanceClock(long timeMs) {
+        List<Entry<T>> due = new ArrayList<>();
+        advance(timeMs, due);
+        List<T> expired = new ArrayList<>();
+        for (Entry<T> entry : due) {
+            //entries of the lowest wheel expire, entries of overflow wheels go down or expire
+            if (!addEntry(entry)) {
+                expired.add(entry.item);
+            }
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * @return number of timers which haven't fired yet
+     */
+    public int size() {
+        return size;
+    }
+
+    private boolean addEntry(Entry<T> entry) {
+        long virtualId;
+        if (lowest) {
+            //bucket which starts at or after expiration, so the timer never fires early
+            virtualId = (entry.expirationMs + tickMs - 1) / tickMs;
+            if (virtualId * tickMs <= currentTime) {
+                return false;
+            }
+            if (virtualId * tickMs > currentTime + interval) {
+                return overflowWheel().addEntry(entry);
+            }
+        } else {
+            //bucket which contains expiration, its timers are moved down when the clock reaches it.
+            //Timers of the current bucket are always taken by the lower wheels
+            virtualId = entry.expirationMs / tickMs;
+            if (virtualId * tickMs >= currentTime + interval) {
+                return overflowWheel().addEntry(entry);
+            }
+        }
+        int index = (int) (virtualId % wheelSize);
+        if (buckets[index] == null) {
+            buckets[index] = new ArrayList<>();
+        }
+        buckets[index].add(entry);
+        return true;
+    }
+
+    private void advance(long timeMs, List<Entry<T>> due) {
+        long target = timeMs - (timeMs % tickMs);
+        //no need to walk the buckets one by one after a whole rotation
+        if (target - currentTime > interval) {
+            for (int i = 0; i < wheelSize; i++) {
+                drain(i, due);
+            }
+            currentTime = target;
+        }
+        while (currentTime < target) {
+            currentTime += tickMs;
+            drain((int) ((currentTime / tickMs) % wheelSize), due);
+        }
+        if (overflowWheel != null) {
+            overflowWheel.advance(timeMs, due);
+        }
+    }
+
+    private void drain(int index, List<Entry<T>> due) {
+        if (buckets[index] != null) {
+            due.addAll(buckets[index]);
+            buckets[index] = null;
+        }
+    }
+
+    private HierarchicalTimingWheel<T> overflowWheel() {
+        if (overflowWheel == null) {
+            overflowWheel = new HierarchicalTimingWheel<>(interval, wheelSize, currentTime, false);
+        }
+        return overflowWheel;
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private final long expirationMs;
+
+        private Entry(T item, long expirationMs) {
+            this.item = item;
+            this.expirationMs = expirationMs;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.zilch.settlement;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zilch.exceptions.CardException;
+import com.zilch.executor.CardShardExecutor;
+import com.zilch.repository.TransactionRepository;
+import com.zilch.service.InstallmentSettlementService;
+import com.zilch.service.SettlementResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settles installments exactly when they fall due, without polling the database.
+ * <p>Every application.settlement.wheel.preload-ms not settled installments due within the next
+ * application.settlement.wheel.horizon-ms are loaded (only id and due date) into a HierarchicalTimingWheel.
+ * A single thread advances the wheel every tick-ms and settles fired installments
+ * by InstallmentSettlementService.settleInstallments. The first preload happens on startup,
+ * so the wheel is rebuilt from the database after restart.</p>
+ * <p>The wheel is an addition to InstallmentSettlementEngine: installments which were due before the start,
+ * or were created after their due time was preloaded are settled by the engine.
+ * Installments which couldn't be debited are moved to installment_retry, like the ones settled by the engine.
+ * Several nodes may fire the same installment, it is settled once because it's locked and checked for submitted.
+ * If card shards are enabled, every batch is settled on each shard for the cards of that shard (see CardShardExecutor).</p>
+ * <p>Metrics: settlement.wheel.size - installments waiting in the wheel, settled and unsettled installments
+ * are counted by settlement.settled and settlement.unsettled.</p>
+ * <p>Enabled by application.settlement.wheel.enabled.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class InstallmentDueTimer {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_WHEEL_SIZE = "settlement.wheel.size";
+
+    @Autowired
+    private InstallmentSettlementService settlementService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private CardShardExecutor cardShardExecutor;
+
+    @Value("${application.settlement.wheel.enabled:true}")
+    private boolean enabled;
+
+    @Value("${application.settlement.wheel.tick-ms:1000}")
+    private long tickMs;
+
+    @Value("${application.settlement.wheel.wheel-size:60}")
+    private int wheelSize;
+
+    @Value("${application.settlement.wheel.horizon-ms:21600000}")
+    private long horizonMs;
+
+    @Value("${application.settlement.batch-size:500}")
+    private int batchSize;
+
+    private HierarchicalTimingWheel<Integer> wheel;
+    private long loadedUntil;
+    private ScheduledExecutorService ticker;
+    private Counter settled;
+    private Counter unsettled;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        wheel = new HierarchicalTimingWheel<>(tickMs, wheelSize, now);
+        loadedUntil = now;
+        Gauge.builder(METRIC_WHEEL_SIZE, this, InstallmentDueTimer::size)
+                .description("Installments waiting in the timing wheel")
+                .register(meterRegistry);
+        settled = Counter.builder(InstallmentSettlementEngine.METRIC_SETTLED).register(meterRegistry);
+        unsettled = Counter.builder(InstallmentSettlementEngine.METRIC_UNSETTLED).register(meterRegistry);
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("settlement-wheel").build());
+        ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads installments due after the previously loaded range and up to now + horizon into the wheel
+     */
+    @Scheduled(fixedDelayString = "${application.settlement.wheel.preload-ms:600000}")
+    public void preload() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            long to = System.currentTimeMillis() + horizonMs;
+            List<TransactionRepository.DueInstallment> installments = settlementService.findDueBetween(new Date(loadedUntil), new Date(to));
+            List<Integer> expired = new ArrayList<>();
+            synchronized (this) {
+                for (TransactionRepository.DueInstallment installment : installments) {
+                    if (!wheel.add(installment.getId(), installment.getDueDate().getTime())) {
+                        expired.add(installment.getId());
+                    }
+                }
+                loadedUntil = to;
+            }
+            logger.debug("Preloaded {} installments due until {}", installments.size(), new Date(to));
+            settle(expired);
+        } catch (CardException | RuntimeException e) {
+            logger.error("Couldn't preload installments, will retry on the next preload", e);
+        }
+    }
+
+    private void tick() {
+        try {
+            List<Integer> fired;
+            synchronized (this) {
+                fired = wheel.advanceClock(System.currentTimeMillis());
+            }
+            settle(fired);
+        } catch (CardException | RuntimeException e) {
+            //fired installments are settled by InstallmentSettlementEngine
+            logger.error("Couldn't settle fired installments", e);
+        }
+    }
+
+    private void settle(List<Integer> ids) throws CardException {
+        int shards = cardShardExecutor.getShardsCount();
+        for (List<Integer> batch : Lists.partition(ids, batchSize)) {
+            List<CompletableFuture<SettlementResult>> results = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                int shard = i;
+                results.add(cardShardExecutor.submitToShard(shard, () -> settlementService.settleInstallments(batch, shard, shards)));
+            }
+            for (CompletableFuture<SettlementResult> result : results) {
+                SettlementResult shardResult = CardShardExecutor.join(result);
+                settled.increment(shardResult.getSettled());
+                unsettled.increment(shardResult.getUnsettled());
+            }
+        }
+    }
+
+    private synchronized int size() {
+        return wheel.size();
+    }
+}
@@ -0,0 +1,224 @@
+package com.zilch.settlement;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zilch.exceptions.CardException;
+import com.zilch.executor.CardShardExecutor;
+import com.zilch.service.InstallmentRetriesWokenEvent;
+import com.zilch.service.InstallmentSettlementService;
+import com.zilch.service.SettlementResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settles scheduled purchase installments when they fall due.
+ * <p>Every application.settlement.poll-ms the engine starts application.settlement.parallelism workers.
+ * Each worker settles batches of application.settlement.batch-size due installments
+ * (see InstallmentSettlementService.settleDueInstallments) until there are no more due installments,
+ * then batches of installments whose retry is due (see InstallmentSettlementService.retryDueInstallments).
+ * Workers of all nodes take different installments, because batches are locked with for update skip locked.
+ * Retries of a card woken by a credit are run by a worker right after the credit is committed.</p>
+ * <p>If card shards are enabled (see CardShardExecutor), there is a worker per shard instead, it settles installments
+ * of the cards of its shard only and every batch is executed on the shard, so settlement doesn't race
+ * with the other balance changes of the cards.</p>
+ * <p>Metrics: settlement.backlog - due installments left after the last pass,
+ * settlement.retry.backlog - installments whose retry is due left after the last pass,
+ * settlement.settled - settled installments, settlement.unsettled - installments not settled because of lack of funds,
+ * settlement.batch - time to settle a batch.</p>
+ * <p>Enabled by application.settlement.enabled.</p>
+ * @author Elena Medvedeva
+ */
+@Component
+public class InstallmentSettlementEngine {
+    Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String METRIC_BACKLOG = "settlement.backlog";
+    public static final String METRIC_RETRY_BACKLOG = "settlement.retry.backlog";
+    public static final String METRIC_SETTLED = "settlement.settled";
+    public static final String METRIC_UNSETTLED = "settlement.unsettled";
+    public static final String METRIC_BATCH = "settlement.batch";
+
+    @Autowired
+    private InstallmentSettlementService settlementService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private CardShardExecutor cardShardExecutor;
+
+    @Value("${application.settlement.enabled:true}")
+    private boolean enabled;
+
+    @Value("${application.settlement.batch-size:500}")
+    private int batchSize;
+
+    @Value("${application.settlement.parallelism:2}")
+    private int parallelism;
+
+    private ExecutorService workers;
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong retryBacklog = new AtomicLong();
+    private Counter settled;
+    private Counter unsettled;
+    private Timer batch;
+
+    @PostConstruct
+    public void init() {
+        workers = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("settlement-%d").build());
+        Gauge.builder(METRIC_BACKLOG, backlog, AtomicLong::get)
+                .description("Due installments which are not settled yet")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_RETRY_BACKLOG, retryBacklog, AtomicLong::get)
+                .description("Installments whose retry is due")
+                .register(meterRegistry);
+        settled = Counter.builder(METRIC_SETTLED)
+                .description("Installments debited from the cards")
+                .register(meterRegistry);
+        unsettled = Counter.builder(METRIC_UNSETTLED)
+                .description("Due installments and retries not settled because of lack of funds")
+                .register(meterRegistry);
+        batch = Timer.builder(METRIC_BATCH)
+                .description("Time to settle a batch of installments")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${application.settlement.poll-ms:5000}")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Date now = new Date();
+            settleDue(now);
+            retryDue(now);
+        } catch (RuntimeException e) {
+            logger.error("Settlement pass failed, will retry on the next poll", e);
+        }
+    }
+
+    /**
+     * Retries installments of the card after the credit which woke them is committed
+     * @param event card's retries are woken
+     */
+    @TransactionalEventListener
+    public void onRetriesWoken(InstallmentRetriesWokenEvent event) {
+        if (!enabled) {
+            return;
+        }
+        workers.submit(() -> {
+            try {
+                count(cardShardExecutor.execute(event.getCardId(),
+                        () -> settlementService.retryCardInstallments(event.getCardId(), new Date())));
+            } catch (CardException | RuntimeException e) {
+                logger.error("Retry of card {} installments failed, will retry on the next poll", event.getCardId(), e);
+            }
+        });
+    }
+
+    /**
+     * Settles installments due at or before now by parallel workers
+     * @param now due date bound
+     * @return number of settled installments
+     */
+    public int settleDue(Date now) {
+        try {
+            return runWorkers((shard, shards) -> settlementService.settleDueInstallments(now, batchSize, shard, shards));
+        } finally {
+            backlog.set(settlementService.countDueInstallments(now));
+        }
+    }
+
+    /**
+     * Retries installments whose next attempt is at or before now by parallel workers
+     * @param now next attempt bound
+     * @return number of settled installments
+     */
+    public int retryDue(Date now) {
+        try {
+            return runWorkers((shard, shards) -> settlementService.retryDueInstallments(now, batchSize, shard, shards));
+        } finally {
+            retryBacklog.set(settlementService.countDueRetries(now));
+        }
+    }
+
+    private int runWorkers(ShardBatch batchSettlement) {
+        List<Callable<Integer>> tasks = new ArrayList<>(parallelism);
+        if (cardShardExecutor.isEnabled()) {
+            int shards = cardShardExecutor.getShardsCount();
+            for (int i = 0; i < shards; i++) {
+                int shard = i;
+                tasks.add(() -> drain(() -> CardShardExecutor.join(
+                        cardShardExecutor.submitToShard(shard, () -> batchSettlement.settle(shard, shards)))));
+            }
+        } else {
+            for (int i = 0; i < parallelism; i++) {
+                tasks.add(() -> drain(() -> batchSettlement.settle(0, 1)));
+            }
+        }
+        int total = 0;
+        try {
+            for (Future<Integer> result : workers.invokeAll(tasks)) {
+                total += result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Settlement worker failed", e.getCause());
+        }
+        return total;
+    }
+
+    /**
+     * Settles batches until a batch is not full. Unsettled installments are moved to (or rescheduled in)
+     * installment_retry, so every batch takes new installments.
+     */
+    private int drain(Callable<SettlementResult> batchSettlement) throws Exception {
+        int total = 0;
+        SettlementResult result;
+        do {
+            long start = System.nanoTime();
+            result = batchSettlement.call();
+            if (result.getLocked() > 0) {
+                batch.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            total += count(result);
+        } while (result.getLocked() == batchSize);
+        return total;
+    }
+
+    private int count(SettlementResult result) {
+        settled.increment(result.getSettled());
+        unsettled.increment(result.getUnsettled());
+        return result.getSettled();
+    }
+
+    /**
+     * Settles a batch of installments of the cards with card id % shards = shard
+     */
+    @FunctionalInterface
+    private interface ShardBatch {
+        SettlementResult settle(int shard, int shards);
+    }
+}
@@ -0,0 +1,79 @@
+package com.zilch.view.dto;
+
+import com.zilch.entities.Currency;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Card as it is returned by read endpoints, without purchases and transactions.
+ * <p>Created by JPQL constructor expression, so it is never managed by persistence context.
+ * Only currency id is selected, currency itself is taken from ReferenceDataCache.
+ * Fields are declared in the same order as in Card, so JSON is the same as for the entity.</p>
+ * @author Elena Medvedeva
+ */
+public class CardDto {
+
+    private Integer id;
+
+    private String userId;
+
+    private BigDecimal balance;
+
+    private Currency currency;
+
+    private Date lastUpdated;
+
+    private String lastUpdatedBy;
+
+    private Integer version;
+
+    //not serialized
+    private transient Integer currencyId;
+
+    public CardDto(Integer id, String userId, BigDecimal balance, Integer currencyId, Date lastUpdated, String lastUpdatedBy, Integer version) {
+        this.id = id;
+        this.userId = userId;
+        this.balance = balance;
+        this.currencyId = currencyId;
+        this.lastUpdated = lastUpdated;
+        this.lastUpdatedBy = lastUpdatedBy;
+        this.version = version;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public BigDecimal getBalance() {
+        return balance;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(Currency currency) {
+        this.currency = currency;
+    }
+
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public String getLastUpdatedBy() {
+        return lastUpdatedBy;
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public Integer getCurrencyId() {
+        return currencyId;
+    }
+}
@@ -0,0 +1,66 @@
+package com.zilch.view.dto;
+
+/**
+ * Response of an operation accepted by the journal, see TransactionJournal.
+ * The operation is durable and is applied to the database later.
+ * Also returned by the status lookup: ACCEPTED - not applied yet, APPLIED - created in the database,
+ * REJECTED - rejected by the services, error is present while it is remembered.
+ * @author Elena Medvedeva
+ */
+public class JournalReceipt {
+
+    public static final String STATUS_ACCEPTED = "ACCEPTED";
+    public static final String STATUS_APPLIED = "APPLIED";
+    public static final String STATUS_REJECTED = "REJECTED";
+
+    private String globalId;
+    private Long sequence;
+    private String status;
+    private String error;
+
+    public JournalReceipt() {
+    }
+
+    public JournalReceipt(String globalId, long sequence) {
+        this(globalId, sequence, STATUS_ACCEPTED, null);
+    }
+
+    public JournalReceipt(String globalId, Long sequence, String status, String error) {
+        this.globalId = globalId;
+        this.sequence = sequence;
+        this.status = status;
+        this.error = error;
+    }
+
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    public void setGlobalId(String globalId) {
+        this.globalId = globalId;
+    }
+
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,113 @@
+package com.zilch.view.dto;
+
+import com.zilch.entities.Currency;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Purchase as it is returned by read endpoints.
+ * <p>Created by JPQL constructor expression, so it is never managed by persistence context.
+ * Purchase list has card and transactions of the purchase, purchase of a transaction has neither of them.
+ * Only currency id is selected, currency itself is taken from ReferenceDataCache.
+ * Fields are declared in the same order as in Purchase, so JSON is the same as for the entity.</p>
+ * @author Elena Medvedeva
+ */
+public class PurchaseDto {
+
+    private Integer id;
+
+    private String globalId;
+
+    private String shopId;
+
+    private BigDecimal amount;
+
+    private CardDto card;
+
+    private Currency currency;
+
+    private String description;
+
+    private Date lastUpdated;
+
+    private String lastUpdatedBy;
+
+    private List<TransactionDto> transactions;
+
+    //not serialized
+    private transient Integer currencyId;
+
+    public PurchaseDto(Integer id, String globalId, String shopId, BigDecimal amount, Integer currencyId,
+                       String description, Date lastUpdated, String lastUpdatedBy) {
+        this.id = id;
+        this.globalId = globalId;
+        this.shopId = shopId;
+        this.amount = amount;
+        this.currencyId = currencyId;
+        this.description = description;
+        this.lastUpdated = lastUpdated;
+        this.lastUpdatedBy = lastUpdatedBy;
+    }
+
+    public PurchaseDto(Integer id, String globalId, String shopId, BigDecimal amount,
+                       Integer cardId, String cardUserId, BigDecimal cardBalance, Integer cardCurrencyId,
+                       Date cardLastUpdated, String cardLastUpdatedBy, Integer cardVersion,
+                       Integer currencyId, String description, Date lastUpdated, String lastUpdatedBy) {
+        this(id, globalId, shopId, amount, currencyId, description, lastUpdated, lastUpdatedBy);
+        this.card = new CardDto(cardId, cardUserId, cardBalance, cardCurrencyId, cardLastUpdated, cardLastUpdatedBy, cardVersion);
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    public String getShopId() {
+        return shopId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public CardDto getCard() {
+        return card;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(Currency currency) {
+        this.currency = currency;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public String getLastUpdatedBy() {
+        return lastUpdatedBy;
+    }
+
+    public List<TransactionDto> getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(List<TransactionDto> transactions) {
+        this.transactions = transactions;
+    }
+
+    public Integer getCurrencyId() {
+        return currencyId;
+    }
+}
@@ -0,0 +1,89 @@
+package com.zilch.view.dto;
+
+import com.zilch.entities.Transaction;
+
+/**
+ * Result of one item of a transaction batch, see TransactionBatchService
+ * @author Elena Medvedeva
+ */
+public class TransactionBatchResult {
+
+    public enum Status {
+        /** transaction is created */
+        CREATED,
+        /** transaction with the globalId already exists or the globalId is repeated in the batch */
+        DUPLICATE,
+        /** debit is rejected, there is not enough funds on the card */
+        INSUFFICIENT_FUNDS,
+        /** item is invalid, e.g. unknown card, currency or transaction type */
+        INVALID
+    }
+
+    private int index;
+    private String globalId;
+    private Status status;
+    private Integer transactionId;
+    private String error;
+
+    //created transaction for callers of the service, not serialized
+    private transient Transaction transaction;
+
+    public TransactionBatchResult() {
+    }
+
+    public TransactionBatchResult(int index, String globalId, Status status, Integer transactionId, String error) {
+        this.index = index;
+        this.globalId = globalId;
+        this.status = status;
+        this.transactionId = transactionId;
+        this.error = error;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    public void setGlobalId(String globalId) {
+        this.globalId = globalId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Integer getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(Integer transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public void setTransaction(Transaction transaction) {
+        this.transaction = transaction;
+    }
+}
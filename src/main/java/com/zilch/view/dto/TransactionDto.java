@@ -0,0 +1,139 @@
+package com.zilch.view.dto;
+
+import com.zilch.entities.Currency;
+import com.zilch.entities.TransactionType;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Transaction as it is returned by read endpoints, without card.
+ * <p>Created by JPQL constructor expression, so it is never managed by persistence context.
+ * Transaction list has purchase of the transaction, transaction of a purchase doesn't have it.
+ * Only type and currency ids are selected, type and currency themselves are taken from ReferenceDataCache.
+ * Fields are declared in the same order as in Transaction, so JSON is the same as for the entity.</p>
+ * @author Elena Medvedeva
+ */
+public class TransactionDto {
+
+    private Integer id;
+
+    private String globalId;
+
+    private TransactionType type;
+
+    private BigDecimal amount;
+
+    private PurchaseDto purchase;
+
+    private Boolean submitted;
+
+    private Date dueDate;
+
+    private Currency currency;
+
+    private String description;
+
+    private Date lastUpdated;
+
+    private String lastUpdatedBy;
+
+    //not serialized
+    private transient String typeId;
+
+    private transient Integer purchaseId;
+
+    private transient Integer currencyId;
+
+    public TransactionDto(Integer id, String globalId, String typeId, BigDecimal amount, Integer purchaseId,
+                          Boolean submitted, Date dueDate, Integer currencyId, String description,
+                          Date lastUpdated, String lastUpdatedBy) {
+        this.id = id;
+        this.globalId = globalId;
+        this.typeId = typeId;
+        this.amount = amount;
+        this.purchaseId = purchaseId;
+        this.submitted = submitted;
+        this.dueDate = dueDate;
+        this.currencyId = currencyId;
+        this.description = description;
+        this.lastUpdated = lastUpdated;
+        this.lastUpdatedBy = lastUpdatedBy;
+    }
+
+    public TransactionDto(Integer id, String globalId, String typeId, BigDecimal amount,
+                          Integer purchaseId, String purchaseGlobalId, String purchaseShopId, BigDecimal purchaseAmount,
+                          Integer purchaseCurrencyId, String purchaseDescription, Date purchaseLastUpdated, String purchaseLastUpdatedBy,
+                          Boolean submitted, Date dueDate, Integer currencyId, String description,
+                          Date lastUpdated, String lastUpdatedBy) {
+        this(id, globalId, typeId, amount, purchaseId, submitted, dueDate, currencyId, description, lastUpdated, lastUpdatedBy);
+        if (purchaseId != null) {
+            this.purchase = new PurchaseDto(purchaseId, purchaseGlobalId, purchaseShopId, purchaseAmount, purchaseCurrencyId,
+                    purchaseDescription, purchaseLastUpdated, purchaseLastUpdatedBy);
+        }
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getGlobalId() {
+        return globalId;
+    }
+
+    public TransactionType getType() {
+        return type;
+    }
+
+    public void setType(TransactionType type) {
+        this.type = type;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public PurchaseDto getPurchase() {
+        return purchase;
+    }
+
+    public Boolean getSubmitted() {
+        return submitted;
+    }
+
+    public Date getDueDate() {
+        return dueDate;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(Currency currency) {
+        this.currency = currency;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public String getLastUpdatedBy() {
+        return lastUpdatedBy;
+    }
+
+    public String getTypeId() {
+        return typeId;
+    }
+
+    public Integer getPurchaseId() {
+        return purchaseId;
+    }
+
+    public Integer getCurrencyId() {
+        return currencyId;
+    }
+}
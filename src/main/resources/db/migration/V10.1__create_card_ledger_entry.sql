@@ -0,0 +1,14 @@
+--Card ledger (application.card.concurrency.strategy=LEDGER): balance changes are appended to card_ledger_entry
+--instead of updating the card row. Card balance is card.balance (the snapshot) plus the sum of the card's entries.
+--Entries are folded into card.balance and deleted by the background compaction.
+CREATE SEQUENCE IF NOT EXISTS card_ledger_entry_id_seq INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS card_ledger_entry
+(
+id BIGINT PRIMARY KEY DEFAULT nextval('card_ledger_entry_id_seq'),
+card_id integer NOT NULL REFERENCES card (id),
+amount NUMERIC(15,2) NOT NULL,
+created TIMESTAMP DEFAULT now() NOT NULL
+);
+
+CREATE INDEX ON card_ledger_entry (card_id);
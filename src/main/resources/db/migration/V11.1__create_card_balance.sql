@@ -0,0 +1,16 @@
+--Mutable part of the card is moved to the narrow card_balance table: a balance change rewrites
+--a small fixed size row instead of the whole card row with its VARCHAR columns.
+--Low fillfactor leaves free space on every page and balance/version are not indexed,
+--so PostgreSQL updates the row in place (HOT update) without new index entries.
+CREATE TABLE IF NOT EXISTS card_balance
+(
+card_id integer PRIMARY KEY REFERENCES card (id),
+balance NUMERIC(15,2) DEFAULT 0 NOT NULL,
+version INTEGER DEFAULT 0 NOT NULL
+) WITH (fillfactor = 50);
+
+INSERT INTO card_balance (card_id, balance, version)
+SELECT id, balance, version FROM card;
+
+ALTER TABLE card DROP COLUMN balance;
+ALTER TABLE card DROP COLUMN version;
@@ -0,0 +1,2 @@
+--Version of card row for optimistic locking of card balance
+ALTER TABLE card ADD COLUMN version INTEGER DEFAULT 0 NOT NULL;
@@ -0,0 +1,5 @@
+--Ids are allocated by Hibernate in blocks of 50 (pooled optimizer), so inserts can be sent in JDBC batches.
+--Sequence value is the upper bound of the allocated block, rows inserted with the column default still get unique ids.
+ALTER SEQUENCE card_id_seq INCREMENT BY 50;
+ALTER SEQUENCE purchase_id_seq INCREMENT BY 50;
+ALTER SEQUENCE transaction_id_seq INCREMENT BY 50;
@@ -0,0 +1,3 @@
+--Keyset pagination of card transactions and purchases: where card_id = ? and id > ? order by id
+CREATE INDEX ON transaction (card_id, id);
+CREATE INDEX ON purchase (card_id, id);
@@ -0,0 +1,13 @@
+--Transactional outbox: events are inserted in the transaction of the change and published by OutboxRelay.
+--Published events are deleted, so the relay always scans a short table.
+CREATE SEQUENCE IF NOT EXISTS outbox_event_id_seq INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS outbox_event
+(
+id BIGINT PRIMARY KEY DEFAULT nextval('outbox_event_id_seq'),
+aggregate_type VARCHAR NOT NULL,
+aggregate_id integer NOT NULL,
+event_type VARCHAR NOT NULL,
+payload TEXT NOT NULL,
+created TIMESTAMP DEFAULT now() NOT NULL
+);
@@ -0,0 +1,3 @@
+--Installment settlement: where submitted = false and due_date <= ? order by due_date.
+--Only unsettled installments are indexed, settled transactions don't make the index grow.
+CREATE INDEX ON transaction (due_date) WHERE submitted = false;
@@ -0,0 +1,21 @@
+--Dunning: installments which couldn't be settled on due date because of lack of funds
+--are retried from installment_retry on an exponential schedule.
+ALTER TABLE transaction ADD COLUMN IF NOT EXISTS in_retry BOOLEAN DEFAULT false NOT NULL;
+
+--Installments in retry are not scanned by the settlement of due installments anymore.
+DROP INDEX IF EXISTS transaction_due_date_idx;
+CREATE INDEX ON transaction (due_date) WHERE submitted = false AND in_retry = false;
+
+CREATE TABLE IF NOT EXISTS installment_retry
+(
+transaction_id integer PRIMARY KEY REFERENCES transaction (id),
+card_id integer NOT NULL REFERENCES card (id),
+attempts integer NOT NULL,
+next_attempt TIMESTAMP NOT NULL,
+last_updated TIMESTAMP DEFAULT now(),
+last_updated_by VARCHAR
+);
+
+--Retries due at or before now are taken in order of next_attempt, a credit wakes retries of the card.
+CREATE INDEX ON installment_retry (next_attempt);
+CREATE INDEX ON installment_retry (card_id);
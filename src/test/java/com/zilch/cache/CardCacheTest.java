@@ -0,0 +1,160 @@
+package com.zilch.cache;
+
+import com.zilch.entities.Card;
+import com.zilch.entities.Currency;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * CardCache tests: a reader which read the card before a writer invalidated it doesn't refill the cache
+ *
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+public class CardCacheTest {
+    @TestConfiguration
+    static class CardCacheTestContextConfiguration {
+        @Bean
+        public CardCache cardCache() {
+            return new CardCacheImpl();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+    public static final String USER = "user";
+
+    @Autowired
+    private CardCache cardCache;
+
+    @MockBean
+    private ReferenceDataCache referenceDataCache;
+
+    private Currency gbp;
+
+    @Before
+    public void setUp() {
+        gbp = new Currency(1, "GBP", USER);
+        Mockito.when(referenceDataCache.findCurrencyById(1)).thenReturn(gbp);
+    }
+
+    @After
+    public void tearDown() {
+        ((CardCacheImpl) cardCache).setReplicaEnabled(false);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+    }
+
+    private Card card(int id, int balance) {
+        Card card = new Card(USER, gbp, new BigDecimal(balance), USER);
+        card.setId(id);
+        return card;
+    }
+
+    @Test
+    public void testPut_Success() {
+        assertTrue(cardCache.put(card(1, 10), cardCache.readStamp()));
+        assertEquals(new BigDecimal(10), cardCache.getById(1).getBalance());
+        assertTrue(cardCache.putByUserId(USER, Collections.singletonList(card(1, 10)), cardCache.readStamp()));
+        assertEquals(1, cardCache.getByUserId(USER).size());
+    }
+
+    @Test
+    public void testPut_ReadBeforeInvalidationIsNotCached() {
+        //reader takes the stamp and reads the old card
+        long stamp = cardCache.readStamp();
+        Card old = card(2, 10);
+        //writer changes the card
+        cardCache.invalidate(card(2, 20));
+        //reader finishes after the eviction
+        assertFalse(cardCache.put(old, stamp));
+        assertFalse(cardCache.putByUserId(USER, Collections.singletonList(old), stamp));
+        assertNull(cardCache.getById(2));
+        assertNull(cardCache.getByUserId(USER));
+
+        //next reader reads the new card
+        assertTrue(cardCache.put(card(2, 20), cardCache.readStamp()));
+        assertEquals(new BigDecimal(20), cardCache.getById(2).getBalance());
+    }
+
+    @Test
+    public void testPut_ReadBeforeCommitIsEvictedAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        //writer changes the card in its transaction
+        cardCache.invalidate(card(3, 20));
+        //reader reads the committed old card after the first eviction and caches it
+        assertTrue(cardCache.put(card(3, 10), cardCache.readStamp()));
+        //writer commits
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+        assertNull(cardCache.getById(3));
+    }
+
+    @Test
+    public void testPut_ReadFromReplicaAfterInvalidationIsNotCached() {
+        ((CardCacheImpl) cardCache).setReplicaEnabled(true);
+        cardCache.invalidate(card(4, 20));
+        //reader of the replica starts after the eviction, but the replica may not have replayed the change
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        assertFalse(cardCache.put(card(4, 10), cardCache.readStamp()));
+        assertNull(cardCache.getById(4));
+
+        //reader of the primary sees the change
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+        assertTrue(cardCache.put(card(4, 20), cardCache.readStamp()));
+    }
+
+    @Test
+    public void testPut_ConcurrentReaderAndWriter() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CountDownLatch read = new CountDownLatch(1);
+            CountDownLatch written = new CountDownLatch(1);
+            Future<Boolean> reader = executor.submit(() -> {
+                long stamp = cardCache.readStamp();
+                Card old = card(5, 10);
+                read.countDown();
+                written.await(5, TimeUnit.SECONDS);
+                return cardCache.put(old, stamp);
+            });
+            Future<?> writer = executor.submit(() -> {
+                read.await(5, TimeUnit.SECONDS);
+                cardCache.invalidate(card(5, 20));
+                written.countDown();
+                return null;
+            });
+            writer.get(5, TimeUnit.SECONDS);
+            assertFalse(reader.get(5, TimeUnit.SECONDS));
+            assertNull(cardCache.getById(5));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
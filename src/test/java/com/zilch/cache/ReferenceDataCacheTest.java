@@ -0,0 +1,91 @@
+package com.zilch.cache;
+
+import com.zilch.entities.Currency;
+import com.zilch.entities.TransactionType;
+import com.zilch.repository.CurrencyRepository;
+import com.zilch.repository.TransactionTypeRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * ReferenceDataCache tests
+ *
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+public class ReferenceDataCacheTest {
+    @TestConfiguration
+    static class ReferenceDataCacheTestContextConfiguration {
+        @Bean
+        public ReferenceDataCache referenceDataCache() {
+            return new ReferenceDataCacheImpl();
+        }
+    }
+    public static final String LAST_UPDATED_BY = "user";
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @MockBean
+    private CurrencyRepository currencyRepository;
+
+    @MockBean
+    private TransactionTypeRepository transactionTypeRepository;
+
+    private Currency gbp;
+    private TransactionType credit;
+
+    @Before
+    public void setUp() {
+        gbp = new Currency(1, "GBP", LAST_UPDATED_BY);
+        credit = new TransactionType("C", "credit trn", LAST_UPDATED_BY);
+        Mockito.when(currencyRepository.findAll()).thenReturn(Arrays.asList(gbp));
+        Mockito.when(transactionTypeRepository.findAll()).thenReturn(Arrays.asList(credit));
+        referenceDataCache.refresh();
+    }
+
+    @Test
+    public void testFind_Success() {
+        assertEquals(gbp, referenceDataCache.findCurrencyByName("GBP"));
+        assertEquals(gbp, referenceDataCache.findCurrencyById(1));
+        assertEquals(credit, referenceDataCache.findTransactionTypeById("C"));
+    }
+
+    @Test
+    public void testFind_NotPresent() {
+        assertNull(referenceDataCache.findCurrencyByName("AAA"));
+        assertNull(referenceDataCache.findCurrencyByName(null));
+        assertNull(referenceDataCache.findCurrencyById(2));
+        assertNull(referenceDataCache.findTransactionTypeById("D"));
+    }
+
+    @Test
+    public void testFind_NoQueryPerLookup() {
+        Mockito.clearInvocations(currencyRepository, transactionTypeRepository);
+        for (int i = 0; i < 10; i++) {
+            referenceDataCache.findCurrencyByName("GBP");
+            referenceDataCache.findTransactionTypeById("C");
+        }
+        Mockito.verifyZeroInteractions(currencyRepository, transactionTypeRepository);
+    }
+
+    @Test
+    public void testRefresh_ReplacesData() {
+        Currency eur = new Currency(2, "EUR", LAST_UPDATED_BY);
+        Mockito.when(currencyRepository.findAll()).thenReturn(Arrays.asList(eur));
+        referenceDataCache.refresh();
+        assertNull(referenceDataCache.findCurrencyByName("GBP"));
+        assertEquals(eur, referenceDataCache.findCurrencyByName("EUR"));
+    }
+}
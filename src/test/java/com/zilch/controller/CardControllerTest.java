@@ -1,8 +1,12 @@
 package com.zilch.controller;
 
+import com.zilch.datasource.CommitTokenService;
 import com.zilch.entities.Currency;
 import com.zilch.helper.Helper;
 import com.zilch.service.CardService;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.CardDto;
+import com.zilch.exceptions.CardException;
 import com.zilch.helper.HelperImpl;
 import com.zilch.entities.Card;
 import com.zilch.exceptions.ErrorMessage;
@@ -14,16 +18,23 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.BDDMockito.willThrow;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
@@ -56,6 +67,9 @@ public class CardControllerTest {
     @MockBean
     private CardService service;
 
+    @MockBean
+    private CommitTokenService commitTokenService;
+
     private Currency currency;
     private Card card;
 
@@ -68,26 +82,47 @@ public class CardControllerTest {
 
     @Test
     public void testGetAll_whenGetCard_thenReturnJsonArray() throws Exception {
-        List<Card> allcards = Arrays.asList(card);
+        CardDto dto = new CardDto(card.getId(), card.getUserId(), card.getBalance(), card.getCurrency().getId(),
+                card.getLastUpdated(), card.getLastUpdatedBy(), card.getVersion());
+        dto.setCurrency(card.getCurrency());
+        List<CardDto> allcards = Arrays.asList(dto);
 
-        given(service.findAll()).willReturn(allcards);
+        willAnswer(invocation -> {
+            CursorPageWriter<CardDto> writer = invocation.getArgument(2);
+            writer.write(allcards.iterator(), 100, CardDto::getId);
+            return null;
+        }).given(service).findAll(isNull(), isNull(), any());
 
         mvc.perform(get("/cards")
                 .contentType(MediaType.APPLICATION_JSON))
                 .andExpect(status().isOk())
-                .andExpect(jsonPath("$", hasSize(1)))
-                .andExpect(jsonPath("$[0].id", is(card.getId())));
+                .andExpect(jsonPath("$.items", hasSize(1)))
+                .andExpect(jsonPath("$.items[0].id", is(card.getId())))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+    }
+
+    @Test
+    public void testGetAll_InvalidLimit() throws Exception {
+        String error = String.format(ErrorMessage.INVALID_PAGE_LIMIT, 0, 1000);
+        willThrow(new CardException(error, HttpStatus.BAD_REQUEST.value())).given(service).findAll(isNull(), eq(0), any());
+
+        mvc.perform(get("/cards?limit=0")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", is(error)));
     }
 
     @Test
     public void testGetCardById_thenReturnJson() throws Exception {
 
-        given(service.findById(card.getId())).willReturn(card);
+        card.setPurchases(new ArrayList<>());
+        given(service.findByIdWithPurchases(card.getId())).willReturn(card);
 
         mvc.perform(get("/cards/" + card.getId().toString())
                 .contentType(MediaType.APPLICATION_JSON))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id", is(card.getId())))
+                .andExpect(jsonPath("$.purchases", hasSize(0)))
                 .andExpect(jsonPath("$.userId", is(card.getUserId())))
                 .andExpect(jsonPath("$.currency.id", is(card.getCurrency().getId())))
                 .andExpect(jsonPath("$.balance", is(card.getBalance().intValue())))
@@ -0,0 +1,188 @@
+package com.zilch.controller;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.repository.*;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.http.MediaType;
+
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.hamcrest.Matchers.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Number of SQL statements executed by read endpoints.
+ * Every endpoint is called for a card with several purchases and installments,
+ * so a lazy load per row (N+1) changes the number of statements and fails the test.
+ * Open session in view is off, so the tests also fail if a response is not fully loaded by its service.
+ * Use in-memory h2database
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+public class StatementCountTest {
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String LAST_UPDATED_BY = "user";
+    public static final String USER = "statement-count-user";
+    public static final Integer CURRENCY_ID = 1;
+    public static final int PURCHASES = 5;
+    public static final int INSTALLMENTS = 4;
+
+    @Value("${application.transaction.type.credit}")
+    String credit;
+
+    @Value("${application.transaction.type.debit}")
+    String debit;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private PurchaseRepository purchaseRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    private Card card;
+
+    private Statistics statistics;
+
+    static int globalIdCounter = 1;
+
+    @Before
+    public void before() {
+        Currency currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, LAST_UPDATED_BY));
+        TransactionType typeCredit = transactionTypeRepository.save(new TransactionType(credit, "credit trn", LAST_UPDATED_BY));
+        TransactionType typeDebit = transactionTypeRepository.save(new TransactionType(debit, "debit trn", LAST_UPDATED_BY));
+        referenceDataCache.refresh();
+
+        card = cardRepository.save(new Card(USER, currency, new BigDecimal(1000), LAST_UPDATED_BY));
+        List<Transaction> transactions = new ArrayList<>();
+        transactions.add(new Transaction(String.valueOf(globalIdCounter++), typeCredit, new BigDecimal(1000), card, null, currency, "credit", LAST_UPDATED_BY));
+        for (int i = 0; i < PURCHASES; i++) {
+            Purchase purchase = purchaseRepository.save(new Purchase(String.valueOf(globalIdCounter++), "shop", currency, new BigDecimal(40), card, "purchase", LAST_UPDATED_BY));
+            for (int j = 0; j < INSTALLMENTS; j++) {
+                transactions.add(new Transaction(String.valueOf(globalIdCounter++), typeDebit, new BigDecimal(10), card, purchase, currency, "installment", LAST_UPDATED_BY));
+            }
+        }
+        transactionRepository.saveAll(transactions);
+
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        purchaseRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+    }
+
+    private void assertStatementCount(int expected, RequestBuilder request) throws Exception {
+        statistics.clear();
+        mvc.perform(request).andExpect(status().isOk());
+        assertEquals(expected, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    public void testGetCards() throws Exception {
+        assertStatementCount(1, get("/cards"));
+    }
+
+    @Test
+    public void testGetCardById() throws Exception {
+        //card, purchases with installments
+        assertStatementCount(2, get("/cards/" + card.getId()));
+    }
+
+    @Test
+    public void testGetCardsByUserId() throws Exception {
+        assertStatementCount(1, get("/cards/user").param("userId", USER));
+    }
+
+    @Test
+    public void testGetPurchases() throws Exception {
+        //purchases with cards, installments of the page
+        assertStatementCount(2, get("/purchases"));
+    }
+
+    @Test
+    public void testGetCardPurchases() throws Exception {
+        //card, purchases with cards, installments of the page
+        assertStatementCount(3, get("/cards/" + card.getId() + "/purchases"));
+    }
+
+    @Test
+    public void testGetCardTransactions() throws Exception {
+        //card, transactions with purchases
+        assertStatementCount(2, get("/cards/" + card.getId() + "/transactions"));
+    }
+
+    @Test
+    public void testCreateTransaction() throws Exception {
+        String json = "{\"globalId\":\"" + globalIdCounter++ + "\",\"currency\":\"" + TEST_CURRENCY + "\",\"cardId\":\"" + card.getId()
+                + "\",\"transactionTypeId\":\"" + debit + "\",\"amount\":\"10\",\"description\":\"debit\"}";
+        MvcResult result = mvc.perform(post("/transactions").content(json).contentType(MediaType.APPLICATION_JSON)).andReturn();
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.card.id", is(card.getId())))
+                .andExpect(jsonPath("$.card.purchases").doesNotExist())
+                .andExpect(jsonPath("$.card.transactions").doesNotExist());
+    }
+
+    @Test
+    public void testCreatePurchase() throws Exception {
+        String json = "{\"globalId\":\"" + globalIdCounter++ + "\",\"shopId\":\"shop\",\"currency\":\"" + TEST_CURRENCY
+                + "\",\"cardId\":\"" + card.getId() + "\",\"amount\":\"40\",\"description\":\"purchase\"}";
+        MvcResult result = mvc.perform(post("/purchases").content(json).contentType(MediaType.APPLICATION_JSON)).andReturn();
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.card.id", is(card.getId())))
+                .andExpect(jsonPath("$.transactions", hasSize(INSTALLMENTS)));
+    }
+}
@@ -1,14 +1,27 @@
 package com.zilch.controller;
 
+import com.zilch.datasource.CommitTokenService;
 import com.zilch.entities.Currency;
 import com.zilch.entities.Transaction;
 import com.zilch.entities.TransactionType;
+import com.zilch.service.TransactionBatchService;
 import com.zilch.service.TransactionService;
 import com.zilch.helper.Helper;
 import com.zilch.helper.HelperImpl;
 import com.google.gson.GsonBuilder;
 import com.zilch.entities.Card;
+import com.zilch.exceptions.CardException;
 import com.zilch.exceptions.ErrorMessage;
+import com.zilch.executor.CardGroupCommitExecutor;
+import com.zilch.executor.CardShardExecutor;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.journal.TransactionJournal;
+import com.zilch.view.dto.JournalReceipt;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.dto.TransactionDto;
+import com.zilch.view.model.TransactionModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -17,11 +30,15 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -30,10 +47,19 @@ import java.util.Map;
 
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.then;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -50,6 +76,21 @@ public class TransactionControllerTest {
             return new HelperImpl();
         }
 
+        @Bean
+        public CardShardExecutor cardShardExecutor() {
+            return new CardShardExecutor();
+        }
+
+        @Bean
+        public CardGroupCommitExecutor cardGroupCommitExecutor() {
+            return new CardGroupCommitExecutor();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
     }
 
     public static final Integer CURRENCY_ID = 1;
@@ -67,6 +108,15 @@ public class TransactionControllerTest {
     @MockBean
     private TransactionService service;
 
+    @MockBean
+    private TransactionBatchService batchService;
+
+    @MockBean
+    private CommitTokenService commitTokenService;
+
+    @MockBean
+    private TransactionJournal transactionJournal;
+
     private Currency currency;
     private Card card;
     private Transaction transactionCredit;
@@ -83,23 +133,62 @@ public class TransactionControllerTest {
         transactionCredit.setId(5);
     }
 
+    private TransactionDto dto(Transaction transaction) {
+        TransactionDto dto = new TransactionDto(transaction.getId(), transaction.getGlobalId(), transaction.getType().getId(),
+                transaction.getAmount(), null, transaction.getSubmitted(), transaction.getDueDate(), transaction.getCurrency().getId(),
+                transaction.getDescription(), transaction.getLastUpdated(), transaction.getLastUpdatedBy());
+        dto.setType(transaction.getType());
+        dto.setCurrency(transaction.getCurrency());
+        return dto;
+    }
+
     @Test
     public void testGetcardTransactionsById_whenGetTransaction_thenReturnJsonArray() throws Exception {
-        List<Transaction> allTransactions = Arrays.asList(transactionCredit);
+        List<TransactionDto> allTransactions = Arrays.asList(dto(transactionCredit));
 
-        given(service.getTransactionsByCardId(card.getId())).willReturn(allTransactions);
+        willAnswer(invocation -> {
+            CursorPageWriter<TransactionDto> writer = invocation.getArgument(3);
+            writer.write(allTransactions.iterator(), 100, TransactionDto::getId);
+            return null;
+        }).given(service).getTransactionsByCardId(eq(card.getId()), isNull(), isNull(), any());
 
         mvc.perform(get("/cards/" + card.getId()+ "/transactions")
                 .contentType(MediaType.APPLICATION_JSON))
                 .andExpect(status().isOk())
-                .andExpect(jsonPath("$", hasSize(1)))
-                .andExpect(jsonPath("$[0].id", is(transactionCredit.getId())))
-                .andExpect(jsonPath("$[0].globalId", is(transactionCredit.getGlobalId())))
-                .andExpect(jsonPath("$[0].type.id", is(CREDIT)))
-                .andExpect(jsonPath("$[0].type.description", is(transactionCredit.getType().getDescription())))
-                .andExpect(jsonPath("$[0].amount", is(transactionCredit.getAmount().intValue())))
-                .andExpect(jsonPath("$[0].currency.name", is(TEST_CURRENCY)))
-                .andExpect(jsonPath("$[0].description", is(transactionCredit.getDescription())));
+                .andExpect(jsonPath("$.items", hasSize(1)))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist())
+                .andExpect(jsonPath("$.items[0].id", is(transactionCredit.getId())))
+                .andExpect(jsonPath("$.items[0].globalId", is(transactionCredit.getGlobalId())))
+                .andExpect(jsonPath("$.items[0].type.id", is(CREDIT)))
+                .andExpect(jsonPath("$.items[0].type.description", is(transactionCredit.getType().getDescription())))
+                .andExpect(jsonPath("$.items[0].amount", is(transactionCredit.getAmount().intValue())))
+                .andExpect(jsonPath("$.items[0].currency.name", is(TEST_CURRENCY)))
+                .andExpect(jsonPath("$.items[0].description", is(transactionCredit.getDescription())))
+                .andExpect(jsonPath("$.items[0].card").doesNotExist());
+    }
+
+    @Test
+    public void testGetcardTransactionsById_NextPage() throws Exception {
+        Transaction next = new Transaction(String.valueOf(globalIdCounter++) ,transactionCredit.getType(),new BigDecimal(20),card,null, currency,"Credit transaction");
+        next.setId(transactionCredit.getId() + 1);
+        willAnswer(invocation -> {
+            CursorPageWriter<TransactionDto> writer = invocation.getArgument(3);
+            writer.write(Arrays.asList(dto(transactionCredit), dto(next)).iterator(), 1, TransactionDto::getId);
+            return null;
+        }).given(service).getTransactionsByCardId(eq(card.getId()), eq(4), eq(1), any());
+
+        mvc.perform(get("/cards/" + card.getId()+ "/transactions?after=4&limit=1")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items", hasSize(1)))
+                .andExpect(jsonPath("$.nextCursor", is(transactionCredit.getId())));
+    }
+
+    @Test
+    public void testGetcardTransactionsById_WrongCursor() throws Exception {
+        mvc.perform(get("/cards/" + card.getId()+ "/transactions?after=abc")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
     }
 
     @Test
@@ -117,9 +206,13 @@ public class TransactionControllerTest {
                 .willReturn(transactionCredit);
         String validJson = new GsonBuilder().create().toJson(dataMap);
 
-        mvc.perform(post("/transactions")
+        MvcResult mvcResult = mvc.perform(post("/transactions")
                 .content(validJson)
                 .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(mvcResult))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id", is(transactionCredit.getId())))
                 .andExpect(jsonPath("$.globalId", is(transactionCredit.getGlobalId())))
@@ -127,7 +220,153 @@ public class TransactionControllerTest {
                 .andExpect(jsonPath("$.type.description", is(transactionCredit.getType().getDescription())))
                 .andExpect(jsonPath("$.amount", is(transactionCredit.getAmount().intValue())))
                 .andExpect(jsonPath("$.currency.name", is(TEST_CURRENCY)))
-                .andExpect(jsonPath("$.description", is(transactionCredit.getDescription())));
+                .andExpect(jsonPath("$.description", is(transactionCredit.getDescription())))
+                .andExpect(header().doesNotExist(CommitTokenService.COMMIT_TOKEN_HEADER));
+    }
+
+    @Test
+    public void testCreateTransaction_whenJournalEnabled_thenAccepted() throws Exception {
+        Map<String, String> dataMap = new HashMap<>();
+        dataMap.put("globalId","j1");
+        dataMap.put("currency",TEST_CURRENCY);
+        dataMap.put("cardId",card.getId().toString());
+        dataMap.put("transactionTypeId",CREDIT);
+        dataMap.put("amount","20");
+        given(transactionJournal.isEnabled()).willReturn(true);
+        given(transactionJournal.acceptTransaction(any())).willReturn(7L);
+        String validJson = new GsonBuilder().create().toJson(dataMap);
+
+        MvcResult mvcResult = mvc.perform(post("/transactions")
+                .content(validJson)
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.globalId", is("j1")))
+                .andExpect(jsonPath("$.sequence", is(7)))
+                .andExpect(jsonPath("$.status", is("ACCEPTED")));
+        then(transactionJournal).should().acceptTransaction(argThat(transaction -> "j1".equals(transaction.getGlobalId())));
+        then(service).shouldHaveZeroInteractions();
+    }
+
+    @Test
+    public void testGetJournalStatus_thenReturnStatus() throws Exception {
+        given(transactionJournal.status("j2", 8L)).willReturn(new JournalReceipt("j2", 8L, JournalReceipt.STATUS_REJECTED, "not enough funds"));
+
+        mvc.perform(get("/journal/j2").param("sequence", "8"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.globalId", is("j2")))
+                .andExpect(jsonPath("$.sequence", is(8)))
+                .andExpect(jsonPath("$.status", is(JournalReceipt.STATUS_REJECTED)))
+                .andExpect(jsonPath("$.error", is("not enough funds")));
+    }
+
+    @Test
+    public void testCreateTransactions_thenReturnResultPerItem() throws Exception {
+        List<TransactionModel> batch = Arrays.asList(
+                new TransactionModel("b1", TEST_CURRENCY, "1", CREDIT, "20", "credit"),
+                new TransactionModel("b2", TEST_CURRENCY, "1", "D", "100", "debit"));
+        given(batchService.createTransactions(any())).willReturn(Arrays.asList(
+                new TransactionBatchResult(0, "b1", TransactionBatchResult.Status.CREATED, 7, null),
+                new TransactionBatchResult(1, "b2", TransactionBatchResult.Status.INSUFFICIENT_FUNDS, null, "not enough funds")));
+
+        mvc.perform(post("/transactions/batch")
+                .content(new GsonBuilder().create().toJson(batch))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].status", is("CREATED")))
+                .andExpect(jsonPath("$[0].transactionId", is(7)))
+                .andExpect(jsonPath("$[1].globalId", is("b2")))
+                .andExpect(jsonPath("$[1].status", is("INSUFFICIENT_FUNDS")))
+                .andExpect(jsonPath("$[1].transactionId").doesNotExist());
+        then(batchService).should().createTransactions(argThat(items -> items.size() == 2 && "b2".equals(items.get(1).getGlobalId())));
+    }
+
+    @Test
+    public void testCreateTransaction_CommitToken() throws Exception {
+        Map<String, String> dataMap = new HashMap<>();
+        dataMap.put("globalId",transactionCredit.getGlobalId());
+        dataMap.put("currency",transactionCredit.getCurrency().getName());
+        dataMap.put("cardId",transactionCredit.getCard().getId().toString());
+        dataMap.put("transactionTypeId",transactionCredit.getType().getId());
+        dataMap.put("amount",transactionCredit.getAmount().toString());
+        dataMap.put("description",transactionCredit.getDescription());
+
+        given(
+                service.createTransaction(dataMap.get("globalId"),dataMap.get("currency"),dataMap.get("cardId"),dataMap.get("transactionTypeId"),dataMap.get("amount"),dataMap.get("description")))
+                .willReturn(transactionCredit);
+        given(commitTokenService.currentToken()).willReturn("0/16B3748");
+        String validJson = new GsonBuilder().create().toJson(dataMap);
+
+        MvcResult mvcResult = mvc.perform(post("/transactions")
+                .content(validJson)
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(header().string(CommitTokenService.COMMIT_TOKEN_HEADER, "0/16B3748"))
+                .andExpect(jsonPath("$.id", is(transactionCredit.getId())));
+    }
+
+    @Test
+    public void testCreateTransaction_NotEnoughFunds() throws Exception {
+        Map<String, String> dataMap = new HashMap<>();
+        dataMap.put("globalId",transactionCredit.getGlobalId());
+        dataMap.put("currency",transactionCredit.getCurrency().getName());
+        dataMap.put("cardId",transactionCredit.getCard().getId().toString());
+        dataMap.put("transactionTypeId","D");
+        dataMap.put("amount","100");
+        dataMap.put("description",transactionCredit.getDescription());
+        String error = String.format(ErrorMessage.NOT_ENOUGH_FUNDS,card.getId(),"100");
+
+        given(
+                service.createTransaction(dataMap.get("globalId"),dataMap.get("currency"),dataMap.get("cardId"),dataMap.get("transactionTypeId"),dataMap.get("amount"),dataMap.get("description")))
+                .willThrow(new CardException(error, HttpStatus.BAD_REQUEST.value()));
+        String json = new GsonBuilder().create().toJson(dataMap);
+
+        MvcResult mvcResult = mvc.perform(post("/transactions")
+                .content(json)
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", is(error)));
+    }
+
+    @Test
+    public void testCreateTransaction_DuplicateGlobalId() throws Exception {
+        Map<String, String> dataMap = new HashMap<>();
+        dataMap.put("globalId",transactionCredit.getGlobalId());
+        dataMap.put("currency",transactionCredit.getCurrency().getName());
+        dataMap.put("cardId",transactionCredit.getCard().getId().toString());
+        dataMap.put("transactionTypeId",CREDIT);
+        dataMap.put("amount","100");
+        dataMap.put("description",transactionCredit.getDescription());
+        String error = String.format(ErrorMessage.TRANSACTION_WITH_GLOBAL_ID_PRESENT, transactionCredit.getGlobalId());
+
+        given(
+                service.createTransaction(dataMap.get("globalId"),dataMap.get("currency"),dataMap.get("cardId"),dataMap.get("transactionTypeId"),dataMap.get("amount"),dataMap.get("description")))
+                .willThrow(new DataIntegrityViolationException("could not execute batch", new SQLException(
+                        ErrorMessage.DUPLICATE_KEY_TRANSACTION + " Detail: Key (global_id)=(" + transactionCredit.getGlobalId() + ")", "23505")));
+        String json = new GsonBuilder().create().toJson(dataMap);
+
+        MvcResult mvcResult = mvc.perform(post("/transactions")
+                .content(json)
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        //group commit reports DUPLICATE items with the same status and message, see CardGroupCommitExecutorTest
+        mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.message", is(error)));
     }
 
     @Test
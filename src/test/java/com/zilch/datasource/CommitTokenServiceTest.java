@@ -0,0 +1,99 @@
+package com.zilch.datasource;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * CommitTokenService tests. Primary and replica are in-memory databases,
+ * their LSNs are taken from wal tables instead of PostgreSQL functions.
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@TestPropertySource(properties = {
+        "application.datasource.replica.enabled=true",
+        "application.datasource.replica.lag-check-ms=0",
+        "application.datasource.replica.primary-lsn-query=select lsn from wal",
+        "application.datasource.replica.replica-lsn-query=select lsn from wal"
+})
+public class CommitTokenServiceTest {
+    @TestConfiguration
+    static class CommitTokenServiceTestContextConfiguration {
+        @Bean
+        public CommitTokenService commitTokenService() {
+            return new CommitTokenServiceImpl();
+        }
+
+        @Bean
+        public DataSource dataSource() {
+            return new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(database("token_primary"), database("token_replica")));
+        }
+
+        private static DataSource database(String name) {
+            DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+            new JdbcTemplate(dataSource).execute("create table if not exists wal (lsn varchar(20))");
+            return dataSource;
+        }
+    }
+
+    @Autowired
+    private CommitTokenService commitTokenService;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private static void setLsn(DataSource dataSource, String lsn) {
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("delete from wal");
+        jdbc.update("insert into wal values (?)", lsn);
+    }
+
+    @Test
+    public void testParseLsn() {
+        assertEquals(0x16B374D848L, CommitTokenServiceImpl.parseLsn("0/16B374D848"));
+        assertEquals((0x16L << 32) | 0xB374D848L, CommitTokenServiceImpl.parseLsn("16/B374D848"));
+        assertTrue(CommitTokenServiceImpl.parseLsn("1/0") > CommitTokenServiceImpl.parseLsn("0/FFFFFFFF"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseLsn_Invalid() {
+        CommitTokenServiceImpl.parseLsn("16B374D848");
+    }
+
+    @Test
+    public void testCurrentToken() throws SQLException {
+        setLsn(dataSource.unwrap(ReadWriteRoutingDataSource.class).getPrimary(), "0/3000060");
+        assertEquals("0/3000060", commitTokenService.currentToken());
+    }
+
+    @Test
+    public void testIsVisibleOnReplica() throws SQLException {
+        setLsn(dataSource.unwrap(ReadWriteRoutingDataSource.class).getReplica(), "0/3000060");
+        assertTrue(commitTokenService.isVisibleOnReplica("0/3000060"));
+        assertTrue(commitTokenService.isVisibleOnReplica("0/2FFFFFF"));
+        assertFalse(commitTokenService.isVisibleOnReplica("0/3000061"));
+        assertFalse(commitTokenService.isVisibleOnReplica("1/0"));
+        //unknown token is read from the primary
+        assertFalse(commitTokenService.isVisibleOnReplica("abc"));
+        //not a token
+        assertTrue(commitTokenService.isVisibleOnReplica(null));
+    }
+
+    @Test
+    public void testIsVisibleOnReplica_ReplicaLsnUnknown() throws SQLException {
+        setLsn(dataSource.unwrap(ReadWriteRoutingDataSource.class).getReplica(), null);
+        assertFalse(commitTokenService.isVisibleOnReplica("0/1"));
+    }
+}
@@ -0,0 +1,75 @@
+package com.zilch.datasource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ReadWriteRoutingDataSource tests, primary and replica are two in-memory databases
+ * @author Elena Medvedeva
+ */
+public class ReadWriteRoutingDataSourceTest {
+
+    private static final String SELECT_ROLE = "select name from db_role";
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate readOnly;
+    private TransactionTemplate readWrite;
+
+    @Before
+    public void before() {
+        DataSource dataSource = new LazyConnectionDataSourceProxy(
+                new ReadWriteRoutingDataSource(database("primary"), database("replica")));
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        readWrite = new TransactionTemplate(transactionManager);
+        readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+    }
+
+    @After
+    public void after() {
+        RoutingContext.clear();
+    }
+
+    private static DataSource database(String name) {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("create table if not exists db_role (name varchar(10))");
+        jdbc.execute("delete from db_role");
+        jdbc.update("insert into db_role values (?)", name);
+        return dataSource;
+    }
+
+    @Test
+    public void testReadOnlyTransaction_UsesReplica() {
+        assertEquals("replica", readOnly.execute(status -> jdbcTemplate.queryForObject(SELECT_ROLE, String.class)));
+    }
+
+    @Test
+    public void testReadWriteTransaction_UsesPrimary() {
+        assertEquals("primary", readWrite.execute(status -> jdbcTemplate.queryForObject(SELECT_ROLE, String.class)));
+    }
+
+    @Test
+    public void testNoTransaction_UsesPrimary() {
+        assertEquals("primary", jdbcTemplate.queryForObject(SELECT_ROLE, String.class));
+    }
+
+    @Test
+    public void testReadOnlyTransaction_PinnedToPrimary() {
+        RoutingContext.pinToPrimary();
+        assertEquals("primary", readOnly.execute(status -> jdbcTemplate.queryForObject(SELECT_ROLE, String.class)));
+        RoutingContext.clear();
+        assertEquals("replica", readOnly.execute(status -> jdbcTemplate.queryForObject(SELECT_ROLE, String.class)));
+    }
+}
@@ -0,0 +1,216 @@
+package com.zilch.executor;
+
+import com.zilch.entities.Transaction;
+import com.zilch.exceptions.CardException;
+import com.zilch.service.TransactionBatchService;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.dto.TransactionBatchResult.Status;
+import com.zilch.view.model.TransactionModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+
+/**
+ * CardGroupCommitExecutor tests
+ *
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@TestPropertySource(properties = {
+        "application.transaction.group-commit.enabled=true",
+        "application.transaction.group-commit.window-us=100000",
+        "application.transaction.group-commit.max-items=3",
+        "application.transaction.group-commit.threads=2"
+})
+public class CardGroupCommitExecutorTest {
+    @TestConfiguration
+    static class CardGroupCommitExecutorTestContextConfiguration {
+        @Bean
+        public CardGroupCommitExecutor cardGroupCommitExecutor() {
+            return new CardGroupCommitExecutor();
+        }
+
+        @Bean
+        public CardShardExecutor cardShardExecutor() {
+            return new CardShardExecutor();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private CardGroupCommitExecutor executor;
+
+    @MockBean
+    private TransactionBatchService batchService;
+
+    private static TransactionModel transaction(String globalId, String cardId) {
+        return new TransactionModel(globalId, "GBP", cardId, "C", "10", "group");
+    }
+
+    /**
+     * Batch service answer: every item is created, except items with globalId starting with the status name
+     */
+    private void answerByGlobalId() throws CardException {
+        Mockito.when(batchService.createTransactions(any())).thenAnswer(invocation -> {
+            List<TransactionModel> items = invocation.getArgument(0);
+            List<TransactionBatchResult> results = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                String globalId = items.get(i).getGlobalId();
+                Status status = globalId.startsWith(Status.DUPLICATE.name()) ? Status.DUPLICATE :
+                        globalId.startsWith(Status.INSUFFICIENT_FUNDS.name()) ? Status.INSUFFICIENT_FUNDS : Status.CREATED;
+                TransactionBatchResult result = new TransactionBatchResult(i, globalId, status, status == Status.CREATED ? i : null, status.name());
+                if (status == Status.CREATED) {
+                    Transaction transaction = new Transaction();
+                    transaction.setGlobalId(globalId);
+                    result.setTransaction(transaction);
+                }
+                results.add(result);
+            }
+            return results;
+        });
+    }
+
+    @Test
+    public void testSubmit_SameCardCommittedTogether() throws Exception {
+        answerByGlobalId();
+        CompletableFuture<Transaction> first = executor.submit(transaction("g1", "1"));
+        CompletableFuture<Transaction> second = executor.submit(transaction("g2", "1"));
+        CompletableFuture<Transaction> other = executor.submit(transaction("g3", "2"));
+
+        assertEquals("g1", first.get().getGlobalId());
+        assertEquals("g2", second.get().getGlobalId());
+        assertEquals("g3", other.get().getGlobalId());
+        Mockito.verify(batchService).createTransactions(argThat(items -> items.size() == 2
+                && items.get(0).getGlobalId().equals("g1") && items.get(1).getGlobalId().equals("g2")));
+        Mockito.verify(batchService).createTransactions(argThat(items -> items.size() == 1 && items.get(0).getGlobalId().equals("g3")));
+    }
+
+    @Test
+    public void testSubmit_OwnOutcomePerCaller() throws Exception {
+        answerByGlobalId();
+        CompletableFuture<Transaction> created = executor.submit(transaction("g4", "3"));
+        CompletableFuture<Transaction> duplicate = executor.submit(transaction(Status.DUPLICATE.name(), "3"));
+        CompletableFuture<Transaction> notEnoughFunds = executor.submit(transaction(Status.INSUFFICIENT_FUNDS.name(), "3"));
+
+        assertEquals("g4", created.get().getGlobalId());
+        assertEquals(HttpStatus.CONFLICT.value(), errorCode(duplicate));
+        assertEquals(HttpStatus.BAD_REQUEST.value(), errorCode(notEnoughFunds));
+    }
+
+    @Test
+    public void testSubmit_FullGroupIsNotWaitingForWindow() throws Exception {
+        answerByGlobalId();
+        long start = System.nanoTime();
+        List<CompletableFuture<Transaction>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(executor.submit(transaction("full" + i, "4")));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        assertTrue((System.nanoTime() - start) / 1000 < 100000);
+    }
+
+    @Test
+    public void testSubmit_GroupFailureCompletesAllCallers() throws Exception {
+        Mockito.when(batchService.createTransactions(any())).thenThrow(new IllegalStateException("database is down"));
+        CompletableFuture<Transaction> first = executor.submit(transaction("f1", "5"));
+        CompletableFuture<Transaction> second = executor.submit(transaction("f2", "5"));
+        for (CompletableFuture<Transaction> future : new CompletableFuture[]{first, second}) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        //the group and then every transaction alone
+        Mockito.verify(batchService, Mockito.times(3)).createTransactions(any());
+    }
+
+    @Test
+    public void testSubmit_FailingTransactionDoesntFailTheGroup() throws Exception {
+        Mockito.when(batchService.createTransactions(any())).thenAnswer(invocation -> {
+            List<TransactionModel> items = invocation.getArgument(0);
+            if (items.stream().anyMatch(item -> item.getGlobalId().equals("bad"))) {
+                throw new IllegalStateException("unexpected failure");
+            }
+            Transaction transaction = new Transaction();
+            transaction.setGlobalId(items.get(0).getGlobalId());
+            TransactionBatchResult result = new TransactionBatchResult(0, items.get(0).getGlobalId(), Status.CREATED, 1, null);
+            result.setTransaction(transaction);
+            return Collections.singletonList(result);
+        });
+        CompletableFuture<Transaction> good = executor.submit(transaction("good", "6"));
+        CompletableFuture<Transaction> bad = executor.submit(transaction("bad", "6"));
+
+        assertEquals("good", good.get().getGlobalId());
+        try {
+            bad.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testSubmit_WrongCardId() throws Exception {
+        assertEquals(HttpStatus.BAD_REQUEST.value(), errorCode(executor.submit(transaction("w1", "abc"))));
+        Mockito.verifyZeroInteractions(batchService);
+    }
+
+    private int errorCode(CompletableFuture<Transaction> future) throws InterruptedException {
+        try {
+            future.get();
+            fail();
+            return 0;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CardException);
+            return ((CardException) e.getCause()).getErrorCode();
+        }
+    }
+
+    @Test
+    public void testSubmit_ClosedGroupIsNotReused() throws Exception {
+        answerByGlobalId();
+        Map<Integer, ?> groups = (Map<Integer, ?>) ReflectionTestUtils.getField(executor, "groups");
+        CompletableFuture<Transaction> first = executor.submit(transaction("g20", "9"));
+        //group looked up by a caller which is not adding its transaction yet
+        Object group = groups.get(9);
+        assertEquals("g20", first.get().getGlobalId());
+        //idle group is closed and removed after its commit
+        long deadline = System.currentTimeMillis() + 10000;
+        while (groups.get(9) == group && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertNotSame(group, groups.get(9));
+
+        //the late caller doesn't add to the closed group, which would be committed next to a new group of the card
+        assertNull(ReflectionTestUtils.invokeMethod(group, "add", transaction("g21", "9")));
+        CompletableFuture<Transaction> next = executor.submit(transaction("g21", "9"));
+        assertEquals("g21", next.get().getGlobalId());
+    }
+}
@@ -0,0 +1,120 @@
+package com.zilch.executor;
+
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * CardShardExecutor tests
+ *
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@TestPropertySource(properties = {"application.card.shards.enabled=true", "application.card.shards.count=4"})
+public class CardShardExecutorTest {
+    @TestConfiguration
+    static class CardShardExecutorTestContextConfiguration {
+        @Bean
+        public CardShardExecutor cardShardExecutor() {
+            return new CardShardExecutor();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private CardShardExecutor executor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    public void testShardOf() {
+        assertEquals(1, executor.shardOf(1));
+        assertEquals(1, executor.shardOf("5"));
+        assertEquals(executor.shardOf(6), executor.shardOf("6"));
+        assertTrue(executor.shardOf("not a number") >= 0);
+    }
+
+    @Test
+    public void testSubmit_SameCardSameThread() throws Exception {
+        CompletableFuture<String> first = executor.submit(3, () -> Thread.currentThread().getName());
+        CompletableFuture<String> second = executor.submit("7", () -> Thread.currentThread().getName());
+        assertEquals("card-shard-3", first.get());
+        assertEquals(first.get(), second.get());
+    }
+
+    @Test
+    public void testSubmit_SameCardSerialized() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(executor.submit(2, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(1);
+                return running.decrementAndGet();
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        assertEquals(1, maxRunning.get());
+        assertNotNull(meterRegistry.find(CardShardExecutor.METRIC_WAIT).tag(CardShardExecutor.TAG_SHARD, "2").timer());
+        assertEquals(50, meterRegistry.find(CardShardExecutor.METRIC_WAIT).tag(CardShardExecutor.TAG_SHARD, "2").timer().count());
+    }
+
+    @Test
+    public void testSubmit_ExceptionCompletesFuture() throws InterruptedException {
+        String error = String.format(ErrorMessage.NOT_ENOUGH_FUNDS, 1, "100");
+        CompletableFuture<Object> future = executor.submit(1, () -> {
+            throw new CardException(error, HttpStatus.BAD_REQUEST.value());
+        });
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CardException);
+            assertEquals(error, e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testSubmitToShard_NestedSubmitRunsInPlace() throws Exception {
+        CompletableFuture<String> future = executor.submitToShard(1, () ->
+                CardShardExecutor.join(executor.submit(5, () -> Thread.currentThread().getName())));
+        assertEquals("card-shard-1", future.get());
+        assertEquals(4, executor.getShardsCount());
+    }
+
+    @Test
+    public void testExecute_CardExceptionIsRethrown() {
+        String error = String.format(ErrorMessage.NOT_ENOUGH_FUNDS, 1, "100");
+        try {
+            executor.execute(1, () -> {
+                throw new CardException(error, HttpStatus.BAD_REQUEST.value());
+            });
+            fail();
+        } catch (CardException e) {
+            assertEquals(error, e.getMessage());
+        }
+    }
+}
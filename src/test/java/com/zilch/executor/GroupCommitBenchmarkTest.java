@@ -0,0 +1,148 @@
+package com.zilch.executor;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.Card;
+import com.zilch.entities.Currency;
+import com.zilch.entities.TransactionType;
+import com.zilch.repository.*;
+import com.zilch.service.TransactionService;
+import com.zilch.view.model.TransactionModel;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of concurrent transactions on one hot card: one database transaction per request
+ * against group commit (CardGroupCommitExecutor).
+ * <p>Skipped unless run with -Dbenchmark=true, e.g.
+ * mvn test -Dtest=GroupCommitBenchmarkTest -Dbenchmark=true
+ * Throughput of both modes is printed.</p>
+ * Use in-memory h2database
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.transaction.group-commit.enabled=true",
+        "application.transaction.group-commit.window-us=1000",
+        "application.transaction.group-commit.max-items=100"
+})
+public class GroupCommitBenchmarkTest {
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String LAST_UPDATED_BY = "user";
+    public static final String USER = "benchmark-user";
+    public static final Integer CURRENCY_ID = 1;
+    public static final int CLIENTS = 32;
+    public static final int WARMUP = 500;
+    public static final int ITERATIONS = 4000;
+
+    @Value("${application.transaction.type.credit}")
+    String credit;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private CardGroupCommitExecutor groupCommitExecutor;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    private Card card;
+    private final AtomicInteger globalIdCounter = new AtomicInteger();
+
+    @Before
+    public void before() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        Currency currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, LAST_UPDATED_BY));
+        transactionTypeRepository.save(new TransactionType(credit, "credit trn", LAST_UPDATED_BY));
+        referenceDataCache.refresh();
+        card = cardRepository.save(new Card(USER, currency, new BigDecimal(0), LAST_UPDATED_BY));
+    }
+
+    @After
+    public void after() {
+        if (card != null) {
+            outboxEventRepository.deleteAllInBatch();
+            transactionRepository.deleteAllInBatch();
+            cardRepository.deleteAllInBatch();
+            transactionTypeRepository.deleteAllInBatch();
+            currencyRepository.deleteAllInBatch();
+        }
+    }
+
+    private TransactionModel transaction() {
+        return new TransactionModel("gc" + globalIdCounter.incrementAndGet(), TEST_CURRENCY, card.getId().toString(), credit, "1", "benchmark");
+    }
+
+    /**
+     * Runs iterations requests by CLIENTS concurrent clients, every client waits for its response
+     */
+    private void run(boolean groupCommit, int iterations) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<?>> results = new ArrayList<>();
+        AtomicInteger left = new AtomicInteger(iterations);
+        for (int i = 0; i < CLIENTS; i++) {
+            results.add(clients.submit(() -> {
+                while (left.decrementAndGet() >= 0) {
+                    TransactionModel model = transaction();
+                    if (groupCommit) {
+                        groupCommitExecutor.submit(model).get();
+                    } else {
+                        transactionService.createTransaction(model.getGlobalId(), model.getCurrency(), model.getcardId(),
+                                model.getTransactionTypeId(), model.getAmount(), model.getDescription());
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        clients.shutdown();
+    }
+
+    private void measure(boolean groupCommit) throws Exception {
+        run(groupCommit, WARMUP);
+        long started = System.nanoTime();
+        run(groupCommit, ITERATIONS);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        System.out.printf("groupCommit=%s: %d transactions/s (%d transactions on one card, %d clients)%n",
+                groupCommit, ITERATIONS * 1000L / Math.max(millis, 1), ITERATIONS, CLIENTS);
+    }
+
+    @Test
+    public void testHotCardThroughput() throws Exception {
+        measure(false);
+        measure(true);
+    }
+}
@@ -0,0 +1,86 @@
+package com.zilch.gson;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zilch.entities.*;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * GsonView tests
+ *
+ * @author Elena Medvedeva
+ */
+public class GsonViewTest {
+    public static final String USER = "user";
+
+    private Card card;
+    private Purchase purchase;
+    private Transaction transaction;
+
+    public GsonViewTest() {
+        Currency currency = new Currency(1, "GBP", USER);
+        card = new Card(USER, currency, new BigDecimal(100), USER);
+        card.setId(1);
+        purchase = new Purchase("p1", "shop", currency, new BigDecimal(40), card, "purchase", USER);
+        purchase.setId(2);
+        transaction = new Transaction("t1", new TransactionType("D", "debit", USER), new BigDecimal(10), card, purchase, currency, "transaction", USER);
+        transaction.setId(3);
+        card.setPurchases(Collections.singletonList(purchase));
+        card.setTransactions(Collections.singletonList(transaction));
+        purchase.setTransactions(Collections.singletonList(transaction));
+    }
+
+    private JsonObject toJson(GsonView view, Object o) {
+        return new JsonParser().parse(view.gson().toJson(o)).getAsJsonObject();
+    }
+
+    @Test
+    public void testGson_SameInstance() {
+        assertSame(GsonView.CARD_LIST.gson(), GsonView.CARD_LIST.gson());
+    }
+
+    @Test
+    public void testCardDetail() {
+        JsonObject json = toJson(GsonView.CARD_DETAIL, card);
+        assertFalse(json.has("transactions"));
+        JsonObject purchaseJson = json.getAsJsonArray("purchases").get(0).getAsJsonObject();
+        assertFalse(purchaseJson.has("card"));
+        JsonObject transactionJson = purchaseJson.getAsJsonArray("transactions").get(0).getAsJsonObject();
+        assertFalse(transactionJson.has("card"));
+        assertFalse(transactionJson.has("purchase"));
+    }
+
+    @Test
+    public void testCardList() {
+        JsonObject json = toJson(GsonView.CARD_LIST, card);
+        assertEquals(1, json.get("id").getAsInt());
+        assertFalse(json.has("transactions"));
+        assertFalse(json.has("purchases"));
+    }
+
+    @Test
+    public void testPurchaseList() {
+        JsonObject json = toJson(GsonView.PURCHASE_LIST, purchase);
+        JsonObject cardJson = json.getAsJsonObject("card");
+        assertFalse(cardJson.has("transactions"));
+        assertFalse(cardJson.has("purchases"));
+        JsonObject transactionJson = json.getAsJsonArray("transactions").get(0).getAsJsonObject();
+        assertFalse(transactionJson.has("card"));
+        assertFalse(transactionJson.has("purchase"));
+    }
+
+    @Test
+    public void testTransactionCreated() {
+        card.setPurchases(null);
+        JsonObject json = toJson(GsonView.TRANSACTION_CREATED, transaction);
+        assertFalse(json.has("purchase"));
+        JsonObject cardJson = json.getAsJsonObject("card");
+        assertEquals(1, cardJson.get("id").getAsInt());
+        assertFalse(cardJson.has("transactions"));
+    }
+}
@@ -0,0 +1,66 @@
+package com.zilch.gson.writer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zilch.entities.Card;
+import com.zilch.entities.Currency;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * CursorPageWriter tests
+ *
+ * @author Elena Medvedeva
+ */
+public class CursorPageWriterTest {
+    public static final String USER = "user";
+
+    private Card card(int id) {
+        Card card = new Card(USER, new Currency(1, "GBP", USER), new BigDecimal(id), USER);
+        card.setId(id);
+        return card;
+    }
+
+    private JsonObject write(List<Card> rows, int limit, List<Card> written) throws IOException {
+        StringWriter out = new StringWriter();
+        new CursorPageWriter<Card>(new Gson(), out).write(rows.iterator(), limit, Card::getId, written::add);
+        return new JsonParser().parse(out.toString()).getAsJsonObject();
+    }
+
+    @Test
+    public void testWrite_LastPage() throws IOException {
+        List<Card> written = new ArrayList<>();
+        JsonObject page = write(Arrays.asList(card(1), card(2)), 2, written);
+        assertEquals(2, page.getAsJsonArray(CursorPageWriter.ITEMS).size());
+        assertEquals(2, page.getAsJsonArray(CursorPageWriter.ITEMS).get(1).getAsJsonObject().get("id").getAsInt());
+        assertFalse(page.has(CursorPageWriter.NEXT_CURSOR));
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void testWrite_HasNextPage() throws IOException {
+        List<Card> written = new ArrayList<>();
+        JsonObject page = write(Arrays.asList(card(3), card(5), card(8)), 2, written);
+        assertEquals(2, page.getAsJsonArray(CursorPageWriter.ITEMS).size());
+        assertEquals(5, page.get(CursorPageWriter.NEXT_CURSOR).getAsInt());
+        //extra row is only used to detect the next page
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void testWrite_Empty() throws IOException {
+        JsonObject page = write(Collections.emptyList(), 2, new ArrayList<>());
+        assertEquals(0, page.getAsJsonArray(CursorPageWriter.ITEMS).size());
+        assertFalse(page.has(CursorPageWriter.NEXT_CURSOR));
+    }
+}
@@ -0,0 +1,178 @@
+package com.zilch.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.*;
+
+/**
+ * MappedJournal tests
+ * @author Elena Medvedeva
+ */
+public class MappedJournalTest {
+
+    //one test record per segment
+    private static final int SMALL_SEGMENT = 40;
+    private static final int SEGMENT = 1 << 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] payload(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readAll(MappedJournal.Cursor cursor) {
+        List<String> records = new ArrayList<>();
+        MappedJournal.Record record;
+        while ((record = cursor.next()) != null) {
+            records.add(record.getSequence() + ":" + new String(record.getPayload(), StandardCharsets.UTF_8));
+        }
+        return records;
+    }
+
+    @Test
+    public void testAppend_OnlyDurableRecordsAreRead() throws IOException {
+        try (MappedJournal journal = new MappedJournal(folder.getRoot().toPath(), SEGMENT)) {
+            assertEquals(1, journal.append(payload("a")));
+            assertEquals(2, journal.append(payload("b")));
+            MappedJournal.Cursor cursor = journal.cursor(0);
+            assertNull(cursor.next());
+
+            journal.sync(2);
+            assertEquals(3, journal.append(payload("c")));
+            assertEquals(2, journal.getDurableSequence());
+            assertEquals(Arrays.asList("1:a", "2:b"), readAll(cursor));
+
+            journal.sync(3);
+            assertEquals(Collections.singletonList("3:c"), readAll(cursor));
+        }
+    }
+
+    @Test
+    public void testAppend_RollsSegments() throws IOException {
+        try (MappedJournal journal = new MappedJournal(folder.getRoot().toPath(), SMALL_SEGMENT)) {
+            for (int i = 1; i <= 5; i++) {
+                journal.append(payload("record" + i));
+            }
+            journal.sync(5);
+            assertEquals(5, journal.getSegmentCount());
+            assertEquals(5, readAll(journal.cursor(0)).size());
+            assertEquals(Arrays.asList("4:record4", "5:record5"), readAll(journal.cursor(3)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppend_RecordLargerThanSegment() throws IOException {
+        try (MappedJournal journal = new MappedJournal(folder.getRoot().toPath(), SMALL_SEGMENT)) {
+            journal.append(new byte[SMALL_SEGMENT]);
+        }
+    }
+
+    @Test
+    public void testOpen_CutsOffTornRecord() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (MappedJournal journal = new MappedJournal(directory, SEGMENT)) {
+            journal.append(payload("first"));
+            journal.sync(journal.append(payload("second")));
+        }
+        //damage the payload of the second record as if it wasn't written completely
+        Path segment = directory.resolve(String.format("%s%020d%s", MappedJournal.SEGMENT_PREFIX, 1, MappedJournal.SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(segment, READ, WRITE)) {
+            int second = MappedJournal.HEADER_BYTES + "first".length();
+            channel.write(ByteBuffer.wrap(payload("X")), second + MappedJournal.HEADER_BYTES);
+        }
+
+        try (MappedJournal journal = new MappedJournal(directory, SEGMENT)) {
+            assertEquals(1, journal.getDurableSequence());
+            journal.sync(journal.append(payload("third")));
+            assertEquals(Arrays.asList("1:first", "2:third"), readAll(journal.cursor(0)));
+        }
+        try (MappedJournal journal = new MappedJournal(directory, SEGMENT)) {
+            assertEquals(2, journal.getDurableSequence());
+        }
+    }
+
+    @Test
+    public void testCheckpoint_DeletesAppliedSegmentsAndIsKeptOnReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (MappedJournal journal = new MappedJournal(directory, SMALL_SEGMENT)) {
+            for (int i = 1; i <= 4; i++) {
+                journal.append(payload("record" + i));
+            }
+            journal.sync(4);
+            journal.checkpoint(2);
+            assertEquals(2, journal.getAppliedSequence());
+            assertEquals(2, journal.getSegmentCount());
+        }
+
+        try (MappedJournal journal = new MappedJournal(directory, SMALL_SEGMENT)) {
+            assertEquals(2, journal.getAppliedSequence());
+            assertEquals(4, journal.getDurableSequence());
+            assertEquals(Arrays.asList("3:record3", "4:record4"), readAll(journal.cursor(journal.getAppliedSequence())));
+            assertEquals(5, journal.append(payload("record5")));
+        }
+    }
+
+    @Test
+    public void testCheckpoint_SequenceContinuesWhenAllSegmentsAreApplied() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (MappedJournal journal = new MappedJournal(directory, SMALL_SEGMENT)) {
+            journal.append(payload("record1"));
+            journal.sync(journal.append(payload("record2")));
+            journal.checkpoint(2);
+            //the current segment is never deleted
+            assertEquals(1, journal.getSegmentCount());
+        }
+        try (MappedJournal journal = new MappedJournal(directory, SMALL_SEGMENT)) {
+            assertEquals(3, journal.append(payload("record3")));
+        }
+    }
+
+    @Test
+    public void testSync_ConcurrentAppendsAreAllDurable() throws Exception {
+        int threads = 8;
+        int appends = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (MappedJournal journal = new MappedJournal(folder.getRoot().toPath(), 4096)) {
+            List<Future<Set<Long>>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    Set<Long> sequences = new HashSet<>();
+                    for (int i = 0; i < appends; i++) {
+                        long sequence = journal.append(payload(thread + "-" + i));
+                        journal.sync(sequence);
+                        assertTrue(journal.getDurableSequence() >= sequence);
+                        sequences.add(sequence);
+                    }
+                    return sequences;
+                }));
+            }
+            Set<Long> sequences = new HashSet<>();
+            for (Future<Set<Long>> future : futures) {
+                sequences.addAll(future.get(1, TimeUnit.MINUTES));
+            }
+            assertEquals(threads * appends, sequences.size());
+            assertEquals(threads * appends, readAll(journal.cursor(0)).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
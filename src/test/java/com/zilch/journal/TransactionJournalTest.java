@@ -0,0 +1,287 @@
+package com.zilch.journal;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.Card;
+import com.zilch.entities.Currency;
+import com.zilch.entities.TransactionType;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.repository.*;
+import com.zilch.service.TransactionService;
+import com.zilch.view.dto.JournalReceipt;
+import com.zilch.view.model.PurchaseModel;
+import com.zilch.view.model.TransactionModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of applying journaled transactions and purchases to the database
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.journal.enabled=true",
+        "application.journal.directory=target/journal-${random.uuid}",
+        "application.journal.apply.poll-ms=3600000"
+})
+public class TransactionJournalTest {
+    public static final Integer CURRENCY_ID = 1;
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "journal-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Value("${application.transaction.type.credit}")
+    private String credit;
+
+    @Autowired
+    private TransactionJournal transactionJournal;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private PurchaseRepository purchaseRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Currency currency;
+
+    @Before
+    public void before() {
+        currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, USER));
+        transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        transactionTypeRepository.save(new TransactionType(credit, "credit", USER));
+        referenceDataCache.refresh();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        purchaseRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private Card card(int balance) {
+        return cardRepository.save(new Card(USER, currency, new BigDecimal(balance), USER));
+    }
+
+    private BigDecimal balance(Card card) {
+        return cardRepository.findById(card.getId()).get().getBalance();
+    }
+
+    private TransactionModel transaction(Card card, String type, int amount) {
+        return new TransactionModel("journal" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), type, String.valueOf(amount), "journaled");
+    }
+
+    private double lag() {
+        return meterRegistry.get(TransactionJournal.METRIC_LAG).gauge().value();
+    }
+
+    @Test
+    public void testApply_CreatesTransactionsAndPurchasesInOrder() throws CardException, IOException {
+        Card card = card(0);
+        TransactionModel credit = transaction(card, this.credit, 100);
+        PurchaseModel purchase = new PurchaseModel("journal" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), "40", "ZARA", "journaled");
+        TransactionModel debit = transaction(card, this.debit, 30);
+
+        long first = transactionJournal.acceptTransaction(credit);
+        assertEquals(first + 1, transactionJournal.acceptPurchase(purchase));
+        assertEquals(first + 2, transactionJournal.acceptTransaction(debit));
+        assertEquals(3, lag(), 0);
+
+        assertEquals(3, transactionJournal.apply());
+        assertNotNull(transactionRepository.findByGlobalId(credit.getGlobalId()));
+        assertTrue(purchaseRepository.existsByGlobalId(purchase.getGlobalId()));
+        assertNotNull(transactionRepository.findByGlobalId(debit.getGlobalId()));
+        //credit 100, first installment of the purchase 10, debit 30
+        assertEquals(0, new BigDecimal(60).compareTo(balance(card)));
+        assertEquals(0, lag(), 0);
+        assertEquals(0, transactionJournal.apply());
+    }
+
+    @Test
+    public void testApply_SkipsAlreadyCreatedTransaction() throws CardException, IOException {
+        Card card = card(0);
+        TransactionModel credit = transaction(card, this.credit, 100);
+        transactionService.createTransaction(credit.getGlobalId(), credit.getCurrency(), credit.getcardId(),
+                credit.getTransactionTypeId(), credit.getAmount(), credit.getDescription());
+
+        transactionJournal.acceptTransaction(credit);
+        assertEquals(1, transactionJournal.apply());
+        assertEquals(0, new BigDecimal(100).compareTo(balance(card)));
+    }
+
+    @Test
+    public void testApply_RejectedEntryIsSkipped() throws CardException, IOException {
+        Card card = card(10);
+        TransactionModel rejected = transaction(card, this.debit, 30);
+        TransactionModel debit = transaction(card, this.debit, 5);
+        double rejectedBefore = meterRegistry.get(TransactionJournal.METRIC_REJECTED).counter().count();
+
+        transactionJournal.acceptTransaction(rejected);
+        transactionJournal.acceptTransaction(debit);
+        assertEquals(2, transactionJournal.apply());
+
+        assertNull(transactionRepository.findByGlobalId(rejected.getGlobalId()));
+        assertNotNull(transactionRepository.findByGlobalId(debit.getGlobalId()));
+        assertEquals(0, new BigDecimal(5).compareTo(balance(card)));
+        assertEquals(rejectedBefore + 1, meterRegistry.get(TransactionJournal.METRIC_REJECTED).counter().count(), 0);
+        assertEquals(0, lag(), 0);
+    }
+
+    @Test
+    public void testApply_MalformedEntryIsSkipped() throws CardException, IOException {
+        Card card = card(10);
+        TransactionModel malformed = new TransactionModel("journal" + globalIdCounter++, TEST_CURRENCY, "abc", this.debit, "5", "journaled");
+        //fails parameter validation of the service with ConstraintViolationException
+        TransactionModel blank = new TransactionModel("journal" + globalIdCounter++, "", card.getId().toString(), this.debit, "5", "journaled");
+        TransactionModel debit = transaction(card, this.debit, 5);
+        double rejectedBefore = meterRegistry.get(TransactionJournal.METRIC_REJECTED).counter().count();
+
+        //such entries are not accepted anymore, but can be in the journal written by an older version
+        transactionJournal.accept(new TransactionJournal.Entry(malformed, null));
+        transactionJournal.accept(new TransactionJournal.Entry(blank, null));
+        transactionJournal.acceptTransaction(debit);
+        assertEquals(3, transactionJournal.apply());
+
+        assertNull(transactionRepository.findByGlobalId(malformed.getGlobalId()));
+        assertNull(transactionRepository.findByGlobalId(blank.getGlobalId()));
+        assertNotNull(transactionRepository.findByGlobalId(debit.getGlobalId()));
+        assertEquals(rejectedBefore + 2, meterRegistry.get(TransactionJournal.METRIC_REJECTED).counter().count(), 0);
+        assertEquals(0, lag(), 0);
+        assertEquals(0, transactionJournal.apply());
+    }
+
+    private void assertNotAccepted(TransactionModel transaction, String error) {
+        try {
+            transactionJournal.acceptTransaction(transaction);
+            fail();
+        } catch (CardException e) {
+            assertEquals(error, e.getMessage());
+            assertEquals(HttpStatus.BAD_REQUEST.value(), e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testAccept_InvalidTransactionIsNotJournaled() throws CardException {
+        Card card = card(10);
+        String cardId = card.getId().toString();
+        assertNotAccepted(new TransactionModel("journal" + globalIdCounter++, TEST_CURRENCY, "abc", debit, "5", "journaled"),
+                String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, "abc"));
+        assertNotAccepted(new TransactionModel("journal" + globalIdCounter++, TEST_CURRENCY, cardId, debit, "5a", "journaled"),
+                String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, "5a"));
+        assertNotAccepted(new TransactionModel("journal" + globalIdCounter++, "XXX", cardId, debit, "5", "journaled"),
+                String.format(ErrorMessage.NO_CURRENCY_PRESENT, "XXX"));
+        assertNotAccepted(new TransactionModel("journal" + globalIdCounter++, TEST_CURRENCY, cardId, "X", "5", "journaled"),
+                String.format(ErrorMessage.NO_TRANSACTION_TYPE_PRESENT, "X"));
+        try {
+            transactionJournal.acceptPurchase(new PurchaseModel("journal" + globalIdCounter++, TEST_CURRENCY, "abc", "40", "ZARA", "journaled"));
+            fail();
+        } catch (CardException e) {
+            assertEquals(String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, "abc"), e.getMessage());
+        }
+        assertEquals(0, lag(), 0);
+    }
+
+    @Test
+    public void testAccept_CardIsCheckedWhenApplied() throws CardException, IOException {
+        Card card = card(10);
+        Currency eur = currencyRepository.save(new Currency(2, "EUR", USER));
+        referenceDataCache.refresh();
+        TransactionModel unknownCard = new TransactionModel("journal" + globalIdCounter++, TEST_CURRENCY, String.valueOf(Integer.MAX_VALUE), debit, "5", "journaled");
+        TransactionModel otherCurrency = new TransactionModel("journal" + globalIdCounter++, eur.getName(), card.getId().toString(), debit, "5", "journaled");
+        long first = transactionJournal.acceptTransaction(unknownCard);
+        long second = transactionJournal.acceptTransaction(otherCurrency);
+
+        assertEquals(2, transactionJournal.apply());
+        JournalReceipt status = transactionJournal.status(unknownCard.getGlobalId(), first);
+        assertEquals(JournalReceipt.STATUS_REJECTED, status.getStatus());
+        assertEquals(String.format(ErrorMessage.NO_CARD_FOUND, Integer.MAX_VALUE), status.getError());
+        assertEquals(JournalReceipt.STATUS_REJECTED, transactionJournal.status(otherCurrency.getGlobalId(), second).getStatus());
+        assertEquals(0, new BigDecimal(10).compareTo(balance(card)));
+    }
+
+    @Test
+    public void testStatus_DuplicateIsRejected() throws CardException, IOException {
+        Card card = card(10);
+        TransactionModel debit = transaction(card, this.debit, 5);
+        long first = transactionJournal.acceptTransaction(debit);
+        long second = transactionJournal.acceptTransaction(debit);
+        assertEquals(Long.valueOf(first), transactionJournal.status(debit.getGlobalId(), first).getSequence());
+        assertEquals(JournalReceipt.STATUS_ACCEPTED, transactionJournal.status(debit.getGlobalId(), first).getStatus());
+
+        assertEquals(2, transactionJournal.apply());
+        assertEquals(JournalReceipt.STATUS_APPLIED, transactionJournal.status(debit.getGlobalId(), first).getStatus());
+        JournalReceipt status = transactionJournal.status(debit.getGlobalId(), second);
+        assertEquals(JournalReceipt.STATUS_REJECTED, status.getStatus());
+        assertEquals(String.format(ErrorMessage.TRANSACTION_WITH_GLOBAL_ID_PRESENT, debit.getGlobalId()), status.getError());
+        assertEquals(0, new BigDecimal(5).compareTo(balance(card)));
+    }
+
+    @Test
+    public void testStatus_AcceptedAppliedRejected() throws CardException, IOException {
+        Card card = card(10);
+        TransactionModel debit = transaction(card, this.debit, 5);
+        TransactionModel rejected = transaction(card, this.debit, 30);
+        long first = transactionJournal.acceptTransaction(debit);
+        long second = transactionJournal.acceptTransaction(rejected);
+        assertEquals(JournalReceipt.STATUS_ACCEPTED, transactionJournal.status(debit.getGlobalId(), null).getStatus());
+        assertEquals(Long.valueOf(second), transactionJournal.status(rejected.getGlobalId(), null).getSequence());
+
+        assertEquals(2, transactionJournal.apply());
+        assertEquals(JournalReceipt.STATUS_APPLIED, transactionJournal.status(debit.getGlobalId(), first).getStatus());
+        JournalReceipt status = transactionJournal.status(rejected.getGlobalId(), null);
+        assertEquals(JournalReceipt.STATUS_REJECTED, status.getStatus());
+        assertEquals(String.format(ErrorMessage.NOT_ENOUGH_FUNDS, card.getId(), "30"), status.getError());
+
+        //processed entry which is not in the database is rejected, even if its error is not known anymore
+        assertEquals(JournalReceipt.STATUS_REJECTED, transactionJournal.status("journal-unknown", second).getStatus());
+        try {
+            transactionJournal.status("journal-unknown", null);
+            fail();
+        } catch (CardException e) {
+            assertEquals(HttpStatus.NOT_FOUND.value(), e.getErrorCode());
+        }
+    }
+}
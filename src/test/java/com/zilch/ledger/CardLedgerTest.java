@@ -0,0 +1,222 @@
+package com.zilch.ledger;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.Card;
+import com.zilch.entities.Currency;
+import com.zilch.entities.OutboxEvent;
+import com.zilch.entities.Transaction;
+import com.zilch.entities.TransactionType;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.outbox.OutboxService;
+import com.zilch.repository.*;
+import com.zilch.service.CardLedgerService;
+import com.zilch.service.CardService;
+import com.zilch.service.TransactionBatchService;
+import com.zilch.service.TransactionService;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.model.TransactionModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of card balance changes with application.card.concurrency.strategy=LEDGER
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.card.concurrency.strategy=LEDGER",
+        "application.card.ledger.compaction-ms=3600000"
+})
+public class CardLedgerTest {
+    public static final Integer CURRENCY_ID = 1;
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "ledger-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Value("${application.transaction.type.credit}")
+    private String credit;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private TransactionBatchService transactionBatchService;
+
+    @Autowired
+    private CardLedgerService cardLedgerService;
+
+    @Autowired
+    private CardService cardService;
+
+    @Autowired
+    private CardLedgerCompactor cardLedgerCompactor;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private CardLedgerEntryRepository cardLedgerEntryRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    private Currency currency;
+
+    @Before
+    public void before() {
+        currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, USER));
+        transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        transactionTypeRepository.save(new TransactionType(credit, "credit", USER));
+        referenceDataCache.refresh();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        cardLedgerEntryRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private Card card(int balance) {
+        return cardRepository.save(new Card(USER, currency, new BigDecimal(balance), USER));
+    }
+
+    private void create(String globalId, Card card, String type, int amount) throws CardException {
+        transactionService.createTransaction(globalId, TEST_CURRENCY, card.getId().toString(), type, String.valueOf(amount), "ledger");
+    }
+
+    private void create(Card card, String type, int amount) throws CardException {
+        create("ledger" + globalIdCounter++, card, type, amount);
+    }
+
+    private BigDecimal snapshot(Card card) {
+        return cardRepository.findById(card.getId()).get().getBalance();
+    }
+
+    private static void assertAmount(int expected, BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual));
+    }
+
+    @Test
+    public void testCreateTransaction_AppendsToLedgerUntilCompaction() throws CardException {
+        Card card = card(0);
+        create(card, credit, 100);
+        create(card, debit, 30);
+        try {
+            create(card, debit, 80);
+            fail();
+        } catch (CardException e) {
+            assertEquals(String.format(ErrorMessage.NOT_ENOUGH_FUNDS, card.getId(), "80"), e.getMessage());
+        }
+
+        //card row is not updated
+        assertAmount(0, snapshot(card));
+        assertEquals(2, cardLedgerEntryRepository.count());
+        assertAmount(70, cardLedgerEntryRepository.findBalanceByCardId(card.getId()));
+        assertAmount(70, cardLedgerService.getBalance(card.getId()));
+
+        assertEquals(1, cardLedgerCompactor.compact());
+        assertAmount(70, snapshot(card));
+        assertEquals(0, cardLedgerEntryRepository.count());
+        List<OutboxEvent> changed = outboxEventRepository.findAll().stream()
+                .filter(event -> OutboxService.EVENT_CARD_BALANCE_CHANGED.equals(event.getEventType()))
+                .collect(Collectors.toList());
+        assertEquals(1, changed.size());
+        assertEquals(card.getId(), changed.get(0).getAggregateId());
+
+        //running total is not changed by the compaction
+        create(card, debit, 70);
+        assertAmount(0, cardLedgerEntryRepository.findBalanceByCardId(card.getId()));
+        assertEquals(1, cardLedgerCompactor.compact());
+        assertAmount(0, snapshot(card));
+    }
+
+    @Test
+    public void testCreateTransaction_RolledBackDebitIsGivenBack() throws CardException {
+        Card card = card(100);
+        create("ledger-dup", card, debit, 60);
+        try {
+            //debit is taken from the running total, then the transaction fails on the duplicate globalId
+            create("ledger-dup", card, debit, 40);
+            fail();
+        } catch (DataIntegrityViolationException e) {
+            //expected
+        }
+        create(card, debit, 40);
+        assertAmount(0, cardLedgerEntryRepository.findBalanceByCardId(card.getId()));
+        assertEquals(2, cardLedgerEntryRepository.count());
+    }
+
+    @Test
+    public void testCreateTransactions_DebitCanSpendCreditOfTheSameBatch() throws CardException {
+        Card card = card(0);
+        String cardId = card.getId().toString();
+        List<TransactionBatchResult> results = transactionBatchService.createTransactions(Arrays.asList(
+                new TransactionModel("ledger" + globalIdCounter++, TEST_CURRENCY, cardId, credit, "50", "credit"),
+                new TransactionModel("ledger" + globalIdCounter++, TEST_CURRENCY, cardId, debit, "30", "debit"),
+                new TransactionModel("ledger" + globalIdCounter++, TEST_CURRENCY, cardId, debit, "30", "debit")));
+
+        assertEquals(TransactionBatchResult.Status.CREATED, results.get(0).getStatus());
+        assertEquals(TransactionBatchResult.Status.CREATED, results.get(1).getStatus());
+        assertEquals(TransactionBatchResult.Status.INSUFFICIENT_FUNDS, results.get(2).getStatus());
+        assertAmount(0, snapshot(card));
+        assertAmount(20, cardLedgerEntryRepository.findBalanceByCardId(card.getId()));
+        assertAmount(20, cardLedgerService.getBalance(card.getId()));
+    }
+
+    @Test
+    public void testCardReads_ReturnLedgerBalance() throws CardException {
+        Card card = card(0);
+        Transaction credited = transactionService.createTransaction("ledger" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), credit, "100", "ledger");
+        assertAmount(100, credited.getCard().getBalance());
+        Transaction debited = transactionService.createTransaction("ledger" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), debit, "30", "ledger");
+        assertAmount(70, debited.getCard().getBalance());
+
+        //snapshot is not moved before the compaction, reads include the ledger entries
+        assertAmount(0, snapshot(card));
+        assertAmount(70, cardService.findById(card.getId()).getBalance());
+        //second read comes from the card cache
+        assertAmount(70, cardService.findById(card.getId()).getBalance());
+        assertAmount(70, cardService.findByUserId(USER).get(0).getBalance());
+        assertAmount(70, cardService.findByUserId(USER).get(0).getBalance());
+
+        assertEquals(1, cardLedgerCompactor.compact());
+        assertAmount(70, cardService.findById(card.getId()).getBalance());
+    }
+}
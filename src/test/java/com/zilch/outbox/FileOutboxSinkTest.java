@@ -0,0 +1,77 @@
+package com.zilch.outbox;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zilch.entities.OutboxEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * FileOutboxSink tests
+ * @author Elena Medvedeva
+ */
+public class FileOutboxSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static OutboxEvent event(long id, String payload) {
+        OutboxEvent event = new OutboxEvent(OutboxService.AGGREGATE_TRANSACTION, 5, OutboxService.EVENT_TRANSACTION_CREATED, payload);
+        event.setId(id);
+        return event;
+    }
+
+    @Test
+    public void testPublish_AppendsJsonLines() throws IOException {
+        File file = new File(folder.getRoot(), "outbox/events.jsonl");
+        FileOutboxSink sink = new FileOutboxSink(file.getPath(), 1024 * 1024, 2);
+
+        sink.publish(Arrays.asList(event(1, "{\"id\":5,\"amount\":20}"), event(2, "{\"id\":5}")));
+        sink.publish(Collections.singletonList(event(3, "{}")));
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        JsonObject first = new JsonParser().parse(lines.get(0)).getAsJsonObject();
+        assertEquals(1, first.get("id").getAsLong());
+        assertEquals(OutboxService.AGGREGATE_TRANSACTION, first.get("aggregateType").getAsString());
+        assertEquals(5, first.get("aggregateId").getAsInt());
+        assertEquals(OutboxService.EVENT_TRANSACTION_CREATED, first.get("eventType").getAsString());
+        //payload is embedded as JSON, not as a string
+        assertEquals(20, first.getAsJsonObject("payload").get("amount").getAsInt());
+        assertEquals(3, new JsonParser().parse(lines.get(2)).getAsJsonObject().get("id").getAsLong());
+    }
+
+    @Test
+    public void testPublish_RotatesFile() throws IOException {
+        File file = new File(folder.getRoot(), "events.jsonl");
+        FileOutboxSink sink = new FileOutboxSink(file.getPath(), 1, 2);
+
+        for (long id = 1; id <= 4; id++) {
+            sink.publish(Collections.singletonList(event(id, "{}")));
+        }
+
+        //every batch is written to a new file, only 2 rotated files are kept
+        assertEquals(4, idOf(file));
+        assertEquals(3, idOf(new File(folder.getRoot(), "events.jsonl.1")));
+        assertEquals(2, idOf(new File(folder.getRoot(), "events.jsonl.2")));
+        assertFalse(new File(folder.getRoot(), "events.jsonl.3").exists());
+    }
+
+    private static long idOf(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        return new JsonParser().parse(lines.get(0)).getAsJsonObject().get("id").getAsLong();
+    }
+}
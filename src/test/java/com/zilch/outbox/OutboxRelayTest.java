@@ -0,0 +1,166 @@
+package com.zilch.outbox;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.exceptions.CardException;
+import com.zilch.repository.*;
+import com.zilch.service.CardService;
+import com.zilch.service.PurchaseService;
+import com.zilch.service.TransactionService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Outbox tests: events are written in the transaction of the change and published by OutboxRelay
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = "application.outbox.relay.batch-size=3")
+public class OutboxRelayTest {
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "outbox-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.credit}")
+    private String credit;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Autowired
+    private OutboxRelay outboxRelay;
+
+    @Autowired
+    private InMemoryOutboxSink outboxSink;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private CardService cardService;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private PurchaseService purchaseService;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private PurchaseRepository purchaseRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Card card;
+
+    @Before
+    public void before() throws CardException {
+        currencyRepository.save(new Currency(1, TEST_CURRENCY, USER));
+        transactionTypeRepository.save(new TransactionType(credit, "credit", USER));
+        transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        referenceDataCache.refresh();
+        card = cardService.createCard(USER, TEST_CURRENCY);
+        outboxRelay.relay();
+        outboxSink.clear();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        purchaseRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private String globalId() {
+        return "outbox" + globalIdCounter++;
+    }
+
+    @Test
+    public void testCreateTransaction_EventsPublishedAndDeleted() throws CardException {
+        Transaction transaction = transactionService.createTransaction(globalId(), TEST_CURRENCY, card.getId().toString(), credit, "100", "credit");
+        assertEquals(2, outboxEventRepository.count());
+
+        assertEquals(2, outboxRelay.relay());
+        assertEquals(0, outboxEventRepository.count());
+
+        List<OutboxEvent> events = outboxSink.getEvents();
+        assertEquals(OutboxService.EVENT_CARD_BALANCE_CHANGED, events.get(0).getEventType());
+        assertEquals(card.getId(), events.get(0).getAggregateId());
+        assertEquals(OutboxService.EVENT_TRANSACTION_CREATED, events.get(1).getEventType());
+        assertEquals(OutboxService.AGGREGATE_TRANSACTION, events.get(1).getAggregateType());
+        assertEquals(transaction.getId(), events.get(1).getAggregateId());
+        JsonObject payload = new JsonParser().parse(events.get(1).getPayload()).getAsJsonObject();
+        assertEquals(transaction.getGlobalId(), payload.get("globalId").getAsString());
+        assertEquals(0, new BigDecimal(100).compareTo(payload.getAsJsonObject("card").get("balance").getAsBigDecimal()));
+    }
+
+    @Test
+    public void testCreateTransaction_RolledBackWithoutEvents() throws CardException {
+        try {
+            transactionService.createTransaction(globalId(), TEST_CURRENCY, card.getId().toString(), debit, "100", "debit");
+            fail();
+        } catch (CardException e) {
+            //not enough funds
+        }
+        assertEquals(0, outboxEventRepository.count());
+        assertEquals(0, outboxRelay.relay());
+        assertTrue(outboxSink.getEvents().isEmpty());
+    }
+
+    @Test
+    public void testCreatePurchase_PublishedInBatchesInOrder() throws CardException {
+        transactionService.createTransaction(globalId(), TEST_CURRENCY, card.getId().toString(), credit, "100", "credit");
+        Purchase purchase = purchaseService.createPurchase(globalId(), "shop", TEST_CURRENCY, card.getId().toString(), "40", "purchase");
+        double published = meterRegistry.counter(OutboxRelay.METRIC_PUBLISHED).count();
+
+        //2 events of the credit, card balance change, purchase and 4 installments; batch size is 3
+        assertEquals(8, outboxRelay.relay());
+        assertEquals(0, outboxEventRepository.count());
+        assertEquals(published + 8, meterRegistry.counter(OutboxRelay.METRIC_PUBLISHED).count(), 0);
+
+        List<OutboxEvent> events = outboxSink.getEvents();
+        List<Long> ids = events.stream().map(OutboxEvent::getId).collect(Collectors.toList());
+        assertEquals(ids.stream().sorted().collect(Collectors.toList()), ids);
+        List<OutboxEvent> purchaseEvents = events.stream()
+                .filter(e -> OutboxService.EVENT_PURCHASE_CREATED.equals(e.getEventType())).collect(Collectors.toList());
+        assertEquals(1, purchaseEvents.size());
+        assertEquals(purchase.getId(), purchaseEvents.get(0).getAggregateId());
+        assertEquals(5, events.stream().filter(e -> OutboxService.EVENT_TRANSACTION_CREATED.equals(e.getEventType())).count());
+    }
+}
@@ -0,0 +1,149 @@
+package com.zilch.repository;
+
+import com.zilch.entities.Card;
+import com.zilch.entities.CardBalance;
+import com.zilch.entities.Currency;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.validation.ConstraintViolationException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * CardBalanceRepository tests
+ * Use in-memory h2database
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class CardBalanceRepositoryTest {
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String LAST_UPDATED_BY = "user";
+    public static final String USER = "user";
+    public static final Integer CURRENCY_ID = 1;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private CardBalanceRepository cardBalanceRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    private Card card1;
+    private Card card2;
+
+    @Before
+    public void before(){
+        Currency currency = new Currency(CURRENCY_ID, TEST_CURRENCY, LAST_UPDATED_BY);
+        entityManager.persistAndFlush(currency);
+
+        card1 = new Card(USER, currency, new BigDecimal(0), LAST_UPDATED_BY);
+        card2 = new Card(USER, currency, new BigDecimal(0), LAST_UPDATED_BY);
+        entityManager.persist(card1);
+        entityManager.persist(card2);
+        entityManager.flush();
+    }
+
+    @Test
+    public void whenCardIsSaved_thenBalanceIsCreated() {
+        CardBalance found = cardBalanceRepository.findById(card1.getId()).get();
+        assertTrue(found.getBalance().compareTo(BigDecimal.ZERO) == 0);
+        assertEquals(Integer.valueOf(0), found.getVersion());
+    }
+
+    @Test
+    public void update_Balance() {
+        CardBalance updated = cardBalanceRepository.findById(card1.getId()).get();
+        updated.setBalance(new BigDecimal(300));
+        CardBalance found = cardBalanceRepository.saveAndFlush(updated);
+        assertTrue(found.getBalance().equals(new BigDecimal(300)));
+        assertEquals(Integer.valueOf(1), found.getVersion());
+        Card card = cardRepository.refresh(card1);
+        assertTrue(card.getBalance().compareTo(new BigDecimal(300)) == 0);
+    }
+
+    @Test
+    public void update_BalanceNegative() {
+        CardBalance updated = cardBalanceRepository.findById(card2.getId()).get();
+        updated.setBalance(new BigDecimal(-300));
+        try{
+            entityManager.flush();
+            fail();
+        } catch(ConstraintViolationException ex){
+            assertFalse(ex.getConstraintViolations().isEmpty());
+            assertTrue(ex.getConstraintViolations().iterator().next().getMessage().contains("must be greater than or equal to 0"));
+        }
+    }
+
+    @Test
+    public void update_BalanceNull() {
+        CardBalance updated = cardBalanceRepository.findById(card2.getId()).get();
+        updated.setBalance(null);
+        try{
+            entityManager.flush();
+            fail();
+        } catch(ConstraintViolationException ex){
+            assertFalse(ex.getConstraintViolations().isEmpty());
+            assertTrue(ex.getConstraintViolations().iterator().next().getMessage().contains("Card balance must be provided"));
+        }
+    }
+
+    @Test
+    public void addToBalance_Credit() {
+        int updated = cardBalanceRepository.addToBalance(card1.getId(), new BigDecimal(50));
+        assertEquals(1, updated);
+        Card found = cardRepository.refresh(card1);
+        assertTrue(found.getBalance().compareTo(new BigDecimal(50)) == 0);
+    }
+
+    @Test
+    public void addToBalance_DebitSuccess() {
+        cardBalanceRepository.addToBalance(card1.getId(), new BigDecimal(50));
+        int updated = cardBalanceRepository.addToBalance(card1.getId(), new BigDecimal(-50));
+        assertEquals(1, updated);
+        Card found = cardRepository.refresh(card1);
+        assertTrue(found.getBalance().compareTo(BigDecimal.ZERO) == 0);
+    }
+
+    @Test
+    public void addToBalance_IncrementsVersion() {
+        Integer version = card1.getVersion();
+        cardBalanceRepository.addToBalance(card1.getId(), new BigDecimal(50));
+        Card found = cardRepository.refresh(card1);
+        assertEquals(Integer.valueOf(version + 1), found.getVersion());
+    }
+
+    @Test
+    public void addToBalance_DebitNotEnoughFunds() {
+        int updated = cardBalanceRepository.addToBalance(card2.getId(), new BigDecimal(-10));
+        assertEquals(0, updated);
+        Card found = cardRepository.refresh(card2);
+        assertTrue(found.getBalance().compareTo(BigDecimal.ZERO) == 0);
+    }
+
+    @Test
+    public void addToSnapshot_Credit() {
+        int updated = cardBalanceRepository.addToSnapshot(card2.getId(), new BigDecimal(10));
+        assertEquals(1, updated);
+        assertTrue(cardRepository.refresh(card2).getBalance().compareTo(new BigDecimal(10)) == 0);
+    }
+
+    @Test
+    public void findByCardIdInForUpdate_OrderedByCardId() {
+        List<CardBalance> found = cardBalanceRepository.findByCardIdInForUpdate(Arrays.asList(card2.getId(), card1.getId()));
+        assertEquals(2, found.size());
+        assertEquals(card1.getId(), found.get(0).getCardId());
+        assertEquals(card2.getId(), found.get(1).getCardId());
+    }
+}
@@ -5,6 +5,9 @@ import com.zilch.entities.Currency;
 import javax.validation.ConstraintViolationException;
 
 import com.zilch.entities.Card;
+import com.zilch.entities.CardBalance;
+import com.zilch.entities.CardLedgerEntry;
+import com.zilch.view.dto.CardDto;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,11 +15,14 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 /**
@@ -75,7 +81,7 @@ public class CardRepositoryTest {
 
     @Test
     public void whenFindById_Nocard() {
-        Optional<Card> found = cardRepository.findById(10);
+        Optional<Card> found = cardRepository.findById(Integer.MAX_VALUE);
         assertTrue(!found.isPresent());
     }
 
@@ -100,15 +106,30 @@ public class CardRepositoryTest {
     }
 
     @Test
-    public void testFindAllByOrderByIdAsc() {
-        List<Card> found = cardRepository.findAllByOrderByIdAsc();
-        assertNotNull(found);
-        assertTrue(!found.isEmpty());
-        assertTrue(found.size() >= 2);
-        System.out.println(found.get(0).getId());
-        System.out.println(found.get(1).getId());
-        assertTrue(found.get(0).getId().equals(card1.getId()));
-        assertTrue(found.get(1).getId().equals(card2.getId()));
+    public void testStreamDtoByIdGreaterThan_Page() {
+        try (Stream<CardDto> found = cardRepository.streamDtoByIdGreaterThan(card1.getId() - 1, PageRequest.of(0, 1))) {
+            List<CardDto> page = found.collect(Collectors.toList());
+            assertEquals(1, page.size());
+            assertEquals(card1.getId(), page.get(0).getId());
+            assertEquals(card1.getUserId(), page.get(0).getUserId());
+            assertEquals(CURRENCY_ID, page.get(0).getCurrencyId());
+            assertNull(page.get(0).getCurrency());
+        }
+        try (Stream<CardDto> found = cardRepository.streamDtoByIdGreaterThan(card1.getId(), PageRequest.of(0, 10))) {
+            assertEquals(card2.getId(), found.findFirst().get().getId());
+        }
+    }
+
+    @Test
+    public void testStreamDtoByIdGreaterThan_IncludesLedgerEntries() {
+        entityManager.persist(new CardLedgerEntry(card1, new BigDecimal(100)));
+        entityManager.persist(new CardLedgerEntry(card1, new BigDecimal(-30)));
+        entityManager.flush();
+        try (Stream<CardDto> found = cardRepository.streamDtoByIdGreaterThan(card1.getId() - 1, PageRequest.of(0, 2))) {
+            List<CardDto> page = found.collect(Collectors.toList());
+            assertEquals(0, new BigDecimal(70).compareTo(page.get(0).getBalance()));
+            assertEquals(0, BigDecimal.ZERO.compareTo(page.get(1).getBalance()));
+        }
     }
 
     @Test
@@ -125,7 +146,7 @@ public class CardRepositoryTest {
         Currency currency = currencyRepository.findByName("AAA");
         Card card = new Card(USER,currency,new BigDecimal(0),LAST_UPDATED_BY);
         try{
-        Card found = cardRepository.save(card);
+        Card found = cardRepository.saveAndFlush(card);
         fail();
         } catch(ConstraintViolationException ex){
             assertTrue( ex.getMessage().contains("Card currency must be provided"));
@@ -137,7 +158,7 @@ public class CardRepositoryTest {
         Currency currency = currencyRepository.findByName("AAA+++");
         Card card = new Card(USER,currency,new BigDecimal(0),LAST_UPDATED_BY);
         try{
-            Card found = cardRepository.save(card);
+            Card found = cardRepository.saveAndFlush(card);
             fail();
         } catch(ConstraintViolationException ex){
             assertTrue( ex.getMessage().contains("Card currency must be provided"));
@@ -147,44 +168,24 @@ public class CardRepositoryTest {
 
 
     @Test
-    public void update_Balance() {
-        Optional<Card> found = cardRepository.findById(card1.getId());
-        Card updated = found.get();
-        updated.setBalance(new BigDecimal(300));
-        Card found1 = cardRepository.save(updated);
-        assertNotNull(found1);
-        assertTrue(found1.getBalance().equals(new BigDecimal(300)));
-    }
-
-    @Test
-    public void update_BalanceNegative() {
-        Optional<Card> found = cardRepository.findById(card2.getId());
-        Card updated = found.get();
-        updated.setBalance(new BigDecimal(-300));
-        Card found1 = cardRepository.save(updated);
-        try{
-            entityManager.flush();
-            fail();
-        } catch(ConstraintViolationException ex){
-            assertFalse(ex.getConstraintViolations().isEmpty());
-            assertTrue(ex.getConstraintViolations().iterator().next().getMessage().contains("must be greater than or equal to 0"));
-        }
+    public void whenFindById_thenReturnBalanceOfCardBalance() {
+        CardBalance balance = entityManager.find(CardBalance.class, card1.getId());
+        assertNotNull(balance);
+        balance.setBalance(new BigDecimal(300));
+        entityManager.flush();
+        entityManager.clear();
+        Card found = cardRepository.findById(card1.getId()).get();
+        assertTrue(found.getBalance().compareTo(new BigDecimal(300)) == 0);
+        assertEquals(Integer.valueOf(1), found.getVersion());
     }
 
     @Test
-    public void update_BalanceNull() {
-        Optional<Card> found = cardRepository.findById(card2.getId());
-        Card updated = found.get();
-        updated.setBalance(null);
-        Card found1 = cardRepository.save(updated);
-        try{
-            entityManager.flush();
-            fail();
-        } catch(ConstraintViolationException ex){
-            assertFalse(ex.getConstraintViolations().isEmpty());
-            System.out.println(ex.getConstraintViolations().iterator().next().getMessage());
-            assertTrue(ex.getConstraintViolations().iterator().next().getMessage().contains("Card balance must be provided"));
-        }
+    public void update_BalanceOfCardIsIgnored() {
+        Card found = cardRepository.findById(card1.getId()).get();
+        found.setBalance(new BigDecimal(300));
+        cardRepository.saveAndFlush(found);
+        entityManager.clear();
+        assertTrue(cardRepository.findById(card1.getId()).get().getBalance().compareTo(BigDecimal.ZERO) == 0);
     }
 
     @After
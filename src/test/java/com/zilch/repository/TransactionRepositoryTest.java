@@ -3,8 +3,10 @@ package com.zilch.repository;
 
 import com.zilch.entities.Currency;
 import com.zilch.entities.Card;
+import com.zilch.entities.Purchase;
 import com.zilch.entities.Transaction;
 import com.zilch.entities.TransactionType;
+import com.zilch.view.dto.TransactionDto;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -12,13 +14,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import javax.validation.ConstraintViolationException;
 import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -93,11 +99,45 @@ public class TransactionRepositoryTest {
     }
 
     @Test
-    public void testFindBycard() {
-        List<Transaction> trns = transactionRepository.findByCard(card1);
-        assertTrue(trns.size() > 0);
-        assertTrue(trns.get(0).getCard().getId().equals(card1.getId()));
-        assertTrue(trns.get(0).getId().equals(transaction.getId()));
+    public void testStreamDtoByCardAndIdGreaterThan_WithPurchase() {
+        Purchase purchase = new Purchase(String.valueOf(globalIdCounter++), "shop", currency, new BigDecimal(40), card1, "purchase", LAST_UPDATED_BY);
+        entityManager.persist(purchase);
+        Transaction installment = new Transaction(String.valueOf(globalIdCounter++),typeDebit,new BigDecimal(10),card1,purchase,currency,"installment");
+        entityManager.persist(installment);
+        entityManager.flush();
+
+        try (Stream<TransactionDto> found = transactionRepository.streamDtoByCardAndIdGreaterThan(card1, 0, PageRequest.of(0, 10))) {
+            List<TransactionDto> page = found.collect(Collectors.toList());
+            assertEquals(2, page.size());
+            //credit transaction without purchase
+            assertEquals(transaction.getId(), page.get(0).getId());
+            assertEquals(credit, page.get(0).getTypeId());
+            assertNull(page.get(0).getPurchase());
+            //installment with purchase columns
+            assertEquals(installment.getId(), page.get(1).getId());
+            assertEquals(purchase.getId(), page.get(1).getPurchase().getId());
+            assertEquals("shop", page.get(1).getPurchase().getShopId());
+            assertEquals(CURRENCY_ID, page.get(1).getPurchase().getCurrencyId());
+            assertNull(page.get(1).getPurchase().getCard());
+        }
+    }
+
+    @Test
+    public void testFindDtoByPurchaseIdIn() {
+        Purchase purchase = new Purchase(String.valueOf(globalIdCounter++), "shop", currency, new BigDecimal(40), card1, "purchase", LAST_UPDATED_BY);
+        entityManager.persist(purchase);
+        Transaction first = new Transaction(String.valueOf(globalIdCounter++),typeDebit,new BigDecimal(20),card1,purchase,currency,"installment");
+        Transaction second = new Transaction(String.valueOf(globalIdCounter++),typeDebit,new BigDecimal(20),card1,purchase,currency,"installment");
+        entityManager.persist(first);
+        entityManager.persist(second);
+        entityManager.flush();
+
+        List<TransactionDto> found = transactionRepository.findDtoByPurchaseIdIn(Collections.singletonList(purchase.getId()));
+        assertEquals(2, found.size());
+        assertEquals(first.getId(), found.get(0).getId());
+        assertEquals(second.getId(), found.get(1).getId());
+        assertEquals(purchase.getId(), found.get(0).getPurchaseId());
+        assertNull(found.get(0).getPurchase());
     }
 
     @Test
@@ -132,7 +172,7 @@ public class TransactionRepositoryTest {
         int counter = globalIdCounter++;
         Transaction transaction = new Transaction(String.valueOf(counter),typeCredit,new BigDecimal(20),card2,null,currency,"Credit transaction");
         try{
-            Transaction found = transactionRepository.save(transaction);
+            Transaction found = transactionRepository.saveAndFlush(transaction);
             fail();
         } catch(ConstraintViolationException ex){
             assertTrue( ex.getMessage().contains("Transaction currency must be provided"));
@@ -144,11 +184,10 @@ public class TransactionRepositoryTest {
         int counter = globalIdCounter - 1;
         Transaction transaction = new Transaction(String.valueOf(counter),typeCredit,new BigDecimal(20),card2,null,currency,"Credit transaction");
         try{
-            Transaction found = transactionRepository.save(transaction);
-            entityManager.flush();
+            Transaction found = transactionRepository.saveAndFlush(transaction);
             fail();
         } catch(DataIntegrityViolationException ex){
-            assertTrue( ex.getMessage().contains("could not execute statement"));
+            assertTrue( ex.getMessage().contains("could not execute"));
         }
     }
 
@@ -173,11 +212,10 @@ public class TransactionRepositoryTest {
         int counter = globalIdCounter++;
         Transaction transaction = new Transaction(String.valueOf(counter),typeCredit,new BigDecimal(20),card,null, currency,"Credit transaction");
         try{
-            Transaction found = transactionRepository.save(transaction);
-            entityManager.flush();
+            Transaction found = transactionRepository.saveAndFlush(transaction);
             fail();
         } catch(DataIntegrityViolationException ex){
-            assertTrue( ex.getMessage().contains("could not execute statement"));
+            assertTrue( ex.getMessage().contains("could not execute"));
         }
     }
 
@@ -187,11 +225,10 @@ public class TransactionRepositoryTest {
         int counter = globalIdCounter++;
         Transaction transaction = new Transaction(String.valueOf(counter),type,new BigDecimal(20),card2,null, currency,"Credit transaction");
         try{
-            Transaction found = transactionRepository.save(transaction);
-            entityManager.flush();
+            Transaction found = transactionRepository.saveAndFlush(transaction);
             fail();
         } catch(DataIntegrityViolationException ex){
-            assertTrue( ex.getMessage().contains("could not execute statement"));
+            assertTrue( ex.getMessage().contains("could not execute"));
         }
     }
 }
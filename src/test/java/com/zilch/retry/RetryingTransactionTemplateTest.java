@@ -0,0 +1,169 @@
+package com.zilch.retry;
+
+import com.zilch.entities.Card;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.orm.jpa.JpaSystemException;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.persistence.PersistenceException;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * RetryingTransactionTemplate tests
+ *
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+public class RetryingTransactionTemplateTest {
+    @TestConfiguration
+    static class RetryingTransactionTemplateTestContextConfiguration {
+        @Bean
+        public RetryingTransactionTemplate retryingTransactionTemplate() {
+            return new RetryingTransactionTemplate();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    public static final String OPERATION = "test";
+
+    @Autowired
+    private RetryingTransactionTemplate template;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static RuntimeException serializationFailure() {
+        return new JpaSystemException(new PersistenceException(new SQLException("could not serialize access", "40001")));
+    }
+
+    @Test
+    public void testExecute_SuccessFirstAttempt() throws Throwable {
+        AtomicInteger attempts = new AtomicInteger();
+        String result = template.execute(OPERATION, () -> {
+            attempts.incrementAndGet();
+            return "ok";
+        });
+        assertEquals("ok", result);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testExecute_RetriesSerializationFailure() throws Throwable {
+        AtomicInteger attempts = new AtomicInteger();
+        String result = template.execute(OPERATION + "Serialization", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw serializationFailure();
+            }
+            return "ok";
+        });
+        assertEquals("ok", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2.0, meterRegistry.counter(RetryingTransactionTemplate.METRIC_RETRIES,
+                RetryingTransactionTemplate.TAG_OPERATION, OPERATION + "Serialization").count(), 0.0);
+    }
+
+    @Test
+    public void testExecute_RetriesDeadlock() throws Throwable {
+        AtomicInteger attempts = new AtomicInteger();
+        template.execute(OPERATION, () -> {
+            if (attempts.incrementAndGet() < 2) {
+                throw new CannotAcquireLockException("deadlock", new SQLException("deadlock detected", "40P01"));
+            }
+            return null;
+        });
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testExecute_RetriesOptimisticLockFailure() throws Throwable {
+        AtomicInteger attempts = new AtomicInteger();
+        template.execute(OPERATION, () -> {
+            if (attempts.incrementAndGet() < 2) {
+                throw new ObjectOptimisticLockingFailureException(Card.class, 1);
+            }
+            return null;
+        });
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testExecute_GivesUpAfterMaxAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            template.execute(OPERATION + "Exhausted", () -> {
+                attempts.incrementAndGet();
+                throw serializationFailure();
+            });
+            fail();
+        } catch (Throwable e) {
+            assertTrue(e instanceof JpaSystemException);
+            assertEquals(3, attempts.get());
+            assertEquals(1.0, meterRegistry.counter(RetryingTransactionTemplate.METRIC_EXHAUSTED,
+                    RetryingTransactionTemplate.TAG_OPERATION, OPERATION + "Exhausted").count(), 0.0);
+        }
+    }
+
+    @Test
+    public void testExecute_NoRetryOnNotEnoughFunds() {
+        AtomicInteger attempts = new AtomicInteger();
+        String error = String.format(ErrorMessage.NOT_ENOUGH_FUNDS, 1, "100");
+        try {
+            template.execute(OPERATION, () -> {
+                attempts.incrementAndGet();
+                throw new CardException(error, HttpStatus.BAD_REQUEST.value());
+            });
+            fail();
+        } catch (Throwable e) {
+            assertTrue(e instanceof CardException);
+            assertEquals(error, e.getMessage());
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testExecute_NoRetryOnDuplicateKey() {
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            template.execute(OPERATION, () -> {
+                attempts.incrementAndGet();
+                throw new DataIntegrityViolationException("duplicate", new SQLException("duplicate key value", "23505"));
+            });
+            fail();
+        } catch (Throwable e) {
+            assertTrue(e instanceof DataIntegrityViolationException);
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testExecute_RetriesDuplicateKeyIfAsked() throws Throwable {
+        AtomicInteger attempts = new AtomicInteger();
+        String result = template.execute(OPERATION, true, () -> {
+            if (attempts.incrementAndGet() < 2) {
+                throw new DataIntegrityViolationException("duplicate", new SQLException("duplicate key value", "23505"));
+            }
+            return "ok";
+        });
+        assertEquals("ok", result);
+        assertEquals(2, attempts.get());
+    }
+}
@@ -1,14 +1,31 @@
 package com.zilch.service;
 
+import com.zilch.cache.CardCache;
+import com.zilch.cache.CardCacheImpl;
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.outbox.OutboxService;
+import com.zilch.datasource.RoutingContext;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.CardDto;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import com.zilch.entities.Currency;
 import com.zilch.exceptions.ErrorMessage;
 import com.zilch.exceptions.CardException;
-import com.zilch.repository.CurrencyRepository;
 import com.zilch.repository.TransactionRepository;
 import com.zilch.repository.CardRepository;
+import com.zilch.repository.CardBalanceRepository;
+import com.zilch.repository.PurchaseRepository;
+import com.zilch.entities.Purchase;
 import com.zilch.helper.Helper;
 import com.zilch.helper.HelperImpl;
 import com.zilch.entities.Card;
+import com.zilch.entities.CardBalance;
 import org.hibernate.ObjectNotFoundException;
 import org.junit.Before;
 import org.junit.Test;
@@ -21,17 +38,23 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.AopTestUtils;
 import org.springframework.validation.beanvalidation.MethodValidationPostProcessor;
 
 import javax.validation.ConstraintViolationException;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 /**
  * CardService tests
  *
@@ -50,6 +73,16 @@ public class CardServiceTest {
         public Helper validator() {
             return new HelperImpl();
         }
+
+        @Bean
+        public CardCache cardCache() {
+            return new CardCacheImpl();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
         //for annotation validation on method signature
         @Bean
         public MethodValidationPostProcessor methodValidationPostProcessor() {
@@ -70,11 +103,23 @@ public class CardServiceTest {
     @MockBean
     private CardRepository cardRepository;
 
+    @MockBean
+    private CardBalanceRepository cardBalanceRepository;
+
     @MockBean
     private TransactionRepository transactionRepository;
 
     @MockBean
-    private CurrencyRepository currencyRepository;
+    private PurchaseRepository purchaseRepository;
+
+    @MockBean
+    private OutboxService outboxService;
+
+    @MockBean
+    private ReferenceDataCache referenceDataCache;
+
+    @MockBean
+    private CardLedgerService cardLedgerService;
 
     Currency currency;
     Card card1;
@@ -88,9 +133,6 @@ public class CardServiceTest {
         card2 = new Card(USER,currency, new BigDecimal(20), LAST_UPDATED_BY);
         card2.setId(2);
 
-        //CardService.findAll
-        Mockito.when(cardRepository.findAllByOrderByIdAsc())
-                .thenReturn(Arrays.asList(card1, card2));
         //findById
         Mockito.when(cardRepository.findById(card1.getId())).thenReturn(Optional.of(card1));
         Mockito.when(cardRepository.findById(110)).thenReturn(Optional.empty());
@@ -103,24 +145,13 @@ public class CardServiceTest {
 
         //createCard
         Currency wrong = new Currency(2, "Wrong",LAST_UPDATED_BY) ;
-        Mockito.when(currencyRepository.findByName("Wrong")).thenReturn(wrong);
+        Mockito.when(referenceDataCache.findCurrencyByName("Wrong")).thenReturn(wrong);
         Mockito.when(cardRepository.save(new Card(USER,wrong, new BigDecimal(0), LAST_UPDATED_BY))).thenThrow(new ObjectNotFoundException("",""));
-        Mockito.when(currencyRepository.findByName(TEST_CURRENCY)).thenReturn(currency);
+        Mockito.when(referenceDataCache.findCurrencyByName(TEST_CURRENCY)).thenReturn(currency);
         Mockito.when(cardRepository.save(card1)).thenReturn(card1);
         Mockito.when(cardRepository.save(card2)).thenReturn(card2);
     }
 
-    //public List<Card> findAll() throws CardException;
-
-    @Test
-    public void testFindAll() throws CardException {
-        List<Card> found = cardService.findAll();
-        assertNotNull(found);
-        assertTrue(found.size() == 2);
-        assertTrue(found.get(0).getId().equals(card1.getId()) );
-        assertTrue(found.get(1).getId().equals(card2.getId()) );
-    }
-
     //public Card findById(@NotNull Integer id) throws CardException;
     @Test
     public void testFindById_Success() throws CardException {
@@ -192,6 +223,119 @@ public class CardServiceTest {
         Mockito.when(cardRepository.save(Mockito.any(Card.class))).thenReturn(card1);
         Card found = cardService.createCard(USER,TEST_CURRENCY);
         assertEquals(found.getId(),card1.getId());
+        Mockito.verify(outboxService).cardCreated(card1);
+    }
+
+    private CardDto dto(Card card) {
+        return new CardDto(card.getId(), card.getUserId(), card.getBalance(), card.getCurrency().getId(),
+                card.getLastUpdated(), card.getLastUpdatedBy(), card.getVersion());
+    }
+
+    @Test
+    public void testFindAll_Page() throws CardException, IOException {
+        Mockito.when(cardRepository.streamDtoByIdGreaterThan(eq(0), any(Pageable.class)))
+                .thenAnswer(invocation -> Stream.of(dto(card1), dto(card2)));
+        Mockito.when(referenceDataCache.findCurrencyById(CURRENCY_ID)).thenReturn(currency);
+        StringWriter out = new StringWriter();
+        cardService.findAll(null, 1, new CursorPageWriter<>(new Gson(), out));
+        JsonObject page = new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertEquals(1, page.getAsJsonArray("items").size());
+        assertEquals(card1.getId().intValue(), page.get("nextCursor").getAsInt());
+        Mockito.verify(cardRepository).streamDtoByIdGreaterThan(0, PageRequest.of(0, 2));
+        //currency is taken from reference data cache
+        assertEquals(TEST_CURRENCY, page.getAsJsonArray("items").get(0).getAsJsonObject()
+                .getAsJsonObject("currency").get("name").getAsString());
+
+        out = new StringWriter();
+        cardService.findAll(null, 2, new CursorPageWriter<>(new Gson(), out));
+        page = new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertEquals(2, page.getAsJsonArray("items").size());
+        assertFalse(page.has("nextCursor"));
+    }
+
+    @Test
+    public void testFindAll_InvalidLimit() throws IOException {
+        try {
+            cardService.findAll(null, 0, new CursorPageWriter<>(new Gson(), new StringWriter()));
+            fail();
+        } catch (CardException ex) {
+            assertEquals(HttpStatus.BAD_REQUEST.value(), ex.getErrorCode());
+            assertEquals(String.format(ErrorMessage.INVALID_PAGE_LIMIT, 0, 1000), ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testFindByIdWithPurchases() throws CardException {
+        Card card = new Card(USER,currency, new BigDecimal(5), LAST_UPDATED_BY);
+        card.setId(302);
+        Purchase purchase = new Purchase("302", "shop", currency, new BigDecimal(5), card, "purchase", LAST_UPDATED_BY);
+        Mockito.when(cardRepository.findById(card.getId())).thenReturn(Optional.of(card));
+        Mockito.when(purchaseRepository.findDistinctByCardOrderByIdAsc(any(Card.class))).thenReturn(Arrays.asList(purchase));
+
+        Card found = cardService.findByIdWithPurchases(card.getId());
+        assertEquals(1, found.getPurchases().size());
+        //cached copy doesn't keep purchases
+        found = cardService.findByIdWithPurchases(card.getId());
+        assertEquals(1, found.getPurchases().size());
+        assertNull(cardService.findById(card.getId()).getPurchases());
+    }
+
+    @Test
+    public void testFindById_Cached() throws CardException {
+        Card card = new Card(USER,currency, new BigDecimal(5), LAST_UPDATED_BY);
+        card.setId(301);
+        Mockito.when(cardRepository.findById(card.getId())).thenReturn(Optional.of(card));
+        Card first = cardService.findById(card.getId());
+        Card second = cardService.findById(card.getId());
+        assertEquals(card.getId(), second.getId());
+        assertEquals(card.getBalance(), second.getBalance());
+        //cached card is a copy, changes of the returned card don't affect the cache
+        assertNotSame(first, second);
+        Mockito.verify(cardRepository, Mockito.times(1)).findById(card.getId());
+    }
+
+    @Test
+    public void testFindById_PinnedToPrimarySkipsCache() throws CardException {
+        Card card = new Card(USER,currency, new BigDecimal(5), LAST_UPDATED_BY);
+        card.setId(303);
+        Mockito.when(cardRepository.findById(card.getId())).thenReturn(Optional.of(card));
+        cardService.findById(card.getId());
+        RoutingContext.pinToPrimary();
+        try {
+            cardService.findById(card.getId());
+        } finally {
+            RoutingContext.clear();
+        }
+        cardService.findById(card.getId());
+        Mockito.verify(cardRepository, Mockito.times(2)).findById(card.getId());
+    }
+
+    @Test
+    public void testFindById_InvalidatedByUpdate() throws CardException {
+        Card card = new Card(USER,currency, new BigDecimal(5), LAST_UPDATED_BY);
+        card.setId(302);
+        Mockito.when(cardRepository.findById(card.getId())).thenReturn(Optional.of(card));
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card.getId()),eq(new BigDecimal(10)))).thenReturn(1);
+        Mockito.when(cardRepository.refresh(any(Card.class))).thenReturn(card);
+        cardService.findById(card.getId());
+        cardService.updateCardAmount(cardService.findById(card.getId()), "10", true);
+        cardService.findById(card.getId());
+        Mockito.verify(cardRepository, Mockito.times(2)).findById(card.getId());
+    }
+
+    @Test
+    public void testFindByUserId_CachedAndInvalidatedByCreate() throws CardException {
+        String user = "cachedUser";
+        Card card = new Card(user,currency, new BigDecimal(0), LAST_UPDATED_BY);
+        card.setId(303);
+        Mockito.when(cardRepository.findByUserId(user)).thenReturn(Arrays.asList(card));
+        Mockito.when(cardRepository.save(any(Card.class))).thenReturn(card);
+        assertEquals(1, cardService.findByUserId(user).size());
+        assertEquals(1, cardService.findByUserId(user).size());
+        Mockito.verify(cardRepository, Mockito.times(1)).findByUserId(user);
+        cardService.createCard(user, TEST_CURRENCY);
+        cardService.findByUserId(user);
+        Mockito.verify(cardRepository, Mockito.times(2)).findByUserId(user);
     }
 
     //   public Card updateCardAmount(@NotNull Card card,@NotNull String amount,@NotNull Boolean isCredit) throws CardException;
@@ -199,30 +343,38 @@ public class CardServiceTest {
     @Test
     public void testUpdatecardAmount_isCredit() throws CardException {
         int amount = 30;
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card1.getId()),eq(new BigDecimal(amount)))).thenReturn(1);
+        Mockito.when(cardRepository.refresh(card1)).thenReturn(card1);
         Card found = cardService.updateCardAmount(card1,String.valueOf(amount),true);
         assertEquals(found.getId(),card1.getId());
-        assertEquals(found.getBalance(),new BigDecimal(amount));
+        Mockito.verify(cardBalanceRepository).addToBalance(eq(card1.getId()),eq(new BigDecimal(amount)));
+        Mockito.verify(outboxService).cardBalanceChanged(card1);
     }
 
     @Test
     public void testUpdatecardAmount_isDebitSuccess() throws CardException {
         int amount = 10;
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card2.getId()),eq(new BigDecimal(-10)))).thenReturn(1);
+        Mockito.when(cardRepository.refresh(card2)).thenReturn(card2);
         Card found = cardService.updateCardAmount(card2,String.valueOf(amount),false);
         assertEquals(found.getId(),card2.getId());
-        assertEquals(found.getBalance(),new BigDecimal(10));
+        Mockito.verify(cardBalanceRepository).addToBalance(eq(card2.getId()),eq(new BigDecimal(-10)));
     }
 
     @Test
     public void testUpdatecardAmount_isDebitSuccess2() throws CardException {
         int amount = -10;
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card2.getId()),eq(new BigDecimal(-10)))).thenReturn(1);
+        Mockito.when(cardRepository.refresh(card2)).thenReturn(card2);
         Card found = cardService.updateCardAmount(card2,String.valueOf(amount),false);
         assertEquals(found.getId(),card2.getId());
-        assertEquals(found.getBalance(),new BigDecimal(10));
+        Mockito.verify(cardBalanceRepository).addToBalance(eq(card2.getId()),eq(new BigDecimal(-10)));
     }
 
     @Test
     public void testUpdatecardAmount_isDebitFailure() throws CardException {
         int amount = 100;
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card2.getId()),eq(new BigDecimal(-100)))).thenReturn(0);
         try {
             Card found = cardService.updateCardAmount(card2, String.valueOf(amount), false);
             fail();
@@ -232,6 +384,108 @@ public class CardServiceTest {
         }
     }
 
+    @Test
+    public void testUpdatecardAmount_OptimisticCredit() throws CardException {
+        ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.OPTIMISTIC);
+        try {
+            int amount = 30;
+            CardBalance balance = new CardBalance(card1.getId(), card1.getBalance());
+            Mockito.when(cardBalanceRepository.findById(card1.getId())).thenReturn(Optional.of(balance));
+            Mockito.when(cardRepository.refresh(card1)).thenReturn(card1);
+            Card found = cardService.updateCardAmount(card1, String.valueOf(amount), true);
+            assertEquals(found.getId(), card1.getId());
+            assertEquals(balance.getBalance(), new BigDecimal(amount));
+            Mockito.verify(cardBalanceRepository).saveAndFlush(balance);
+            Mockito.verify(cardBalanceRepository, Mockito.never()).addToBalance(any(), any());
+        } finally {
+            ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.CONDITIONAL_UPDATE);
+        }
+    }
+
+    @Test
+    public void testUpdatecardAmount_OptimisticNoCardBalance() {
+        ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.OPTIMISTIC);
+        try {
+            Mockito.when(cardBalanceRepository.findById(card1.getId())).thenReturn(Optional.empty());
+            cardService.updateCardAmount(card1, "30", true);
+            fail();
+        } catch (CardException ex){
+            assertEquals(ex.getMessage(),String.format(ErrorMessage.NO_CARD_FOUND,card1.getId()));
+            assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
+            Mockito.verify(cardBalanceRepository, Mockito.never()).saveAndFlush(any());
+        } finally {
+            ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.CONDITIONAL_UPDATE);
+        }
+    }
+
+    @Test
+    public void testUpdatecardAmount_OptimisticDebitFailure() throws CardException {
+        ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.OPTIMISTIC);
+        int amount = 100;
+        try {
+            Mockito.when(cardBalanceRepository.findById(card1.getId())).thenReturn(Optional.of(new CardBalance(card1.getId(), card1.getBalance())));
+            cardService.updateCardAmount(card1, String.valueOf(amount), false);
+            fail();
+        } catch (CardException ex){
+            assertEquals(ex.getMessage(),String.format(ErrorMessage.NOT_ENOUGH_FUNDS,card1.getId(),String.valueOf(amount)));
+            assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
+            Mockito.verify(cardBalanceRepository, Mockito.never()).saveAndFlush(any());
+        } finally {
+            ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.CONDITIONAL_UPDATE);
+        }
+    }
+
+    @Test
+    public void testDebitIfEnoughFunds() {
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card1.getId()),eq(new BigDecimal(-30)))).thenReturn(1);
+        Mockito.when(cardRepository.refresh(card1)).thenReturn(card1);
+        assertTrue(cardService.debitIfEnoughFunds(card1, new BigDecimal(30)));
+        Mockito.verify(outboxService).cardBalanceChanged(card1);
+    }
+
+    @Test
+    public void testDebitIfEnoughFunds_NotEnoughFunds() {
+        Mockito.when(cardBalanceRepository.addToBalance(eq(card1.getId()),eq(new BigDecimal(-30)))).thenReturn(0);
+        assertFalse(cardService.debitIfEnoughFunds(card1, new BigDecimal(30)));
+        Mockito.verify(cardRepository, Mockito.never()).refresh(any(Card.class));
+        Mockito.verify(outboxService, Mockito.never()).cardBalanceChanged(any(Card.class));
+    }
+
+    @Test
+    public void testUpdatecardAmount_LedgerDebit() throws CardException {
+        ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.LEDGER);
+        try {
+            Mockito.when(cardLedgerService.append(card1, new BigDecimal(-30))).thenReturn(true);
+            Mockito.when(cardLedgerService.getBalance(card1.getId())).thenReturn(new BigDecimal(70));
+            Card found = cardService.updateCardAmount(card1, "30", false);
+            //copy of the card with the ledger balance
+            assertNotSame(card1, found);
+            assertEquals(card1.getId(), found.getId());
+            assertEquals(new BigDecimal(70), found.getBalance());
+            Mockito.verify(cardLedgerService).append(card1, new BigDecimal(-30));
+            Mockito.verify(cardBalanceRepository, Mockito.never()).addToBalance(any(), any());
+            //balance change is published by the ledger compaction
+            Mockito.verify(outboxService, Mockito.never()).cardBalanceChanged(any(Card.class));
+        } finally {
+            ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.CONDITIONAL_UPDATE);
+        }
+    }
+
+    @Test
+    public void testUpdatecardAmount_LedgerDebitFailure() {
+        ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.LEDGER);
+        try {
+            Mockito.when(cardLedgerService.append(card1, new BigDecimal(-100))).thenReturn(false);
+            cardService.updateCardAmount(card1, "100", false);
+            fail();
+        } catch (CardException ex){
+            assertEquals(ex.getMessage(),String.format(ErrorMessage.NOT_ENOUGH_FUNDS,card1.getId(),"100"));
+            assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
+        } finally {
+            ((CardServiceImpl) AopTestUtils.getTargetObject(cardService)).setConcurrencyStrategy(CardConcurrencyStrategy.CONDITIONAL_UPDATE);
+        }
+    }
+
     @Test
     public void testUpdatecardAmount_AmountNotANumber() throws CardException {
         String badAmount = "STTTT";
@@ -0,0 +1,233 @@
+package com.zilch.service;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.Card;
+import com.zilch.entities.Currency;
+import com.zilch.entities.Purchase;
+import com.zilch.entities.Transaction;
+import com.zilch.entities.TransactionType;
+import com.zilch.exceptions.CardException;
+import com.zilch.exceptions.ErrorMessage;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.helper.Helper;
+import com.zilch.helper.HelperImpl;
+import com.zilch.outbox.OutboxService;
+import com.zilch.repository.*;
+import com.zilch.view.dto.PurchaseDto;
+import com.zilch.view.dto.TransactionDto;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.validation.beanvalidation.MethodValidationPostProcessor;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+
+/**
+ * PurchaseService tests
+ *
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+public class PurchaseServiceTest {
+    @TestConfiguration
+    static class PurchaseServiceImplTestContextConfiguration {
+        @Bean
+        public PurchaseService purchaseService() {
+            return new PurchaseServiceImpl();
+        }
+
+        @Bean
+        public Helper validator() {
+            return new HelperImpl();
+        }
+        //for annotation validation on method signature
+        @Bean
+        public MethodValidationPostProcessor methodValidationPostProcessor() {
+            return new MethodValidationPostProcessor();
+        }
+    }
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String LAST_UPDATED_BY = "user";
+    public static final String USER = "user";
+    public static final String SHOP = "shop";
+    public static final Integer CURRENCY_ID = 1;
+
+    @Value("${application.transaction.type.debit}")
+    String debit;
+
+    @Autowired
+    private PurchaseService purchaseService;
+
+    @MockBean
+    private CardService cardService;
+
+    @MockBean
+    private PurchaseRepository purchaseRepository;
+
+    @MockBean
+    private TransactionRepository transactionRepository;
+
+    @MockBean
+    private ReferenceDataCache referenceDataCache;
+
+    @MockBean
+    private OutboxService outboxService;
+
+    private Currency currency;
+    private Card card;
+    private TransactionType typeDebit;
+
+    @Before
+    public void setUp() throws CardException {
+        currency = new Currency(CURRENCY_ID, TEST_CURRENCY, LAST_UPDATED_BY);
+        card = new Card(USER,currency, new BigDecimal(40), LAST_UPDATED_BY);
+        card.setId(1);
+        typeDebit = new TransactionType(debit,"debit trn", LAST_UPDATED_BY);
+
+        Mockito.when(referenceDataCache.findCurrencyByName(TEST_CURRENCY)).thenReturn(currency);
+        Mockito.when(referenceDataCache.findCurrencyByName("EUR")).thenReturn(new Currency(2, "EUR", LAST_UPDATED_BY));
+        Mockito.when(referenceDataCache.findTransactionTypeById(debit)).thenReturn(typeDebit);
+        Mockito.when(cardService.findById(card.getId())).thenReturn(card);
+        Mockito.when(purchaseRepository.save(any(Purchase.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        Mockito.when(transactionRepository.saveAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+
+    private PurchaseDto purchaseDto(int id) {
+        return new PurchaseDto(id, "p" + id, SHOP, new BigDecimal(40), card.getId(), USER, card.getBalance(), CURRENCY_ID,
+                card.getLastUpdated(), LAST_UPDATED_BY, 0, CURRENCY_ID, "purchase", card.getLastUpdated(), LAST_UPDATED_BY);
+    }
+
+    private TransactionDto installmentDto(int id, int purchaseId) {
+        return new TransactionDto(id, "t" + id, debit, new BigDecimal(10), purchaseId, false, card.getLastUpdated(),
+                CURRENCY_ID, "installment", card.getLastUpdated(), LAST_UPDATED_BY);
+    }
+
+    @Test
+    public void testFindAll_Page() throws CardException, IOException {
+        Mockito.when(referenceDataCache.findCurrencyById(CURRENCY_ID)).thenReturn(currency);
+        Mockito.when(purchaseRepository.findDtoByIdGreaterThan(eq(0), any(Pageable.class)))
+                .thenReturn(Arrays.asList(purchaseDto(1), purchaseDto(2)));
+        Mockito.when(transactionRepository.findDtoByPurchaseIdIn(Arrays.asList(1, 2)))
+                .thenReturn(Arrays.asList(installmentDto(10, 1), installmentDto(11, 1), installmentDto(12, 2)));
+
+        StringWriter out = new StringWriter();
+        purchaseService.findAll(null, 1, new CursorPageWriter<>(new Gson(), out));
+        JsonObject page = new JsonParser().parse(out.toString()).getAsJsonObject();
+
+        JsonArray items = page.getAsJsonArray("items");
+        assertEquals(1, items.size());
+        assertEquals(1, page.get("nextCursor").getAsInt());
+        JsonObject purchase = items.get(0).getAsJsonObject();
+        //installments of all purchases are read by one query and grouped by purchase
+        assertEquals(2, purchase.getAsJsonArray("transactions").size());
+        assertEquals(debit, purchase.getAsJsonArray("transactions").get(0).getAsJsonObject()
+                .getAsJsonObject("type").get("id").getAsString());
+        assertEquals(TEST_CURRENCY, purchase.getAsJsonObject("currency").get("name").getAsString());
+        assertEquals(TEST_CURRENCY, purchase.getAsJsonObject("card").getAsJsonObject("currency").get("name").getAsString());
+        Mockito.verify(transactionRepository, Mockito.times(1)).findDtoByPurchaseIdIn(any());
+    }
+
+    @Test
+    public void testFindAll_Empty() throws CardException, IOException {
+        Mockito.when(purchaseRepository.findDtoByIdGreaterThan(eq(0), any(Pageable.class))).thenReturn(Collections.emptyList());
+        StringWriter out = new StringWriter();
+        purchaseService.findAll(null, null, new CursorPageWriter<>(new Gson(), out));
+        assertEquals("{\"items\":[]}", out.toString());
+        Mockito.verify(transactionRepository, Mockito.never()).findDtoByPurchaseIdIn(any());
+    }
+
+    //public Purchase createPurchase(@NotBlank String globalId,@NotBlank String shopId, @NotBlank  String currencyName, @NotBlank String cardId, @NotBlank String amount, String description) throws CardException;
+    @Test
+    public void testCreatePurchase_Success() throws CardException {
+        Card updated = new Card(USER,currency, new BigDecimal(15), LAST_UPDATED_BY);
+        updated.setId(card.getId());
+        Mockito.when(cardService.updateCardAmount(card, "25", false)).thenReturn(updated);
+
+        Purchase purchase = purchaseService.createPurchase("p1", SHOP, TEST_CURRENCY, card.getId().toString(), "100", "purchase");
+
+        assertEquals(new BigDecimal(100), purchase.getAmount());
+        assertEquals(updated, purchase.getCard());
+        List<Transaction> transactions = purchase.getTransactions();
+        assertEquals(PurchaseServiceImpl.TRANSACTIONS_IN_PURCHASE_COUNT, transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            assertEquals("p1_" + i, transaction.getGlobalId());
+            assertEquals(new BigDecimal(25), transaction.getAmount());
+            assertEquals(typeDebit, transaction.getType());
+            assertEquals(purchase, transaction.getPurchase());
+            assertEquals(i == 0, transaction.getSubmitted());
+            if (i > 0) {
+                assertTrue(transaction.getDueDate().after(transactions.get(i - 1).getDueDate()));
+            }
+        }
+        //only the first installment changes card balance, all installments are saved in one call
+        Mockito.verify(cardService, Mockito.times(1)).updateCardAmount(any(Card.class), any(String.class), any(Boolean.class));
+        Mockito.verify(purchaseRepository, Mockito.times(1)).save(any(Purchase.class));
+        Mockito.verify(transactionRepository, Mockito.times(1)).saveAll(anyList());
+        Mockito.verify(transactionRepository, Mockito.never()).save(any(Transaction.class));
+        //purchase and every installment are recorded in the outbox
+        Mockito.verify(outboxService, Mockito.times(1)).purchaseCreated(purchase);
+        Mockito.verify(outboxService, Mockito.times(PurchaseServiceImpl.TRANSACTIONS_IN_PURCHASE_COUNT)).transactionCreated(any(Transaction.class));
+    }
+
+    @Test
+    public void testCreatePurchase_NotEnoughFunds() throws CardException {
+        String error = String.format(ErrorMessage.NOT_ENOUGH_FUNDS, card.getId(), "250");
+        Mockito.when(cardService.updateCardAmount(card, "250", false)).thenThrow(new CardException(error, HttpStatus.BAD_REQUEST.value()));
+        try {
+            purchaseService.createPurchase("p2", SHOP, TEST_CURRENCY, card.getId().toString(), "1000", "purchase");
+            fail();
+        } catch (CardException e) {
+            assertEquals(error, e.getMessage());
+        }
+        Mockito.verify(purchaseRepository, Mockito.never()).save(any(Purchase.class));
+        Mockito.verify(transactionRepository, Mockito.never()).saveAll(anyList());
+        Mockito.verify(outboxService, Mockito.never()).purchaseCreated(any(Purchase.class));
+    }
+
+    @Test
+    public void testCreatePurchase_CurrencyNotEqCardCurrency() throws CardException {
+        try {
+            purchaseService.createPurchase("p3", SHOP, "EUR", card.getId().toString(), "100", "purchase");
+            fail();
+        } catch (CardException e) {
+            assertEquals(String.format(ErrorMessage.PURCHASE_CURRENCY_NOT_EQ_CARD_CURRENCY, "EUR", TEST_CURRENCY), e.getMessage());
+        }
+        Mockito.verify(cardService, Mockito.never()).updateCardAmount(any(Card.class), any(String.class), any(Boolean.class));
+    }
+
+    @Test
+    public void testCreatePurchase_WrongAmount() {
+        try {
+            purchaseService.createPurchase("p4", SHOP, TEST_CURRENCY, card.getId().toString(), "abc", "purchase");
+            fail();
+        } catch (CardException e) {
+            assertEquals(String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH, "abc"), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.zilch.service;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.repository.*;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmark of read-only against read-write transactions for the card details query
+ * (card purchases with installments).
+ * <p>Skipped unless run with -Dbenchmark=true, e.g.
+ * mvn test -Dtest=ReadOnlyTransactionBenchmarkTest -Dbenchmark=true
+ * Average time and bytes allocated per call are printed for both modes.</p>
+ * Use in-memory h2database
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class ReadOnlyTransactionBenchmarkTest {
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String LAST_UPDATED_BY = "user";
+    public static final String USER = "benchmark-user";
+    public static final Integer CURRENCY_ID = 1;
+    public static final int PURCHASES = 200;
+    public static final int INSTALLMENTS = 4;
+    public static final int WARMUP = 200;
+    public static final int ITERATIONS = 1000;
+
+    @Value("${application.transaction.type.debit}")
+    String debit;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private PurchaseRepository purchaseRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    private Card card;
+
+    @Before
+    public void before() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        Currency currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, LAST_UPDATED_BY));
+        TransactionType typeDebit = transactionTypeRepository.save(new TransactionType(debit, "debit trn", LAST_UPDATED_BY));
+        referenceDataCache.refresh();
+
+        card = cardRepository.save(new Card(USER, currency, new BigDecimal(1000), LAST_UPDATED_BY));
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < PURCHASES; i++) {
+            Purchase purchase = purchaseRepository.save(new Purchase("b" + i, "shop", currency, new BigDecimal(40), card, "purchase", LAST_UPDATED_BY));
+            for (int j = 0; j < INSTALLMENTS; j++) {
+                transactions.add(new Transaction("b" + i + "_" + j, typeDebit, new BigDecimal(10), card, purchase, currency, "installment", LAST_UPDATED_BY));
+            }
+        }
+        transactionRepository.saveAll(transactions);
+    }
+
+    @After
+    public void after() {
+        if (card != null) {
+            transactionRepository.deleteAllInBatch();
+            purchaseRepository.deleteAllInBatch();
+            cardRepository.deleteAllInBatch();
+            transactionTypeRepository.deleteAllInBatch();
+            currencyRepository.deleteAllInBatch();
+        }
+    }
+
+    private void run(TransactionTemplate template, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            template.execute(status -> purchaseRepository.findDistinctByCardOrderByIdAsc(card));
+        }
+    }
+
+    private void measure(boolean readOnly) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(readOnly);
+        run(template, WARMUP);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long started = System.nanoTime();
+        run(template, ITERATIONS);
+        long micros = (System.nanoTime() - started) / 1000 / ITERATIONS;
+        long bytes = (threads.getThreadAllocatedBytes(threadId) - allocated) / ITERATIONS;
+        System.out.printf("readOnly=%s: %d us, %d bytes allocated per call (%d purchases, %d installments)%n",
+                readOnly, micros, bytes, PURCHASES, PURCHASES * INSTALLMENTS);
+    }
+
+    @Test
+    public void testReadOnlyAgainstReadWrite() {
+        measure(false);
+        measure(true);
+    }
+}
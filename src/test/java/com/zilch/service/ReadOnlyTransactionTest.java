@@ -0,0 +1,48 @@
+package com.zilch.service;
+
+import org.junit.Test;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.interceptor.TransactionAttribute;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Query methods of the services run in read-only transactions:
+ * Hibernate session is read-only with flush mode MANUAL and JDBC connection is read-only.
+ * Methods changing data run in read-write transactions.
+ *
+ * @author Elena Medvedeva
+ */
+public class ReadOnlyTransactionTest {
+
+    private final AnnotationTransactionAttributeSource attributeSource = new AnnotationTransactionAttributeSource();
+
+    private void assertReadOnly(Class<?> serviceClass, String... queryMethods) {
+        for (Method method : serviceClass.getDeclaredMethods()) {
+            TransactionAttribute attribute = attributeSource.getTransactionAttribute(method, serviceClass);
+            if (attribute == null) {
+                continue;
+            }
+            boolean query = Arrays.asList(queryMethods).contains(method.getName());
+            assertEquals(serviceClass.getSimpleName() + "." + method.getName(), query, attribute.isReadOnly());
+        }
+    }
+
+    @Test
+    public void testCardService() {
+        assertReadOnly(CardServiceImpl.class, "findAll", "findById", "findByIdWithPurchases", "findByUserId");
+    }
+
+    @Test
+    public void testPurchaseService() {
+        assertReadOnly(PurchaseServiceImpl.class, "findAll", "findById", "getPurchasesByCardId");
+    }
+
+    @Test
+    public void testTransactionService() {
+        assertReadOnly(TransactionServiceImpl.class, "getTransactionsByCardId");
+    }
+}
@@ -0,0 +1,266 @@
+package com.zilch.service;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.exceptions.CardException;
+import com.zilch.repository.*;
+import com.zilch.view.dto.TransactionBatchResult;
+import com.zilch.view.dto.TransactionBatchResult.Status;
+import com.zilch.view.model.TransactionModel;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.persistence.EntityManagerFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * TransactionBatchService tests
+ * Use in-memory h2database
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.transaction.batch.max-size=100",
+        "spring.jpa.properties.hibernate.generate_statistics=true"
+})
+public class TransactionBatchServiceTest {
+    public static final Integer CURRENCY_ID = 1;
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "batch-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.credit}")
+    private String credit;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Autowired
+    private TransactionBatchService batchService;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Currency currency;
+
+    @Before
+    public void before() {
+        currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, USER));
+        currencyRepository.save(new Currency(CURRENCY_ID + 1, "EUR", USER));
+        transactionTypeRepository.save(new TransactionType(credit, "credit", USER));
+        transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        referenceDataCache.refresh();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private Card card(int balance) {
+        return cardRepository.save(new Card(USER, currency, new BigDecimal(balance), USER));
+    }
+
+    private TransactionModel item(Card card, String type, int amount) {
+        return new TransactionModel("batch" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), type, String.valueOf(amount), "batch item");
+    }
+
+    private BigDecimal balance(Card card) {
+        return cardRepository.findById(card.getId()).get().getBalance();
+    }
+
+    @Test
+    public void testCreateTransactions_NetEffectPerCard() throws CardException {
+        Card card1 = card(10);
+        Card card2 = card(0);
+        List<TransactionModel> items = Arrays.asList(
+                item(card1, debit, 5),
+                item(card2, credit, 30),
+                item(card1, credit, 20),
+                item(card2, debit, 10),
+                item(card1, debit, 25));
+
+        List<TransactionBatchResult> results = batchService.createTransactions(items);
+
+        assertEquals(5, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).getIndex());
+            assertEquals(Status.CREATED, results.get(i).getStatus());
+            assertEquals(items.get(i).getGlobalId(), transactionRepository.findById(results.get(i).getTransactionId()).get().getGlobalId());
+        }
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(card1)));
+        assertEquals(0, new BigDecimal(20).compareTo(balance(card2)));
+    }
+
+    @Test
+    public void testCreateTransactions_BadItemsDontFailTheBatch() throws CardException {
+        Card card = card(10);
+        Card euroCard = cardRepository.save(new Card(USER, currencyRepository.findById(CURRENCY_ID + 1).get(), BigDecimal.ZERO, USER));
+        TransactionModel existing = item(card, credit, 1);
+        batchService.createTransactions(Collections.singletonList(existing));
+
+        TransactionModel repeated = item(card, credit, 1);
+        List<TransactionModel> items = Arrays.asList(
+                item(card, debit, 100),
+                existing,
+                repeated,
+                new TransactionModel(repeated.getGlobalId(), TEST_CURRENCY, card.getId().toString(), credit, "1", "repeated"),
+                new TransactionModel("batch" + globalIdCounter++, TEST_CURRENCY, "100000", credit, "1", "no card"),
+                new TransactionModel("batch" + globalIdCounter++, TEST_CURRENCY, euroCard.getId().toString(), credit, "1", "currency"),
+                new TransactionModel("batch" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), credit, "abc", "amount"),
+                new TransactionModel("batch" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), "X", "1", "type"),
+                new TransactionModel(null, TEST_CURRENCY, card.getId().toString(), credit, "1", "globalId"),
+                item(card, debit, 12));
+
+        List<TransactionBatchResult> results = batchService.createTransactions(items);
+
+        assertEquals(Status.INSUFFICIENT_FUNDS, results.get(0).getStatus());
+        assertEquals(Status.DUPLICATE, results.get(1).getStatus());
+        assertEquals(Status.CREATED, results.get(2).getStatus());
+        assertEquals(Status.DUPLICATE, results.get(3).getStatus());
+        for (int i = 4; i < 9; i++) {
+            assertEquals(Status.INVALID, results.get(i).getStatus());
+            assertNotNull(results.get(i).getError());
+        }
+        assertEquals(Status.CREATED, results.get(9).getStatus());
+        //10 + 1 + 1 - 12
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(card)));
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(euroCard)));
+    }
+
+    /**
+     * Repository whose first duplicate check doesn't see existing globalIds,
+     * as if they were committed by a concurrent transaction after the check
+     */
+    private TransactionRepository checkMissingConcurrentCommit(AtomicInteger checks) {
+        return (TransactionRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{TransactionRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("findGlobalIdsByGlobalIdIn") && checks.incrementAndGet() == 1) {
+                        return Collections.emptyList();
+                    }
+                    try {
+                        return method.invoke(transactionRepository, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Test
+    public void testCreateTransactions_ConcurrentDuplicateDoesntFailTheBatch() throws CardException {
+        Card card = card(10);
+        TransactionModel concurrent = item(card, credit, 5);
+        batchService.createTransactions(Collections.singletonList(concurrent));
+
+        Object target = AopTestUtils.getTargetObject(batchService);
+        AtomicInteger checks = new AtomicInteger();
+        ReflectionTestUtils.setField(target, "transactionRepository", checkMissingConcurrentCommit(checks));
+        List<TransactionBatchResult> results;
+        try {
+            //the batch fails on flush and is re-executed
+            results = batchService.createTransactions(Arrays.asList(
+                    item(card, debit, 10),
+                    new TransactionModel(concurrent.getGlobalId(), TEST_CURRENCY, card.getId().toString(), credit, "5", "concurrent"),
+                    item(card, debit, 5)));
+        } finally {
+            ReflectionTestUtils.setField(target, "transactionRepository", transactionRepository);
+        }
+
+        assertEquals(2, checks.get());
+        assertEquals(Status.CREATED, results.get(0).getStatus());
+        assertEquals(Status.DUPLICATE, results.get(1).getStatus());
+        assertEquals(Status.CREATED, results.get(2).getStatus());
+        //10 + 5 - 10 - 5
+        assertEquals(0, BigDecimal.ZERO.compareTo(balance(card)));
+        assertEquals(3, transactionRepository.count());
+    }
+
+    @Test
+    public void testCreateTransactions_TooLarge() {
+        Card card = card(0);
+        List<TransactionModel> items = new ArrayList<>();
+        for (int i = 0; i < 101; i++) {
+            items.add(item(card, credit, 1));
+        }
+        try {
+            batchService.createTransactions(items);
+            fail();
+        } catch (CardException e) {
+            assertEquals(HttpStatus.BAD_REQUEST.value(), e.getErrorCode());
+        }
+        try {
+            batchService.createTransactions(Collections.emptyList());
+            fail();
+        } catch (CardException e) {
+            assertEquals(HttpStatus.BAD_REQUEST.value(), e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testCreateTransactions_StatementsDontDependOnBatchSize() throws CardException {
+        long small = statements(card(100), card(100), 2);
+        long large = statements(card(100), card(100), 40);
+        //160 rows instead of 4: a few more JDBC batches (batch_size=50) and sequence calls (allocationSize=50), not a statement per item
+        assertTrue("statements: " + small + " and " + large, large <= small + 6);
+    }
+
+    /**
+     * Executed statements (JDBC batch is one statement) for a batch of items per card on two cards
+     */
+    private long statements(Card card1, Card card2, int itemsPerCard) throws CardException {
+        List<TransactionModel> items = new ArrayList<>();
+        for (int i = 0; i < itemsPerCard; i++) {
+            items.add(item(card1, debit, 1));
+            items.add(item(card2, credit, 1));
+        }
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        batchService.createTransactions(items);
+        return statistics.getPrepareStatementCount();
+    }
+}
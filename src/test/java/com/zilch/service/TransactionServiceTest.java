@@ -1,5 +1,7 @@
 package com.zilch.service;
 
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.outbox.OutboxService;
 import com.zilch.entities.Currency;
 import com.zilch.entities.Transaction;
 import com.zilch.entities.TransactionType;
@@ -9,6 +11,11 @@ import com.zilch.helper.Helper;
 import com.zilch.repository.*;
 import com.zilch.helper.HelperImpl;
 import com.zilch.entities.Card;
+import com.zilch.gson.writer.CursorPageWriter;
+import com.zilch.view.dto.TransactionDto;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.hibernate.ObjectNotFoundException;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,16 +26,22 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.validation.beanvalidation.MethodValidationPostProcessor;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 
 /**
@@ -71,6 +84,9 @@ public class TransactionServiceTest {
     @Value("${application.transactionCredit.type.debit}")
     String debit;
 
+    @Value("${application.transaction.type.credit}")
+    String cardCredit;
+
     @Autowired
     private TransactionService transactionService;
 
@@ -81,10 +97,7 @@ public class TransactionServiceTest {
     private TransactionRepository transactionRepository;
 
     @MockBean
-    private CurrencyRepository currencyRepository;
-
-    @MockBean
-    private TransactionTypeRepository transactionTypeRepository;
+    private ReferenceDataCache referenceDataCache;
 
     @MockBean
     private CardService cardService;
@@ -92,6 +105,12 @@ public class TransactionServiceTest {
     @MockBean
     private PurchaseRepository purchaseRepository;
 
+    @MockBean
+    private OutboxService outboxService;
+
+    @MockBean
+    private InstallmentSettlementService installmentSettlementService;
+
     private Currency currency;
     private Card card1;
     private Card card2;
@@ -117,41 +136,48 @@ public class TransactionServiceTest {
 
         //getTransactionsBycardId
         Mockito.when(cardService.findById(card1.getId())).thenReturn(card1);
-        Mockito.when(transactionRepository.findByCard(card1))
-                .thenReturn(Arrays.asList(transactionCredit));
-
-        Mockito.when(transactionRepository.findByCard(card2))
-                .thenReturn(Arrays.asList(transactionCredit));
+        Mockito.when(transactionRepository.streamDtoByCardAndIdGreaterThan(eq(card1), eq(0), any(Pageable.class)))
+                .thenAnswer(invocation -> Stream.of(dto(transactionCredit)));
 
 
         //createTransaction
         Currency wrong = new Currency(2, "Wrong",LAST_UPDATED_BY);
-        Mockito.when(currencyRepository.findByName("Wrong")).thenReturn(wrong);
+        Mockito.when(referenceDataCache.findCurrencyByName("Wrong")).thenReturn(wrong);
         Mockito.when(cardRepository.save(new Card(USER,wrong, new BigDecimal(0), LAST_UPDATED_BY))).thenThrow(new ObjectNotFoundException("",""));
 
-        Mockito.when(currencyRepository.findByName(TEST_CURRENCY)).thenReturn(currency);
-        Mockito.when(transactionTypeRepository.getOne(typeCredit.getId())).thenReturn(typeCredit);
-        Mockito.when(transactionTypeRepository.getOne(typeDebit.getId())).thenReturn(typeDebit);
+        Mockito.when(referenceDataCache.findCurrencyByName(TEST_CURRENCY)).thenReturn(currency);
+        Mockito.when(referenceDataCache.findTransactionTypeById(typeCredit.getId())).thenReturn(typeCredit);
+        Mockito.when(referenceDataCache.findTransactionTypeById(typeDebit.getId())).thenReturn(typeDebit);
         Mockito.when(cardService.findById(card1.getId())).thenReturn(card1);
         Mockito.when(cardService.findById(card2.getId())).thenReturn(card2);
         Mockito.when(cardService.findById(1001)).thenReturn(null);
     }
 
-    //public List<Transaction> getTransactionsBycardId(@NotNull Integer cardId) throws CardException;
+    private TransactionDto dto(Transaction transaction) {
+        return new TransactionDto(transaction.getId(), transaction.getGlobalId(), transaction.getType().getId(), transaction.getAmount(),
+                null, transaction.getSubmitted(), transaction.getDueDate(), transaction.getCurrency().getId(),
+                transaction.getDescription(), transaction.getLastUpdated(), transaction.getLastUpdatedBy());
+    }
+
+    //public void getTransactionsByCardId(@NotNull Integer cardId, Integer after, Integer limit, CursorPageWriter<TransactionDto> writer) throws CardException, IOException;
     @Test
-    public void testGetTransactionsBycardId_Success() throws CardException {
-        List<Transaction> found = transactionService.getTransactionsByCardId(card1.getId());
-        assertNotNull(found);
-        assertTrue(found.size() == 1);
-        assertTrue(found.get(0).getId().equals(transactionCredit.getId()) );
+    public void testGetTransactionsBycardId_Success() throws CardException, IOException {
+        Mockito.when(referenceDataCache.findCurrencyById(CURRENCY_ID)).thenReturn(currency);
+        StringWriter out = new StringWriter();
+        transactionService.getTransactionsByCardId(card1.getId(), null, 10, new CursorPageWriter<>(new Gson(), out));
+        JsonObject page = new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertEquals(1, page.getAsJsonArray("items").size());
+        assertEquals(transactionCredit.getId().intValue(), page.getAsJsonArray("items").get(0).getAsJsonObject().get("id").getAsInt());
+        assertFalse(page.has("nextCursor"));
+        Mockito.verify(transactionRepository).streamDtoByCardAndIdGreaterThan(card1, 0, PageRequest.of(0, 11));
      }
 
     @Test
-    public void testGetTransactionsByCardId_Failed() throws CardException {
+    public void testGetTransactionsByCardId_Failed() throws CardException, IOException {
         String error = String.format(ErrorMessage.NO_CARD_FOUND,card2.getId().toString());
         Mockito.when(cardService.findById(card2.getId())).thenThrow(new CardException(error,HttpStatus.BAD_REQUEST.value()));
         try {
-            List<Transaction> found = transactionService.getTransactionsByCardId(card2.getId());
+            transactionService.getTransactionsByCardId(card2.getId(), null, null, new CursorPageWriter<>(new Gson(), new StringWriter()));
             fail();
         } catch (CardException ex){
             assertEquals(ex.getMessage(),String.format(ErrorMessage.NO_CARD_FOUND,card2.getId().toString()));
@@ -169,6 +195,19 @@ public class TransactionServiceTest {
         Transaction found = transactionService.createTransaction(String.valueOf(counter),currency.getName(),card1.getId().toString(),typeCredit.getId(),String.valueOf(amount),"Success trn");
         assertNotNull(found);
         assertTrue(found.getId().equals(transactionCredit.getId()) );
+        Mockito.verify(outboxService, Mockito.times(1)).transactionCreated(transactionCredit);
+    }
+
+    @Test
+    public void testCreateTransaction_CreditWakesInstallmentRetries() throws CardException {
+        TransactionType typeCardCredit = new TransactionType(cardCredit, "card credit trn", LAST_UPDATED_BY);
+        Mockito.when(referenceDataCache.findTransactionTypeById(cardCredit)).thenReturn(typeCardCredit);
+        Mockito.when(cardService.updateCardAmount(card1, "50", true)).thenReturn(card1);
+        Mockito.when(transactionRepository.save(Mockito.any(Transaction.class))).thenReturn(transactionCredit);
+
+        transactionService.createTransaction(String.valueOf(globalIdCounter++), currency.getName(), card1.getId().toString(), cardCredit, "50", "top up");
+
+        Mockito.verify(installmentSettlementService, Mockito.times(1)).wakeRetries(card1);
     }
 
     @Test
@@ -180,6 +219,7 @@ public class TransactionServiceTest {
         Transaction found = transactionService.createTransaction(String.valueOf(counter),currency.getName(),card2.getId().toString(), typeDebit.getId(),String.valueOf(amount),"Success trn");
         assertNotNull(found);
         assertTrue(found.getId().equals(transactionDebit.getId()) );
+        Mockito.verify(installmentSettlementService, Mockito.never()).wakeRetries(Mockito.any(Card.class));
     }
 
     @Test
@@ -197,6 +237,7 @@ public class TransactionServiceTest {
             assertEquals(ex.getMessage(),String.format(ErrorMessage.NOT_ENOUGH_FUNDS,card2.getId(),String.valueOf(amount)));
             assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
         }
+        Mockito.verify(outboxService, Mockito.never()).transactionCreated(Mockito.any(Transaction.class));
     }
 
     @Test
@@ -215,6 +256,18 @@ public class TransactionServiceTest {
         }
     }
 
+    @Test
+    public void testCreateTransaction_typeNotFound() throws CardException {
+        int counter = globalIdCounter++;
+        try {
+            transactionService.createTransaction(String.valueOf(counter),currency.getName(),card1.getId().toString(),"X","100","No type");
+            fail();
+        } catch (CardException ex){
+            assertEquals(ex.getMessage(),String.format(ErrorMessage.NO_TRANSACTION_TYPE_PRESENT, "X"));
+            assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
+        }
+        Mockito.verify(transactionRepository, Mockito.never()).save(Mockito.any(Transaction.class));
+    }
 
     @Test
     public void testCreateTransaction_AmountNotNumber() throws CardException {
@@ -229,4 +282,17 @@ public class TransactionServiceTest {
             assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
         }
     }
+
+    @Test
+    public void testCreateTransaction_CardIdNotNumber() {
+        int counter = globalIdCounter++;
+        try {
+            transactionService.createTransaction(String.valueOf(counter), currency.getName(), "abc", typeCredit.getId(), "100", "Fail trn");
+            fail();
+        } catch (CardException ex){
+            assertEquals(ex.getMessage(),String.format(ErrorMessage.NUMBER_FORMAT_MISMATCH,"abc"));
+            assertEquals(ex.getErrorCode(),HttpStatus.BAD_REQUEST.value());
+        }
+        Mockito.verify(transactionRepository, Mockito.never()).save(Mockito.any(Transaction.class));
+    }
 }
@@ -0,0 +1,78 @@
+package com.zilch.settlement;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * HierarchicalTimingWheel tests
+ * @author Elena Medvedeva
+ */
+public class HierarchicalTimingWheelTest {
+
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    @Test
+    public void testAdd_Expired() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, WHEEL_SIZE, 1000);
+        assertFalse(wheel.add("past", 999));
+        assertFalse(wheel.add("now", 1000));
+        assertTrue(wheel.add("next", 1001));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testAdvanceClock_NeverEarlyAtMostOneTickLate() {
+        long start = 1000;
+        HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<>(TICK, WHEEL_SIZE, start);
+        Random random = new Random(42);
+        //up to 3 levels of wheels: 80 ms, 640 ms, 5120 ms
+        List<Long> expirations = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            long expiration = start + 1 + random.nextInt(5000);
+            expirations.add(expiration);
+            assertTrue(wheel.add(expiration, expiration));
+        }
+        List<Long> fired = new ArrayList<>();
+        for (long now = start; now <= start + 5100; now += TICK) {
+            for (Long expiration : wheel.advanceClock(now)) {
+                assertTrue("fired early", expiration <= now);
+                assertTrue("fired late", now - expiration < TICK);
+                fired.add(expiration);
+            }
+        }
+        assertEquals(0, wheel.size());
+        Collections.sort(expirations);
+        Collections.sort(fired);
+        assertEquals(expirations, fired);
+    }
+
+    @Test
+    public void testAdvanceClock_Jump() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, WHEEL_SIZE, 0);
+        wheel.add("soon", 15);
+        wheel.add("later", 700);
+        wheel.add("much later", 100000);
+
+        assertEquals(Arrays.asList("soon"), wheel.advanceClock(50));
+        //clock jumps over several rotations of all wheels
+        assertEquals(Arrays.asList("later"), wheel.advanceClock(20000));
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.advanceClock(99990).isEmpty());
+        assertEquals(Arrays.asList("much later"), wheel.advanceClock(100000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testAdd_AfterAdvance() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, WHEEL_SIZE, 0);
+        wheel.advanceClock(12345);
+        assertTrue(wheel.add("a", 12345 + 1000));
+        assertTrue(wheel.advanceClock(12345 + 1000).isEmpty());
+        //next tick boundary
+        assertEquals(Arrays.asList("a"), wheel.advanceClock(12345 + 1005));
+    }
+}
@@ -0,0 +1,140 @@
+package com.zilch.settlement;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.repository.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of installments settlement by the timing wheel
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.settlement.wheel.enabled=true",
+        "application.settlement.wheel.tick-ms=20",
+        "application.settlement.wheel.wheel-size=10",
+        "application.settlement.wheel.horizon-ms=" + InstallmentDueTimerTest.HORIZON_MS,
+        "application.settlement.wheel.preload-ms=600000"
+})
+public class InstallmentDueTimerTest {
+    public static final long HORIZON_MS = 500;
+    public static final Integer CURRENCY_ID = 1;
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "wheel-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Autowired
+    private InstallmentDueTimer timer;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Currency currency;
+    private TransactionType typeDebit;
+
+    @Before
+    public void before() {
+        currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, USER));
+        typeDebit = transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        referenceDataCache.refresh();
+        //everything due within the horizon from now on is loaded by the next preload
+        timer.preload();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private Card card(int balance) {
+        return cardRepository.save(new Card(USER, currency, new BigDecimal(balance), USER));
+    }
+
+    private Transaction installment(Card card, int amount, Date dueDate) {
+        return transactionRepository.save(new Transaction("wheel" + globalIdCounter++, typeDebit, new BigDecimal(amount), card, null,
+                currency, "installment", false, dueDate, USER));
+    }
+
+    private BigDecimal balance(Card card) {
+        return cardRepository.findById(card.getId()).get().getBalance();
+    }
+
+    private boolean submitted(Transaction transaction) {
+        return transactionRepository.findById(transaction.getId()).get().getSubmitted();
+    }
+
+    @Test
+    public void testPreload_SettlesInstallmentOnDueTime() throws InterruptedException {
+        Card card = card(100);
+        Date dueDate = new Date(System.currentTimeMillis() + HORIZON_MS + 300);
+        Transaction installment = installment(card, 10, dueDate);
+        Thread.sleep(400);
+
+        timer.preload();
+        assertFalse(submitted(installment));
+        assertEquals(1, meterRegistry.get(InstallmentDueTimer.METRIC_WHEEL_SIZE).gauge().value(), 0);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!submitted(installment) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(submitted(installment));
+        assertTrue(System.currentTimeMillis() >= dueDate.getTime());
+        assertEquals(0, new BigDecimal(90).compareTo(balance(card)));
+        assertEquals(0, meterRegistry.get(InstallmentDueTimer.METRIC_WHEEL_SIZE).gauge().value(), 0);
+    }
+
+    @Test
+    public void testPreload_SettlesExpiredInstallmentImmediately() throws InterruptedException {
+        Card card = card(100);
+        Transaction installment = installment(card, 10, new Date(System.currentTimeMillis() + HORIZON_MS + 50));
+        Thread.sleep(HORIZON_MS + 200);
+
+        timer.preload();
+
+        assertTrue(submitted(installment));
+        assertEquals(0, new BigDecimal(90).compareTo(balance(card)));
+    }
+}
@@ -0,0 +1,180 @@
+package com.zilch.settlement;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.exceptions.CardException;
+import com.zilch.repository.*;
+import com.zilch.service.InstallmentSettlementService;
+import com.zilch.service.SettlementResult;
+import com.zilch.service.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of retries of installments which couldn't be settled because of lack of funds
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.settlement.enabled=true",
+        "application.settlement.poll-ms=3600000",
+        "application.settlement.retry.initial-delay-ms=1000",
+        "application.settlement.retry.multiplier=2",
+        "application.settlement.retry.max-delay-ms=3000"
+})
+public class InstallmentRetryTest {
+    public static final Integer CURRENCY_ID = 1;
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "retry-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Value("${application.transaction.type.credit}")
+    private String credit;
+
+    @Autowired
+    private InstallmentSettlementService settlementService;
+
+    @Autowired
+    private TransactionService transactionService;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private CardBalanceRepository cardBalanceRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private InstallmentRetryRepository installmentRetryRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    private Currency currency;
+    private TransactionType typeDebit;
+    private Date now;
+
+    @Before
+    public void before() {
+        currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, USER));
+        typeDebit = transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        transactionTypeRepository.save(new TransactionType(credit, "credit", USER));
+        referenceDataCache.refresh();
+        now = new Date();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        installmentRetryRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private Card card(int balance) {
+        return cardRepository.save(new Card(USER, currency, new BigDecimal(balance), USER));
+    }
+
+    /**
+     * Creates installment due yesterday which can't be debited and moves it to the retry queue
+     */
+    private Transaction installmentInRetry(Card card, int amount) {
+        Transaction installment = transactionRepository.save(new Transaction("retry" + globalIdCounter++, typeDebit, new BigDecimal(amount), card, null,
+                currency, "installment", false, new Date(now.getTime() - TimeUnit.DAYS.toMillis(1)), USER));
+        assertEquals(1, settlementService.settleInstallments(Collections.singletonList(installment.getId()), 0, 1).getUnsettled());
+        return installment;
+    }
+
+    private InstallmentRetry retry(Transaction installment) {
+        return installmentRetryRepository.findById(installment.getId()).orElse(null);
+    }
+
+    private boolean submitted(Transaction transaction) {
+        return transactionRepository.findById(transaction.getId()).get().getSubmitted();
+    }
+
+    @Test
+    public void testRetryDueInstallments_ExponentialSchedule() {
+        Card card = card(0);
+        Transaction installment = installmentInRetry(card, 10);
+        Date attempt = retry(installment).getNextAttempt();
+
+        //not due yet
+        assertEquals(0, settlementService.retryDueInstallments(new Date(attempt.getTime() - 1), 10, 0, 1).getLocked());
+
+        long[] delays = {2000, 3000, 3000};
+        for (int i = 0; i < delays.length; i++) {
+            SettlementResult result = settlementService.retryDueInstallments(attempt, 10, 0, 1);
+            assertEquals(1, result.getLocked());
+            assertEquals(0, result.getSettled());
+            InstallmentRetry retry = retry(installment);
+            assertEquals(i + 2, retry.getAttempts());
+            assertEquals(attempt.getTime() + delays[i], retry.getNextAttempt().getTime());
+            attempt = retry.getNextAttempt();
+        }
+
+        CardBalance funded = cardBalanceRepository.findById(card.getId()).get();
+        funded.setBalance(new BigDecimal(100));
+        cardBalanceRepository.save(funded);
+        SettlementResult result = settlementService.retryDueInstallments(attempt, 10, 0, 1);
+        assertEquals(1, result.getSettled());
+        assertNull(retry(installment));
+        assertTrue(submitted(installment));
+        assertEquals(0, new BigDecimal(90).compareTo(cardRepository.findById(card.getId()).get().getBalance()));
+    }
+
+    @Test
+    public void testCreateTransaction_CreditRetriesCardInstallments() throws CardException, InterruptedException {
+        Card card = card(0);
+        Card otherCard = card(0);
+        Transaction installment = installmentInRetry(card, 10);
+        Transaction otherInstallment = installmentInRetry(otherCard, 10);
+        Date otherAttempt = retry(otherInstallment).getNextAttempt();
+
+        transactionService.createTransaction("retry" + globalIdCounter++, TEST_CURRENCY, card.getId().toString(), credit, "50", "top up");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!submitted(installment) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(submitted(installment));
+        assertNull(retry(installment));
+        assertEquals(0, new BigDecimal(40).compareTo(cardRepository.findById(card.getId()).get().getBalance()));
+
+        //retries of other cards are not woken
+        assertFalse(submitted(otherInstallment));
+        assertEquals(otherAttempt, retry(otherInstallment).getNextAttempt());
+    }
+}
@@ -0,0 +1,204 @@
+package com.zilch.settlement;
+
+import com.zilch.cache.ReferenceDataCache;
+import com.zilch.entities.*;
+import com.zilch.repository.*;
+import com.zilch.service.InstallmentSettlementService;
+import com.zilch.service.SettlementResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.persistence.EntityManagerFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Installment settlement tests
+ * @author Elena Medvedeva
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {
+        "application.settlement.batch-size=2",
+        "spring.jpa.properties.hibernate.generate_statistics=true"
+})
+public class InstallmentSettlementTest {
+    public static final Integer CURRENCY_ID = 1;
+    public static final String TEST_CURRENCY = "GBP";
+    public static final String USER = "settlement-user";
+    static int globalIdCounter = 1;
+
+    @Value("${application.transaction.type.debit}")
+    private String debit;
+
+    @Autowired
+    private InstallmentSettlementEngine engine;
+
+    @Autowired
+    private InstallmentSettlementService settlementService;
+
+    @Autowired
+    private CurrencyRepository currencyRepository;
+
+    @Autowired
+    private TransactionTypeRepository transactionTypeRepository;
+
+    @Autowired
+    private CardRepository cardRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private InstallmentRetryRepository installmentRetryRepository;
+
+    @Autowired
+    private ReferenceDataCache referenceDataCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Currency currency;
+    private TransactionType typeDebit;
+    private Date now;
+
+    @Before
+    public void before() {
+        currency = currencyRepository.save(new Currency(CURRENCY_ID, TEST_CURRENCY, USER));
+        typeDebit = transactionTypeRepository.save(new TransactionType(debit, "debit", USER));
+        referenceDataCache.refresh();
+        now = new Date();
+    }
+
+    @After
+    public void after() {
+        outboxEventRepository.deleteAllInBatch();
+        installmentRetryRepository.deleteAllInBatch();
+        transactionRepository.deleteAllInBatch();
+        cardRepository.deleteAllInBatch();
+        transactionTypeRepository.deleteAllInBatch();
+        currencyRepository.deleteAllInBatch();
+        referenceDataCache.refresh();
+    }
+
+    private Card card(int balance) {
+        return cardRepository.save(new Card(USER, currency, new BigDecimal(balance), USER));
+    }
+
+    private List<Transaction> installments(Card card, int count, int amount, Date dueDate) {
+        List<Transaction> installments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            installments.add(new Transaction("settlement" + globalIdCounter++, typeDebit, new BigDecimal(amount), card, null,
+                    currency, "installment", false, new Date(dueDate.getTime() + i), USER));
+        }
+        return transactionRepository.saveAll(installments);
+    }
+
+    private Date daysFromNow(int days) {
+        return new Date(now.getTime() + TimeUnit.DAYS.toMillis(days));
+    }
+
+    private BigDecimal balance(Card card) {
+        return cardRepository.findById(card.getId()).get().getBalance();
+    }
+
+    private boolean submitted(Transaction transaction) {
+        return transactionRepository.findById(transaction.getId()).get().getSubmitted();
+    }
+
+    @Test
+    public void testSettleDue_DebitsCardsAndMarksSubmitted() {
+        Card card1 = card(100);
+        Card card2 = card(100);
+        List<Transaction> due = new ArrayList<>(installments(card1, 3, 10, daysFromNow(-1)));
+        due.addAll(installments(card2, 3, 10, daysFromNow(-2)));
+        Transaction future = installments(card1, 1, 10, daysFromNow(7)).get(0);
+        double settled = meterRegistry.counter(InstallmentSettlementEngine.METRIC_SETTLED).count();
+
+        assertEquals(6, engine.settleDue(now));
+
+        assertEquals(0, new BigDecimal(70).compareTo(balance(card1)));
+        assertEquals(0, new BigDecimal(70).compareTo(balance(card2)));
+        due.forEach(t -> assertTrue(submitted(t)));
+        assertFalse(submitted(future));
+        assertEquals(settled + 6, meterRegistry.counter(InstallmentSettlementEngine.METRIC_SETTLED).count(), 0);
+        assertEquals(0, meterRegistry.get(InstallmentSettlementEngine.METRIC_BACKLOG).gauge().value(), 0);
+
+        //nothing is due anymore
+        assertEquals(0, engine.settleDue(now));
+    }
+
+    @Test
+    public void testSettleDue_NotEnoughFundsForAllInstallments() {
+        Card card = card(25);
+        List<Transaction> due = installments(card, 3, 10, daysFromNow(-1));
+
+        assertEquals(2, engine.settleDue(now));
+
+        assertEquals(0, new BigDecimal(5).compareTo(balance(card)));
+        assertTrue(submitted(due.get(0)));
+        assertTrue(submitted(due.get(1)));
+        assertFalse(submitted(due.get(2)));
+        //unsettled installment is moved to the retry queue and is not scanned again
+        assertTrue(transactionRepository.findById(due.get(2).getId()).get().isInRetry());
+        InstallmentRetry retry = installmentRetryRepository.findById(due.get(2).getId()).get();
+        assertEquals(1, retry.getAttempts());
+        assertTrue(retry.getNextAttempt().after(now));
+        assertEquals(0, meterRegistry.get(InstallmentSettlementEngine.METRIC_BACKLOG).gauge().value(), 0);
+        assertEquals(0, settlementService.settleDueInstallments(now, 100, 0, 1).getLocked());
+    }
+
+    @Test
+    public void testSettleDueInstallments_PartialFundsInOneBatch() {
+        Card card = card(25);
+        installments(card, 3, 10, daysFromNow(-1));
+
+        SettlementResult result = settlementService.settleDueInstallments(now, 100, 0, 1);
+
+        assertEquals(3, result.getLocked());
+        assertEquals(2, result.getSettled());
+        assertEquals(1, result.getUnsettled());
+        assertEquals(0, new BigDecimal(5).compareTo(balance(card)));
+    }
+
+    @Test
+    public void testSettleDueInstallments_StatementsPerCardNotPerInstallment() {
+        for (int i = 0; i < 3; i++) {
+            installments(card(100), 1, 10, daysFromNow(-1));
+        }
+        long oneInstallmentPerCard = settlementStatements();
+
+        for (int i = 0; i < 3; i++) {
+            installments(card(100), 5, 10, daysFromNow(-1));
+        }
+        assertEquals(oneInstallmentPerCard, settlementStatements());
+    }
+
+    private long settlementStatements() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        settlementService.settleDueInstallments(now, 100, 0, 1);
+        return statistics.getPrepareStatementCount();
+    }
+}